@@ -0,0 +1,39 @@
+# this script runs every test/interpret/name.mx in the IRRootInterpreter after each phase of the compiler.
+# name.in is the input and name.out the expected output, the program must exit with 0 after every phase.
+# it is also compiled with the profile of its run, -fprofile-generate followed by -fprofile-use.
+# call build.bash first.
+
+set -e
+cd "$(dirname "$0")"
+root=$PWD
+export CCHK="java -classpath $root/lib/antlr-4.7.1-complete.jar:$root/lib/commons-text-1.6.jar:$root/bin:$root/lib/commons-lang3-3.8.1.jar Compiler.Main"
+work=$(mktemp -d)
+trap 'rm -rf "$work"' EXIT
+ln -s "$root/lib" "$work/lib"
+failed=0
+for program in test/interpret/*.mx; do
+    name=${program%.mx}
+    input=/dev/null
+    [ -f "$name.in" ] && input=$root/$name.in
+    cp "$program" "$work/test.txt"
+    for phase in build inline global ssa optim combine destruct; do
+        (cd "$work" && $CCHK -finterpret=$phase < "$input" > /dev/null 2> output.txt) || true
+        if grep -q "^\[interpret $phase\] exitcode: 0," "$work/output.txt" && grep -v "^\[interpret " "$work/output.txt" | diff -q - "$name.out" > /dev/null; then
+            echo "pass $name $phase"
+        else
+            echo "fail $name $phase"
+            failed=1
+        fi
+    done
+    # the profile of a run after IRBuilder, then a compile guided by it, whose code must still give the same output
+    (cd "$work" && $CCHK -fprofile-generate=profile.txt < "$input" > /dev/null 2> output.txt) || true
+    if head -n "$(wc -l < "$name.out")" "$work/output.txt" | diff -q - "$name.out" > /dev/null \
+        && (cd "$work" && $CCHK -fprofile-use=profile.txt -finterpret=destruct < "$input" > /dev/null 2> output.txt) \
+        && grep -q "^\[interpret destruct\] exitcode: 0," "$work/output.txt" && grep -v "^\[interpret " "$work/output.txt" | diff -q - "$name.out" > /dev/null; then
+        echo "pass $name profile"
+    else
+        echo "fail $name profile"
+        failed=1
+    fi
+done
+exit $failed
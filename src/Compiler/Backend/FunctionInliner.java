@@ -9,6 +9,7 @@ import Compiler.IR.Function;
 import Compiler.IR.IRRoot;
 import Compiler.IR.Instruction.*;
 import Compiler.IR.Operand.*;
+import Compiler.Utils.TimeReport;
 
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -19,6 +20,10 @@ public class FunctionInliner {
     private IRRoot irRoot;
     private int inlineCalleeInstructionLimit = 150;
     private int inlineMaxDepth = 5;
+    //with a profile (-fprofile-use), calls made at least 1/hotCallRatio as often as the hottest one are hot
+    private int inlineHotCalleeInstructionLimit = 400;
+    private int hotCallRatio = 100;
+    private long maxCallCount = 0;
 
     private Map<Function, Integer> functionInstructionCountMap = new HashMap<>();
     private Map<Function, Integer> functionCalledCountMap = new HashMap<>();
@@ -50,6 +55,7 @@ public class FunctionInliner {
                         Function callee = ((Call) irInstruction).getCallee();
                         if (functionCalledCountMap.containsKey(callee))
                             functionCalledCountMap.put(callee, functionCalledCountMap.get((callee)) + 1);
+                        maxCallCount = Math.max(maxCallCount, ((Call) irInstruction).executionCount);
                     }
                 }
             }
@@ -76,6 +82,8 @@ public class FunctionInliner {
         fakeFunction.setExitBlock(basicBlockFakerMap.get(function.getExitBlock()));
         fakeFunction.setReferenceForClassMethod(function.getReferenceForClassMethod());
         fakeFunction.setParameterList(function.getParameterList());
+        fakeFunction.executionCount = function.executionCount;
+        basicBlockFakerMap.forEach((basicBlock, fakeBB) -> fakeBB.executionCount = basicBlock.executionCount);
         return fakeFunction;
     }
 
@@ -88,17 +96,40 @@ public class FunctionInliner {
         }
     }
 
-    private boolean worthNonRecursiveInline(Function callee) {
+    private boolean worthNonRecursiveInline(Call callInst) {
+        Function callee = callInst.getCallee();
         if (functionCalledCountMap.get(callee) == null) return false;
         if (callee.recursiveCalleeSet.contains(callee)) return false;
         if (callee.getReferenceForClassMethod() != null) return false;
-        return functionInstructionCountMap.get(callee) <= inlineCalleeInstructionLimit;
+        return functionInstructionCountMap.get(callee) <= inlineLimit(callInst);
     }
 
-    private boolean worthRecursiveInline(Function callee) {
+    private boolean worthRecursiveInline(Call callInst) {
+        Function callee = callInst.getCallee();
         if (functionCalledCountMap.get(callee) == null) return false;
         if (callee.getReferenceForClassMethod() != null) return false;
-        return functionInstructionCountMap.get(callee) <= inlineCalleeInstructionLimit;
+        return functionInstructionCountMap.get(callee) <= inlineLimit(callInst);
+    }
+
+    //with a profile, calls that never ran stay calls and hot calls take bigger callees
+    private int inlineLimit(Call callInst) {
+        if (callInst.executionCount < 0) return inlineCalleeInstructionLimit;
+        if (callInst.executionCount == 0) return -1;
+        if (callInst.executionCount * hotCallRatio >= maxCallCount) return inlineHotCalleeInstructionLimit;
+        return inlineCalleeInstructionLimit;
+    }
+
+    //the share of the callee's counts that comes from this call site
+    private long scaleCount(long count, Call callInst, Function callee) {
+        if (count <= 0 || callInst.executionCount < 0 || callee.executionCount <= 0) return count;
+        return (long) ((double) count * callInst.executionCount / callee.executionCount);
+    }
+
+    private IRInstruction getFakeInstruction(IRInstruction irInstruction, Call callInst, Function callee) {
+        IRInstruction fakeInstruction = irInstruction.getFakeInstruction(basicBlockFakerMap, registerFakerMap);
+        if (fakeInstruction instanceof Call)
+            ((Call) fakeInstruction).executionCount = scaleCount(((Call) fakeInstruction).executionCount, callInst, callee);
+        return fakeInstruction;
     }
 
     private void initRegisterFakerMap() {
@@ -108,10 +139,12 @@ public class FunctionInliner {
     }
 
     private IRInstruction doInline(Call callInst) {
+        TimeReport.count("calls inlined", 1);
         Function caller = callInst.getCurrentBB().getCurrentFunction();
         Function callee = unlimitedFunctionWorks.getOrDefault(callInst.getCallee(), callInst.getCallee());
         //split the block
         BasicBlock splitter = new BasicBlock(caller, "splitter");
+        splitter.executionCount = callInst.getCurrentBB().executionCount;
         callInst.getCurrentBB().getSuccessors().forEach(successor -> successor.replacePredecessor(callInst.getCurrentBB(), splitter));
         tmpIRInstructionList.clear();
         for (IRInstruction irInstruction = callInst.getCurrentBB().tail, nextInstruction; irInstruction != callInst; irInstruction = nextInstruction) {
@@ -141,8 +174,11 @@ public class FunctionInliner {
         }
         callInst.removeSelf();
         for (BasicBlock realBB : callee.getReversePostOrderDFSBBList()) {
-            if (!basicBlockFakerMap.containsKey(realBB))
-                basicBlockFakerMap.put(realBB, new BasicBlock(caller, "faker_" + realBB.getName()));
+            if (!basicBlockFakerMap.containsKey(realBB)) {
+                BasicBlock fakeBB = new BasicBlock(caller, "faker_" + realBB.getName());
+                fakeBB.executionCount = scaleCount(realBB.executionCount, callInst, callee);
+                basicBlockFakerMap.put(realBB, fakeBB);
+            }
         }
         IRInstruction splitterHead = splitter.head;
         for (BasicBlock realBB : callee.getReversePostOrderDFSBBList()) {
@@ -159,12 +195,12 @@ public class FunctionInliner {
                 }
                 if (fakeBB == splitter) {
                     if (irInstruction != realBB.tail) {
-                        splitterHead.prependInstruction(irInstruction.getFakeInstruction(basicBlockFakerMap, registerFakerMap));
+                        splitterHead.prependInstruction(getFakeInstruction(irInstruction, callInst, callee));
                     }
                 } else {
                     if (irInstruction == realBB.tail)
-                        fakeBB.terminate(irInstruction.getFakeInstruction(basicBlockFakerMap, registerFakerMap));
-                    else fakeBB.appendInst(irInstruction.getFakeInstruction(basicBlockFakerMap, registerFakerMap));
+                        fakeBB.terminate(getFakeInstruction(irInstruction, callInst, callee));
+                    else fakeBB.appendInst(getFakeInstruction(irInstruction, callInst, callee));
                 }
             }
         }
@@ -183,7 +219,7 @@ public class FunctionInliner {
                 for (BasicBlock basicBlock : function.getReversePostOrderDFSBBList()) {
                     for (IRInstruction irInstruction = basicBlock.head, nextInstruction; irInstruction != null; irInstruction = nextInstruction) {
                         nextInstruction = irInstruction.getNextInstruction();
-                        if (irInstruction instanceof Call && worthNonRecursiveInline(((Call) irInstruction).getCallee())) {
+                        if (irInstruction instanceof Call && worthNonRecursiveInline((Call) irInstruction)) {
                             Function callee = ((Call) irInstruction).getCallee();
                             changed = true;
                             nextInstruction = doInline((Call) irInstruction);
@@ -212,7 +248,7 @@ public class FunctionInliner {
                 for (BasicBlock basicBlock : function.getReversePostOrderDFSBBList()) {
                     for (IRInstruction irInstruction = basicBlock.head, nextInstruction; irInstruction != null; irInstruction = nextInstruction) {
                         nextInstruction = irInstruction.getNextInstruction();
-                        if (irInstruction instanceof Call && worthRecursiveInline(((Call) irInstruction).getCallee())) {
+                        if (irInstruction instanceof Call && worthRecursiveInline((Call) irInstruction)) {
                             Function callee = ((Call) irInstruction).getCallee();
                             changed = true;
                             nextInstruction = doInline((Call) irInstruction);
@@ -12,7 +12,9 @@ import Compiler.Symbol.*;
 import org.apache.commons.text.StringEscapeUtils;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class IRBuilder implements ASTVisitor {
     private GlobalScope globalScope;
@@ -20,6 +22,8 @@ public class IRBuilder implements ASTVisitor {
     private ClassSymbol currentClassSymbol;
     private Function currentFunction;
     private IRRoot irRoot = new IRRoot();
+    //the alias tag of the memory each pointer points to, see Load.aliasTag
+    private Map<Operand, String> aliasTags = new HashMap<>();
 
     public IRBuilder(GlobalScope globalScope) {
         this.globalScope = globalScope;
@@ -261,10 +265,11 @@ public class IRBuilder implements ASTVisitor {
         currentBB.appendInst(new Binary(currentBB, Binary.Op.MUL, indexValue, new Immediate(arrayType.getDims() > 1 ? Configuration.POINTER_SIZE() : arrayType.getBaseType().getTypeSize()), offset));
         currentBB.appendInst(new Binary(currentBB, Binary.Op.ADD, offset, new Immediate(Configuration.REGISTER_SIZE), offset_2));
         currentBB.appendInst(new Binary(currentBB, Binary.Op.ADD, baseAddress, offset_2, node.getResultOperand()));
+        aliasTags.put(node.getResultOperand(), elementTag(arrayType.getBaseType(), arrayType.getDims()));
         //short-circuit evaluation
         if (node.getThenBB() != null) {
             I64Value tmp = new I64Value();
-            currentBB.terminate(new Load(currentBB, node.getResultOperand(), tmp));
+            currentBB.terminate(new Load(currentBB, node.getResultOperand(), tmp, aliasTags.get(node.getResultOperand())));
             currentBB.terminate(new Branch(currentBB, tmp, node.getThenBB(), node.getElseBB()));
         }
     }
@@ -477,11 +482,12 @@ public class IRBuilder implements ASTVisitor {
                 I64Pointer memberPointer = new I64Pointer();
                 //compute offset & set result
                 currentBB.appendInst(new Binary(currentBB, Binary.Op.ADD, base, new Immediate(((VariableSymbol) memberSymbol).getOffset()), memberPointer));
+                aliasTags.put(memberPointer, memberTag((VariableSymbol) memberSymbol));
                 node.setResultOperand(memberPointer);
                 //short-circuit evaluation
                 if (node.getThenBB() != null) {
                     I64Value tmp = new I64Value();
-                    currentBB.appendInst(new Load(currentBB, memberPointer, tmp));
+                    currentBB.appendInst(new Load(currentBB, memberPointer, tmp, aliasTags.get(memberPointer)));
                     currentBB.terminate(new Branch(currentBB, tmp, node.getThenBB(), node.getElseBB()));
                 }
             } else {
@@ -530,10 +536,11 @@ public class IRBuilder implements ASTVisitor {
             if (symbol instanceof VariableSymbol) {
                 I64Pointer memberPointer = new I64Pointer();
                 currentBB.appendInst(new Binary(currentBB, Binary.Op.ADD, currentFunction.getReferenceForClassMethod(), new Immediate(((VariableSymbol) symbol).getOffset()), memberPointer));
+                aliasTags.put(memberPointer, memberTag((VariableSymbol) symbol));
                 node.setResultOperand(memberPointer);
                 if (node.getThenBB() != null) {
                     I64Value tmp = new I64Value();
-                    currentBB.appendInst(new Load(currentBB, memberPointer, tmp));
+                    currentBB.appendInst(new Load(currentBB, memberPointer, tmp, aliasTags.get(memberPointer)));
                     currentBB.terminate(new Branch(currentBB, tmp, node.getThenBB(), node.getElseBB()));
                 }
             } else {
@@ -610,7 +617,7 @@ public class IRBuilder implements ASTVisitor {
                 if (operand instanceof Pointer) {
                     I64Value tmp = new I64Value();
                     currentBB.appendInst(new Binary(currentBB, node.getOp() == UnaryExprNode.Op.PRE_INC ? Binary.Op.ADD : Binary.Op.SUB, value, new Immediate(1), tmp));
-                    currentBB.appendInst(new Store(currentBB, tmp, operand));
+                    currentBB.appendInst(new Store(currentBB, tmp, operand, aliasTags.get(operand)));
                     node.setResultOperand(operand);
                 } else if (operand instanceof Value) {
                     currentBB.appendInst(new Binary(currentBB, node.getOp() == UnaryExprNode.Op.PRE_INC ? Binary.Op.ADD : Binary.Op.SUB, value, new Immediate(1), value));
@@ -626,7 +633,7 @@ public class IRBuilder implements ASTVisitor {
                 if (operand instanceof Pointer) {
                     I64Value tmp = new I64Value();
                     currentBB.appendInst(new Binary(currentBB, node.getOp() == UnaryExprNode.Op.SUF_INC ? Binary.Op.ADD : Binary.Op.SUB, value, new Immediate(1), tmp));
-                    currentBB.appendInst(new Store(currentBB, tmp, operand));
+                    currentBB.appendInst(new Store(currentBB, tmp, operand, aliasTags.get(operand)));
                     node.setResultOperand(value);
                 } else if (operand instanceof Value) {
                     I64Value tmp = new I64Value();
@@ -703,8 +710,8 @@ public class IRBuilder implements ASTVisitor {
             rhsExpr.setElseBB(elseBB);
             rhsExpr.accept(this);
             if (lhs instanceof Pointer) {
-                thenBB.appendInst(new Store(thenBB, new Immediate(1), lhs));
-                elseBB.appendInst(new Store(elseBB, new Immediate(0), lhs));
+                thenBB.appendInst(new Store(thenBB, new Immediate(1), lhs, aliasTags.get(lhs)));
+                elseBB.appendInst(new Store(elseBB, new Immediate(0), lhs, aliasTags.get(lhs)));
             } else {
                 thenBB.appendInst(new Move(thenBB, new Immediate(1), lhs));
                 elseBB.appendInst(new Move(elseBB, new Immediate(0), lhs));
@@ -716,11 +723,11 @@ public class IRBuilder implements ASTVisitor {
             rhsExpr.accept(this);
             if (rhsExpr.getResultOperand() instanceof Pointer) {
                 I64Value tmp_value = new I64Value();
-                currentBB.appendInst(new Load(currentBB, rhsExpr.getResultOperand(), tmp_value));
-                if (lhs instanceof Pointer) currentBB.appendInst(new Store(currentBB, tmp_value, lhs));
+                currentBB.appendInst(new Load(currentBB, rhsExpr.getResultOperand(), tmp_value, aliasTags.get(rhsExpr.getResultOperand())));
+                if (lhs instanceof Pointer) currentBB.appendInst(new Store(currentBB, tmp_value, lhs, aliasTags.get(lhs)));
                 else currentBB.appendInst(new Move(currentBB, tmp_value, lhs));
             } else {
-                if (lhs instanceof Pointer) currentBB.appendInst(new Store(currentBB, rhsExpr.getResultOperand(), lhs));
+                if (lhs instanceof Pointer) currentBB.appendInst(new Store(currentBB, rhsExpr.getResultOperand(), lhs, aliasTags.get(lhs)));
                 else currentBB.appendInst(new Move(currentBB, rhsExpr.getResultOperand(), lhs));
             }
         }
@@ -742,11 +749,11 @@ public class IRBuilder implements ASTVisitor {
             if (resultOperand instanceof Pointer) {
                 I64Value tmp = new I64Value();
                 currentBB.appendInst(new Alloc(currentBB, allocateSize, tmp));
-                currentBB.appendInst(new Store(currentBB, indexValue, tmp));
-                currentBB.appendInst(new Store(currentBB, tmp, resultOperand));
+                currentBB.appendInst(new Store(currentBB, indexValue, tmp, ARRAY_SIZE));
+                currentBB.appendInst(new Store(currentBB, tmp, resultOperand, aliasTags.get(resultOperand)));
             } else {
                 currentBB.appendInst(new Alloc(currentBB, allocateSize, resultOperand));
-                currentBB.appendInst(new Store(currentBB, indexValue, resultOperand));
+                currentBB.appendInst(new Store(currentBB, indexValue, resultOperand, ARRAY_SIZE));
             }
         } else {
             //generate new
@@ -755,11 +762,11 @@ public class IRBuilder implements ASTVisitor {
             I64Value tmp = new I64Value();
             if (resultOperand instanceof Pointer) {
                 currentBB.appendInst(new Alloc(currentBB, allocateSize, tmp));
-                currentBB.appendInst(new Store(currentBB, indexValue, tmp));
-                currentBB.appendInst(new Store(currentBB, tmp, resultOperand));
+                currentBB.appendInst(new Store(currentBB, indexValue, tmp, ARRAY_SIZE));
+                currentBB.appendInst(new Store(currentBB, tmp, resultOperand, aliasTags.get(resultOperand)));
             } else {
                 currentBB.appendInst(new Alloc(currentBB, allocateSize, resultOperand));
-                currentBB.appendInst(new Store(currentBB, indexValue, resultOperand));
+                currentBB.appendInst(new Store(currentBB, indexValue, resultOperand, ARRAY_SIZE));
             }
             //generate for TODO: expand loops for compile-time constants
             BasicBlock bodyBB = new BasicBlock(currentFunction, "for_body");
@@ -769,6 +776,7 @@ public class IRBuilder implements ASTVisitor {
             I64Pointer nowPointer = new I64Pointer();
             I64Pointer endPointer = new I64Pointer();
             I64Pointer tempPointer = new I64Pointer();
+            aliasTags.put(nowPointer, elementTag(node.getBaseTypeAfterResolve(), node.getNumDims() - depth));
             //generate init
             if (resultOperand instanceof Pointer) {
                 currentBB.appendInst(new Binary(currentBB, Binary.Op.ADD, tmp, new Immediate(Configuration.REGISTER_SIZE), nowPointer));
@@ -796,12 +804,26 @@ public class IRBuilder implements ASTVisitor {
         }
     }
 
+    //alias tags, Mx* has no casts, so memory with different tags never overlaps
+    private static final String ARRAY_SIZE = "size";
+
+    private static String memberTag(VariableSymbol member) {
+        return member.getScope().getScopeName() + "+" + member.getOffset();
+    }
+
+    //an element of an array of `dims` dimensions of `baseType`
+    private static String elementTag(Type baseType, int dims) {
+        StringBuilder tag = new StringBuilder(baseType.getTypeName());
+        for (int i = 0; i < dims; ++i) tag.append("[]");
+        return tag.toString();
+    }
+
     //for Value -> just return this VR
     //for Pointer -> resolve it
     private Operand getOperandForValueUse(BasicBlock currentBB, Operand operand) {
         if (operand instanceof Pointer) {
             I64Value value = new I64Value();
-            currentBB.appendInst(new Load(currentBB, operand, value));
+            currentBB.appendInst(new Load(currentBB, operand, value, aliasTags.get(operand)));
             return value;
         } else return operand;
     }
@@ -826,7 +848,7 @@ public class IRBuilder implements ASTVisitor {
             node.getFunction().accept(this);
             Operand objectPointer = node.getFunction().getResultOperand();
             node.setResultOperand(new I64Value());
-            currentBB.appendInst(new Load(currentBB, objectPointer, node.getResultOperand()));
+            currentBB.appendInst(new Load(currentBB, objectPointer, node.getResultOperand(), ARRAY_SIZE));
             return true;
         } else return false;
     }
@@ -0,0 +1,258 @@
+package Compiler.Backend;
+
+import Compiler.IR.BasicBlock;
+import Compiler.IR.Function;
+import Compiler.IR.IRRoot;
+import Compiler.IR.Instruction.IRInstruction;
+import Compiler.IR.Instruction.Move;
+import Compiler.IR.Operand.GlobalVariable;
+import Compiler.IR.Operand.PhysicalRegister;
+import Compiler.IR.Operand.VirtualRegister;
+import Compiler.Utils.TimeReport;
+
+import java.util.*;
+
+import static Compiler.IR.Operand.PhysicalRegister.*;
+
+//Linear Scan (-fregalloc=linear)
+//Poletto & Sarkar: the instructions are numbered in reverse post order and every virtual register gets one interval
+//from its first to its last live position, holes included. The intervals are visited by start, and each takes a free
+//register or the register of the active interval with the lowest spill priority, which is then spilled. The
+//precolored registers are not intervals but the exact ranges where they are live, so that a register can be taken by
+//an interval that does not overlap any of its ranges; an interval that lives across a call ends up in a callee saved
+//register this way. Spilled registers are rewritten as in graph coloring and the function is allocated again.
+//Much faster than graph coloring on large functions, the code is worse: no coalescing besides taking the register of
+//a move partner when it is free, and one register for the whole interval.
+//Instruction at position p reads its uses at p and writes its defs at p + 1, so a def can take the register of a use
+//that dies there, as in the interference graph.
+public class LinearScanAllocator {
+    private IRRoot irRoot;
+    //the registers in the order they are tried, caller saved first to keep the callee saved ones for the intervals
+    //that live across calls
+    private int[] registerOrder;
+    private int allocatable = 0;
+
+    private int nodeCnt;
+    private VirtualRegister[] nodes;
+    private int[] start;
+    private int[] end;
+    //the other end of a move, -1 if there is none
+    private int[] hint;
+    private int[] color;
+    //the live ranges [from, to) of each precolored register, in order
+    private int[][] fixedRanges;
+    private int[] fixedRangeSize;
+
+    public LinearScanAllocator(IRRoot irRoot) {
+        this.irRoot = irRoot;
+        List<Integer> order = new ArrayList<>();
+        for (boolean callerSave : new boolean[]{true, false})
+            for (int i = 0; i < allRegisters.size(); ++i) {
+                PhysicalRegister physicalRegister = allRegisters.get(i);
+                if (physicalRegister != rsp && physicalRegister != rbp && physicalRegister.isCallerSave() == callerSave)
+                    order.add(i);
+            }
+        registerOrder = order.stream().mapToInt(x -> x).toArray();
+        for (int r : registerOrder) allocatable |= 1 << r;
+    }
+
+    public void run() {
+        irRoot.getFunctionMap().values().forEach(this::allocate);
+        RegisterAllocator.cleanMove(irRoot);
+    }
+
+    private void allocate(Function function) {
+        for (int iteration = 0; ; ++iteration) {
+            TimeReport.begin("iteration " + iteration, function);
+            Liveness liveness = new Liveness(function);
+            nodes = liveness.nodes;
+            nodeCnt = liveness.nodeCnt;
+            buildIntervals(liveness);
+            List<VirtualRegister> spilledNodes = scan();
+            TimeReport.count("registers spilled", spilledNodes.size());
+            if (!spilledNodes.isEmpty()) RegisterAllocator.rewriteProgram(function, spilledNodes);
+            liveness.release();
+            TimeReport.end(function);
+            if (spilledNodes.isEmpty()) break;
+        }
+    }
+
+    private void buildIntervals(Liveness liveness) {
+        start = new int[nodeCnt];
+        end = new int[nodeCnt];
+        hint = new int[nodeCnt];
+        Arrays.fill(start, Integer.MAX_VALUE);
+        Arrays.fill(end, -1);
+        Arrays.fill(hint, -1);
+        fixedRanges = new int[Liveness.PRECOLORED_CNT][16];
+        fixedRangeSize = new int[Liveness.PRECOLORED_CNT];
+
+        List<BasicBlock> basicBlocks = liveness.basicBlocks;
+        int[] blockFrom = new int[basicBlocks.size() + 1];
+        for (int i = 0; i < basicBlocks.size(); ++i) {
+            int position = blockFrom[i];
+            for (IRInstruction irInstruction = basicBlocks.get(i).head; irInstruction != null; irInstruction = irInstruction.getNextInstruction())
+                position += 2;
+            blockFrom[i + 1] = position;
+        }
+
+        //blocks and instructions backwards, so that the ranges of a precolored register come in decreasing order
+        int[] liveUntil = new int[nodeCnt];
+        BitSet live = new BitSet(nodeCnt);
+        for (int i = basicBlocks.size() - 1; i >= 0; --i) {
+            live.clear();
+            live.or(liveness.liveOut[i]);
+            for (int n = live.nextSetBit(0); n >= 0; n = live.nextSetBit(n + 1)) liveUntil[n] = blockFrom[i + 1];
+            int position = blockFrom[i + 1];
+            for (IRInstruction irInstruction = basicBlocks.get(i).tail; irInstruction != null; irInstruction = irInstruction.getLastInstruction()) {
+                position -= 2;
+                if (irInstruction instanceof Move && ((Move) irInstruction).getDst() instanceof VirtualRegister && !(((Move) irInstruction).getSrc() instanceof PhysicalRegister)) {
+                    //Dead Move Elimination
+                    boolean dead = ((Move) irInstruction).getDst() == ((Move) irInstruction).getSrc();
+                    if (!dead) {
+                        dead = true;
+                        for (VirtualRegister def : irInstruction.getDef())
+                            if (live.get(def.id)) dead = false;
+                    }
+                    if (dead) {
+                        irInstruction.removeSelf();
+                        continue;
+                    }
+                }
+                if (irInstruction instanceof Move
+                        && ((Move) irInstruction).getDst() instanceof VirtualRegister && ((Move) irInstruction).getSrc() instanceof VirtualRegister
+                        && !(((Move) irInstruction).getDst() instanceof GlobalVariable) && !(((Move) irInstruction).getSrc() instanceof GlobalVariable)) {
+                    int dst = ((VirtualRegister) ((Move) irInstruction).getDst()).id;
+                    int src = ((VirtualRegister) ((Move) irInstruction).getSrc()).id;
+                    if (hint[dst] < 0) hint[dst] = src;
+                    if (hint[src] < 0) hint[src] = dst;
+                }
+                for (VirtualRegister def : irInstruction.getDef()) {
+                    int n = def.id;
+                    if (live.get(n)) {
+                        addRange(n, position + 1, liveUntil[n]);
+                        live.clear(n);
+                    } else addRange(n, position + 1, position + 2);
+                }
+                for (VirtualRegister use : irInstruction.getUse()) {
+                    int n = use.id;
+                    if (!live.get(n)) {
+                        live.set(n);
+                        liveUntil[n] = position + 1;
+                    }
+                }
+            }
+            for (int n = live.nextSetBit(0); n >= 0; n = live.nextSetBit(n + 1)) addRange(n, blockFrom[i], liveUntil[n]);
+        }
+
+        //the ranges came last first
+        for (int r = 0; r < Liveness.PRECOLORED_CNT; ++r) {
+            int[] ranges = fixedRanges[r];
+            for (int i = 0, j = fixedRangeSize[r] - 2; i < j; i += 2, j -= 2) {
+                int from = ranges[i], to = ranges[i + 1];
+                ranges[i] = ranges[j];
+                ranges[i + 1] = ranges[j + 1];
+                ranges[j] = from;
+                ranges[j + 1] = to;
+            }
+        }
+    }
+
+    private void addRange(int n, int from, int to) {
+        if (n >= Liveness.PRECOLORED_CNT) {
+            start[n] = Math.min(start[n], from);
+            end[n] = Math.max(end[n], to);
+            return;
+        }
+        int size = fixedRangeSize[n];
+        int[] ranges = fixedRanges[n];
+        //adjacent ranges of the same block merge
+        if (size > 0 && ranges[size - 2] <= to) {
+            ranges[size - 2] = Math.min(ranges[size - 2], from);
+            ranges[size - 1] = Math.max(ranges[size - 1], to);
+            return;
+        }
+        if (size == ranges.length) ranges = fixedRanges[n] = Arrays.copyOf(ranges, size * 2);
+        ranges[size] = from;
+        ranges[size + 1] = to;
+        fixedRangeSize[n] = size + 2;
+    }
+
+    //whether precolored register r is live somewhere in [from, to)
+    private boolean fixedConflict(int r, int from, int to) {
+        int[] ranges = fixedRanges[r];
+        //the first range that ends after `from`
+        int low = 0, high = fixedRangeSize[r] / 2;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (ranges[mid * 2 + 1] <= from) low = mid + 1;
+            else high = mid;
+        }
+        return low < fixedRangeSize[r] / 2 && ranges[low * 2] < to;
+    }
+
+    //registers made for an earlier spill last, then by spill priority per position of the interval, so that a long
+    //interval with few uses goes before a short busy one
+    private boolean cheaperToSpill(int u, int v) {
+        if (nodes[u].addForSpill != nodes[v].addForSpill) return !nodes[u].addForSpill;
+        double weightU = (double) nodes[u].spillPriority / (end[u] - start[u]);
+        double weightV = (double) nodes[v].spillPriority / (end[v] - start[v]);
+        if (weightU != weightV) return weightU < weightV;
+        return end[u] > end[v];
+    }
+
+    private List<VirtualRegister> scan() {
+        color = new int[nodeCnt];
+        Arrays.fill(color, -1);
+        for (int n = 0; n < Liveness.PRECOLORED_CNT; ++n) color[n] = n;
+        //intervals by start, then by number
+        int intervalCnt = 0;
+        long[] intervals = new long[nodeCnt];
+        for (int n = Liveness.PRECOLORED_CNT; n < nodeCnt; ++n) {
+            nodes[n].spillAddr = null;
+            if (end[n] >= 0) intervals[intervalCnt++] = (long) start[n] << 32 | n;
+        }
+        Arrays.sort(intervals, 0, intervalCnt);
+
+        List<VirtualRegister> spilledNodes = new ArrayList<>();
+        //the active intervals by register, -1 for a free register
+        int[] owner = new int[Liveness.PRECOLORED_CNT];
+        Arrays.fill(owner, -1);
+        for (int k = 0; k < intervalCnt; ++k) {
+            int current = (int) intervals[k];
+            int from = start[current], to = end[current];
+            for (int r = 0; r < owner.length; ++r)
+                if (owner[r] >= 0 && end[owner[r]] <= from) owner[r] = -1;
+
+            int register = -1;
+            int preferred = hint[current] < 0 ? -1 : color[hint[current]];
+            if (preferred >= 0 && (allocatable & 1 << preferred) != 0 && owner[preferred] < 0 && !fixedConflict(preferred, from, to))
+                register = preferred;
+            for (int i = 0; register < 0 && i < registerOrder.length; ++i)
+                if (owner[registerOrder[i]] < 0 && !fixedConflict(registerOrder[i], from, to))
+                    register = registerOrder[i];
+
+            if (register < 0) {
+                //spill the cheapest of the current interval and the active ones whose register it could take
+                int victim = current;
+                for (int r : registerOrder)
+                    if (owner[r] >= 0 && cheaperToSpill(owner[r], victim) && !fixedConflict(r, from, to)) {
+                        victim = owner[r];
+                        register = r;
+                    }
+                if (victim != current) {
+                    owner[register] = -1;
+                    color[victim] = -1;
+                } else register = -1;
+                spilledNodes.add(nodes[victim]);
+            }
+            if (register >= 0) {
+                owner[register] = current;
+                color[current] = register;
+            }
+        }
+        for (int n = Liveness.PRECOLORED_CNT; n < nodeCnt; ++n)
+            nodes[n].color = color[n] < 0 ? null : allRegisters.get(color[n]);
+        return spilledNodes;
+    }
+}
@@ -0,0 +1,119 @@
+package Compiler.Backend;
+
+import Compiler.IR.BasicBlock;
+import Compiler.IR.Function;
+import Compiler.IR.Instruction.IRInstruction;
+import Compiler.IR.Instruction.Phi;
+import Compiler.IR.Operand.GlobalVariable;
+import Compiler.IR.Operand.Operand;
+import Compiler.IR.Operand.VirtualRegister;
+
+import java.util.*;
+
+import static Compiler.IR.Operand.PhysicalRegister.allVRegisters;
+
+//Liveness for the register allocators
+//Numbers the virtual registers of a function densely, the precolored ones first in the order of allVRegisters, which
+//is the order of allRegisters, and solves liveOut = U liveIn(successor), liveIn = use U (liveOut - def) per block
+//as bitsets over those numbers. A register keeps its number in `id` until `release`, the precolored ones always.
+//In SSA form a phi defines its register at the start of its block and uses each operand at the end of the
+//predecessor it comes from, so the operands are live out of their predecessor and not into the block of the phi.
+
+class Liveness {
+    static final int PRECOLORED_CNT = allVRegisters.size();
+
+    static {
+        for (int i = 0; i < PRECOLORED_CNT; ++i)
+            allVRegisters.get(i).id = i;
+    }
+
+    final List<BasicBlock> basicBlocks;
+    VirtualRegister[] nodes = new VirtualRegister[64];
+    int nodeCnt = 0;
+    BitSet[] liveIn;
+    BitSet[] liveOut;
+
+    Liveness(Function function) {
+        basicBlocks = function.getReversePostOrderDFSBBList();
+        int blockCnt = basicBlocks.size();
+        Map<BasicBlock, Integer> blockIndex = new HashMap<>();
+        for (int i = 0; i < blockCnt; ++i) blockIndex.put(basicBlocks.get(i), i);
+        for (VirtualRegister virtualRegister : allVRegisters) nodes[nodeCnt++] = virtualRegister;
+
+        //initialize def & use
+        BitSet[] use = new BitSet[blockCnt], def = new BitSet[blockCnt];
+        //the phi operands each block passes on
+        BitSet[] phiUse = new BitSet[blockCnt];
+        liveIn = new BitSet[blockCnt];
+        liveOut = new BitSet[blockCnt];
+        for (int i = 0; i < blockCnt; ++i) {
+            use[i] = new BitSet();
+            def[i] = new BitSet();
+            phiUse[i] = new BitSet();
+        }
+        for (int i = 0; i < blockCnt; ++i) {
+            for (IRInstruction irInstruction = basicBlocks.get(i).head; irInstruction != null; irInstruction = irInstruction.getNextInstruction()) {
+                if (irInstruction instanceof Phi) {
+                    //a phi whose register was spilled writes its stack slot instead
+                    if (((Phi) irInstruction).getDst() instanceof VirtualRegister)
+                        def[i].set(number((VirtualRegister) ((Phi) irInstruction).getDst()));
+                    for (Map.Entry<BasicBlock, Operand> entry : ((Phi) irInstruction).getPaths().entrySet()) {
+                        Integer predecessor = blockIndex.get(entry.getKey());
+                        if (predecessor != null && entry.getValue() instanceof VirtualRegister && !(entry.getValue() instanceof GlobalVariable))
+                            phiUse[predecessor].set(number((VirtualRegister) entry.getValue()));
+                    }
+                    continue;
+                }
+                irInstruction.calcUseAndDef();
+                for (VirtualRegister virtualRegister : irInstruction.getUse()) {
+                    int n = number(virtualRegister);
+                    if (!def[i].get(n)) use[i].set(n);
+                }
+                for (VirtualRegister virtualRegister : irInstruction.getDef())
+                    def[i].set(number(virtualRegister));
+            }
+        }
+
+        //solve, blocks in post order
+        int[][] successors = new int[blockCnt][];
+        for (int i = 0; i < blockCnt; ++i) {
+            liveIn[i] = (BitSet) use[i].clone();
+            liveOut[i] = new BitSet();
+            successors[i] = basicBlocks.get(i).getSuccessors().stream().mapToInt(blockIndex::get).toArray();
+        }
+        BitSet newIn = new BitSet();
+        for (boolean changed = true; changed; ) {
+            changed = false;
+            for (int i = blockCnt - 1; i >= 0; --i) {
+                BitSet out = liveOut[i];
+                out.clear();
+                for (int successor : successors[i]) out.or(liveIn[successor]);
+                out.or(phiUse[i]);
+                newIn.clear();
+                newIn.or(out);
+                newIn.andNot(def[i]);
+                newIn.or(use[i]);
+                if (!newIn.equals(liveIn[i])) {
+                    changed = true;
+                    BitSet tmp = liveIn[i];
+                    liveIn[i] = newIn;
+                    newIn = tmp;
+                }
+            }
+        }
+    }
+
+    private int number(VirtualRegister virtualRegister) {
+        if (virtualRegister.id < 0) {
+            if (nodeCnt == nodes.length) nodes = Arrays.copyOf(nodes, nodeCnt * 2);
+            virtualRegister.id = nodeCnt;
+            nodes[nodeCnt++] = virtualRegister;
+        }
+        return virtualRegister.id;
+    }
+
+    //the numbers only hold until the code changes, the precolored registers keep theirs
+    void release() {
+        for (int n = PRECOLORED_CNT; n < nodeCnt; ++n) nodes[n].id = -1;
+    }
+}
@@ -0,0 +1,50 @@
+package Compiler.Backend;
+
+//-fprofile-use: Profile Annotation
+//Attaches the block and call-site counts of a profile written by -fprofile-generate to the IR right after IRBuilder,
+//where the blocks are the ones the profile was collected on. Later passes carry the counts along.
+
+import Compiler.IR.BasicBlock;
+import Compiler.IR.Function;
+import Compiler.IR.IRRoot;
+import Compiler.IR.Instruction.Call;
+import Compiler.IR.Instruction.IRInstruction;
+import Compiler.IRInterpreter.IRRootInterpreter;
+import Compiler.IRInterpreter.Profile;
+
+import java.util.Map;
+
+public class ProfileAnnotator {
+    private IRRoot irRoot;
+    private Profile profile;
+
+    public ProfileAnnotator(IRRoot irRoot, Profile profile) {
+        this.irRoot = irRoot;
+        this.profile = profile;
+    }
+
+    public void run() {
+        irRoot.getFunctionMap().values().forEach(this::annotate);
+    }
+
+    private void annotate(Function function) {
+        Map<BasicBlock, String> labels = IRRootInterpreter.getBlockLabels(function);
+        Profile.FunctionProfile functionProfile = profile.getFunction(function.getName());
+        //a function the profile does not mention never ran
+        if (functionProfile != null && !labels.values().containsAll(functionProfile.blocks.keySet())) {
+            System.err.println("warning: profile of `" + function.getName() + "` does not match the program, ignored");
+            return;
+        }
+        function.executionCount = functionProfile == null ? 0 : functionProfile.calls;
+        labels.forEach((basicBlock, label) -> {
+            basicBlock.executionCount = functionProfile == null ? 0 : functionProfile.getBlockCount(label);
+            int index = 0;
+            for (IRInstruction irInstruction = basicBlock.head; irInstruction != null; irInstruction = irInstruction.getNextInstruction(), index++) {
+                if (irInstruction instanceof Call) {
+                    Profile.CallSite callSite = functionProfile == null ? null : functionProfile.getCallSite(label, index);
+                    ((Call) irInstruction).executionCount = callSite == null ? 0 : callSite.count;
+                }
+            }
+        });
+    }
+}
@@ -8,18 +8,20 @@ import Compiler.IR.Instruction.Load;
 import Compiler.IR.Instruction.Move;
 import Compiler.IR.Instruction.Store;
 import Compiler.IR.Operand.*;
+import Compiler.Utils.TimeReport;
 
 import java.io.FileNotFoundException;
 import java.io.PrintStream;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Set;
-import java.util.Stack;
+import java.util.*;
 
 import static Compiler.IR.Operand.PhysicalRegister.*;
 
 //Graph Coloring
 //Build -> Simplify -> Coalesce -> Freeze -> Spill -> Select
+//Every iteration numbers the virtual registers of the function densely, the 16 precolored ones first, so that liveness
+//is a bitset per block and the interference graph, the worklists and the moves are arrays indexed by those numbers.
+//A node is in exactly one of the sets of the algorithm, which is its state; the worklists are stacks that may hold
+//nodes which have left them since, and are skipped when they come up.
 public class RegisterAllocator {
     private IRRoot irRoot;
     private IRPrinter irPrinter;
@@ -28,34 +30,54 @@ public class RegisterAllocator {
 
     private int iteration;
     private int K = 14;
-    private Set<PhysicalRegister> colors = new HashSet<>();
-
-    private Set<VirtualRegister> precolored = new HashSet<>();
-    private Set<VirtualRegister> initial = new HashSet<>();
-    private Set<VirtualRegister> simplifyWorklist = new HashSet<>();
-    private Set<VirtualRegister> freezeWorklist = new HashSet<>();
-    private Set<VirtualRegister> spillWorklist = new HashSet<>();
-    private Set<VirtualRegister> spilledNodes = new HashSet<>();
-    private Set<VirtualRegister> coalescedNodes = new HashSet<>();
-    private Set<VirtualRegister> coloredNodes = new HashSet<>();
-    private Stack<VirtualRegister> selectStack = new Stack<>();
-    private Set<VirtualRegister> selectStackNodes = new HashSet<>();
-
-    private Set<Move> coalescedMoves = new HashSet<>();
-    private Set<Move> constrainedMoves = new HashSet<>();
-    private Set<Move> frozenMoves = new HashSet<>();
-    private Set<Move> worklistMoves = new HashSet<>();
-    private Set<Move> activeMoves = new HashSet<>();
-
-    private Set<Edge> adjSet = new HashSet<>();
+    //physical registers that may be assigned, and the callee saved ones among them, as masks over their numbers
+    private int colors = 0;
+    private int calleeSaveColors = 0;
+
+    //node states
+    private static final byte PRECOLORED = 0, INITIAL = 1, SIMPLIFY = 2, FREEZE = 3, SPILL = 4, SPILLED = 5,
+            COALESCED = 6, COLORED = 7, SELECT = 8;
+    //move states
+    private static final byte WORKLIST_MOVE = 0, ACTIVE_MOVE = 1, COALESCED_MOVE = 2, CONSTRAINED_MOVE = 3, FROZEN_MOVE = 4;
+
+    private int nodeCnt;
+    private VirtualRegister[] nodes;
+    private byte[] state;
+    private int[] degree;
+    private int[] alias;
+    private int[] color;
+    private int[][] adjList;
+    private int[] adjListSize;
+    private int[][] moveList;
+    private int[] moveListSize;
+    private AdjacencySet adjSet;
+
+    private int moveCnt;
+    private Move[] moves = new Move[16];
+    private int[] moveDst = new int[16];
+    private int[] moveSrc = new int[16];
+    private byte[] moveState = new byte[16];
+    private int worklistMoveCnt;
+
+    private IntStack simplifyWorklist = new IntStack();
+    private IntStack freezeWorklist = new IntStack();
+    private IntStack spillWorklist = new IntStack();
+    private IntStack worklistMoves = new IntStack();
+    private IntStack selectStack = new IntStack();
+    private int[] stateSize = new int[9];
+
+    //for deduplicating the union of two adjacency lists
+    private int[] mark;
+    private int markCnt;
 
     public RegisterAllocator(IRRoot irRoot) {
         this.irRoot = irRoot;
-        precolored.addAll(allVRegisters);
-
-        colors.addAll(allRegisters);
-        colors.remove(rsp);
-        colors.remove(rbp);
+        for (int i = 0; i < allRegisters.size(); ++i) {
+            PhysicalRegister physicalRegister = allRegisters.get(i);
+            if (physicalRegister == rsp || physicalRegister == rbp) continue;
+            colors |= 1 << i;
+            if (physicalRegister.isCalleeSave()) calleeSaveColors |= 1 << i;
+        }
 
         try {
             debug_out = new PrintStream("ir_debug.ll");
@@ -66,81 +88,61 @@ public class RegisterAllocator {
         }
     }
 
-    private void dumpMove(Move move) {
-        debug_out.print(irPrinter.getName((Storage) move.getDst()));
+    private void dumpMove(int m) {
+        debug_out.print(irPrinter.getName((Storage) moves[m].getDst()));
         debug_out.print(" = move ");
-        debug_out.println(irPrinter.getName((Storage) move.getSrc()));
+        debug_out.println(irPrinter.getName((Storage) moves[m].getSrc()));
     }
 
-    private void dumpNode(VirtualRegister virtualRegister) {
-        debug_out.print(irPrinter.getName(virtualRegister) + "(" + virtualRegister.spillPriority + ") ");
+    private void dumpNode(int n) {
+        debug_out.print(irPrinter.getName(nodes[n]) + "(" + nodes[n].spillPriority + ") ");
     }
 
     private void dumpDebugInfo(Function function) {
         if (DEBUG) {
             debug_out.println("========" + function.getName() + " Graph Info ========");
-            initial.forEach(u -> {
-                debug_out.println(irPrinter.getName(u) + ":");
+            for (int u = allVRegisters.size(); u < nodeCnt; ++u) {
+                debug_out.println(irPrinter.getName(nodes[u]) + ":");
                 debug_out.print("AdjList : ");
-                u.adjList.forEach(v -> debug_out.print(" " + irPrinter.getName(v)));
+                for (int i = 0; i < adjListSize[u]; ++i) debug_out.print(" " + irPrinter.getName(nodes[adjList[u][i]]));
                 debug_out.println();
-                debug_out.print("degree : " + u.degree);
+                debug_out.print("degree : " + degree[u]);
                 debug_out.println();
-                debug_out.print("Alias :" + irPrinter.getName(u.alias));
+                debug_out.print("Alias :" + irPrinter.getName(nodes[alias[u]]));
                 debug_out.println();
-                debug_out.print("Color : " + (u.color == null ? "null" : irPrinter.getName(u.color)));
+                debug_out.print("Color : " + (color[u] < 0 ? "null" : irPrinter.getName(allRegisters.get(color[u]))));
                 debug_out.println();
-                debug_out.print("Priority : " + u.spillPriority);
+                debug_out.print("Priority : " + nodes[u].spillPriority);
                 debug_out.println();
                 debug_out.println("------");
-            });
+            }
+            String[] moveStates = {"workList", "active", "coalesced", "constrained", "frozen"};
             debug_out.println("========" + function.getName() + " Move List Info ========");
-            debug_out.println("coalesced Moves:");
-            coalescedMoves.forEach(this::dumpMove);
-            debug_out.println("------");
-            debug_out.println("constrained Moves:");
-            constrainedMoves.forEach(this::dumpMove);
-            debug_out.println("------");
-            debug_out.println("fronzen Moves:");
-            frozenMoves.forEach(this::dumpMove);
-            debug_out.println("------");
-            debug_out.println("workList Moves:");
-            worklistMoves.forEach(this::dumpMove);
-            debug_out.println("------");
-            debug_out.println("active Moves:");
-            activeMoves.forEach(this::dumpMove);
+            for (byte s = WORKLIST_MOVE; s <= FROZEN_MOVE; ++s) {
+                debug_out.println(moveStates[s] + " Moves:");
+                for (int m = 0; m < moveCnt; ++m) if (moveState[m] == s) dumpMove(m);
+                debug_out.println("------");
+            }
+            String[] nodeStates = {"precolored", "initial", "simplify Nodes(low degree non move related)",
+                    "freeze Nodes(low degree move related)", "spill Nodes(high degree)", "spilled Nodes",
+                    "coalesced Nodes", "colored Nodes", "selected Stack"};
             debug_out.println("========" + function.getName() + " Node List Info ========");
-            debug_out.println("simplify Nodes(low degree non move related):");
-            simplifyWorklist.forEach(this::dumpNode);
-            debug_out.println("\n------");
-            debug_out.println("freeze Nodes(low degree move related):");
-            freezeWorklist.forEach(this::dumpNode);
-            debug_out.println("\n------");
-            debug_out.println("spill Nodes(high degree):");
-            spillWorklist.forEach(this::dumpNode);
-            debug_out.println("\n------");
-            debug_out.println("spilled Nodes:");
-            spilledNodes.forEach(this::dumpNode);
-            debug_out.println("\n------");
-            debug_out.println("coalesced Nodes:");
-            coalescedNodes.forEach(this::dumpNode);
-            debug_out.println("\n------");
-            debug_out.println("colored Nodes:");
-            coloredNodes.forEach(this::dumpNode);
-            debug_out.println("\n------");
-            debug_out.println("selected Stack:");
-            selectStackNodes.forEach(this::dumpNode);
-            debug_out.println("\n------");
+            for (byte s = SIMPLIFY; s <= SELECT; ++s) {
+                debug_out.println(nodeStates[s] + ":");
+                for (int n = allVRegisters.size(); n < nodeCnt; ++n) if (state[n] == s) dumpNode(n);
+                debug_out.println("\n------");
+            }
             debug_out.println();
         }
     }
 
     public void run() {
         irRoot.getFunctionMap().values().forEach(this::allocate);
-        cleanMove();
+        cleanMove(irRoot);
     }
 
-    private void cleanMove() {
+    //remove the moves whose ends got the same register
+    static void cleanMove(IRRoot irRoot) {
         irRoot.getFunctionMap().values().forEach(function -> function.getReversePostOrderDFSBBList().forEach(basicBlock -> {
             for (IRInstruction irInstruction = basicBlock.head; irInstruction != null; irInstruction = irInstruction.getNextInstruction())
                 if (irInstruction instanceof Move && ((Move) irInstruction).getSrc() instanceof Register && ((Move) irInstruction).getDst() instanceof Register) {
@@ -155,137 +157,114 @@ public class RegisterAllocator {
                         color2 = (PhysicalRegister) ((Move) irInstruction).getDst();
                     assert color1 != null;
                     assert color2 != null;
-                    if (color1 == color2)
+                    if (color1 == color2) {
                         irInstruction.removeSelf();
+                        TimeReport.count("moves removed", 1);
+                    }
                 }
         }));
     }
 
-    private void init() {
-        initial.clear();
-        simplifyWorklist.clear();
-        freezeWorklist.clear();
-        spillWorklist.clear();
-        spilledNodes.clear();
-        coalescedNodes.clear();
-        coloredNodes.clear();
-        selectStack.clear();
-        selectStackNodes.clear();
-
-        coalescedMoves.clear();
-        constrainedMoves.clear();
-        frozenMoves.clear();
-        worklistMoves.clear();
-        activeMoves.clear();
-
-        adjSet.clear();
-    }
-
     private void allocate(Function function) {
         boolean finish;
         iteration = 0;
         do {
             if (DEBUG)
                 debug_out.println("=====================" + function.getName() + " Iteration " + iteration + "=====================");
-            init();
-            livenessAnalysis(function);
-            build(function);
+            TimeReport.begin("iteration " + iteration, function);
+            Liveness liveness = new Liveness(function);
+            nodes = liveness.nodes;
+            nodeCnt = liveness.nodeCnt;
+            build(liveness);
             makeWorklist();
             if (DEBUG) {
                 dumpDebugInfo(function);
                 irPrinter.visit(irRoot);
             }
             do {
-                if (!simplifyWorklist.isEmpty()) {
+                if (stateSize[SIMPLIFY] > 0) {
                     if (DEBUG) debug_out.println("===================== Simplify =====================");
                     simplify();
-                } else if (!worklistMoves.isEmpty()) {
+                } else if (worklistMoveCnt > 0) {
                     if (DEBUG) debug_out.println("===================== Coalesce =====================");
                     coalesce();
-                } else if (!freezeWorklist.isEmpty()) {
+                } else if (stateSize[FREEZE] > 0) {
                     if (DEBUG) debug_out.println("===================== Freeze =====================");
                     freeze();
-                } else if (!spillWorklist.isEmpty()) {
+                } else if (stateSize[SPILL] > 0) {
                     if (DEBUG) debug_out.println("===================== SelectSpill =====================");
                     selectSpill();
                 }
                 if (DEBUG) dumpDebugInfo(function);
-            } while (!(simplifyWorklist.isEmpty() && worklistMoves.isEmpty() && freezeWorklist.isEmpty() && spillWorklist.isEmpty()));
+            } while (!(stateSize[SIMPLIFY] == 0 && worklistMoveCnt == 0 && stateSize[FREEZE] == 0 && stateSize[SPILL] == 0));
             assignColors();
             if (DEBUG) {
                 debug_out.println("===================== after ASSIGN =====================");
                 dumpDebugInfo(function);
             }
-            if (!spilledNodes.isEmpty()) {
+            int coalescedMoveCnt = 0;
+            for (int m = 0; m < moveCnt; ++m) if (moveState[m] == COALESCED_MOVE) coalescedMoveCnt++;
+            TimeReport.count("moves coalesced", coalescedMoveCnt);
+            TimeReport.count("registers spilled", stateSize[SPILLED]);
+            if (stateSize[SPILLED] > 0) {
                 finish = false;
-                rewriteProgram(function);
+                List<VirtualRegister> spilledNodes = new ArrayList<>();
+                for (int n = allVRegisters.size(); n < nodeCnt; ++n)
+                    if (state[n] == SPILLED) spilledNodes.add(nodes[n]);
+                rewriteProgram(function, spilledNodes);
                 if (DEBUG) {
                     debug_out.println("===================== IR after Rewrite =====================");
                     irPrinter.visit(irRoot);
                 }
             } else finish = true;
+            liveness.release();
+            Arrays.fill(moves, 0, moveCnt, null);
+            TimeReport.end(function);
             iteration++;
         } while (!finish);
     }
 
-    private void livenessAnalysis(Function function) {
-        //initialize def & use
-        function.getReversePostOrderDFSBBList().forEach(basicBlock -> {
-            basicBlock.getDef().clear();
-            basicBlock.getUse().clear();
-            basicBlock.getLiveIn().clear();
-            basicBlock.getLiveOut().clear();
-            for (IRInstruction irInstruction = basicBlock.head; irInstruction != null; irInstruction = irInstruction.getNextInstruction()) {
-                irInstruction.calcUseAndDef();
-                irInstruction.getUse().forEach(virtualRegister -> {
-                    if (!basicBlock.getDef().contains(virtualRegister))
-                        basicBlock.getUse().add(virtualRegister);
-                });
-                irInstruction.getDef().forEach(virtualRegister -> basicBlock.getDef().add(virtualRegister));
-                initial.addAll(irInstruction.getDef());
-                initial.addAll(irInstruction.getUse());
-            }
-        });
-        initial.removeAll(precolored);
-        initial.remove(vrsp);
-        initial.remove(vrbp);
-        //solve
-        boolean changed = true;
-        for (; changed; ) {
-            changed = false;
-            for (BasicBlock basicBlock : function.getPostOrderDFSBBList()) {
-                Set<VirtualRegister> newOut = new HashSet<>();
-                Set<VirtualRegister> newIn = new HashSet<>(basicBlock.getUse());
-                Set<VirtualRegister> tmp = new HashSet<>(basicBlock.getLiveOut());
-                tmp.removeAll(basicBlock.getDef());
-                newIn.addAll(tmp);
-                basicBlock.getSuccessors().forEach(successor -> newOut.addAll(successor.getLiveIn()));
-                if (!basicBlock.getLiveIn().equals(newIn) || !basicBlock.getLiveOut().equals(newOut)) {
-                    changed = true;
-                    basicBlock.setLiveIn(newIn);
-                    basicBlock.setLiveOut(newOut);
-                }
+    private void build(Liveness liveness) {
+        state = new byte[nodeCnt];
+        degree = new int[nodeCnt];
+        alias = new int[nodeCnt];
+        color = new int[nodeCnt];
+        adjList = new int[nodeCnt][];
+        adjListSize = new int[nodeCnt];
+        moveList = new int[nodeCnt][];
+        moveListSize = new int[nodeCnt];
+        mark = new int[nodeCnt];
+        markCnt = 0;
+        adjSet = new AdjacencySet(nodeCnt);
+        Arrays.fill(stateSize, 0);
+        for (int n = 0; n < nodeCnt; ++n) {
+            alias[n] = n;
+            if (n < allVRegisters.size()) {
+                state[n] = PRECOLORED;
+                degree[n] = Integer.MAX_VALUE;
+                color[n] = n;
+            } else {
+                state[n] = INITIAL;
+                color[n] = -1;
+                nodes[n].spillAddr = null;
+                nodes[n].color = null;
             }
         }
-    }
+        stateSize[PRECOLORED] = allVRegisters.size();
+        stateSize[INITIAL] = nodeCnt - allVRegisters.size();
+        moveCnt = 0;
+        worklistMoveCnt = 0;
+        simplifyWorklist.clear();
+        freezeWorklist.clear();
+        spillWorklist.clear();
+        worklistMoves.clear();
+        selectStack.clear();
 
-    private void build(Function function) {
-        initial.forEach(virtualRegister -> {
-            virtualRegister.clearAllocationInfo();
-            virtualRegister.degree = 0;
-            virtualRegister.color = null;
-        });
-        precolored.forEach(virtualRegister -> {
-            virtualRegister.clearAllocationInfo();
-            virtualRegister.degree = Integer.MAX_VALUE;
-        });
-        function.getReversePostOrderDFSBBList().forEach(basicBlock -> {
-            Set<VirtualRegister> live = new HashSet<>(basicBlock.getLiveOut());
-            /*if (basicBlock == function.getExitBlock()) {
-                live.addAll(calleeSaveVRegisters);
-                live.remove(vrbp);
-                live.remove(vrsp);
-            }*/
+        BitSet live = new BitSet(nodeCnt);
+        for (int i = 0; i < liveness.basicBlocks.size(); ++i) {
+            BasicBlock basicBlock = liveness.basicBlocks.get(i);
+            live.clear();
+            live.or(liveness.liveOut[i]);
             for (IRInstruction irInstruction = basicBlock.tail; irInstruction != null; irInstruction = irInstruction.getLastInstruction()) {
                 if (irInstruction instanceof Move && ((Move) irInstruction).getDst() instanceof VirtualRegister && !(((Move) irInstruction).getSrc() instanceof PhysicalRegister)) {
                     //Dead Move Elimination
@@ -293,9 +272,10 @@ public class RegisterAllocator {
                         irInstruction.removeSelf();
                         continue;
                     }
-                    Set<VirtualRegister> tmp = new HashSet<>(live);
-                    tmp.retainAll(irInstruction.getDef());
-                    if (tmp.isEmpty()) {
+                    boolean dead = true;
+                    for (VirtualRegister def : irInstruction.getDef())
+                        if (live.get(def.id)) dead = false;
+                    if (dead) {
                         irInstruction.removeSelf();
                         continue;
                     }
@@ -303,228 +283,263 @@ public class RegisterAllocator {
                 if (irInstruction instanceof Move
                         && ((Move) irInstruction).getDst() instanceof VirtualRegister && ((Move) irInstruction).getSrc() instanceof VirtualRegister
                         && !(((Move) irInstruction).getDst() instanceof GlobalVariable) && !(((Move) irInstruction).getSrc() instanceof GlobalVariable)) {
-                    live.removeAll(irInstruction.getUse());
-                    for (VirtualRegister def : irInstruction.getDef())
-                        def.moveList.add((Move) irInstruction);
-                    for (VirtualRegister use : irInstruction.getUse())
-                        use.moveList.add((Move) irInstruction);
-                    worklistMoves.add((Move) irInstruction);
+                    for (VirtualRegister use : irInstruction.getUse()) live.clear(use.id);
+                    int m = addMove((Move) irInstruction);
+                    addToMoveList(moveDst[m], m);
+                    addToMoveList(moveSrc[m], m);
                 }
-                live.addAll(irInstruction.getDef());
+                for (VirtualRegister def : irInstruction.getDef()) live.set(def.id);
                 for (VirtualRegister def : irInstruction.getDef())
-                    for (VirtualRegister liveVR : live)
-                        addEdge(def, liveVR);
-                live.removeAll(irInstruction.getDef());
-                live.addAll(irInstruction.getUse());
+                    for (int n = live.nextSetBit(0); n >= 0; n = live.nextSetBit(n + 1))
+                        addEdge(def.id, n);
+                for (VirtualRegister def : irInstruction.getDef()) live.clear(def.id);
+                for (VirtualRegister use : irInstruction.getUse()) live.set(use.id);
             }
-        });
+        }
+    }
+
+    private int addMove(Move move) {
+        if (moveCnt == moves.length) {
+            moves = Arrays.copyOf(moves, moveCnt * 2);
+            moveDst = Arrays.copyOf(moveDst, moveCnt * 2);
+            moveSrc = Arrays.copyOf(moveSrc, moveCnt * 2);
+            moveState = Arrays.copyOf(moveState, moveCnt * 2);
+        }
+        int m = moveCnt++;
+        moves[m] = move;
+        moveDst[m] = ((VirtualRegister) move.getDst()).id;
+        moveSrc[m] = ((VirtualRegister) move.getSrc()).id;
+        moveState[m] = WORKLIST_MOVE;
+        worklistMoves.push(m);
+        worklistMoveCnt++;
+        return m;
+    }
+
+    private void addToMoveList(int n, int m) {
+        if (moveList[n] == null) moveList[n] = new int[4];
+        else if (moveListSize[n] == moveList[n].length) moveList[n] = Arrays.copyOf(moveList[n], moveListSize[n] * 2);
+        moveList[n][moveListSize[n]++] = m;
+    }
+
+    private void setState(int n, byte newState) {
+        stateSize[state[n]]--;
+        stateSize[newState]++;
+        state[n] = newState;
+        if (newState == SIMPLIFY) simplifyWorklist.push(n);
+        else if (newState == FREEZE) freezeWorklist.push(n);
+        else if (newState == SPILL) spillWorklist.push(n);
+    }
+
+    private void setMoveState(int m, byte newState) {
+        if (moveState[m] == WORKLIST_MOVE) worklistMoveCnt--;
+        if (newState == WORKLIST_MOVE) {
+            worklistMoveCnt++;
+            worklistMoves.push(m);
+        }
+        moveState[m] = newState;
+    }
+
+    //the next node of a worklist, skipping the ones that have left it
+    private int pop(IntStack worklist, byte expected) {
+        int n;
+        do n = worklist.pop(); while (state[n] != expected);
+        return n;
     }
 
     private void makeWorklist() {
-        for (VirtualRegister n : initial) {
-            if (n.degree >= K) spillWorklist.add(n);
-            else if (moveRelated(n)) freezeWorklist.add(n);
-            else simplifyWorklist.add(n);
+        for (int n = allVRegisters.size(); n < nodeCnt; ++n) {
+            if (degree[n] >= K) setState(n, SPILL);
+            else if (moveRelated(n)) setState(n, FREEZE);
+            else setState(n, SIMPLIFY);
         }
     }
 
-    private Set<VirtualRegister> adjacent(VirtualRegister n) {
-        Set<VirtualRegister> res = new HashSet<>(n.adjList);
-        res.removeAll(selectStackNodes);
-        res.removeAll(coalescedNodes);
-        return res;
+    private boolean isAdjacent(int n) {
+        return state[n] != SELECT && state[n] != COALESCED;
     }
 
-    private Set<Move> nodeMoves(VirtualRegister n) {
-        Set<Move> res = new HashSet<>(n.moveList);
-        Set<Move> tmp = new HashSet<>(activeMoves);
-        tmp.addAll(worklistMoves);
-        res.retainAll(tmp);
-        return res;
+    private boolean isNodeMove(int m) {
+        return moveState[m] == ACTIVE_MOVE || moveState[m] == WORKLIST_MOVE;
     }
 
-    private boolean moveRelated(VirtualRegister n) {
-        return !nodeMoves(n).isEmpty();
+    private boolean moveRelated(int n) {
+        for (int i = 0; i < moveListSize[n]; ++i)
+            if (isNodeMove(moveList[n][i])) return true;
+        return false;
     }
 
     private void simplify() {
-        VirtualRegister n = simplifyWorklist.iterator().next();
-        simplifyWorklist.remove(n);
+        int n = pop(simplifyWorklist, SIMPLIFY);
+        setState(n, SELECT);
         selectStack.push(n);
-        selectStackNodes.add(n);
-        for (VirtualRegister m : adjacent(n))
-            decrementDegree(m);
+        for (int i = 0; i < adjListSize[n]; ++i)
+            if (isAdjacent(adjList[n][i])) decrementDegree(adjList[n][i]);
     }
 
-    private void decrementDegree(VirtualRegister m) {
-        int d = m.degree;
-        m.degree = d - 1;
+    private void decrementDegree(int m) {
+        if (state[m] == PRECOLORED) return;
+        int d = degree[m];
+        degree[m] = d - 1;
         if (d == K) {
-            Set<VirtualRegister> tmp = new HashSet<>(adjacent(m));
-            tmp.add(m);
-            enableMoves(tmp);
-            spillWorklist.remove(m);
-            if (moveRelated(m)) freezeWorklist.add(m);
-            else simplifyWorklist.add(m);
+            enableMoves(m);
+            for (int i = 0; i < adjListSize[m]; ++i)
+                if (isAdjacent(adjList[m][i])) enableMoves(adjList[m][i]);
+            if (moveRelated(m)) setState(m, FREEZE);
+            else setState(m, SIMPLIFY);
         }
     }
 
-    private void enableMoves(Set<VirtualRegister> nodes) {
-        for (VirtualRegister n : nodes)
-            for (Move m : nodeMoves(n))
-                if (activeMoves.contains(m)) {
-                    activeMoves.remove(m);
-                    worklistMoves.add(m);
-                }
+    private void enableMoves(int n) {
+        for (int i = 0; i < moveListSize[n]; ++i)
+            if (moveState[moveList[n][i]] == ACTIVE_MOVE) setMoveState(moveList[n][i], WORKLIST_MOVE);
     }
 
-    private void addWorklist(VirtualRegister u) {
-        if (!precolored.contains(u) && !moveRelated(u) && u.degree < K) {
-            freezeWorklist.remove(u);
-            simplifyWorklist.add(u);
-        }
+    private void addWorklist(int u) {
+        if (state[u] != PRECOLORED && !moveRelated(u) && degree[u] < K && state[u] == FREEZE)
+            setState(u, SIMPLIFY);
     }
 
-    private boolean ok(VirtualRegister t, VirtualRegister r) {
-        return t.degree < K || precolored.contains(t) || adjSet.contains(new Edge(t, r));
+    private boolean ok(int t, int r) {
+        return degree[t] < K || state[t] == PRECOLORED || adjSet.contains(t, r);
     }
 
-    private boolean conservative(Set<VirtualRegister> nodes) {
+    //Briggs: the union of the neighbours has fewer than K nodes of significant degree
+    private boolean conservative(int u, int v) {
         int k = 0;
-        for (VirtualRegister n : nodes)
-            if (n.degree >= K) {
-                k++;
+        markCnt++;
+        for (int n : new int[]{u, v})
+            for (int i = 0; i < adjListSize[n]; ++i) {
+                int t = adjList[n][i];
+                if (!isAdjacent(t) || mark[t] == markCnt) continue;
+                mark[t] = markCnt;
+                if (degree[t] >= K) k++;
             }
         return k < K;
     }
 
     private void coalesce() {
-        Move m = worklistMoves.iterator().next();
-        VirtualRegister x = getAlias((VirtualRegister) m.getDst());
-        VirtualRegister y = getAlias((VirtualRegister) m.getSrc());
-        VirtualRegister u, v;
-        if (precolored.contains(y)) {
+        int m;
+        do m = worklistMoves.pop(); while (moveState[m] != WORKLIST_MOVE);
+        int x = getAlias(moveDst[m]);
+        int y = getAlias(moveSrc[m]);
+        int u, v;
+        if (state[y] == PRECOLORED) {
             u = y;
             v = x;
         } else {
             u = x;
             v = y;
         }
-        worklistMoves.remove(m);
         if (u == v) {
-            coalescedMoves.add(m);
+            setMoveState(m, COALESCED_MOVE);
             addWorklist(u);
-        } else if (precolored.contains(v) || adjSet.contains(new Edge(u, v))) {
-            constrainedMoves.add(m);
+        } else if (state[v] == PRECOLORED || adjSet.contains(u, v)) {
+            setMoveState(m, CONSTRAINED_MOVE);
             addWorklist(u);
             addWorklist(v);
         } else {
-            boolean cond1 = precolored.contains(u);
-            for (VirtualRegister t : adjacent(v)) cond1 &= ok(t, u);
-            boolean cond2 = !precolored.contains(u);
-            Set<VirtualRegister> tmp = adjacent(u);
-            tmp.addAll(adjacent(v));
-            cond2 &= conservative(tmp);
+            boolean cond1 = state[u] == PRECOLORED;
+            for (int i = 0; cond1 && i < adjListSize[v]; ++i)
+                if (isAdjacent(adjList[v][i])) cond1 = ok(adjList[v][i], u);
+            boolean cond2 = state[u] != PRECOLORED && conservative(u, v);
             if (cond1 || cond2) {
-                coalescedMoves.add(m);
+                setMoveState(m, COALESCED_MOVE);
                 combine(u, v);
                 addWorklist(u);
-            } else activeMoves.add(m);
+            } else setMoveState(m, ACTIVE_MOVE);
         }
     }
 
-    private void combine(VirtualRegister u, VirtualRegister v) {
-        if (freezeWorklist.contains(v)) freezeWorklist.remove(v);
-        else spillWorklist.remove(v);
-        coalescedNodes.add(v);
-        v.alias = u;
-        u.moveList.addAll(v.moveList);
-        Set<VirtualRegister> tmp = new HashSet<>();
-        tmp.add(v);
-        enableMoves(tmp);
-        for (VirtualRegister t : adjacent(v)) {
+    private void combine(int u, int v) {
+        setState(v, COALESCED);
+        alias[v] = u;
+        for (int i = 0; i < moveListSize[v]; ++i) addToMoveList(u, moveList[v][i]);
+        enableMoves(v);
+        //the edges added to u and t do not change the list of v
+        for (int i = 0, size = adjListSize[v]; i < size; ++i) {
+            int t = adjList[v][i];
+            if (!isAdjacent(t)) continue;
             addEdge(t, u);
             decrementDegree(t);
         }
-        if (u.degree >= K && freezeWorklist.contains(u)) {
-            freezeWorklist.remove(u);
-            spillWorklist.add(u);
-        }
+        if (degree[u] >= K && state[u] == FREEZE) setState(u, SPILL);
     }
 
-    private VirtualRegister getAlias(VirtualRegister n) {
-        if (coalescedNodes.contains(n)) return n.alias = getAlias(n.alias);
-        else return n;
+    private int getAlias(int n) {
+        int root = n;
+        while (state[root] == COALESCED) root = alias[root];
+        while (state[n] == COALESCED) {
+            int next = alias[n];
+            alias[n] = root;
+            n = next;
+        }
+        return root;
     }
 
     private void freeze() {
-        VirtualRegister u = freezeWorklist.iterator().next();
-        freezeWorklist.remove(u);
-        simplifyWorklist.add(u);
+        int u = pop(freezeWorklist, FREEZE);
+        setState(u, SIMPLIFY);
         freezeMoves(u);
     }
 
-    private void freezeMoves(VirtualRegister u) {
-        for (Move m : nodeMoves(u)) {
-            VirtualRegister x = getAlias((VirtualRegister) m.getDst());
-            VirtualRegister y = getAlias((VirtualRegister) m.getSrc());
-            VirtualRegister v = y == getAlias(u) ? x : y;
-            activeMoves.remove(m);
-            frozenMoves.add(m);
-            if (freezeWorklist.contains(v) && nodeMoves(v).isEmpty()) {
-                freezeWorklist.remove(v);
-                simplifyWorklist.add(v);
-            }
+    private void freezeMoves(int u) {
+        for (int i = 0; i < moveListSize[u]; ++i) {
+            int m = moveList[u][i];
+            if (!isNodeMove(m)) continue;
+            int x = getAlias(moveDst[m]);
+            int y = getAlias(moveSrc[m]);
+            int v = y == getAlias(u) ? x : y;
+            setMoveState(m, FROZEN_MOVE);
+            if (state[v] == FREEZE && !moveRelated(v)) setState(v, SIMPLIFY);
         }
     }
 
     private void selectSpill() {
-        Iterator<VirtualRegister> iterator = spillWorklist.iterator();
-        //Heuristic
-        VirtualRegister m = iterator.next();
-        for (; m.addForSpill && iterator.hasNext(); m = iterator.next()) ;
-
-        iterator = spillWorklist.iterator();
-        for (VirtualRegister now; iterator.hasNext(); ) {
-            now = iterator.next();
-            if (!now.addForSpill && now.spillPriority < m.spillPriority)
-                m = now;
+        //Heuristic: the lowest priority among the nodes that were not made for an earlier spill
+        int m = -1, size = 0;
+        int[] worklist = spillWorklist.elements;
+        for (int i = 0; i < spillWorklist.size; ++i) {
+            int n = worklist[i];
+            if (state[n] != SPILL) continue;
+            worklist[size++] = n;
+            if (m < 0 || (nodes[m].addForSpill && !nodes[n].addForSpill)
+                    || (nodes[m].addForSpill == nodes[n].addForSpill && nodes[n].spillPriority < nodes[m].spillPriority))
+                m = n;
         }
+        spillWorklist.size = size;
 
-        spillWorklist.remove(m);
-        simplifyWorklist.add(m);
+        setState(m, SIMPLIFY);
         freezeMoves(m);
     }
 
     private void assignColors() {
-        while (!selectStack.isEmpty()) {
-            VirtualRegister n = selectStack.pop();
-            selectStackNodes.remove(n);
-            Set<PhysicalRegister> okColors = new HashSet<>(colors);
-            for (VirtualRegister w : n.adjList)
-                if (coloredNodes.contains(getAlias(w)) || precolored.contains(getAlias(w))) {
-                    okColors.remove(getAlias(w).color);
-                }
-            if (okColors.isEmpty()) {
-                spilledNodes.add(n);
+        while (selectStack.size > 0) {
+            int n = selectStack.pop();
+            int okColors = colors;
+            for (int i = 0; i < adjListSize[n]; ++i) {
+                int w = getAlias(adjList[n][i]);
+                if (state[w] == COLORED || state[w] == PRECOLORED)
+                    okColors &= ~(1 << color[w]);
+            }
+            if (okColors == 0) {
+                setState(n, SPILLED);
             } else {
-                coloredNodes.add(n);
+                setState(n, COLORED);
                 //select callee saved first
-                PhysicalRegister color1 = okColors.iterator().next(), color2 = null;
-                okColors.retainAll(calleeSaveRegisters);
-                if (!okColors.isEmpty()) color2 = okColors.iterator().next();
-                n.color = color2 != null ? color2 : color1;
+                int calleeSave = okColors & calleeSaveColors;
+                color[n] = Integer.numberOfTrailingZeros(calleeSave != 0 ? calleeSave : okColors);
             }
         }
-        for (VirtualRegister n : coalescedNodes)
-            n.color = getAlias(n).color;
+        for (int n = allVRegisters.size(); n < nodeCnt; ++n) {
+            if (state[n] == COALESCED) color[n] = color[getAlias(n)];
+            nodes[n].color = color[n] < 0 ? null : allRegisters.get(color[n]);
+        }
     }
 
-    private void rewriteProgram(Function function) {
+    //give every spilled register a stack slot and load it before each use and store it after each def
+    static void rewriteProgram(Function function, List<VirtualRegister> spilledNodes) {
         for (VirtualRegister virtualRegister : spilledNodes)
             virtualRegister.spillAddr = new StackData(vrbp, null, new Immediate(0), new Immediate(-(++function.temporaryCnt) * 8));
-        for (VirtualRegister virtualRegister : coalescedNodes)
-            getAlias(virtualRegister);
         function.getReversePostOrderDFSBBList().forEach(basicBlock -> {
             for (IRInstruction irInstruction = basicBlock.head; irInstruction != null; irInstruction = irInstruction.getNextInstruction()) {
                 for (VirtualRegister use : irInstruction.getUse())
@@ -567,41 +582,104 @@ public class RegisterAllocator {
         });
     }
 
-    private void addEdge(VirtualRegister u, VirtualRegister v) {
-        if (u != v && !adjSet.contains(new Edge(u, v))) {
-            adjSet.add(new Edge(u, v));
-            adjSet.add(new Edge(v, u));
-            if (!precolored.contains(u)) {
-                u.adjList.add(v);
-                u.degree++;
+    private void addEdge(int u, int v) {
+        if (u != v && adjSet.add(u, v)) {
+            if (state[u] != PRECOLORED) {
+                addToAdjList(u, v);
+                degree[u]++;
             }
-            if (!precolored.contains(v)) {
-                v.adjList.add(u);
-                v.degree++;
+            if (state[v] != PRECOLORED) {
+                addToAdjList(v, u);
+                degree[v]++;
             }
         }
     }
 
-    private class Edge {
-        VirtualRegister u;
-        VirtualRegister v;
+    private void addToAdjList(int u, int v) {
+        if (adjList[u] == null) adjList[u] = new int[8];
+        else if (adjListSize[u] == adjList[u].length) adjList[u] = Arrays.copyOf(adjList[u], adjListSize[u] * 2);
+        adjList[u][adjListSize[u]++] = v;
+    }
+
+    private static class IntStack {
+        int[] elements = new int[16];
+        int size;
+
+        void push(int x) {
+            if (size == elements.length) elements = Arrays.copyOf(elements, size * 2);
+            elements[size++] = x;
+        }
+
+        int pop() {
+            return elements[--size];
+        }
+
+        void clear() {
+            size = 0;
+        }
+    }
 
-        Edge(VirtualRegister u, VirtualRegister v) {
-            this.u = u;
-            this.v = v;
+    //the unordered pairs of interfering nodes, a triangular bit matrix while that takes at most 4MB and a hash set of
+    //the pairs packed into longs otherwise
+    private static class AdjacencySet {
+        private static final int maxMatrixNodes = 8192;
+        private long[] matrix;
+        private long[] table;
+        private int size;
+
+        AdjacencySet(int nodeCnt) {
+            if (nodeCnt <= maxMatrixNodes)
+                matrix = new long[(int) (((long) nodeCnt * (nodeCnt - 1) / 2 + 63) >>> 6)];
+            else table = new long[1 << 16];
         }
 
-        @Override
-        public boolean equals(Object object) {
-            if (object instanceof Edge)
-                return u == ((Edge) object).u && v == ((Edge) object).v;
-            else
-                return false;
+        //u > v
+        private static long key(int u, int v) {
+            return u > v ? (long) u << 32 | v : (long) v << 32 | u;
         }
 
-        @Override
-        public int hashCode() {
-            return u.hashCode() ^ v.hashCode();
+        private static long bit(long key) {
+            long u = key >>> 32, v = key & 0xFFFFFFFFL;
+            return u * (u - 1) / 2 + v;
+        }
+
+        //the slot of `key` in the table, or the empty slot where it would go
+        private int slot(long[] table, long key) {
+            int mask = table.length - 1;
+            int i = (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+            while (table[i] != 0 && table[i] != key) i = (i + 1) & mask;
+            return i;
+        }
+
+        boolean contains(int u, int v) {
+            if (u == v) return false;
+            long key = key(u, v);
+            if (matrix != null) {
+                long bit = bit(key);
+                return (matrix[(int) (bit >>> 6)] & 1L << bit) != 0;
+            }
+            return table[slot(table, key)] != 0;
+        }
+
+        //returns whether the pair was new
+        boolean add(int u, int v) {
+            long key = key(u, v);
+            if (matrix != null) {
+                long bit = bit(key);
+                int index = (int) (bit >>> 6);
+                if ((matrix[index] & 1L << bit) != 0) return false;
+                matrix[index] |= 1L << bit;
+                return true;
+            }
+            int i = slot(table, key);
+            if (table[i] != 0) return false;
+            table[i] = key;
+            if (++size * 2 > table.length) {
+                long[] old = table;
+                table = new long[old.length * 2];
+                for (long k : old) if (k != 0) table[slot(table, k)] = k;
+            }
+            return true;
         }
     }
 }
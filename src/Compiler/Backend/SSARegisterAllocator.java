@@ -0,0 +1,511 @@
+package Compiler.Backend;
+
+import Compiler.IR.BasicBlock;
+import Compiler.IR.Function;
+import Compiler.IR.IRRoot;
+import Compiler.IR.Instruction.*;
+import Compiler.IR.Operand.*;
+import Compiler.Utils.TimeReport;
+
+import java.util.*;
+
+import static Compiler.IR.Operand.PhysicalRegister.*;
+
+//SSA-based Register Allocation (-fregalloc=ssa)
+//Hack, Grund & Goos: the interference graph of a program in SSA form is chordal, and coloring the values in the order
+//of their definitions along the dominator tree needs no more registers than the most values live at one point. So the
+//spilling is decided first: wherever more values are live than there are registers, or more values live across a call
+//than there are callee saved registers, the ones with the lowest spill priority go to memory. The values are then
+//colored in reverse post order, each taking a register that is free at its definition, preferably the register of a
+//move partner or phi operand. Only after that the phis become parallel copies between registers on the edges into
+//their block, and the copies between the same register disappear instead of being left to coalescing. A spilled phi
+//keeps its value in memory, its copies go between stack slots and registers.
+//X86ConstraintResolver runs on the SSA form before; its precolored registers are not values but constraints, a value
+//never takes a register that is live as a precolored register somewhere in its live range, and the registers it
+//defines twice for two-address instructions keep the register of their first definition. A value that finds no
+//register anyway is spilled and the function allocated again.
+public class SSARegisterAllocator {
+    private IRRoot irRoot;
+    //caller saved first, the callee saved ones are what the values live across calls need
+    private int[] registerOrder;
+    private int allocatable = 0;
+    private int calleeSaveCnt = 0;
+    private int registerCnt;
+
+    private Liveness liveness;
+    private int nodeCnt;
+    private VirtualRegister[] nodes;
+    //the precolored registers that are live somewhere in the live range of a value
+    private int[] forbid;
+    //the other end of a move or phi, -1 if there is none
+    private int[] hint;
+    private int[] color;
+    private BitSet spilled;
+    private List<VirtualRegister> spilledNodes;
+    private Function function;
+    //where the parallel copies of the function break cycles and save a register to copy from memory to memory, when
+    //there is no register left, made when first needed
+    private StackData cycleSlot;
+    private StackData scratchSlot;
+
+    //the values being walked over and how many of them are not spilled yet
+    private BitSet live = new BitSet();
+    private int liveValueCnt;
+
+    public SSARegisterAllocator(IRRoot irRoot) {
+        this.irRoot = irRoot;
+        List<Integer> order = new ArrayList<>();
+        for (boolean callerSave : new boolean[]{true, false})
+            for (int i = 0; i < allRegisters.size(); ++i) {
+                PhysicalRegister physicalRegister = allRegisters.get(i);
+                if (physicalRegister != rsp && physicalRegister != rbp && physicalRegister.isCallerSave() == callerSave) {
+                    order.add(i);
+                    if (!callerSave) calleeSaveCnt++;
+                }
+            }
+        registerOrder = order.stream().mapToInt(x -> x).toArray();
+        registerCnt = registerOrder.length;
+        for (int r : registerOrder) allocatable |= 1 << r;
+    }
+
+    public void run() {
+        irRoot.getFunctionMap().values().forEach(this::allocate);
+        RegisterAllocator.cleanMove(irRoot);
+    }
+
+    private void allocate(Function function) {
+        this.function = function;
+        cycleSlot = null;
+        scratchSlot = null;
+        for (int iteration = 0; ; ++iteration) {
+            TimeReport.begin("iteration " + iteration, function);
+            liveness = new Liveness(function);
+            nodes = liveness.nodes;
+            nodeCnt = liveness.nodeCnt;
+            for (int n = Liveness.PRECOLORED_CNT; n < nodeCnt; ++n) nodes[n].spillAddr = null;
+            spilled = new BitSet(nodeCnt);
+            spilledNodes = new ArrayList<>();
+            analyze();
+            if (spilledNodes.isEmpty()) color();
+            TimeReport.count("registers spilled", spilledNodes.size());
+            boolean done = spilledNodes.isEmpty();
+            if (done) {
+                for (int n = Liveness.PRECOLORED_CNT; n < nodeCnt; ++n)
+                    nodes[n].color = color[n] < 0 ? null : allRegisters.get(color[n]);
+                lowerPhis();
+            } else rewriteProgram(function);
+            liveness.release();
+            TimeReport.end(function);
+            if (done) break;
+        }
+    }
+
+    private void setLive(int n) {
+        if (!live.get(n)) {
+            live.set(n);
+            if (n >= Liveness.PRECOLORED_CNT && !spilled.get(n)) liveValueCnt++;
+        }
+    }
+
+    private void clearLive(int n) {
+        if (live.get(n)) {
+            live.clear(n);
+            if (n >= Liveness.PRECOLORED_CNT && !spilled.get(n)) liveValueCnt--;
+        }
+    }
+
+    private int liveFixed() {
+        int mask = 0;
+        for (int r = live.nextSetBit(0); r >= 0 && r < Liveness.PRECOLORED_CNT; r = live.nextSetBit(r + 1))
+            mask |= 1 << r;
+        return mask;
+    }
+
+    private void spill(int n) {
+        spilled.set(n);
+        spilledNodes.add(nodes[n]);
+        if (live.get(n)) liveValueCnt--;
+    }
+
+    //spill the cheapest live values besides `excluded` until at most `limit` are left
+    private void spillDownTo(int limit, Set<VirtualRegister> excluded) {
+        while (liveValueCnt > limit) {
+            int victim = -1;
+            for (int n = live.nextSetBit(Liveness.PRECOLORED_CNT); n >= 0; n = live.nextSetBit(n + 1)) {
+                if (spilled.get(n) || nodes[n].addForSpill || excluded.contains(nodes[n])) continue;
+                if (victim < 0 || nodes[n].spillPriority < nodes[victim].spillPriority) victim = n;
+            }
+            if (victim < 0) return;
+            spill(victim);
+        }
+    }
+
+    private static boolean isMoveBetweenRegisters(IRInstruction irInstruction) {
+        return irInstruction instanceof Move
+                && ((Move) irInstruction).getDst() instanceof VirtualRegister && ((Move) irInstruction).getSrc() instanceof VirtualRegister
+                && !(((Move) irInstruction).getDst() instanceof GlobalVariable) && !(((Move) irInstruction).getSrc() instanceof GlobalVariable);
+    }
+
+    private void addHint(int u, int v) {
+        if (hint[u] < 0) hint[u] = v;
+        if (hint[v] < 0) hint[v] = u;
+    }
+
+    //one walk backwards over every block collects the constraints and the hints, and spills where the values do not fit
+    private void analyze() {
+        forbid = new int[nodeCnt];
+        hint = new int[nodeCnt];
+        Arrays.fill(hint, -1);
+        List<BasicBlock> basicBlocks = liveness.basicBlocks;
+        for (int i = basicBlocks.size() - 1; i >= 0; --i) {
+            live.clear();
+            liveValueCnt = 0;
+            BitSet liveOut = liveness.liveOut[i];
+            for (int n = liveOut.nextSetBit(0); n >= 0; n = liveOut.nextSetBit(n + 1)) setLive(n);
+            BasicBlock basicBlock = basicBlocks.get(i);
+            IRInstruction irInstruction = basicBlock.tail;
+            for (; irInstruction != null && !(irInstruction instanceof Phi); irInstruction = irInstruction.getLastInstruction()) {
+                if (isMoveBetweenRegisters(irInstruction)) {
+                    int src = ((VirtualRegister) ((Move) irInstruction).getSrc()).id;
+                    addHint(((VirtualRegister) ((Move) irInstruction).getDst()).id, src);
+                    //the ends of a move do not interfere
+                    clearLive(src);
+                }
+                for (VirtualRegister def : irInstruction.getDef()) setLive(def.id);
+                int fixed = liveFixed();
+                for (VirtualRegister def : irInstruction.getDef()) {
+                    if (def.id < Liveness.PRECOLORED_CNT) {
+                        for (int n = live.nextSetBit(Liveness.PRECOLORED_CNT); n >= 0; n = live.nextSetBit(n + 1))
+                            forbid[n] |= 1 << def.id;
+                    } else forbid[def.id] |= fixed;
+                }
+                Set<VirtualRegister> operands = irInstruction.getUse();
+                if (!irInstruction.getDef().isEmpty()) {
+                    operands = new HashSet<>(operands);
+                    operands.addAll(irInstruction.getDef());
+                }
+                spillDownTo(registerCnt - Integer.bitCount(fixed & allocatable), operands);
+                //the call defines every caller saved register, what lives across has to fit into the callee saved ones
+                if (irInstruction instanceof Call) spillDownTo(calleeSaveCnt, operands);
+                for (VirtualRegister def : irInstruction.getDef()) clearLive(def.id);
+                for (VirtualRegister use : irInstruction.getUse()) setLive(use.id);
+            }
+
+            //the phis define their values together at the start of the block, the ones that are read are live here
+            if (irInstruction == null) continue;
+            int fixed = liveFixed();
+            for (; irInstruction != null; irInstruction = irInstruction.getLastInstruction()) {
+                Phi phi = (Phi) irInstruction;
+                if (!(phi.getDst() instanceof VirtualRegister)) continue;
+                int dst = ((VirtualRegister) phi.getDst()).id;
+                forbid[dst] |= fixed;
+                for (Operand operand : phi.getPaths().values())
+                    if (operand instanceof VirtualRegister && !(operand instanceof GlobalVariable) && ((VirtualRegister) operand).id >= 0)
+                        addHint(dst, ((VirtualRegister) operand).id);
+            }
+            spillDownTo(registerCnt - Integer.bitCount(fixed & allocatable), Collections.emptySet());
+        }
+    }
+
+    private int pick(int n, int occupied) {
+        int free = allocatable & ~occupied & ~forbid[n];
+        if (free == 0) return -1;
+        int preferred = hint[n] < 0 ? -1 : color[hint[n]];
+        if (preferred >= 0 && (free & 1 << preferred) != 0) return preferred;
+        for (int r : registerOrder)
+            if ((free & 1 << r) != 0) return r;
+        return -1;
+    }
+
+    //a value found no register, spill it or, if it is already the result of a spill, the cheapest value in a register
+    private void spillAt(int n, int[] owner, Set<VirtualRegister> operands) {
+        if (!nodes[n].addForSpill) {
+            spill(n);
+            return;
+        }
+        int victim = -1;
+        for (int v : owner)
+            if (v >= 0 && !nodes[v].addForSpill && !operands.contains(nodes[v])
+                    && (victim < 0 || nodes[v].spillPriority < nodes[victim].spillPriority)) victim = v;
+        if (victim < 0) throw new RuntimeException("no register left for " + nodes[n]);
+        spill(victim);
+    }
+
+    //greedy coloring in reverse post order, where the definition of a value comes before its uses
+    private void color() {
+        color = new int[nodeCnt];
+        Arrays.fill(color, -1);
+        for (int n = 0; n < Liveness.PRECOLORED_CNT; ++n) color[n] = n;
+        int[] owner = new int[Liveness.PRECOLORED_CNT];
+        List<IRInstruction> instructions = new ArrayList<>();
+        List<int[]> dying = new ArrayList<>();
+        List<int[]> deadDefs = new ArrayList<>();
+        List<BasicBlock> basicBlocks = liveness.basicBlocks;
+        for (int i = 0; i < basicBlocks.size(); ++i) {
+            BasicBlock basicBlock = basicBlocks.get(i);
+
+            //the uses that die at each instruction and the defs nobody reads
+            instructions.clear();
+            IRInstruction first = basicBlock.head;
+            for (; first instanceof Phi; first = first.getNextInstruction()) ;
+            for (IRInstruction irInstruction = first; irInstruction != null; irInstruction = irInstruction.getNextInstruction())
+                instructions.add(irInstruction);
+            dying.clear();
+            deadDefs.clear();
+            live.clear();
+            live.or(liveness.liveOut[i]);
+            for (int k = instructions.size() - 1; k >= 0; --k) {
+                IRInstruction irInstruction = instructions.get(k);
+                deadDefs.add(irInstruction.getDef().stream().mapToInt(def -> def.id).filter(n -> !live.get(n)).toArray());
+                for (VirtualRegister def : irInstruction.getDef()) live.clear(def.id);
+                dying.add(irInstruction.getUse().stream().mapToInt(use -> use.id).filter(n -> !live.get(n)).distinct().toArray());
+                for (VirtualRegister use : irInstruction.getUse()) live.set(use.id);
+            }
+            Collections.reverse(dying);
+            Collections.reverse(deadDefs);
+
+            //the registers of the values live into the block
+            Arrays.fill(owner, -1);
+            int occupied = 0;
+            BitSet liveIn = liveness.liveIn[i];
+            for (int n = liveIn.nextSetBit(Liveness.PRECOLORED_CNT); n >= 0; n = liveIn.nextSetBit(n + 1)) {
+                if (spilled.get(n) || color[n] < 0) continue;
+                if (owner[color[n]] >= 0) spillAt(n, owner, Collections.emptySet());
+                else {
+                    owner[color[n]] = n;
+                    occupied |= 1 << color[n];
+                }
+            }
+            //values live in without a definition before, only in code that reads a register it never wrote
+            for (int n = liveIn.nextSetBit(Liveness.PRECOLORED_CNT); n >= 0; n = liveIn.nextSetBit(n + 1)) {
+                if (spilled.get(n) || color[n] >= 0) continue;
+                int r = pick(n, occupied);
+                if (r < 0) spillAt(n, owner, Collections.emptySet());
+                else {
+                    color[n] = r;
+                    owner[r] = n;
+                    occupied |= 1 << r;
+                }
+            }
+
+            //the phis, whose values are dropped again if nobody reads them
+            for (IRInstruction irInstruction = basicBlock.head; irInstruction != first; irInstruction = irInstruction.getNextInstruction()) {
+                if (!(((Phi) irInstruction).getDst() instanceof VirtualRegister)) continue;
+                int n = ((VirtualRegister) ((Phi) irInstruction).getDst()).id;
+                if (spilled.get(n) || !live.get(n)) continue;
+                int r = -1;
+                for (Operand operand : ((Phi) irInstruction).getPaths().values())
+                    if (r < 0 && operand instanceof VirtualRegister && !(operand instanceof GlobalVariable) && ((VirtualRegister) operand).id >= 0) {
+                        int c = color[((VirtualRegister) operand).id];
+                        if (c >= 0 && (allocatable & ~occupied & ~forbid[n] & 1 << c) != 0) r = c;
+                    }
+                if (r < 0) r = pick(n, occupied);
+                if (r < 0) spillAt(n, owner, Collections.emptySet());
+                else {
+                    color[n] = r;
+                    owner[r] = n;
+                    occupied |= 1 << r;
+                }
+            }
+
+            for (int k = 0; k < instructions.size(); ++k) {
+                IRInstruction irInstruction = instructions.get(k);
+                for (int n : dying.get(k))
+                    if (n >= Liveness.PRECOLORED_CNT && color[n] >= 0 && owner[color[n]] == n) {
+                        owner[color[n]] = -1;
+                        occupied &= ~(1 << color[n]);
+                    }
+                for (VirtualRegister def : irInstruction.getDef()) {
+                    int n = def.id;
+                    if (n < Liveness.PRECOLORED_CNT || spilled.get(n)) continue;
+                    if (color[n] >= 0) {
+                        //defined again, as two-address instructions do
+                        if (owner[color[n]] == n) continue;
+                        if (owner[color[n]] >= 0) {
+                            spillAt(n, owner, irInstruction.getDef());
+                            continue;
+                        }
+                    } else {
+                        int r = pick(n, occupied);
+                        if (r < 0) {
+                            spillAt(n, owner, irInstruction.getDef());
+                            continue;
+                        }
+                        color[n] = r;
+                    }
+                    owner[color[n]] = n;
+                    occupied |= 1 << color[n];
+                }
+                for (int n : deadDefs.get(k))
+                    if (n >= Liveness.PRECOLORED_CNT && color[n] >= 0 && owner[color[n]] == n) {
+                        owner[color[n]] = -1;
+                        occupied &= ~(1 << color[n]);
+                    }
+            }
+        }
+    }
+
+    //the spilled values as in graph coloring, besides the phis: a spilled phi operand or result becomes its stack slot,
+    //which the copies of the phi read or write directly, so that a loop carrying more values than there are registers
+    //keeps some of them in memory
+    private void rewriteProgram(Function function) {
+        RegisterAllocator.rewriteProgram(function, spilledNodes);
+        for (BasicBlock basicBlock : liveness.basicBlocks)
+            for (IRInstruction irInstruction = basicBlock.head; irInstruction instanceof Phi; irInstruction = irInstruction.getNextInstruction()) {
+                Phi phi = (Phi) irInstruction;
+                if (phi.getDst() instanceof VirtualRegister && ((VirtualRegister) phi.getDst()).spillAddr != null)
+                    phi.setDst(((VirtualRegister) phi.getDst()).spillAddr);
+                for (Map.Entry<BasicBlock, Operand> entry : phi.getPaths().entrySet())
+                    if (entry.getValue() instanceof VirtualRegister && ((VirtualRegister) entry.getValue()).spillAddr != null)
+                        entry.setValue(((VirtualRegister) entry.getValue()).spillAddr);
+                phi.updateUseRegisters();
+            }
+    }
+
+    //a register or stack slot for a phi operand or result, null for the result of a phi nobody reads
+    private Operand location(Operand operand) {
+        if (operand instanceof VirtualRegister && !(operand instanceof GlobalVariable)) {
+            //from a block that is never reached
+            if (((VirtualRegister) operand).id < 0) return null;
+            int c = color[((VirtualRegister) operand).id];
+            return c < 0 ? null : allVRegisters.get(c);
+        }
+        return operand == null ? new Immediate(0) : operand;
+    }
+
+    private static boolean isLocation(Operand operand) {
+        return operand instanceof StackData || operand instanceof VirtualRegister && !(operand instanceof GlobalVariable);
+    }
+
+    //the phis of a block become one parallel copy per predecessor, between the registers and slots of the values
+    private void lowerPhis() {
+        List<BasicBlock> basicBlocks = liveness.basicBlocks;
+        for (int i = 0; i < basicBlocks.size(); ++i) {
+            BasicBlock basicBlock = basicBlocks.get(i);
+            if (!(basicBlock.head instanceof Phi)) continue;
+            IRInstruction first = basicBlock.head;
+            for (; first instanceof Phi; first = first.getNextInstruction()) ;
+
+            //registers the copies must leave alone: the values live through and the phis themselves
+            int busy = 0;
+            BitSet liveIn = liveness.liveIn[i];
+            for (int n = liveIn.nextSetBit(0); n >= 0; n = liveIn.nextSetBit(n + 1))
+                if (color[n] >= 0) busy |= 1 << color[n];
+            Map<BasicBlock, List<Operand[]>> copies = new LinkedHashMap<>();
+            for (IRInstruction irInstruction = basicBlock.head; irInstruction != first; irInstruction = irInstruction.getNextInstruction()) {
+                Phi phi = (Phi) irInstruction;
+                Operand dst = location(phi.getDst());
+                if (dst == null) continue;
+                if (dst instanceof VirtualRegister) busy |= 1 << ((VirtualRegister) dst).id;
+                for (Map.Entry<BasicBlock, Operand> entry : phi.getPaths().entrySet()) {
+                    Operand src = location(entry.getValue());
+                    if (src == null) continue;
+                    if (src == dst) {
+                        TimeReport.count("phi copies removed", 1);
+                        continue;
+                    }
+                    copies.computeIfAbsent(entry.getKey(), x -> new ArrayList<>()).add(new Operand[]{dst, src});
+                }
+            }
+            basicBlock.head = first;
+            first.setLastInstruction(null);
+
+            for (Map.Entry<BasicBlock, List<Operand[]>> entry : copies.entrySet()) {
+                BasicBlock predecessor = entry.getKey();
+                BasicBlock target = predecessor;
+                if (predecessor.getSuccessors().size() > 1) {
+                    target = new BasicBlock(function, "parallel_copy");
+                    if (predecessor.executionCount >= 0 && basicBlock.executionCount >= 0)
+                        target.executionCount = Math.min(predecessor.executionCount, basicBlock.executionCount);
+                    target.terminate(new Jump(target, basicBlock));
+                    ((Branch) predecessor.tail).replaceTarget(basicBlock, target);
+                    predecessor.getSuccessors().remove(basicBlock);
+                    predecessor.getSuccessors().add(target);
+                    target.getPredecessors().add(predecessor);
+                    target.getSuccessors().add(basicBlock);
+                    basicBlock.getPredecessors().remove(predecessor);
+                    basicBlock.getPredecessors().add(target);
+                    TimeReport.count("edges split", 1);
+                }
+                sequentialize(target, entry.getValue(), busy);
+            }
+        }
+        function.recalcReversePostOrderDFSBBList();
+    }
+
+    private StackData newSlot() {
+        return new StackData(vrbp, null, new Immediate(0), new Immediate(-(++function.temporaryCnt) * 8));
+    }
+
+    //one copy at the end of `basicBlock`, memory to memory through a register that is free or saved meanwhile
+    private void copy(BasicBlock basicBlock, Operand dst, Operand src, int busy) {
+        IRInstruction tail = basicBlock.tail;
+        if (dst instanceof VirtualRegister) {
+            if (src instanceof StackData) tail.prependInstruction(new Load(basicBlock, src, dst));
+            else tail.prependInstruction(new Move(basicBlock, src, dst));
+        } else if (src instanceof VirtualRegister && !(src instanceof GlobalVariable) || src instanceof Immediate)
+            tail.prependInstruction(new Store(basicBlock, src, dst));
+        else {
+            int free = allocatable & ~busy;
+            VirtualRegister scratch = allVRegisters.get(free == 0 ? registerOrder[0] : Integer.numberOfTrailingZeros(free));
+            if (free == 0) {
+                if (scratchSlot == null) scratchSlot = newSlot();
+                tail.prependInstruction(new Store(basicBlock, scratch, scratchSlot));
+            }
+            if (src instanceof StackData) tail.prependInstruction(new Load(basicBlock, src, scratch));
+            else tail.prependInstruction(new Move(basicBlock, src, scratch));
+            tail.prependInstruction(new Store(basicBlock, scratch, dst));
+            if (free == 0) tail.prependInstruction(new Load(basicBlock, scratchSlot, scratch));
+        }
+    }
+
+    //emit the copies {dst, src} at the end of `basicBlock` so that every register and slot is read before it is
+    //overwritten. A cycle is broken with a register no copy and no value in `busy` needs, or through memory if there is
+    //none. Constants are copied last, they read nothing.
+    private void sequentialize(BasicBlock basicBlock, List<Operand[]> copies, int busy) {
+        Map<Operand, Operand> srcOf = new IdentityHashMap<>();
+        Map<Operand, Integer> readers = new IdentityHashMap<>();
+        List<Operand> pending = new ArrayList<>();
+        for (Operand[] copy : copies) {
+            if (!isLocation(copy[1])) continue;
+            srcOf.put(copy[0], copy[1]);
+            readers.merge(copy[1], 1, Integer::sum);
+            pending.add(copy[0]);
+            for (Operand operand : copy)
+                if (operand instanceof VirtualRegister) busy |= 1 << ((VirtualRegister) operand).id;
+        }
+        TimeReport.count("phi copies", copies.size());
+        while (!pending.isEmpty()) {
+            for (boolean progress = true; progress; ) {
+                progress = false;
+                for (Iterator<Operand> iterator = pending.iterator(); iterator.hasNext(); ) {
+                    Operand dst = iterator.next();
+                    if (readers.getOrDefault(dst, 0) > 0) continue;
+                    Operand src = srcOf.get(dst);
+                    copy(basicBlock, dst, src, busy);
+                    readers.merge(src, -1, Integer::sum);
+                    iterator.remove();
+                    progress = true;
+                }
+            }
+            if (pending.isEmpty()) break;
+            //only cycles are left
+            Operand saved = pending.get(0);
+            int free = allocatable & ~busy;
+            Operand to;
+            if (free != 0) to = allVRegisters.get(Integer.numberOfTrailingZeros(free));
+            else {
+                if (cycleSlot == null) cycleSlot = newSlot();
+                to = cycleSlot;
+            }
+            copy(basicBlock, to, saved, busy);
+            if (to instanceof VirtualRegister) busy |= 1 << ((VirtualRegister) to).id;
+            for (Operand dst : pending)
+                if (srcOf.get(dst) == saved) srcOf.put(dst, to);
+            readers.put(to, readers.get(saved));
+            readers.put(saved, 0);
+        }
+        for (Operand[] copy : copies)
+            if (!isLocation(copy[1])) copy(basicBlock, copy[0], copy[1], busy);
+    }
+}
@@ -12,8 +12,7 @@ import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintStream;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
 
 import static Compiler.IR.Operand.PhysicalRegister.*;
 
@@ -30,6 +29,7 @@ public class X86CodeEmitter implements IRVisitor {
     private Map<Storage, String> storageStringMap = new HashMap<>();
     private Map<BasicBlock, String> basicBlockStringMap = new HashMap<>();
     private Map<String, Integer> nameCountMap = new HashMap<>();
+    private Map<BasicBlock, BasicBlock> nextBlockMap = new HashMap<>();
 
     public X86CodeEmitter(IRRoot irRoot, PrintStream out) {
         this.irRoot = irRoot;
@@ -153,7 +153,33 @@ public class X86CodeEmitter implements IRVisitor {
 
     @Override
     public void visit(Function function) {
-        function.getReversePostOrderDFSBBList().forEach(this::visit);
+        List<BasicBlock> layout = blockLayout(function);
+        for (int i = 0; i < layout.size(); i++)
+            nextBlockMap.put(layout.get(i), i + 1 < layout.size() ? layout.get(i + 1) : null);
+        layout.forEach(this::visit);
+    }
+
+    //reverse post order, or with a profile (-fprofile-use) chains that go on to the most executed successor,
+    //so that hot paths fall through instead of jumping
+    private List<BasicBlock> blockLayout(Function function) {
+        List<BasicBlock> RPO = function.getReversePostOrderDFSBBList();
+        if (function.getEntryBlock().executionCount < 0) return RPO;
+        List<BasicBlock> layout = new ArrayList<>();
+        Set<BasicBlock> placed = new HashSet<>();
+        for (BasicBlock head : RPO) {
+            for (BasicBlock basicBlock = head; basicBlock != null && placed.add(basicBlock); ) {
+                layout.add(basicBlock);
+                BasicBlock next = null;
+                for (BasicBlock successor : basicBlock.getSuccessors()) {
+                    if (placed.contains(successor)) continue;
+                    if (next == null || successor.executionCount > next.executionCount
+                            || successor.executionCount == next.executionCount && successor.postOrderNumber > next.postOrderNumber)
+                        next = successor;
+                }
+                basicBlock = next;
+            }
+        }
+        return layout;
     }
 
     @Override
@@ -260,12 +286,14 @@ public class X86CodeEmitter implements IRVisitor {
                 contrastOp = "je";
                 break;
         }
-        if (inst.getThenBB().postOrderNumber == inst.getCurrentBB().postOrderNumber - 1) {
+        BasicBlock next = nextBlockMap.get(inst.getCurrentBB());
+        if (inst.getThenBB() == next) {
             out.print(indent + contrastOp);
             out.println(" " + getLabel(inst.getElseBB()));
         } else {
             out.print(indent + op);
             out.println(" " + getLabel(inst.getThenBB()));
+            if (inst.getElseBB() != next) out.println(indent + "jmp " + getLabel(inst.getElseBB()));
         }
     }
 
@@ -332,7 +360,7 @@ public class X86CodeEmitter implements IRVisitor {
 
     @Override
     public void visit(Jump inst) {
-        if (inst.getTargetBB().postOrderNumber != inst.getCurrentBB().postOrderNumber - 1)
+        if (inst.getTargetBB() != nextBlockMap.get(inst.getCurrentBB()))
             out.println(indent + "jmp " + getLabel(inst.getTargetBB()));
     }
 
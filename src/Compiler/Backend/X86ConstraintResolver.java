@@ -150,6 +150,13 @@ public class X86ConstraintResolver {
                             break;
                         }
                     }
+                } else if (irInstruction instanceof Alloc && ((Alloc) irInstruction).isOnStack()) {
+                    //the object takes slots of the frame like the spilled registers, uninitialized like the memory of malloc
+                    function.temporaryCnt += (((Immediate) ((Alloc) irInstruction).getSize()).getImmediate() + 7) / 8;
+                    int offset = -function.temporaryCnt * 8;
+                    IRInstruction lea = new Lea(basicBlock, new StackData(vrbp, null, new Immediate(0), new Immediate(offset)), ((Alloc) irInstruction).getPointer());
+                    irInstruction.replaceInstruction(lea);
+                    irInstruction = lea;
                 } else if (irInstruction instanceof Alloc) {
                     irInstruction.prependInstruction(new Move(basicBlock, ((Alloc) irInstruction).getSize(), vrdi));
                     irInstruction.postpendInstruction(new Move(basicBlock, vrax, ((Alloc) irInstruction).getPointer()));
@@ -0,0 +1,206 @@
+package Compiler.Benchmark;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Times every phase of the compiler on generated programs of growing size and reports how each phase scales.
+ * <p>
+ * Every measurement is a fresh compiler process reading `test.txt` in a scratch directory, the same way the judge
+ * runs it, and the phases are taken from its `-ftime-report=json`. A fresh process also keeps the static state of the
+ * frontend from leaking between runs. The time of a phase is the median over the forks. The growth of a phase is the
+ * slope of log time over log size, 1 for a phase that is linear in the size; phases that grow faster than the
+ * threshold and take at least 50 ms at some size are marked, and the exitcode is 1 if there are any.
+ * <p>
+ * usage: PhaseBenchmark [-shape functions,nesting,block,pressure] [-sizes 10,20,40] [-forks 3] [-seed 1]
+ * [-threshold 1.5] [-jvmarg arg]... [-arg compiler-arg]...
+ */
+public class PhaseBenchmark {
+    static private final Pattern phasePattern = Pattern.compile("^( *)\\{\"phase\": \"([^\"]*)\", \"calls\": (\\d+), \"wallNanos\": (\\d+)");
+    static private final double minimumTime = 50e6;
+
+    private List<ProgramGenerator.Shape> shapes = new ArrayList<>(Arrays.asList(ProgramGenerator.Shape.values()));
+    private int[] sizes = {10, 20, 40};
+    private int forks = 3;
+    private long seed = 1;
+    private double threshold = 1.5;
+    private List<String> jvmArgs = new ArrayList<>();
+    private List<String> compilerArgs = new ArrayList<>();
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        PhaseBenchmark benchmark = new PhaseBenchmark();
+        for (int i = 0; i < args.length; ++i) {
+            switch (args[i]) {
+                case "-shape":
+                    benchmark.shapes.clear();
+                    for (String shape : args[++i].split(","))
+                        benchmark.shapes.add(ProgramGenerator.Shape.valueOf(shape.toUpperCase()));
+                    break;
+                case "-sizes":
+                    benchmark.sizes = Arrays.stream(args[++i].split(",")).mapToInt(Integer::parseInt).toArray();
+                    break;
+                case "-forks":
+                    benchmark.forks = Integer.parseInt(args[++i]);
+                    break;
+                case "-seed":
+                    benchmark.seed = Long.parseLong(args[++i]);
+                    break;
+                case "-threshold":
+                    benchmark.threshold = Double.parseDouble(args[++i]);
+                    break;
+                case "-jvmarg":
+                    benchmark.jvmArgs.add(args[++i]);
+                    break;
+                case "-arg":
+                    benchmark.compilerArgs.add(args[++i]);
+                    break;
+                default:
+                    System.err.println("usage: PhaseBenchmark [-shape functions,nesting,block,pressure] [-sizes 10,20,40] [-forks 3] [-seed 1] [-threshold 1.5] [-jvmarg arg]... [-arg compiler-arg]...");
+                    System.exit(2);
+            }
+        }
+        boolean superLinear = false;
+        for (ProgramGenerator.Shape shape : benchmark.shapes)
+            superLinear |= benchmark.run(shape, System.out);
+        System.exit(superLinear ? 1 : 0);
+    }
+
+    //measure every size of `shape` and print its table, returns whether a phase grew faster than the threshold
+    public boolean run(ProgramGenerator.Shape shape, PrintStream out) throws IOException, InterruptedException {
+        //phase -> size index -> wall time of each fork
+        Map<String, List<List<Long>>> times = new LinkedHashMap<>();
+        String[] failures = new String[sizes.length];
+        Path dir = Files.createTempDirectory("daedalus-bench");
+        try {
+            //X86CodeEmitter copies lib/builtin_lib.asm, relative to where the compiler runs
+            Files.createSymbolicLink(dir.resolve("lib"), Paths.get("lib").toAbsolutePath());
+            for (int s = 0; s < sizes.length; ++s) {
+                Files.write(dir.resolve("test.txt"), ProgramGenerator.generate(shape, sizes[s], seed).getBytes(StandardCharsets.ISO_8859_1));
+                for (int fork = 0; fork < forks && failures[s] == null; ++fork) {
+                    Map<String, Long> phases = new LinkedHashMap<>();
+                    failures[s] = compile(dir, phases);
+                    for (Map.Entry<String, Long> entry : phases.entrySet()) {
+                        List<List<Long>> row = times.computeIfAbsent(entry.getKey(), x -> {
+                            List<List<Long>> res = new ArrayList<>();
+                            for (int i = 0; i < sizes.length; ++i) res.add(new ArrayList<>());
+                            return res;
+                        });
+                        row.get(s).add(entry.getValue());
+                    }
+                }
+            }
+        } finally {
+            //the compiler leaves its debug dumps next to test.txt
+            File[] files = dir.toFile().listFiles();
+            if (files != null) for (File file : files) Files.deleteIfExists(file.toPath());
+            Files.deleteIfExists(dir);
+        }
+        return report(out, shape, times, failures);
+    }
+
+    //run the compiler once on `dir`/test.txt and collect the wall time of its phases, returns the failure if any
+    private String compile(Path dir, Map<String, Long> phases) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmArgs);
+        command.add("-cp");
+        //the compiler runs in the scratch directory
+        StringJoiner classPath = new StringJoiner(File.pathSeparator);
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator))
+            classPath.add(Paths.get(entry).toAbsolutePath().toString());
+        command.add(classPath.toString());
+        command.add("Compiler.Main");
+        command.add("-ftime-report=json");
+        command.addAll(compilerArgs);
+        Process process = new ProcessBuilder(command).directory(dir.toFile())
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+        process.getOutputStream().close();
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader err = new BufferedReader(new InputStreamReader(process.getErrorStream(), StandardCharsets.ISO_8859_1))) {
+            for (String line; (line = err.readLine()) != null; ) lines.add(line);
+        }
+        int exitcode = process.waitFor();
+
+        //the report nests phases by two spaces under the root object
+        List<String> path = new ArrayList<>();
+        for (String line : lines) {
+            Matcher matcher = phasePattern.matcher(line);
+            if (!matcher.find()) continue;
+            int depth = matcher.group(1).length() / 2 - 1;
+            while (path.size() > depth) path.remove(path.size() - 1);
+            path.add(matcher.group(2));
+            phases.merge(String.join("/", path), Long.parseLong(matcher.group(4)), Long::sum);
+        }
+        if (exitcode == 0 && !phases.isEmpty()) return null;
+        for (String line : lines)
+            if (line.contains("Error") || line.contains("Exception")) return line.trim();
+        return "exitcode " + exitcode;
+    }
+
+    private boolean report(PrintStream out, ProgramGenerator.Shape shape, Map<String, List<List<Long>>> times, String[] failures) {
+        int width = 5;
+        for (String phase : times.keySet()) width = Math.max(width, phase.length());
+        StringBuilder format = new StringBuilder("%-" + width + "s");
+        for (int i = 0; i < sizes.length; ++i) format.append(" %10s");
+        format.append(" %8s %s%n");
+
+        out.println("shape " + shape.name().toLowerCase() + ", wall time in ms, median of " + forks + " forks");
+        List<Object> header = new ArrayList<>();
+        header.add("phase");
+        for (int size : sizes) header.add(String.valueOf(size));
+        header.add("growth");
+        header.add("");
+        out.printf(format.toString(), header.toArray());
+
+        boolean superLinear = false;
+        for (Map.Entry<String, List<List<Long>>> entry : times.entrySet()) {
+            double[] medians = new double[sizes.length];
+            List<Object> row = new ArrayList<>();
+            row.add(entry.getKey());
+            for (int s = 0; s < sizes.length; ++s) {
+                medians[s] = median(entry.getValue().get(s));
+                row.add(failures[s] != null ? "FAIL" : Double.isNaN(medians[s]) ? "-" : String.format("%.1f", medians[s] / 1e6));
+            }
+            double growth = growth(medians, failures);
+            boolean marked = growth > threshold && Arrays.stream(medians).anyMatch(x -> x >= minimumTime);
+            superLinear |= marked;
+            row.add(Double.isNaN(growth) ? "-" : String.format("%.2f", growth));
+            row.add(marked ? "<-- super-linear" : "");
+            out.printf(format.toString(), row.toArray());
+        }
+        for (int s = 0; s < sizes.length; ++s)
+            if (failures[s] != null) out.println("size " + sizes[s] + ": " + failures[s]);
+        out.println();
+        return superLinear;
+    }
+
+    static private double median(List<Long> values) {
+        if (values.isEmpty()) return Double.NaN;
+        List<Long> sorted = new ArrayList<>(values);
+        Collections.sort(sorted);
+        int n = sorted.size();
+        return n % 2 == 1 ? sorted.get(n / 2) : (sorted.get(n / 2 - 1) + sorted.get(n / 2)) / 2.0;
+    }
+
+    //least squares slope of log time over log size, NaN if fewer than two sizes have a time
+    private double growth(double[] medians, String[] failures) {
+        double n = 0, sx = 0, sy = 0, sxx = 0, sxy = 0;
+        for (int s = 0; s < sizes.length; ++s) {
+            if (failures[s] != null || Double.isNaN(medians[s]) || medians[s] <= 0) continue;
+            double x = Math.log(sizes[s]), y = Math.log(medians[s]);
+            n++;
+            sx += x;
+            sy += y;
+            sxx += x * x;
+            sxy += x * y;
+        }
+        if (n < 2 || n * sxx - sx * sx == 0) return Double.NaN;
+        return (n * sxy - sx * sy) / (n * sxx - sx * sx);
+    }
+}
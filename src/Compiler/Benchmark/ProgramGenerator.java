@@ -0,0 +1,144 @@
+package Compiler.Benchmark;
+
+import java.util.Random;
+
+//Mx* programs that grow along one dimension, to see how the phases of the compiler scale with it
+//  functions: `size` functions with a loop, a branch and a call to the previous one each, all called from main
+//  nesting:   loops and branches nested `size` deep in main
+//  block:     one basic block of `size` statements over a handful of variables
+//  pressure:  `size` variables that are all live across one loop
+//The programs read their input with getInt and print a result, so that nothing is folded away, and end.
+//usage: ProgramGenerator shape size [seed]
+
+public class ProgramGenerator {
+    public enum Shape {FUNCTIONS, NESTING, BLOCK, PRESSURE}
+
+    private StringBuilder out = new StringBuilder();
+    private Random random;
+
+    private ProgramGenerator(long seed) {
+        random = new Random(seed);
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println("usage: ProgramGenerator functions|nesting|block|pressure size [seed]");
+            System.exit(2);
+        }
+        System.out.print(generate(Shape.valueOf(args[0].toUpperCase()), Integer.parseInt(args[1]), args.length > 2 ? Long.parseLong(args[2]) : 1));
+    }
+
+    public static String generate(Shape shape, int size, long seed) {
+        ProgramGenerator generator = new ProgramGenerator(seed);
+        switch (shape) {
+            case FUNCTIONS:
+                generator.functions(size);
+                break;
+            case NESTING:
+                generator.nesting(size);
+                break;
+            case BLOCK:
+                generator.block(size);
+                break;
+            case PRESSURE:
+                generator.pressure(size);
+                break;
+        }
+        return generator.out.toString();
+    }
+
+    private String operator() {
+        return new String[]{"+", "-", "*", "^", "|", "&"}[random.nextInt(6)];
+    }
+
+    private int constant() {
+        return random.nextInt(97) + 2;
+    }
+
+    private void line(int indent, String text) {
+        for (int i = 0; i < indent; ++i) out.append("    ");
+        out.append(text).append('\n');
+    }
+
+    private void functions(int size) {
+        for (int i = 0; i < size; ++i) {
+            line(0, "int f" + i + "(int a, int b) {");
+            line(1, "int s = b;");
+            line(1, "int i;");
+            line(1, "for (i = 0; i < a; i++) {");
+            line(2, "if (i % " + constant() + " == b) s = s " + operator() + " i * " + constant() + ";");
+            line(2, "else s = (s " + operator() + " (i + b)) % 1000007;");
+            line(1, "}");
+            line(1, i == 0 ? "return s;" : "return s + f" + (i - 1) + "(a / 2, s % " + constant() + ");");
+            line(0, "}");
+        }
+        line(0, "int main() {");
+        line(1, "int n = getInt();");
+        line(1, "int s = 0;");
+        for (int i = 0; i < size; ++i)
+            line(1, "s = (s + f" + i + "(n % " + constant() + ", s % " + constant() + ")) % 1000007;");
+        line(1, "println(toString(s));");
+        line(1, "return 0;");
+        line(0, "}");
+    }
+
+    private void nesting(int size) {
+        line(0, "int main() {");
+        line(1, "int n = getInt();");
+        line(1, "int s = n;");
+        for (int i = 0; i < size; ++i) {
+            int indent = i + 1;
+            switch (i % 3) {
+                case 0:
+                    line(indent, "int i" + i + ";");
+                    line(indent, "for (i" + i + " = 0; i" + i + " < 2; i" + i + "++) {");
+                    break;
+                case 1:
+                    line(indent, "if ((s " + operator() + " " + constant() + ") % " + constant() + " != 1) {");
+                    break;
+                default:
+                    line(indent, "int w" + i + " = 0;");
+                    line(indent, "while (w" + i + " < 2) {");
+                    line(indent + 1, "w" + i + "++;");
+            }
+            line(indent + 1, "s = (s " + operator() + " " + constant() + ") % 1000007;");
+        }
+        for (int i = size - 1; i >= 0; --i) line(i + 1, "}");
+        line(1, "println(toString(s));");
+        line(1, "return 0;");
+        line(0, "}");
+    }
+
+    private void block(int size) {
+        int variables = 4;
+        line(0, "int main() {");
+        line(1, "int n = getInt();");
+        for (int i = 0; i < variables; ++i) line(1, "int x" + i + " = n + " + i + ";");
+        for (int i = 0; i < size; ++i) {
+            int dst = random.nextInt(variables), src = random.nextInt(variables);
+            line(1, "x" + dst + " = (x" + dst + " " + operator() + " x" + src + " * " + constant() + ") % 1000007;");
+        }
+        StringBuilder sum = new StringBuilder("x0");
+        for (int i = 1; i < variables; ++i) sum.append(" + x").append(i);
+        line(1, "println(toString(" + sum + "));");
+        line(1, "return 0;");
+        line(0, "}");
+    }
+
+    private void pressure(int size) {
+        line(0, "int main() {");
+        line(1, "int n = getInt();");
+        line(1, "int v0 = n;");
+        for (int i = 1; i < size; ++i) line(1, "int v" + i + " = v" + (i - 1) + " * " + constant() + " + " + i + ";");
+        line(1, "int i;");
+        line(1, "for (i = 0; i < n; i++) {");
+        for (int i = 0; i < size; ++i)
+            line(2, "v" + i + " = (v" + i + " " + operator() + " v" + (i + 1) % size + ") % 1000007;");
+        line(1, "}");
+        StringBuilder sum = new StringBuilder("v0");
+        for (int i = 1; i < size; ++i) sum.append(" + v").append(i);
+        line(1, "println(toString(" + sum + "));");
+        line(1, "return 0;");
+        line(0, "}");
+    }
+}
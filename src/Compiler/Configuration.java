@@ -1,8 +1,35 @@
 package Compiler;
 
+import java.util.HashSet;
+import java.util.Set;
+
 public class Configuration {
     public static int REGISTER_SIZE = 8;
 
+    //phases after which Main runs the IR in process (-finterpret=<phase>,...), "all" for every phase
+    public static Set<String> INTERPRET_PHASES = new HashSet<>();
+
+    //profile file written by running the program in process after IRBuilder (-fprofile-generate=<file>)
+    //and read back to guide inlining, spilling and block layout (-fprofile-use=<file>), null if not asked for
+    public static String PROFILE_GENERATE = null;
+    public static String PROFILE_USE = null;
+
+    //threads that run function-local optimizer passes (-foptim-threads=<n>), the output is the same for any number
+    public static int OPTIM_THREADS = Runtime.getRuntime().availableProcessors();
+
+    //register allocator (-fregalloc=graph|linear|ssa), graph coloring, the faster linear scan, or coloring in SSA form
+    public static String REGISTER_ALLOCATOR = "graph";
+
+    //iterations per trip of innermost counted loops unrolled partially (-funroll-factor=<n>), 1 for none
+    public static int UNROLL_FACTOR = 4;
+
+    //bytes of objects that do not escape a function allocated in its stack frame instead of by malloc
+    //(-fstack-alloc-limit=<n>), 0 for none
+    public static int STACK_ALLOCATION_LIMIT = 256;
+
+    //per-phase time, allocation and IR counts on stderr, as a table (-ftime-report) or JSON (-ftime-report=json)
+    public static String TIME_REPORT = null;
+
     public static int PRIMITIVETYPE_SIZE() {
         return 8;
     }
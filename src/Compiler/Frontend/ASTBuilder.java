@@ -173,7 +173,7 @@ public class ASTBuilder extends MxstarBaseVisitor<ASTNode> {
         List<StmtNode> stmtList = new ArrayList<>();
         for (ParserRuleContext stmt : ctx.statement()) {
             StmtNode stmtNode = (StmtNode) visit(stmt);
-            if (stmtNode != null) stmtList.add((StmtNode) visit(stmt));
+            if (stmtNode != null) stmtList.add(stmtNode);
         }
         return new BlockStmtNode(stmtList, new Position(ctx.start));
     }
@@ -1,7 +1,6 @@
 package Compiler.IR;
 
 import Compiler.IR.Instruction.*;
-import Compiler.IR.Operand.VirtualRegister;
 
 import java.util.HashSet;
 import java.util.Set;
@@ -21,17 +20,26 @@ public class BasicBlock {
     public Set<BasicBlock> RDF;
     public Set<BasicBlock> RDFSuccessors;
 
+    //profiled executions (-fprofile-use), -1 if unknown
+    public long executionCount = -1;
+
     private Function currentFunction;
     private String name;
     private Set<BasicBlock> predecessors = new HashSet<>();
     private Set<BasicBlock> successors = new HashSet<>();
     private boolean terminated;
+    private final int hashCode = IRHash.next();
 
     public BasicBlock(Function currentFunction, String name) {
         this.currentFunction = currentFunction;
         this.name = name;
     }
 
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
     public String getName() {
         return currentFunction.getName() + "_" + name;
     }
@@ -164,34 +172,4 @@ public class BasicBlock {
             if (!irInstruction.hasNextInstruction()) break;
         }
     }
-
-    //for Liveness Analysis in Register Allocation
-    private Set<VirtualRegister> use = new HashSet<>();
-    private Set<VirtualRegister> def = new HashSet<>();
-    private Set<VirtualRegister> liveIn = new HashSet<>();
-    private Set<VirtualRegister> liveOut = new HashSet<>();
-
-    public Set<VirtualRegister> getUse() {
-        return use;
-    }
-
-    public Set<VirtualRegister> getDef() {
-        return def;
-    }
-
-    public Set<VirtualRegister> getLiveIn() {
-        return liveIn;
-    }
-
-    public void setLiveIn(Set<VirtualRegister> liveIn) {
-        this.liveIn = liveIn;
-    }
-
-    public Set<VirtualRegister> getLiveOut() {
-        return liveOut;
-    }
-
-    public void setLiveOut(Set<VirtualRegister> liveOut) {
-        this.liveOut = liveOut;
-    }
-}
\ No newline at end of file
+}
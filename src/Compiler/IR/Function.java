@@ -16,6 +16,10 @@ public class Function {
     public LinkedList<Call> callerInstructionList = new LinkedList<>();
     public int argumentLimit;
     public int temporaryCnt = 0;
+    //profiled calls (-fprofile-use), -1 if unknown
+    public long executionCount = -1;
+    //no stores, no loops and only calls to such functions, so an unused call can be dropped (SideEffectAnalyzer)
+    public boolean sideEffectFree = false;
 
     private BasicBlock entryBlock = new BasicBlock(this, "entry");
     private BasicBlock exitBlock = new BasicBlock(this, "exit");
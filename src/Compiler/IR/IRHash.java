@@ -0,0 +1,38 @@
+package Compiler.IR;
+
+//Hash codes of blocks, instructions and operands
+//Passes iterate sets and maps of IR objects, so the compiled code depends on their hash codes. Identity hash codes
+//come from a generator of the thread that first asks for them, which makes the output depend on scheduling once
+//functions are optimized on a thread pool. IR objects take their hash code from this generator when they are created
+//instead, and a pass reseeds it for each function it runs on, so the codes only depend on the program.
+
+public class IRHash {
+    private static final ThreadLocal<long[]> state = ThreadLocal.withInitial(() -> new long[]{0x2545F4914F6CDD1DL});
+
+    public static int next() {
+        long[] res = state.get();
+        long x = res[0];
+        x ^= x << 13;
+        x ^= x >>> 7;
+        x ^= x << 17;
+        res[0] = x;
+        return (int) (x >>> 32);
+    }
+
+    //start a sequence that depends on `seed` only, returns the state to restore
+    public static long reseed(long seed) {
+        long[] res = state.get();
+        long old = res[0];
+        //splitmix64, so that nearby seeds start far apart and the state is never zero
+        long z = seed + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        z ^= z >>> 31;
+        res[0] = z == 0 ? 0x2545F4914F6CDD1DL : z;
+        return old;
+    }
+
+    public static void restore(long old) {
+        state.get()[0] = old;
+    }
+}
@@ -14,6 +14,8 @@ import static Compiler.IR.Operand.PhysicalRegister.*;
 public class Alloc extends IRInstruction {
     private Operand size;
     private Operand pointer;
+    //the object never outlives the function (EscapeAnalyzer), X86ConstraintResolver puts it in the stack frame
+    private boolean onStack = false;
 
     public Alloc(BasicBlock currentBB, Operand size, Operand pointer) {
         super(currentBB);
@@ -39,9 +41,19 @@ public class Alloc extends IRInstruction {
         this.pointer = pointer;
     }
 
+    public boolean isOnStack() {
+        return onStack;
+    }
+
+    public void setOnStack(boolean onStack) {
+        this.onStack = onStack;
+    }
+
     @Override
     public IRInstruction getFakeInstruction(Map<BasicBlock, BasicBlock> fakeBBMap, Map<Operand, Operand> fakeRegMap) {
-        return new Alloc(fakeBBMap.getOrDefault(currentBB, currentBB), fakeRegMap.getOrDefault(size, size), fakeRegMap.getOrDefault(pointer, pointer));
+        Alloc alloc = new Alloc(fakeBBMap.getOrDefault(currentBB, currentBB), fakeRegMap.getOrDefault(size, size), fakeRegMap.getOrDefault(pointer, pointer));
+        alloc.onStack = onStack;
+        return alloc;
     }
 
     @Override
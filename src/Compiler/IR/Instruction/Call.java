@@ -19,6 +19,8 @@ public class Call extends IRInstruction {
     private Function callee;
     private Operand objectPointer;
     private Operand result;
+    //profiled executions (-fprofile-use), -1 if unknown
+    public long executionCount = -1;
 
     public Call(BasicBlock currentBB, Function callee, Operand result) {
         super(currentBB);
@@ -63,6 +65,7 @@ public class Call extends IRInstruction {
         Call newCall = new Call(fakeBBMap.getOrDefault(currentBB, currentBB), callee, fakeRegMap.getOrDefault(result, result));
         parameterList.forEach(operand -> newCall.appendParameterList(fakeRegMap.getOrDefault(operand, operand)));
         newCall.setObjectPointer(fakeRegMap.getOrDefault(objectPointer, objectPointer));
+        newCall.executionCount = executionCount;
         return newCall;
     }
 
@@ -15,9 +15,6 @@ public class Cmp extends IRInstruction {
     private Operand src2;
     private Operand dst;
 
-    //for CSE use
-    public Operand previousResult = null;
-
     public Cmp(BasicBlock currentBB, Op op, Operand src1, Operand src2, Operand dst) {
         super(currentBB);
         this.op = op;
@@ -1,6 +1,7 @@
 package Compiler.IR.Instruction;
 
 import Compiler.IR.BasicBlock;
+import Compiler.IR.IRHash;
 import Compiler.IR.IRVisitor;
 import Compiler.IR.Operand.Operand;
 import Compiler.IR.Operand.Register;
@@ -13,11 +14,17 @@ public abstract class IRInstruction {
     protected List<Register> useRegisters = new ArrayList<>();
     private IRInstruction lastInstruction;
     private IRInstruction nextInstruction;
+    private final int hashCode = IRHash.next();
 
     public IRInstruction(BasicBlock currentBB) {
         this.currentBB = currentBB;
     }
 
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
     public BasicBlock getCurrentBB() {
         return currentBB;
     }
@@ -104,8 +111,6 @@ public abstract class IRInstruction {
     //for Liveness Analysis during Register Allocation
     protected Set<VirtualRegister> use = new HashSet<>();
     protected Set<VirtualRegister> def = new HashSet<>();
-    protected Set<VirtualRegister> liveIn = new HashSet<>();
-    protected Set<VirtualRegister> liveOut = new HashSet<>();
 
     public abstract void renameDefRegisterForSSA();
 
@@ -126,12 +131,4 @@ public abstract class IRInstruction {
     public Set<VirtualRegister> getDef() {
         return def;
     }
-
-    public Set<VirtualRegister> getLiveIn() {
-        return liveIn;
-    }
-
-    public Set<VirtualRegister> getLiveOut() {
-        return liveOut;
-    }
 }
@@ -10,6 +10,9 @@ public class Load extends IRInstruction {
     private Operand src;
     private Operand dst;
     private boolean isInsertedForGlobalVariable;
+    //what the memory belongs to, for alias analysis: a member of a class ("A+8"), an element of an array by the type of
+    //the array ("int[][]") or the size of an array ("size"), null if unknown
+    private String aliasTag;
 
     public Load(BasicBlock currentBB, Operand src, Operand dst) {
         super(currentBB);
@@ -27,6 +30,11 @@ public class Load extends IRInstruction {
         updateUseRegisters();
     }
 
+    public Load(BasicBlock currentBB, Operand src, Operand dst, String aliasTag) {
+        this(currentBB, src, dst);
+        this.aliasTag = aliasTag;
+    }
+
     public Operand getSrc() {
         return src;
     }
@@ -39,6 +47,10 @@ public class Load extends IRInstruction {
         return isInsertedForGlobalVariable;
     }
 
+    public String getAliasTag() {
+        return aliasTag;
+    }
+
     @Override
     public void accept(IRVisitor irVisitor) {
         irVisitor.visit(this);
@@ -92,7 +104,9 @@ public class Load extends IRInstruction {
 
     @Override
     public IRInstruction getFakeInstruction(Map<BasicBlock, BasicBlock> fakeBBMap, Map<Operand, Operand> fakeRegMap) {
-        return new Load(fakeBBMap.getOrDefault(currentBB, currentBB), fakeRegMap.getOrDefault(src, src), fakeRegMap.getOrDefault(dst, dst));
+        Load load = new Load(fakeBBMap.getOrDefault(currentBB, currentBB), fakeRegMap.getOrDefault(src, src), fakeRegMap.getOrDefault(dst, dst), aliasTag);
+        load.isInsertedForGlobalVariable = isInsertedForGlobalVariable;
+        return load;
     }
 
     @Override
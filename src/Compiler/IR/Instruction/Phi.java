@@ -62,7 +62,8 @@ public class Phi extends IRInstruction {
 
     @Override
     public Register getDefRegister() {
-        return (Register) dst;
+        //the SSA register allocator leaves the stack slot of a spilled phi here until the phis are lowered
+        return dst instanceof Register ? (Register) dst : null;
     }
 
     @Override
@@ -97,7 +98,10 @@ public class Phi extends IRInstruction {
 
     @Override
     public IRInstruction getFakeInstruction(Map<BasicBlock, BasicBlock> fakeBBMap, Map<Operand, Operand> fakeRegMap) {
-        return null;
+        Phi phi = new Phi(fakeBBMap.getOrDefault(currentBB, currentBB), fakeRegMap.getOrDefault(dst, dst));
+        paths.forEach((basicBlock, operand) -> phi.paths.put(fakeBBMap.getOrDefault(basicBlock, basicBlock), fakeRegMap.getOrDefault(operand, operand)));
+        phi.updateUseRegisters();
+        return phi;
     }
 
     @Override
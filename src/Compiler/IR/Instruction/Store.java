@@ -10,6 +10,9 @@ public class Store extends IRInstruction {
     private Operand src;
     private Operand dst;
     private boolean isInsertedForGlobalVariable;
+    //what the memory belongs to, for alias analysis: a member of a class ("A+8"), an element of an array by the type of
+    //the array ("int[][]") or the size of an array ("size"), null if unknown
+    private String aliasTag;
 
     public Store(BasicBlock currentBB, Operand src, Operand dst) {
         super(currentBB);
@@ -27,6 +30,11 @@ public class Store extends IRInstruction {
         updateUseRegisters();
     }
 
+    public Store(BasicBlock currentBB, Operand src, Operand dst, String aliasTag) {
+        this(currentBB, src, dst);
+        this.aliasTag = aliasTag;
+    }
+
     public Operand getSrc() {
         return src;
     }
@@ -39,6 +47,10 @@ public class Store extends IRInstruction {
         return isInsertedForGlobalVariable;
     }
 
+    public String getAliasTag() {
+        return aliasTag;
+    }
+
     @Override
     public void accept(IRVisitor irVisitor) {
         irVisitor.visit(this);
@@ -85,7 +97,9 @@ public class Store extends IRInstruction {
 
     @Override
     public IRInstruction getFakeInstruction(Map<BasicBlock, BasicBlock> fakeBBMap, Map<Operand, Operand> fakeRegMap) {
-        return new Store(fakeBBMap.getOrDefault(currentBB, currentBB), fakeRegMap.getOrDefault(src, src), fakeRegMap.getOrDefault(dst, dst));
+        Store store = new Store(fakeBBMap.getOrDefault(currentBB, currentBB), fakeRegMap.getOrDefault(src, src), fakeRegMap.getOrDefault(dst, dst), aliasTag);
+        store.isInsertedForGlobalVariable = isInsertedForGlobalVariable;
+        return store;
     }
 
     @Override
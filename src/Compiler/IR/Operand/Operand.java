@@ -1,9 +1,11 @@
 package Compiler.IR.Operand;
 
+import Compiler.IR.IRHash;
 import Compiler.IR.IRVisitor;
 
 public abstract class Operand {
     String name;
+    private final int hashCode = IRHash.next();
 
     public Operand() {
 
@@ -13,6 +15,11 @@ public abstract class Operand {
         this.name = name;
     }
 
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
     public String getName() {
         return name;
     }
@@ -2,7 +2,6 @@ package Compiler.IR.Operand;
 
 import Compiler.IR.BasicBlock;
 import Compiler.IR.IRVisitor;
-import Compiler.IR.Instruction.Move;
 
 import java.util.*;
 
@@ -15,12 +14,10 @@ public abstract class VirtualRegister extends Register {
     //for Register Allocation use
     public PhysicalRegister color = null;
     public StackData spillAddr = null;
-    public Set<VirtualRegister> adjList = new HashSet<>();
-    public int degree;
-    public Set<Move> moveList = new HashSet<>();
-    public VirtualRegister alias;
+    //number of the register in the function being allocated, -1 outside of an allocation
+    public int id = -1;
     public boolean addForSpill = false;
-    public int spillPriority = 0;
+    public long spillPriority = 0;
 
     public VirtualRegister() {
     }
@@ -64,13 +61,6 @@ public abstract class VirtualRegister extends Register {
         return newId;
     }
 
-    public void clearAllocationInfo() {
-        spillAddr = null;
-        adjList.clear();
-        moveList.clear();
-        alias = null;
-    }
-
     public static class RegisterInformation {
         public Set<BasicBlock> defBB = new HashSet<>();
         public Stack<Integer> stack = new Stack<>();
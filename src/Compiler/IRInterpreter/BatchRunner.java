@@ -0,0 +1,234 @@
+package Compiler.IRInterpreter;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs a directory of IR test cases in parallel, one interpreter instance per case.
+ * <p>
+ * A case is `name.ir`, with optional `name.in` (the input), `name.out` (the expected output, compared ignoring
+ * trailing whitespace) and `name.exit` (the expected exitcode). A case passes if it runs without an exception and
+ * matches every file it has. Diagnostics that the interpreters print on stderr are kept per case and shown for the
+ * cases that do not pass.
+ * <p>
+ * usage: BatchRunner dir [+ssa] [+compiled] [+jit] [+codegen] [-j threads] [-limit instructions]
+ */
+public class BatchRunner {
+    static private final ThreadLocal<ByteArrayOutputStream> diagnostics = new ThreadLocal<>();
+
+    private boolean ssa = false;
+    private boolean compiled = false;
+    private boolean jit = false;
+    private boolean codegen = false;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int instLimit = Integer.MAX_VALUE;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        BatchRunner runner = new BatchRunner();
+        File dir = null;
+        for (int i = 0; i < args.length; ++i) {
+            switch (args[i].trim()) {
+                case "+ssa":
+                    runner.ssa = true;
+                    break;
+                case "+compiled":
+                    runner.compiled = true;
+                    break;
+                case "+jit":
+                    runner.jit = true;
+                    break;
+                case "+codegen":
+                    runner.codegen = true;
+                    break;
+                case "-j":
+                    runner.threads = Integer.parseInt(args[++i]);
+                    break;
+                case "-limit":
+                    runner.instLimit = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    dir = new File(args[i]);
+            }
+        }
+        if (dir == null || !dir.isDirectory()) {
+            System.err.println("usage: BatchRunner dir [+ssa] [+compiled] [+jit] [+codegen] [-j threads] [-limit instructions]");
+            System.exit(2);
+        }
+        List<Result> results = runner.run(dir);
+        System.exit(results.stream().allMatch(result -> result.passed) ? 0 : 1);
+    }
+
+    // run every case of `dir` and print the summary table on stdout
+    public List<Result> run(File dir) throws InterruptedException {
+        File[] files = dir.listFiles((x, name) -> name.endsWith(".ir"));
+        if (files == null) files = new File[0];
+        Arrays.sort(files);
+
+        PrintStream stderr = System.err;
+        System.setErr(new PrintStream(new ThreadOutputStream(stderr), true));
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        long startTime = System.nanoTime();
+        List<Result> results = new ArrayList<>();
+        try {
+            List<Future<Result>> futures = new ArrayList<>();
+            for (File file : files) futures.add(pool.submit(() -> runCase(file)));
+            for (Future<Result> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+            System.setErr(stderr);
+        }
+        long elapsedTime = System.nanoTime() - startTime;
+
+        report(System.out, results, elapsedTime);
+        return results;
+    }
+
+    private Result runCase(File file) {
+        String path = file.getPath();
+        String base = path.substring(0, path.length() - ".ir".length());
+        Result result = new Result(file.getName().substring(0, file.getName().length() - ".ir".length()));
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        diagnostics.set(err);
+        long startTime = System.nanoTime();
+        try {
+            byte[] input = readIfExists(new File(base + ".in"));
+            byte[] expectedOutput = readIfExists(new File(base + ".out"));
+            byte[] expectedExit = readIfExists(new File(base + ".exit"));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            DataInputStream data_in = new DataInputStream(new ByteArrayInputStream(input == null ? new byte[0] : input));
+            PrintStream data_out = new PrintStream(out, true);
+
+            boolean exception;
+            try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+                if (codegen) {
+                    IRInterpreter_codegen vm = new IRInterpreter_codegen(in, ssa, data_in, data_out);
+                    vm.setInstructionLimit(instLimit);
+                    if (vm.isReady()) vm.run();
+                    result.exitcode = vm.getExitcode();
+                    result.instructions = vm.getInstructionCount();
+                    exception = vm.exitException();
+                } else {
+                    IRInterpreter vm = new IRInterpreter(in, ssa, data_in, data_out);
+                    vm.setInstructionLimit(instLimit);
+                    vm.setCompiledEngine(compiled);
+                    if (jit) vm.setJitThreshold(1000);
+                    if (vm.isReady()) vm.run();
+                    result.exitcode = vm.getExitcode();
+                    result.instructions = vm.getInstructionCount();
+                    exception = vm.exitException();
+                }
+            }
+            data_out.flush();
+
+            if (exception) {
+                result.message = firstError(err.toString());
+            } else if (expectedOutput != null && !stripTrailing(out.toString("ISO-8859-1")).equals(stripTrailing(new String(expectedOutput, StandardCharsets.ISO_8859_1)))) {
+                result.message = "output mismatch";
+            } else if (expectedExit != null && Long.parseLong(new String(expectedExit, StandardCharsets.ISO_8859_1).trim()) != result.exitcode) {
+                result.message = "exitcode mismatch, expected " + new String(expectedExit, StandardCharsets.ISO_8859_1).trim();
+            } else {
+                result.passed = true;
+            }
+        } catch (IOException | NumberFormatException | StackOverflowError | OutOfMemoryError e) {
+            result.message = e.toString();
+        } finally {
+            result.elapsedTime = System.nanoTime() - startTime;
+            result.diagnostics = err.toString();
+            diagnostics.remove();
+        }
+        return result;
+    }
+
+    private void report(PrintStream out, List<Result> results, long elapsedTime) {
+        int width = 4;
+        for (Result result : results) width = Math.max(width, result.name.length());
+        String format = "%-" + width + "s  %-4s  %8s  %14s  %10s  %s%n";
+        out.printf(format, "case", "", "exitcode", "instructions", "time (ms)", "");
+        long passed = 0, instructions = 0, caseTime = 0;
+        for (Result result : results) {
+            out.printf(format, result.name, result.passed ? "PASS" : "FAIL", result.exitcode, result.instructions,
+                    String.format("%.1f", result.elapsedTime / 1e6), result.passed ? "" : result.message);
+            if (result.passed) ++passed;
+            instructions += result.instructions;
+            caseTime += result.elapsedTime;
+        }
+        out.printf("%d / %d passed, %d instructions, %.1f ms in cases, %.1f ms wall time on %d threads%n",
+                passed, results.size(), instructions, caseTime / 1e6, elapsedTime / 1e6, Math.max(1, threads));
+
+        for (Result result : results) {
+            if (result.passed || result.diagnostics.isEmpty()) continue;
+            out.println();
+            out.println("==> " + result.name + " <==");
+            out.print(result.diagnostics);
+        }
+    }
+
+    static private byte[] readIfExists(File file) throws IOException {
+        return file.isFile() ? Files.readAllBytes(file.toPath()) : null;
+    }
+
+    static private String stripTrailing(String text) {
+        int end = text.length();
+        while (end > 0 && Character.isWhitespace(text.charAt(end - 1))) --end;
+        return text.substring(0, end).replace("\r\n", "\n");
+    }
+
+    // the reason line the interpreters print under `Runtime Error` or `Semantic Error`
+    static private String firstError(String diagnostics) {
+        for (String line : diagnostics.split("\n"))
+            if (line.startsWith("    ")) return line.trim();
+        return "exception";
+    }
+
+    public static class Result {
+        public final String name;
+        public boolean passed = false;
+        public String message = "";
+        public long exitcode = -1;
+        public long instructions = 0;
+        public long elapsedTime = 0;
+        public String diagnostics = "";
+
+        Result(String name) {
+            this.name = name;
+        }
+    }
+
+    // stderr while the batch runs: each case thread writes into its own buffer, anything else passes through
+    static private class ThreadOutputStream extends OutputStream {
+        private final OutputStream fallback;
+
+        ThreadOutputStream(OutputStream fallback) {
+            this.fallback = fallback;
+        }
+
+        private OutputStream target() {
+            OutputStream res = diagnostics.get();
+            return res == null ? fallback : res;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            target().write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            target().write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            target().flush();
+        }
+    }
+}
@@ -29,6 +29,105 @@ public class IRInterpreter {
     static private final Set<String> opnum1 = new HashSet<>(Arrays.asList(
             "ret", "jump", "move", "neg", "not", "alloc"
     ));
+    // opcodes of the compiled engine
+    static final int OP_LEA = 0;
+    static final int OP_LOAD = 1;
+    static final int OP_STORE = 2;
+    static final int OP_ALLOC = 3;
+    static final int OP_RET = 4;
+    static final int OP_BR = 5;
+    static final int OP_JUMP = 6;
+    static final int OP_CALL = 7;
+    static final int OP_DIV = 8;
+    static final int OP_MOD = 9;
+    static final int OP_MOVE = 10;
+    static final int OP_NEG = 11;
+    static final int OP_NOT = 12;
+    static final int OP_ADD = 13;
+    static final int OP_SUB = 14;
+    static final int OP_MUL = 15;
+    static final int OP_SHL = 16;
+    static final int OP_SHR = 17;
+    static final int OP_AND = 18;
+    static final int OP_OR = 19;
+    static final int OP_XOR = 20;
+    static final int OP_SLT = 21;
+    static final int OP_SGT = 22;
+    static final int OP_SLE = 23;
+    static final int OP_SGE = 24;
+    static final int OP_SEQ = 25;
+    static final int OP_SNE = 26;
+    static private final Map<String, Integer> opcodes = new HashMap<>();
+
+    static {
+        opcodes.put("lea", OP_LEA);
+        opcodes.put("load", OP_LOAD);
+        opcodes.put("store", OP_STORE);
+        opcodes.put("alloc", OP_ALLOC);
+        opcodes.put("ret", OP_RET);
+        opcodes.put("br", OP_BR);
+        opcodes.put("jump", OP_JUMP);
+        opcodes.put("call", OP_CALL);
+        opcodes.put("div", OP_DIV);
+        opcodes.put("mod", OP_MOD);
+        opcodes.put("move", OP_MOVE);
+        opcodes.put("neg", OP_NEG);
+        opcodes.put("not", OP_NOT);
+        opcodes.put("add", OP_ADD);
+        opcodes.put("sub", OP_SUB);
+        opcodes.put("mul", OP_MUL);
+        opcodes.put("shl", OP_SHL);
+        opcodes.put("shr", OP_SHR);
+        opcodes.put("and", OP_AND);
+        opcodes.put("or", OP_OR);
+        opcodes.put("xor", OP_XOR);
+        opcodes.put("slt", OP_SLT);
+        opcodes.put("sgt", OP_SGT);
+        opcodes.put("sle", OP_SLE);
+        opcodes.put("sge", OP_SGE);
+        opcodes.put("seq", OP_SEQ);
+        opcodes.put("sne", OP_SNE);
+    }
+
+    // builtin functions, resolved once into integer codes
+    static final int BUILTIN_STRING_LENGTH = 0;
+    static final int BUILTIN_STRING_SUBSTRING = 1;
+    static final int BUILTIN_STRING_PARSE_INT = 2;
+    static final int BUILTIN_STRING_ORD = 3;
+    static final int BUILTIN_STRING_ADD = 4;
+    static final int BUILTIN_STRING_LT = 5;
+    static final int BUILTIN_STRING_LEQ = 6;
+    static final int BUILTIN_STRING_EQ = 7;
+    static final int BUILTIN_STRING_GEQ = 8;
+    static final int BUILTIN_STRING_GT = 9;
+    static final int BUILTIN_STRING_NEQ = 10;
+    static final int BUILTIN_PRINT = 11;
+    static final int BUILTIN_PRINTLN = 12;
+    static final int BUILTIN_GET_STRING = 13;
+    static final int BUILTIN_GET_INT = 14;
+    static final int BUILTIN_TO_STRING = 15;
+    static final int NOT_BUILTIN = -1;
+    static final Map<String, Integer> builtins = new HashMap<>();
+
+    static {
+        builtins.put("string.length", BUILTIN_STRING_LENGTH);
+        builtins.put("string.substring", BUILTIN_STRING_SUBSTRING);
+        builtins.put("string.parseInt", BUILTIN_STRING_PARSE_INT);
+        builtins.put("string.ord", BUILTIN_STRING_ORD);
+        builtins.put("string.add", BUILTIN_STRING_ADD);
+        builtins.put("string.lt", BUILTIN_STRING_LT);
+        builtins.put("string.leq", BUILTIN_STRING_LEQ);
+        builtins.put("string.eq", BUILTIN_STRING_EQ);
+        builtins.put("string.geq", BUILTIN_STRING_GEQ);
+        builtins.put("string.gt", BUILTIN_STRING_GT);
+        builtins.put("string.neq", BUILTIN_STRING_NEQ);
+        builtins.put("print", BUILTIN_PRINT);
+        builtins.put("println", BUILTIN_PRINTLN);
+        builtins.put("getString", BUILTIN_GET_STRING);
+        builtins.put("getInt", BUILTIN_GET_INT);
+        builtins.put("toString", BUILTIN_TO_STRING);
+    }
+
     private final Set<String> opjump = new HashSet<>(Arrays.asList(
             "br", "jump", "ret"
     ));
@@ -43,24 +142,40 @@ public class IRInterpreter {
     private String line;
     private BufferedReader br;
     private boolean allowPhi;
-    private Map<String, Register> registers;
+    private Frame frame;
     private Map<String, Register> globalRegisters = new HashMap<>();
     private Map<Long, String> stringObjects = new HashMap<>();
-    private Map<String, Long> tmpRegister = new HashMap<>(); // for phi node
-    private Map<Long, Byte> memory = new HashMap<>();
+    private long[] phiBuffer = new long[16]; // for phi node
+    private PagedMemory memory = new PagedMemory();
     private long heapTop = (int) (Math.random() * 4096);
     private long retValue;
     private boolean ret;
-    private int cntInst = 0;
+    private long cntInst = 0;
     private BasicBlock lastBB = null;
+    private int pc;
+    // callers waiting for a callee to return, so that recursion does not grow the Java stack
+    private Frame[] callStack = new Frame[64];
+    private int callDepth = 0;
     private long staticStringCnt = 0;
+    private boolean useCompiledEngine = false;
+    private int jitThreshold = -1;
+    // translated code calls on the Java stack, past this nesting calls stay in the stackless compiled engine
+    static private final int JIT_MAX_DEPTH = 1000;
+    private int jitDepth = 0;
+    private Function[] functionTable;
+    private Register[] globalTable;
+    private JitRuntime jitRuntime = new InterpreterRuntime();
+    // execution counts, written to `profilePath` at exit
+    private boolean profiling = false;
+    private String profilePath;
     //====== SSA check
     private boolean isReady = false;
 
     //====== run IR
     private long exitcode = -1;
     private boolean exception = false;
-    private int instLimit = Integer.MAX_VALUE;
+    private long instLimit = Integer.MAX_VALUE;
+    private long elapsedTime = 0;
 
     private DataInputStream data_in;
     private PrintStream data_out;
@@ -83,6 +198,8 @@ public class IRInterpreter {
             }
             br.close();
             if (isSSAMode) perfromSSACheck();
+            resolve();
+            compile();
             isReady = true;
         } catch (SemanticError e) {
             System.err.println("Semantic Error");
@@ -95,9 +212,21 @@ public class IRInterpreter {
     }
 
     public static void main(String[] args) throws IOException {
-        boolean ssa = args.length > 0 && args[0].trim().equals("+ssa");
+        boolean ssa = false;
+        boolean compiled = false;
+        boolean jit = false;
+        boolean profile = false;
+        for (String arg : args) {
+            if (arg.trim().equals("+ssa")) ssa = true;
+            if (arg.trim().equals("+compiled")) compiled = true;
+            if (arg.trim().equals("+jit")) jit = true;
+            if (arg.trim().equals("+profile")) profile = true;
+        }
         InputStream in = new FileInputStream("ir_out.txt");
         IRInterpreter vm = new IRInterpreter(in, ssa, new DataInputStream(System.in), new PrintStream(System.out));
+        vm.setCompiledEngine(compiled);
+        if (jit) vm.setJitThreshold(1000);
+        if (profile) vm.setProfileOutput("ir_profile.txt");
         //if (ssa)
         //    System.out.println("running with SSA mode");
         //else
@@ -131,6 +260,8 @@ public class IRInterpreter {
             if (curFunc.blocks.containsKey(curBB.name))
                 throw new SemanticError("label `" + curBB.name + "` has already been defined");
             curFunc.blocks.put(curBB.name, curBB);
+            curBB.index = curFunc.blockList.size();
+            curFunc.blockList.add(curBB);
             if (curFunc.entry == null) curFunc.entry = curBB;
             allowPhi = isSSAMode;
             return;
@@ -243,19 +374,20 @@ public class IRInterpreter {
             Register reg = new Register();
             reg.value = staticStringCnt;
             reg.timestamp = 0;
+            reg.defined = true;
             globalRegisters.put(name, reg);
             stringObjects.put(staticStringCnt++, val);
         } else {
             //other, just alloc some space on heap for convenience
             String name = line.trim();
             Register reg = new Register();
-            reg.value = 0;
+            reg.value = heapTop;
             reg.timestamp = 0;
+            reg.defined = true;
             globalRegisters.put(name, reg);
 
             long size = 8;
-            registerWrite(name, heapTop);
-            for (int i = 0; i < size; ++i) memory.put(heapTop + i, (byte) (0));
+            memory.allocate(heapTop, size);
             heapTop += size;
             heapTop += (int) (Math.random() * 4096);
         }
@@ -278,55 +410,192 @@ public class IRInterpreter {
         }
     }
 
-    private int memoryRead(long addr) throws RuntimeError {
-        Byte data = memory.get(addr);
-        if (data == null) throw new RuntimeError("memory read violation");
-        return data & 0xFF;
-    }
+    //====== resolve registers, immediates and callees once, so that no string is looked up while running
 
-    private void memoryWrite(long addr, Byte value) throws RuntimeError {
-        if (!memory.containsKey(addr))
-            throw new RuntimeError("memory write violation");
-        memory.put(addr, value);
+    private void resolve() throws SemanticError {
+        for (Function func : functions.values()) {
+            curFunc = func;
+            func.argSlots = new int[func.args.size()];
+            for (int i = 0; i < func.args.size(); ++i) {
+                if (!func.args.get(i).startsWith("%")) throw new SemanticError("argument should be a local register");
+                func.argSlots[i] = resolveSlot(func.args.get(i));
+            }
+            for (BasicBlock BB : func.blocks.values()) {
+                for (PhiNode phi : BB.phi) {
+                    lineno = phi.lineno;
+                    line = phi.text;
+                    phi.rDest = resolveOperand(phi.dest);
+                    for (Map.Entry<String, String> path : phi.paths.entrySet()) {
+                        BasicBlock incomingBB = func.blocks.get(path.getKey());
+                        if (incomingBB != null) phi.incoming.put(incomingBB, resolveOperand(path.getValue()));
+                    }
+                }
+                for (Instruction inst : BB.instructions) {
+                    lineno = inst.lineno;
+                    line = inst.text;
+                    switch (inst.operator) {
+                        case "jump":
+                            break;
+                        case "call":
+                            inst.rDest = resolveOperand(inst.dest);
+                            inst.rArgs = new Operand[inst.args.size()];
+                            for (int i = 0; i < inst.args.size(); ++i) inst.rArgs[i] = resolveOperand(inst.args.get(i));
+                            inst.callee = functions.get(inst.op1);
+                            inst.builtin = builtins.getOrDefault(inst.op1, NOT_BUILTIN);
+                            break;
+                        case "br":
+                            inst.rDest = resolveOperand(inst.dest);
+                            break;
+                        default:
+                            inst.rDest = resolveOperand(inst.dest);
+                            inst.rOp1 = resolveOperand(inst.op1);
+                            inst.rOp2 = resolveOperand(inst.op2);
+                    }
+                }
+            }
+            func.registerCnt = func.slots.size();
+            func.slots = null;
+        }
+        curFunc = null;
     }
 
-    private long registerRead(String name) throws RuntimeError {
-        Register reg = registers.get(name);
-        if (reg == null) throw new RuntimeError("register `" + name + "` haven't been defined yet");
-        return reg.value;
+    private int resolveSlot(String name) {
+        Integer slot = curFunc.slots.get(name);
+        if (slot == null) {
+            slot = curFunc.slots.size();
+            curFunc.slots.put(name, slot);
+        }
+        return slot;
     }
 
-    private long globalRegistersRead(String name) throws RuntimeError {
-        Register reg = globalRegisters.get(name);
-        if (reg == null) throw new RuntimeError("global register `" + name + "` haven't been defined yet");
-        return reg.value;
+    private Operand resolveOperand(String name) throws SemanticError {
+        if (name == null) return null;
+        Operand operand = new Operand();
+        operand.name = name;
+        if (name.startsWith("%")) {
+            operand.kind = Operand.LOCAL;
+            operand.slot = resolveSlot(name);
+        } else if (name.startsWith("@")) {
+            operand.kind = Operand.GLOBAL;
+            operand.global = globalRegisters.computeIfAbsent(name, k -> new Register());
+        } else if (name.equals("undef")) {
+            operand.kind = Operand.UNDEF;
+        } else {
+            operand.kind = Operand.IMMEDIATE;
+            try {
+                operand.value = Long.parseLong(name);
+            } catch (NumberFormatException e) {
+                throw new SemanticError("illegal operand `" + name + "`");
+            }
+        }
+        return operand;
     }
 
-    private void registerWrite(String name, long value) throws RuntimeError {
-        if (!name.startsWith("@") && !name.startsWith("%")) throw new RuntimeError("not a register");
-        if (name.startsWith("@")) {
-            Register reg = globalRegisters.get(name);
-            if (reg == null) {
-                reg = new Register();
-                globalRegisters.put(name, reg);
-            }
-            reg.value = value;
-            reg.timestamp = cntInst;
-        } else {
-            Register reg = registers.get(name);
-            if (reg == null) {
-                reg = new Register();
-                registers.put(name, reg);
+    //====== link blocks and opcodes for the compiled engine
+
+    private void compile() {
+        functionTable = functions.values().toArray(new Function[0]);
+        for (int i = 0; i < functionTable.length; ++i) functionTable[i].index = i;
+        globalTable = globalRegisters.values().toArray(new Register[0]);
+        for (int i = 0; i < globalTable.length; ++i) globalTable[i].index = i;
+        for (Function func : functions.values()) {
+            for (BasicBlock BB : func.blocks.values()) {
+                BB.code = BB.instructions.toArray(new Instruction[0]);
+                BB.hasEnd = BB.code.length > 0 && opjump.contains(BB.code[BB.code.length - 1].operator);
+                BB.phiNodes = BB.phi.toArray(new PhiNode[0]);
+                for (PhiNode phi : BB.phiNodes) {
+                    phi.incomingBlocks = phi.incoming.keySet().toArray(new BasicBlock[0]);
+                    phi.incomingOperands = new Operand[phi.incomingBlocks.length];
+                    for (int i = 0; i < phi.incomingBlocks.length; ++i)
+                        phi.incomingOperands[i] = phi.incoming.get(phi.incomingBlocks[i]);
+                }
+                for (Instruction inst : BB.code) {
+                    inst.opcode = opcodes.get(inst.operator);
+                    if (inst.operator.equals("jump")) {
+                        inst.target1 = func.blocks.get(inst.op1);
+                    } else if (inst.operator.equals("br")) {
+                        inst.target1 = func.blocks.get(inst.op1);
+                        inst.target2 = func.blocks.get(inst.op2);
+                    }
+                }
             }
-            reg.value = value;
-            reg.timestamp = cntInst;
         }
     }
 
-    private long readSrc(String name) throws RuntimeError {
-        if (name.startsWith("%")) return registerRead(name);
-        else if (name.startsWith("@")) return globalRegistersRead(name);
-        else return Long.valueOf(name);
+    static boolean isTerminator(Instruction inst) {
+        return inst.opcode == OP_RET || inst.opcode == OP_BR || inst.opcode == OP_JUMP;
+    }
+
+    //====== frames, reused between calls of the same function
+
+    private Frame newFrame(Function func) {
+        int size = func.pool.size();
+        if (size == 0) return new Frame(func.registerCnt);
+        Frame res = func.pool.remove(size - 1);
+        Arrays.fill(res.defined, false);
+        return res;
+    }
+
+    private Frame newCalleeFrame(Function func) throws RuntimeError {
+        if (func == null) throw new RuntimeError("cannot resolve function `" + curInst.op1 + "`");
+        if (curInst.dest != null && !func.hasReturnValue)
+            throw new RuntimeError("function `" + func.name + "` has not return value");
+        if (curInst.args.size() != func.args.size()) throw new RuntimeError("argument scale cannot match");
+        //This loop passes reg values in this function to correspondent argument slots of a fresh frame
+        Frame calleeFrame = newFrame(func);
+        for (int i = 0; i < curInst.rArgs.length; ++i) {
+            calleeFrame.values[func.argSlots[i]] = readSrc(curInst.rArgs[i]);
+            calleeFrame.defined[func.argSlots[i]] = true;
+        }
+        return calleeFrame;
+    }
+
+    private void releaseFrame(Function func, Frame released) {
+        func.pool.add(released);
+    }
+
+    private long memoryRead(long addr) throws RuntimeError {
+        if (!memory.isValid(addr, 8)) throw new RuntimeError("memory read violation");
+        return memory.readLong(addr);
+    }
+
+    private void memoryWrite(long addr, long value) throws RuntimeError {
+        if (!memory.isValid(addr, 8))
+            throw new RuntimeError("memory write violation");
+        memory.writeLong(addr, value);
+    }
+
+    private long readSrc(Operand operand) throws RuntimeError {
+        switch (operand.kind) {
+            case Operand.LOCAL:
+                if (!frame.defined[operand.slot])
+                    throw new RuntimeError("register `" + operand.name + "` haven't been defined yet");
+                return frame.values[operand.slot];
+            case Operand.IMMEDIATE:
+                return operand.value;
+            case Operand.GLOBAL:
+                if (!operand.global.defined)
+                    throw new RuntimeError("global register `" + operand.name + "` haven't been defined yet");
+                return operand.global.value;
+            default:
+                return (int) (Math.random() * Integer.MAX_VALUE);
+        }
+    }
+
+    private void registerWrite(Operand operand, long value) throws RuntimeError {
+        switch (operand.kind) {
+            case Operand.LOCAL:
+                frame.values[operand.slot] = value;
+                frame.defined[operand.slot] = true;
+                return;
+            case Operand.GLOBAL:
+                operand.global.value = value;
+                operand.global.timestamp = cntInst;
+                operand.global.defined = true;
+                return;
+            default:
+                throw new RuntimeError("not a register");
+        }
     }
 
     private void jump(String name) throws RuntimeError {
@@ -335,6 +604,7 @@ public class IRInterpreter {
             throw new RuntimeError("cannot resolve block `" + name + "` in function `" + curFunc.name + "`");
         lastBB = curBB;
         curBB = BB;
+        pc = 0;
     }
 
     private void runInstruction() throws RuntimeError, IOException {
@@ -344,258 +614,126 @@ public class IRInterpreter {
         if (++cntInst >= instLimit) throw new RuntimeError("instruction limit exceeded");
         switch (curInst.operator) {
             case "lea":
-                long base_lea = curInst.op1 == null ? 0 : readSrc(curInst.op1);
-                long index_lea = curInst.op2 == null ? 0 : readSrc(curInst.op2);
-                registerWrite(curInst.dest, base_lea + index_lea * curInst.scale + curInst.offset);
+                long base_lea = curInst.op1 == null ? 0 : readSrc(curInst.rOp1);
+                long index_lea = curInst.op2 == null ? 0 : readSrc(curInst.rOp2);
+                registerWrite(curInst.rDest, base_lea + index_lea * curInst.scale + curInst.offset);
                 return;
 
             case "load":
-                long base_load = curInst.op1 == null ? 0 : readSrc(curInst.op1);
-                long index_load = curInst.op2 == null ? 0 : readSrc(curInst.op2);
+                long base_load = curInst.op1 == null ? 0 : readSrc(curInst.rOp1);
+                long index_load = curInst.op2 == null ? 0 : readSrc(curInst.rOp2);
                 long addr_load = base_load + index_load * curInst.scale + curInst.offset;
-                long res = 0;
-                for (int i = 0; i < 8; ++i) res = (res << 8) | memoryRead(addr_load + i);
-                registerWrite(curInst.dest, res);
+                registerWrite(curInst.rDest, memoryRead(addr_load));
                 return;
 
             case "store":
-                long base_store = curInst.op1 == null ? 0 : readSrc(curInst.op1);
-                long index_store = curInst.op2 == null ? 0 : readSrc(curInst.op2);
+                long base_store = curInst.op1 == null ? 0 : readSrc(curInst.rOp1);
+                long index_store = curInst.op2 == null ? 0 : readSrc(curInst.rOp2);
                 long addr_store = base_store + index_store * curInst.scale + curInst.offset;
-                long data = readSrc(curInst.dest);
-                for (long i = 8 - 1; i >= 0; --i) {
-                    memoryWrite(addr_store + i, (byte) (data & 0xFF));
-                    data >>= 8;
-                }
+                memoryWrite(addr_store, readSrc(curInst.rDest));
                 return;
 
             case "alloc":
-                long size = readSrc(curInst.op1);
-                registerWrite(curInst.dest, heapTop);
-                for (int i = 0; i < size; ++i) memory.put(heapTop + i, (byte) (0));
+                long size = readSrc(curInst.rOp1);
+                registerWrite(curInst.rDest, heapTop);
+                memory.allocate(heapTop, size);
                 heapTop += size;
                 heapTop += (int) (Math.random() * 4096);
                 return;
 
             case "ret":
-                if (curInst.op1 != null) retValue = readSrc(curInst.op1);
+                if (curInst.op1 != null) retValue = readSrc(curInst.rOp1);
                 ret = true;
                 return;
 
             case "br":
-                long cond = readSrc(curInst.dest);
+                long cond = readSrc(curInst.rDest);
+                if (profiling) ++curBB.edgeCount[cond == 0 ? 1 : 0];
                 jump(cond == 0 ? curInst.op2 : curInst.op1);
                 return;
 
             case "jump":
+                if (profiling) ++curBB.edgeCount[0];
                 jump(curInst.op1);
                 return;
 
             case "call":
-                Function func = functions.get(curInst.op1);
-                switch (curInst.op1) {
-                    case "string.length": {
-                        String str = stringObjects.get(readSrc(curInst.args.get(0)));
-                        registerWrite(curInst.dest, str.length());
-                        return;
-                    }
-                    case "string.substring": {
-                        String str = stringObjects.get(readSrc(curInst.args.get(0)));
-                        long left = readSrc(curInst.args.get(1));
-                        long right = readSrc(curInst.args.get(2));
-                        String resStr = str.substring((int) left, (int) right);
-                        registerWrite(curInst.dest, staticStringCnt);
-                        stringObjects.put(staticStringCnt++, resStr);
-                        return;
-                    }
-                    case "string.parseInt": {
-                        String str = stringObjects.get(readSrc(curInst.args.get(0)));
-                        char[] charArray = str.toCharArray();
-                        long result = 0;
-                        for (char ch : charArray) {
-                            if (ch < '0' || ch > '9') break;
-                            result = result * 10 + ch - '0';
-                        }
-                        registerWrite(curInst.dest, result);
-                        return;
-                    }
-                    case "string.ord": {
-                        String str = stringObjects.get(readSrc(curInst.args.get(0)));
-                        long pos = readSrc(curInst.args.get(1));
-                        registerWrite(curInst.dest, (int) str.charAt((int) pos));
-                        return;
-                    }
-                    case "string.add": {
-                        String str1 = stringObjects.get(readSrc(curInst.args.get(0)));
-                        String str2 = stringObjects.get(readSrc(curInst.args.get(1)));
-                        String resStr = str1 + str2;
-                        registerWrite(curInst.dest, staticStringCnt);
-                        stringObjects.put(staticStringCnt++, resStr);
-                        return;
-                    }
-                    case "string.lt": {
-                        String str1 = stringObjects.get(readSrc(curInst.args.get(0)));
-                        String str2 = stringObjects.get(readSrc(curInst.args.get(1)));
-                        registerWrite(curInst.dest, str1.compareTo(str2) < 0 ? 1 : 0);
-                        return;
-                    }
-                    case "string.leq": {
-                        String str1 = stringObjects.get(readSrc(curInst.args.get(0)));
-                        String str2 = stringObjects.get(readSrc(curInst.args.get(1)));
-                        registerWrite(curInst.dest, str1.compareTo(str2) <= 0 ? 1 : 0);
-                        return;
-                    }
-                    case "string.eq": {
-                        String str1 = stringObjects.get(readSrc(curInst.args.get(0)));
-                        String str2 = stringObjects.get(readSrc(curInst.args.get(1)));
-                        registerWrite(curInst.dest, str1.compareTo(str2) == 0 ? 1 : 0);
-                        return;
-                    }
-                    case "string.geq": {
-                        String str1 = stringObjects.get(readSrc(curInst.args.get(0)));
-                        String str2 = stringObjects.get(readSrc(curInst.args.get(1)));
-                        registerWrite(curInst.dest, str1.compareTo(str2) >= 0 ? 1 : 0);
-                        return;
-                    }
-                    case "string.gt": {
-                        String str1 = stringObjects.get(readSrc(curInst.args.get(0)));
-                        String str2 = stringObjects.get(readSrc(curInst.args.get(1)));
-                        registerWrite(curInst.dest, str1.compareTo(str2) > 0 ? 1 : 0);
-                        return;
-                    }
-                    case "string.neq": {
-                        String str1 = stringObjects.get(readSrc(curInst.args.get(0)));
-                        String str2 = stringObjects.get(readSrc(curInst.args.get(1)));
-                        registerWrite(curInst.dest, str1.compareTo(str2) != 0 ? 1 : 0);
-                        return;
-                    }
-                    case "print": {
-                        String str = stringObjects.get(readSrc(curInst.args.get(0)));
-                        data_out.print(str);
-                        return;
-                    }
-                    case "println": {
-                        String str = stringObjects.get(readSrc(curInst.args.get(0)));
-                        data_out.print(str);
-                        data_out.print('\n');
-                        return;
-                    }
-                    case "getString": {
-                        String resStr = scanner.next();
-                        registerWrite(curInst.dest, staticStringCnt);
-                        stringObjects.put(staticStringCnt++, resStr);
-                        return;
-                    }
-                    case "getInt": {
-                        registerWrite(curInst.dest, scanner.nextInt());
-                        //if (scanner.hasNextLine()) scanner.nextLine();
-                        return;
-                    }
-                    case "toString": {
-                        long i = readSrc(curInst.args.get(0));
-                        String resStr = String.valueOf(i);
-                        registerWrite(curInst.dest, staticStringCnt);
-                        stringObjects.put(staticStringCnt++, resStr);
-                        return;
-                    }
-                    default:
-                        break;
+                Function func = curInst.callee;
+                if (profiling) ++curInst.count;
+                if (curInst.builtin != NOT_BUILTIN) {
+                    callBuiltin(curInst);
+                    return;
                 }
-                if (func == null) throw new RuntimeError("cannot resolve function `" + curInst.op1 + "`");
-                if (curInst.dest != null && !func.hasReturnValue)
-                    throw new RuntimeError("function `" + func.name + "` has not return value");
-                Map<String, Register> regs = new HashMap<>();
-                if (curInst.args.size() != func.args.size()) throw new RuntimeError("argument scale cannot match");
-                //This loop passes reg values in this function to correspondent function values & build new register table
-                for (int i = 0; i < curInst.args.size(); ++i) {
-                    String name = func.args.get(i);
-                    Register reg = regs.get(name);
-                    if (reg == null) {
-                        reg = new Register();
-                        regs.put(name, reg);
-                    }
-                    reg.value = readSrc(curInst.args.get(i));
-                    reg.timestamp = cntInst;
-                }
-
-                Map<String, Register> bakRegisters = registers;
-                BasicBlock bakCurBB = curBB;
-                BasicBlock bakLastBB = lastBB;
-                Instruction bakCurInst = curInst;
-                Function bakCurFunc = curFunc;
-                registers = regs; // 'registers' is used as the only register table for a function
-
-                runFunction(func);
-
-                ret = false;
-                curFunc = bakCurFunc;
-                curInst = bakCurInst;
-                lastBB = bakLastBB;
-                curBB = bakCurBB;
-                registers = bakRegisters;
-                if (curInst.dest != null) registerWrite(curInst.dest, retValue);
+                Frame calleeFrame = newCalleeFrame(func);
+                frame.func = curFunc;
+                frame.BB = curBB;
+                frame.prevBB = lastBB;
+                frame.pc = pc;
+                pushFrame(frame);
+                frame = calleeFrame; // 'frame' is used as the only register table for a function
+                enterFunction(func);
                 return;
 
             case "div":
-                if (readSrc(curInst.op2) == 0) throw new RuntimeError("divide by zero");
-                registerWrite(curInst.dest, readSrc(curInst.op1) / readSrc(curInst.op2));
+                if (readSrc(curInst.rOp2) == 0) throw new RuntimeError("divide by zero");
+                registerWrite(curInst.rDest, readSrc(curInst.rOp1) / readSrc(curInst.rOp2));
                 return;
 
             case "mod":
-                if (readSrc(curInst.op2) == 0) throw new RuntimeError("mod by zero");
-                registerWrite(curInst.dest, readSrc(curInst.op1) % readSrc(curInst.op2));
+                if (readSrc(curInst.rOp2) == 0) throw new RuntimeError("mod by zero");
+                registerWrite(curInst.rDest, readSrc(curInst.rOp1) % readSrc(curInst.rOp2));
                 return;
 
             case "move":
-                registerWrite(curInst.dest, readSrc(curInst.op1));
+                registerWrite(curInst.rDest, readSrc(curInst.rOp1));
                 return;
             case "neg":
-                registerWrite(curInst.dest, -readSrc(curInst.op1));
+                registerWrite(curInst.rDest, -readSrc(curInst.rOp1));
                 return;
             case "not":
-                registerWrite(curInst.dest, ~readSrc(curInst.op1));
+                registerWrite(curInst.rDest, ~readSrc(curInst.rOp1));
                 return;
             case "add":
-                registerWrite(curInst.dest, readSrc(curInst.op1) + readSrc(curInst.op2));
+                registerWrite(curInst.rDest, readSrc(curInst.rOp1) + readSrc(curInst.rOp2));
                 return;
             case "sub":
-                registerWrite(curInst.dest, readSrc(curInst.op1) - readSrc(curInst.op2));
+                registerWrite(curInst.rDest, readSrc(curInst.rOp1) - readSrc(curInst.rOp2));
                 return;
             case "mul":
-                registerWrite(curInst.dest, readSrc(curInst.op1) * readSrc(curInst.op2));
+                registerWrite(curInst.rDest, readSrc(curInst.rOp1) * readSrc(curInst.rOp2));
                 return;
             case "shl":
-                registerWrite(curInst.dest, readSrc(curInst.op1) << readSrc(curInst.op2));
+                registerWrite(curInst.rDest, readSrc(curInst.rOp1) << readSrc(curInst.rOp2));
                 return;
             case "shr":
-                registerWrite(curInst.dest, readSrc(curInst.op1) >> readSrc(curInst.op2));
+                registerWrite(curInst.rDest, readSrc(curInst.rOp1) >> readSrc(curInst.rOp2));
                 return;
             case "and":
-                registerWrite(curInst.dest, readSrc(curInst.op1) & readSrc(curInst.op2));
+                registerWrite(curInst.rDest, readSrc(curInst.rOp1) & readSrc(curInst.rOp2));
                 return;
             case "or":
-                registerWrite(curInst.dest, readSrc(curInst.op1) | readSrc(curInst.op2));
+                registerWrite(curInst.rDest, readSrc(curInst.rOp1) | readSrc(curInst.rOp2));
                 return;
             case "xor":
-                registerWrite(curInst.dest, readSrc(curInst.op1) ^ readSrc(curInst.op2));
+                registerWrite(curInst.rDest, readSrc(curInst.rOp1) ^ readSrc(curInst.rOp2));
                 return;
             case "slt":
-                registerWrite(curInst.dest, readSrc(curInst.op1) < readSrc(curInst.op2) ? 1 : 0);
+                registerWrite(curInst.rDest, readSrc(curInst.rOp1) < readSrc(curInst.rOp2) ? 1 : 0);
                 return;
             case "sgt":
-                registerWrite(curInst.dest, readSrc(curInst.op1) > readSrc(curInst.op2) ? 1 : 0);
+                registerWrite(curInst.rDest, readSrc(curInst.rOp1) > readSrc(curInst.rOp2) ? 1 : 0);
                 return;
             case "sle":
-                registerWrite(curInst.dest, readSrc(curInst.op1) <= readSrc(curInst.op2) ? 1 : 0);
+                registerWrite(curInst.rDest, readSrc(curInst.rOp1) <= readSrc(curInst.rOp2) ? 1 : 0);
                 return;
             case "sge":
-                registerWrite(curInst.dest, readSrc(curInst.op1) >= readSrc(curInst.op2) ? 1 : 0);
+                registerWrite(curInst.rDest, readSrc(curInst.rOp1) >= readSrc(curInst.rOp2) ? 1 : 0);
                 return;
             case "seq":
-                registerWrite(curInst.dest, readSrc(curInst.op1) == readSrc(curInst.op2) ? 1 : 0);
+                registerWrite(curInst.rDest, readSrc(curInst.rOp1) == readSrc(curInst.rOp2) ? 1 : 0);
                 return;
             case "sne":
-                registerWrite(curInst.dest, readSrc(curInst.op1) != readSrc(curInst.op2) ? 1 : 0);
+                registerWrite(curInst.rDest, readSrc(curInst.rOp1) != readSrc(curInst.rOp2) ? 1 : 0);
                 return;
 
             default:
@@ -603,43 +741,509 @@ public class IRInterpreter {
         }
     }
 
+    // builtins write their result only if the call has a destination
+    private void callBuiltin(Instruction inst) throws RuntimeError {
+        long[] args = new long[inst.rArgs.length];
+        for (int i = 0; i < args.length; ++i) args[i] = readSrc(inst.rArgs[i]);
+        long res = runBuiltin(inst.builtin, args);
+        if (inst.dest != null) registerWrite(inst.rDest, res);
+    }
+
+    private long runBuiltin(int builtin, long[] args) {
+        switch (builtin) {
+            case BUILTIN_STRING_LENGTH: {
+                String str = stringObjects.get(args[0]);
+                return str.length();
+            }
+            case BUILTIN_STRING_SUBSTRING: {
+                String str = stringObjects.get(args[0]);
+                long left = args[1];
+                long right = args[2];
+                String resStr = str.substring((int) left, (int) right);
+                stringObjects.put(staticStringCnt, resStr);
+                return staticStringCnt++;
+            }
+            case BUILTIN_STRING_PARSE_INT: {
+                String str = stringObjects.get(args[0]);
+                char[] charArray = str.toCharArray();
+                long result = 0;
+                for (char ch : charArray) {
+                    if (ch < '0' || ch > '9') break;
+                    result = result * 10 + ch - '0';
+                }
+                return result;
+            }
+            case BUILTIN_STRING_ORD: {
+                String str = stringObjects.get(args[0]);
+                long pos = args[1];
+                return (int) str.charAt((int) pos);
+            }
+            case BUILTIN_STRING_ADD: {
+                String str1 = stringObjects.get(args[0]);
+                String str2 = stringObjects.get(args[1]);
+                String resStr = str1 + str2;
+                stringObjects.put(staticStringCnt, resStr);
+                return staticStringCnt++;
+            }
+            case BUILTIN_STRING_LT: {
+                String str1 = stringObjects.get(args[0]);
+                String str2 = stringObjects.get(args[1]);
+                return str1.compareTo(str2) < 0 ? 1 : 0;
+            }
+            case BUILTIN_STRING_LEQ: {
+                String str1 = stringObjects.get(args[0]);
+                String str2 = stringObjects.get(args[1]);
+                return str1.compareTo(str2) <= 0 ? 1 : 0;
+            }
+            case BUILTIN_STRING_EQ: {
+                String str1 = stringObjects.get(args[0]);
+                String str2 = stringObjects.get(args[1]);
+                return str1.compareTo(str2) == 0 ? 1 : 0;
+            }
+            case BUILTIN_STRING_GEQ: {
+                String str1 = stringObjects.get(args[0]);
+                String str2 = stringObjects.get(args[1]);
+                return str1.compareTo(str2) >= 0 ? 1 : 0;
+            }
+            case BUILTIN_STRING_GT: {
+                String str1 = stringObjects.get(args[0]);
+                String str2 = stringObjects.get(args[1]);
+                return str1.compareTo(str2) > 0 ? 1 : 0;
+            }
+            case BUILTIN_STRING_NEQ: {
+                String str1 = stringObjects.get(args[0]);
+                String str2 = stringObjects.get(args[1]);
+                return str1.compareTo(str2) != 0 ? 1 : 0;
+            }
+            case BUILTIN_PRINT: {
+                String str = stringObjects.get(args[0]);
+                data_out.print(str);
+                return 0;
+            }
+            case BUILTIN_PRINTLN: {
+                String str = stringObjects.get(args[0]);
+                data_out.print(str);
+                data_out.print('\n');
+                return 0;
+            }
+            case BUILTIN_GET_STRING: {
+                String resStr = scanner.next();
+                stringObjects.put(staticStringCnt, resStr);
+                return staticStringCnt++;
+            }
+            case BUILTIN_GET_INT: {
+                return scanner.nextInt();
+            }
+            case BUILTIN_TO_STRING: {
+                long i = args[0];
+                String resStr = String.valueOf(i);
+                stringObjects.put(staticStringCnt, resStr);
+                return staticStringCnt++;
+            }
+            default:
+                return 0;
+        }
+    }
+
     //====== Exceptions
 
-    private void runFunction(Function func) throws RuntimeError, IOException {
+    private void enterFunction(Function func) throws RuntimeError {
         curFunc = func;
         curBB = func.entry;
+        pc = 0;
         if (curBB == null) throw new RuntimeError("no entry block for function `" + func.name + "`");
+        if (profiling) ++func.calls;
+    }
+
+    // calls push the caller onto callStack and returns pop it, so this loop runs the whole call tree
+    private void runFunction(Function func) throws RuntimeError, IOException {
+        int baseDepth = callDepth;
+        enterFunction(func);
 
         while (true) {
             BasicBlock BB = curBB;
-            if (!opjump.contains(BB.instructions.get(BB.instructions.size() - 1).operator))
-                throw new RuntimeError("block " + BB.name + " has no end instruction");
-
-            // run phi nodes concurrently
-            if (!curBB.phi.isEmpty()) {
-                ++cntInst;
-                tmpRegister.clear();
-                for (PhiNode phi : curBB.phi) {
-                    curInst = phi;
-                    String regName = phi.paths.get(lastBB.name);
-                    if (regName == null) {
-                        throw new RuntimeError("this phi node has no value from incoming block `" + lastBB.name + "`");
-                    } else {
-                        long value = regName.equals("undef") ? (int) (Math.random() * Integer.MAX_VALUE) : readSrc(regName);
-                        tmpRegister.put(phi.dest, value);
+            if (pc == 0) {
+                if (!opjump.contains(BB.instructions.get(BB.instructions.size() - 1).operator))
+                    throw new RuntimeError("block " + BB.name + " has no end instruction");
+                if (profiling) ++BB.count;
+
+                // run phi nodes concurrently
+                if (!curBB.phi.isEmpty()) runPhi();
+            }
+
+            curInst = BB.instructions.get(pc++);
+            runInstruction();
+            if (ret) {
+                ret = false;
+                if (callDepth == baseDepth) return;
+                releaseFrame(curFunc, frame);
+                frame = popFrame();
+                curFunc = frame.func;
+                curBB = frame.BB;
+                lastBB = frame.prevBB;
+                pc = frame.pc;
+                curInst = curBB.instructions.get(pc - 1);
+                if (curInst.dest != null) registerWrite(curInst.rDest, retValue);
+            }
+        }
+    }
+
+    private void runPhi() throws RuntimeError {
+        ++cntInst;
+        int phiCnt = curBB.phi.size();
+        if (phiBuffer.length < phiCnt) phiBuffer = new long[phiCnt];
+        for (int i = 0; i < phiCnt; ++i) {
+            PhiNode phi = curBB.phi.get(i);
+            curInst = phi;
+            if (profiling) ++phi.count;
+            Operand src = phi.incoming.get(lastBB);
+            if (src == null) {
+                throw new RuntimeError("this phi node has no value from incoming block `" + lastBB.name + "`");
+            } else {
+                phiBuffer[i] = readSrc(src);
+            }
+        }
+        for (int i = 0; i < phiCnt; ++i) {
+            curInst = curBB.phi.get(i);
+            registerWrite(curInst.rDest, phiBuffer[i]);
+        }
+    }
+
+    private void pushFrame(Frame caller) {
+        if (callDepth == callStack.length) callStack = Arrays.copyOf(callStack, callDepth * 2);
+        callStack[callDepth++] = caller;
+    }
+
+    private Frame popFrame() {
+        Frame caller = callStack[--callDepth];
+        callStack[callDepth] = null;
+        return caller;
+    }
+
+    //====== compiled engine, dispatches on integer opcodes and follows pre-linked blocks
+
+    // like runFunction, calls into interpreted functions push the caller onto callStack instead of recursing
+    private void runFunctionCompiled(Function func) throws RuntimeError {
+        int baseDepth = callDepth;
+        BasicBlock BB = func.entry;
+        BasicBlock prevBB = null;
+        int pc = 0;
+        if (BB == null) throw new RuntimeError("no entry block for function `" + func.name + "`");
+        if (profiling) ++func.calls;
+
+        dispatch:
+        while (true) {
+            execute:
+            {
+                if (pc == 0) {
+                    if (!BB.hasEnd) throw new RuntimeError("block " + BB.name + " has no end instruction");
+                    if (profiling) ++BB.count;
+
+                    // run phi nodes concurrently
+                    PhiNode[] phis = BB.phiNodes;
+                    if (phis.length != 0) {
+                        ++cntInst;
+                        if (phiBuffer.length < phis.length) phiBuffer = new long[phis.length];
+                        for (int i = 0; i < phis.length; ++i) {
+                            PhiNode phi = phis[i];
+                            curInst = phi;
+                            if (profiling) ++phi.count;
+                            Operand src = null;
+                            for (int j = 0; j < phi.incomingBlocks.length; ++j)
+                                if (phi.incomingBlocks[j] == prevBB) {
+                                    src = phi.incomingOperands[j];
+                                    break;
+                                }
+                            if (src == null)
+                                throw new RuntimeError("this phi node has no value from incoming block `" + prevBB.name + "`");
+                            phiBuffer[i] = readSrc(src);
+                        }
+                        for (int i = 0; i < phis.length; ++i) {
+                            curInst = phis[i];
+                            registerWrite(curInst.rDest, phiBuffer[i]);
+                        }
+                    }
+
+                    // a hot loop continues in the JIT tier from here on
+                    if (jitThreshold >= 0 && jitDepth < JIT_MAX_DEPTH && prevBB != null && BB.index <= prevBB.index
+                            && ++func.hotness >= jitThreshold && tryJit(func)) {
+                        retValue = invokeJit(func, frame.values, BB.index);
+                        break execute;
                     }
                 }
-                for (Map.Entry<String, Long> e : tmpRegister.entrySet()) {
-                    registerWrite(e.getKey(), e.getValue());
+
+                Instruction[] code = BB.code;
+                while (true) {
+                    Instruction inst = code[pc++];
+                    curInst = inst;
+                    if (++cntInst >= instLimit) throw new RuntimeError("instruction limit exceeded");
+                    switch (inst.opcode) {
+                        case OP_LEA: {
+                            long base = inst.rOp1 == null ? 0 : readSrc(inst.rOp1);
+                            long index = inst.rOp2 == null ? 0 : readSrc(inst.rOp2);
+                            registerWrite(inst.rDest, base + index * inst.scale + inst.offset);
+                            break;
+                        }
+                        case OP_LOAD: {
+                            long base = inst.rOp1 == null ? 0 : readSrc(inst.rOp1);
+                            long index = inst.rOp2 == null ? 0 : readSrc(inst.rOp2);
+                            registerWrite(inst.rDest, memoryRead(base + index * inst.scale + inst.offset));
+                            break;
+                        }
+                        case OP_STORE: {
+                            long base = inst.rOp1 == null ? 0 : readSrc(inst.rOp1);
+                            long index = inst.rOp2 == null ? 0 : readSrc(inst.rOp2);
+                            memoryWrite(base + index * inst.scale + inst.offset, readSrc(inst.rDest));
+                            break;
+                        }
+                        case OP_ALLOC: {
+                            long size = readSrc(inst.rOp1);
+                            registerWrite(inst.rDest, heapTop);
+                            memory.allocate(heapTop, size);
+                            heapTop += size;
+                            heapTop += (int) (Math.random() * 4096);
+                            break;
+                        }
+                        case OP_DIV: {
+                            long src2 = readSrc(inst.rOp2);
+                            if (src2 == 0) throw new RuntimeError("divide by zero");
+                            registerWrite(inst.rDest, readSrc(inst.rOp1) / src2);
+                            break;
+                        }
+                        case OP_MOD: {
+                            long src2 = readSrc(inst.rOp2);
+                            if (src2 == 0) throw new RuntimeError("mod by zero");
+                            registerWrite(inst.rDest, readSrc(inst.rOp1) % src2);
+                            break;
+                        }
+                        case OP_MOVE:
+                            registerWrite(inst.rDest, readSrc(inst.rOp1));
+                            break;
+                        case OP_NEG:
+                            registerWrite(inst.rDest, -readSrc(inst.rOp1));
+                            break;
+                        case OP_NOT:
+                            registerWrite(inst.rDest, ~readSrc(inst.rOp1));
+                            break;
+                        case OP_ADD:
+                            registerWrite(inst.rDest, readSrc(inst.rOp1) + readSrc(inst.rOp2));
+                            break;
+                        case OP_SUB:
+                            registerWrite(inst.rDest, readSrc(inst.rOp1) - readSrc(inst.rOp2));
+                            break;
+                        case OP_MUL:
+                            registerWrite(inst.rDest, readSrc(inst.rOp1) * readSrc(inst.rOp2));
+                            break;
+                        case OP_SHL:
+                            registerWrite(inst.rDest, readSrc(inst.rOp1) << readSrc(inst.rOp2));
+                            break;
+                        case OP_SHR:
+                            registerWrite(inst.rDest, readSrc(inst.rOp1) >> readSrc(inst.rOp2));
+                            break;
+                        case OP_AND:
+                            registerWrite(inst.rDest, readSrc(inst.rOp1) & readSrc(inst.rOp2));
+                            break;
+                        case OP_OR:
+                            registerWrite(inst.rDest, readSrc(inst.rOp1) | readSrc(inst.rOp2));
+                            break;
+                        case OP_XOR:
+                            registerWrite(inst.rDest, readSrc(inst.rOp1) ^ readSrc(inst.rOp2));
+                            break;
+                        case OP_SLT:
+                            registerWrite(inst.rDest, readSrc(inst.rOp1) < readSrc(inst.rOp2) ? 1 : 0);
+                            break;
+                        case OP_SGT:
+                            registerWrite(inst.rDest, readSrc(inst.rOp1) > readSrc(inst.rOp2) ? 1 : 0);
+                            break;
+                        case OP_SLE:
+                            registerWrite(inst.rDest, readSrc(inst.rOp1) <= readSrc(inst.rOp2) ? 1 : 0);
+                            break;
+                        case OP_SGE:
+                            registerWrite(inst.rDest, readSrc(inst.rOp1) >= readSrc(inst.rOp2) ? 1 : 0);
+                            break;
+                        case OP_SEQ:
+                            registerWrite(inst.rDest, readSrc(inst.rOp1) == readSrc(inst.rOp2) ? 1 : 0);
+                            break;
+                        case OP_SNE:
+                            registerWrite(inst.rDest, readSrc(inst.rOp1) != readSrc(inst.rOp2) ? 1 : 0);
+                            break;
+                        case OP_RET:
+                            if (inst.rOp1 != null) retValue = readSrc(inst.rOp1);
+                            break execute;
+                        case OP_BR:
+                            prevBB = BB;
+                            if (readSrc(inst.rDest) == 0) {
+                                if (profiling) ++BB.edgeCount[1];
+                                BB = linkedTarget(func, inst.target2, inst.op2);
+                            } else {
+                                if (profiling) ++BB.edgeCount[0];
+                                BB = linkedTarget(func, inst.target1, inst.op1);
+                            }
+                            pc = 0;
+                            continue dispatch;
+                        case OP_JUMP:
+                            if (profiling) ++BB.edgeCount[0];
+                            prevBB = BB;
+                            BB = linkedTarget(func, inst.target1, inst.op1);
+                            pc = 0;
+                            continue dispatch;
+                        case OP_CALL: {
+                            if (profiling) ++inst.count;
+                            if (inst.builtin != NOT_BUILTIN) {
+                                callBuiltin(inst);
+                                break;
+                            }
+                            Function callee = inst.callee;
+                            Frame calleeFrame = newCalleeFrame(callee);
+                            if (jitThreshold >= 0 && jitDepth < JIT_MAX_DEPTH
+                                    && (callee.jitCode != null || ++callee.hotness >= jitThreshold && tryJit(callee))) {
+                                long res = invokeFunction(callee, calleeFrame);
+                                curInst = inst;
+                                if (inst.dest != null) registerWrite(inst.rDest, res);
+                                break;
+                            }
+                            frame.func = func;
+                            frame.BB = BB;
+                            frame.prevBB = prevBB;
+                            frame.pc = pc;
+                            pushFrame(frame);
+                            frame = calleeFrame;
+                            func = callee;
+                            BB = callee.entry;
+                            prevBB = null;
+                            pc = 0;
+                            if (BB == null) throw new RuntimeError("no entry block for function `" + func.name + "`");
+                            if (profiling) ++func.calls;
+                            continue dispatch;
+                        }
+                        default:
+                            throw new RuntimeError("unknown operation `" + inst.operator + "`");
+                    }
                 }
             }
 
-            for (Instruction inst : BB.instructions) {
-                curInst = inst;
-                runInstruction();
-                if (ret) return;
-                if (curBB != BB) break; // jumped
+            // `func` has returned, resume its caller right after the call
+            if (callDepth == baseDepth) return;
+            releaseFrame(func, frame);
+            frame = popFrame();
+            func = frame.func;
+            BB = frame.BB;
+            prevBB = frame.prevBB;
+            pc = frame.pc;
+            Instruction call = BB.code[pc - 1];
+            curInst = call;
+            if (call.dest != null) registerWrite(call.rDest, retValue);
+        }
+    }
+
+    private long invokeFunction(Function callee, Frame calleeFrame) throws RuntimeError {
+        if (jitThreshold >= 0 && callee.jitCode == null && ++callee.hotness >= jitThreshold) tryJit(callee);
+        Frame bakFrame = frame;
+        frame = calleeFrame;
+        if (callee.jitCode != null && jitDepth < JIT_MAX_DEPTH) retValue = invokeJit(callee, calleeFrame.values, -1);
+        else runFunctionCompiled(callee);
+        releaseFrame(callee, calleeFrame);
+        frame = bakFrame;
+        return retValue;
+    }
+
+    private BasicBlock linkedTarget(Function func, BasicBlock target, String name) throws RuntimeError {
+        if (target == null)
+            throw new RuntimeError("cannot resolve block `" + name + "` in function `" + func.name + "`");
+        return target;
+    }
+
+    //====== JIT tier, hot functions are translated into JVM bytecode by JitCompiler
+
+    private boolean tryJit(Function func) {
+        if (func.jitCode == null && !func.jitFailed) {
+            func.jitCode = JitCompiler.compile(func);
+            func.jitFailed = func.jitCode == null;
+        }
+        return func.jitCode != null;
+    }
+
+    private long invokeJit(Function func, long[] values, int entry) throws RuntimeError {
+        curInst = null; // translated code does not keep track of the current instruction
+        ++jitDepth;
+        try {
+            return func.jitCode.invoke(jitRuntime, values, entry);
+        } catch (RuntimeError e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            --jitDepth;
+        }
+    }
+
+    private class InterpreterRuntime implements JitRuntime {
+        @Override
+        public void tick(int instructions) throws RuntimeError {
+            cntInst += instructions;
+            if (cntInst >= instLimit) throw new RuntimeError("instruction limit exceeded");
+        }
+
+        @Override
+        public long load(long addr) throws RuntimeError {
+            return memoryRead(addr);
+        }
+
+        @Override
+        public void store(long addr, long value) throws RuntimeError {
+            memoryWrite(addr, value);
+        }
+
+        @Override
+        public long alloc(long size) {
+            long res = heapTop;
+            memory.allocate(heapTop, size);
+            heapTop += size;
+            heapTop += (int) (Math.random() * 4096);
+            return res;
+        }
+
+        @Override
+        public long div(long src1, long src2) throws RuntimeError {
+            if (src2 == 0) throw new RuntimeError("divide by zero");
+            return src1 / src2;
+        }
+
+        @Override
+        public long mod(long src1, long src2) throws RuntimeError {
+            if (src2 == 0) throw new RuntimeError("mod by zero");
+            return src1 % src2;
+        }
+
+        @Override
+        public long readGlobal(int index) throws RuntimeError {
+            Register reg = globalTable[index];
+            if (!reg.defined) throw new RuntimeError("global register haven't been defined yet");
+            return reg.value;
+        }
+
+        @Override
+        public void writeGlobal(int index, long value) {
+            Register reg = globalTable[index];
+            reg.value = value;
+            reg.timestamp = cntInst;
+            reg.defined = true;
+        }
+
+        @Override
+        public long call(int index, long[] args) throws RuntimeError {
+            Function callee = functionTable[index];
+            Frame calleeFrame = newFrame(callee);
+            for (int i = 0; i < args.length; ++i) {
+                calleeFrame.values[callee.argSlots[i]] = args[i];
+                calleeFrame.defined[callee.argSlots[i]] = true;
             }
+            return invokeFunction(callee, calleeFrame);
+        }
+
+        @Override
+        public long callBuiltin(int builtin, long[] args) {
+            return runBuiltin(builtin, args);
         }
     }
 
@@ -650,8 +1254,12 @@ public class IRInterpreter {
             if (!isReady) throw new RuntimeException("not ready");
             Function init = functions.get("__init");
             if (init == null) throw new RuntimeError("cannot find `__init` function");
-            registers = new HashMap<>();
-            runFunction(init);
+            frame = newFrame(init);
+            long startTime = System.nanoTime();
+            if (profiling) jitThreshold = -1;
+            if (useCompiledEngine || jitThreshold >= 0) runFunctionCompiled(init);
+            else runFunction(init);
+            elapsedTime = System.nanoTime() - startTime;
             exitcode = retValue;
             exception = false;
         } catch (RuntimeError e) {
@@ -662,15 +1270,74 @@ public class IRInterpreter {
         } catch (IOException e) {
             e.printStackTrace();
         }
+        if (profiling) writeProfile();
         System.err.println("exitcode:  " + exitcode);
         System.err.println("exception: " + retValue);
+        if (elapsedTime > 0)
+            System.err.printf("instructions: %d (%.0f inst/s, %s engine)%n", cntInst,
+                    cntInst / (elapsedTime / 1e9), jitThreshold >= 0 ? "jit" : useCompiledEngine ? "compiled" : "baseline");
         isReady = false;
     }
 
+    // count blocks, edges, call sites and phi nodes, write them to `path` and rank the hot spots on stderr at exit
+    // the JIT tier is turned off while profiling
+    public void setProfileOutput(String path) {
+        this.profiling = path != null;
+        this.profilePath = path;
+    }
+
+    public Profile getProfile() {
+        Profile profile = new Profile();
+        for (Function func : functionTable) {
+            if (func.calls == 0) continue;
+            Profile.FunctionProfile res = profile.addFunction(func.name);
+            res.calls = func.calls;
+            for (BasicBlock BB : func.blockList) {
+                if (BB.count == 0) continue;
+                // blocks run from the first instruction to the terminator, phi nodes count as one instruction
+                res.addBlock(BB.name, BB.count, BB.count * (BB.code.length + (BB.phiNodes.length != 0 ? 1 : 0)));
+                Instruction end = BB.code[BB.code.length - 1];
+                if (end.opcode == OP_BR || end.opcode == OP_JUMP) res.addEdge(BB.name, end.op1, BB.edgeCount[0]);
+                if (end.opcode == OP_BR) res.addEdge(BB.name, end.op2, BB.edgeCount[1]);
+                for (int i = 0; i < BB.code.length; ++i)
+                    if (BB.code[i].opcode == OP_CALL && BB.code[i].count != 0)
+                        res.addCallSite(BB.name, i, BB.code[i].op1, BB.code[i].count);
+                for (PhiNode phi : BB.phiNodes)
+                    if (phi.count != 0) res.addPhi(BB.name, phi.dest, phi.count);
+            }
+        }
+        return profile;
+    }
+
+    private void writeProfile() {
+        Profile profile = getProfile();
+        try (PrintStream out = new PrintStream(new FileOutputStream(profilePath))) {
+            profile.write(out);
+        } catch (IOException e) {
+            System.err.println("cannot write profile to `" + profilePath + "`: " + e.getMessage());
+        }
+        profile.report(System.err, 10);
+    }
+
     public void setInstructionLimit(int instLimit) {
         this.instLimit = instLimit;
     }
 
+    // choose the opcode-dispatch engine instead of the baseline one, both give the same results
+    public void setCompiledEngine(boolean useCompiledEngine) {
+        this.useCompiledEngine = useCompiledEngine;
+    }
+
+    // translate functions into JVM bytecode once they are called or loop `jitThreshold` times, negative disables it
+    // the compiled engine runs everything that is not translated
+    public void setJitThreshold(int jitThreshold) {
+        this.jitThreshold = jitThreshold;
+    }
+
+    public long getInstructionCount() {
+        return cntInst;
+    }
+
     public boolean isReady() {
         return isReady;
     }
@@ -683,7 +1350,7 @@ public class IRInterpreter {
         return exception;
     }
 
-    private static class Instruction {
+    static class Instruction {
         String operator;
         String dest;        // used as `cond` for `br`
         String op1;
@@ -692,12 +1359,30 @@ public class IRInterpreter {
         long offset;         // for `load` / `store`
         List<String> args;  // for `call` / `phi`
 
+        // resolved operands, `rDest` is the source `cond` for `br` and the source value for `store`
+        Operand rDest;
+        Operand rOp1;
+        Operand rOp2;
+        Operand[] rArgs;
+        Function callee;
+        int builtin;
+
+        // pre-linked fields for the compiled engine
+        int opcode;
+        BasicBlock target1;
+        BasicBlock target2;
+
+        long count;         // profiled executions of calls and phi nodes
+
         int lineno;
         String text;
     }
 
-    private static class PhiNode extends Instruction {
+    static class PhiNode extends Instruction {
         HashMap<String, String> paths = new HashMap<>();
+        Map<BasicBlock, Operand> incoming = new IdentityHashMap<>();
+        BasicBlock[] incomingBlocks;
+        Operand[] incomingOperands;
 
         PhiNode(Instruction inst) {
             this.operator = inst.operator;
@@ -712,23 +1397,76 @@ public class IRInterpreter {
         }
     }
 
-    private static class BasicBlock {
+    static class BasicBlock {
         String name;
         List<Instruction> instructions = new ArrayList<>();
         List<PhiNode> phi = new ArrayList<>();
+
+        int index;
+        Instruction[] code;
+        PhiNode[] phiNodes;
+        boolean hasEnd;
+
+        // profiled executions, and of the edges to target1 / target2 of the terminator
+        long count;
+        long[] edgeCount = new long[2];
     }
 
-    private static class Function {
+    static class Function {
         boolean hasReturnValue;
         String name;
         BasicBlock entry;
         List<String> args;
         Map<String, BasicBlock> blocks = new HashMap<>();
+        List<BasicBlock> blockList = new ArrayList<>();   // in order of appearance
+        int index;
+
+        Map<String, Integer> slots = new HashMap<>(); // register numbering, dropped after resolving
+        int registerCnt;
+        int[] argSlots;
+        List<Frame> pool = new ArrayList<>();
+
+        // JIT tier
+        int hotness;
+        JitFunction jitCode;
+        boolean jitFailed;
+
+        long calls;
     }
 
-    private static class Register {
+    static class Register {
         long value;
-        int timestamp;
+        long timestamp;
+        boolean defined;
+        int index;
+    }
+
+    static class Operand {
+        static final int LOCAL = 0;
+        static final int IMMEDIATE = 1;
+        static final int GLOBAL = 2;
+        static final int UNDEF = 3;
+
+        int kind;
+        String name;
+        int slot;           // for local registers
+        long value;         // for immediates
+        Register global;    // for global registers
+    }
+
+    static class Frame {
+        long[] values;
+        boolean[] defined;
+        // where to resume once the callee returns, set while the frame waits on callStack
+        Function func;
+        BasicBlock BB;
+        BasicBlock prevBB;
+        int pc;
+
+        Frame(int size) {
+            values = new long[size];
+            defined = new boolean[size];
+        }
     }
 
     private class SemanticError extends Exception {
@@ -33,6 +33,31 @@ public class IRInterpreter_codegen {
     private final Set<String> opjump = new HashSet<>(Arrays.asList(
             "br", "jump", "ret"
     ));
+    // the physical register file, `regs[i]` is `registerNames[i]`
+    static private final String[] registerNames = {
+            "%rax", "%rbx", "%rcx", "%rdx", "%rsp", "%rbp", "%rdi", "%rsi",
+            "%r8", "%r9", "%r10", "%r11", "%r12", "%r13", "%r14", "%r15"
+    };
+    static private final int RAX = 0;
+    static private final int RDX = 3;
+    static private final int RSP = 4;
+    static private final int RBP = 5;
+    static private final Map<String, Integer> registerIndex = new HashMap<>();
+    // `cmp` sets one bit of the flags word per condition that `br` can test
+    static private final String[] conditionNames = {"slt", "sle", "seq", "sge", "sgt", "sne"};
+    static private final int FLAG_SLT = 1;
+    static private final int FLAG_SLE = 2;
+    static private final int FLAG_SEQ = 4;
+    static private final int FLAG_SGE = 8;
+    static private final int FLAG_SGT = 16;
+    static private final int FLAG_SNE = 32;
+    // the stack grows down from STACK_TOP, stack[i] holds the 8 bytes at STACK_TOP - 8 * (i + 1)
+    static private final long STACK_TOP = 1L << 31;
+
+    static {
+        for (int i = 0; i < registerNames.length; ++i) registerIndex.put(registerNames[i], i);
+    }
+
     private Map<String, Function> functions = new HashMap<>();
     private BasicBlock curBB = null;
     private Function curFunc = null;
@@ -44,17 +69,17 @@ public class IRInterpreter_codegen {
     private String line;
     private BufferedReader br;
     private boolean allowPhi;
-    private Map<String, Register> registers = new HashMap<>();
     private Map<String, Register> globalRegisters = new HashMap<>();
-    private Map<String, Long> tmpRegister = new HashMap<>(); // for phi node
-    private Map<Long, Byte> memory = new HashMap<>();
-    private Map<Long, Byte> stackMemory = new HashMap<>();
-    private Map<String, Boolean> cmpResult = new HashMap<>();
+    private long[] phiBuffer = new long[16]; // for phi node
+    private PagedMemory memory = new PagedMemory();
+    private long[] regs = new long[registerNames.length];
+    private long[] stack = new long[1 << 12];
+    private int flags = 0;
 
     private long heapTop = (int) (Math.random() * 4096);
     private long retValue;
     private boolean ret;
-    private int cntInst = 0;
+    private long cntInst = 0;
     private BasicBlock lastBB = null;
     private long staticStringCnt = 0;
     //====== SSA check
@@ -63,7 +88,8 @@ public class IRInterpreter_codegen {
     //====== run IR
     private long exitcode = -1;
     private boolean exception = false;
-    private int instLimit = Integer.MAX_VALUE;
+    private long instLimit = Integer.MAX_VALUE;
+    private long elapsedTime = 0;
 
     private DataInputStream data_in;
     private PrintStream data_out;
@@ -74,34 +100,8 @@ public class IRInterpreter_codegen {
         this.data_in = data_in;
         this.data_out = data_out;
         this.scanner = new Scanner(data_in);
-        registers.put("%rax", new Register());
-        registers.put("%rbx", new Register());
-        registers.put("%rcx", new Register());
-        registers.put("%rdx", new Register());
-        registers.put("%rsp", new Register());
-        registers.put("%rbp", new Register());
-        registers.put("%rdi", new Register());
-        registers.put("%rsi", new Register());
-        registers.put("%r8", new Register());
-        registers.put("%r9", new Register());
-        registers.put("%r10", new Register());
-        registers.put("%r11", new Register());
-        registers.put("%r12", new Register());
-        registers.put("%r13", new Register());
-        registers.put("%r14", new Register());
-        registers.put("%r15", new Register());
-
-        registers.get("%rbp").value = Integer.MAX_VALUE;
-        registers.get("%rbp").timestamp = 0;
-        registers.get("%rsp").value = Integer.MAX_VALUE;
-        registers.get("%rsp").timestamp = 0;
-
-        cmpResult.put("slt", false);
-        cmpResult.put("sle", false);
-        cmpResult.put("seq", false);
-        cmpResult.put("sge", false);
-        cmpResult.put("sgt", false);
-        cmpResult.put("sne", false);
+        regs[RBP] = STACK_TOP;
+        regs[RSP] = STACK_TOP;
 
         try {
             br = new BufferedReader(new InputStreamReader(in));
@@ -113,6 +113,7 @@ public class IRInterpreter_codegen {
                 }
             }
             br.close();
+            resolve();
             isReady = true;
         } catch (SemanticError e) {
             System.err.println("Semantic Error");
@@ -278,89 +279,173 @@ public class IRInterpreter_codegen {
             String val = StringEscapeUtils.unescapeJava(tmp);
             Register reg = new Register();
             reg.value = heapTop;
-            reg.timestamp = 0;
+            reg.defined = true;
             globalRegisters.put(name, reg);
             new StringPair(val.length(), val);
         } else {
             //other, just alloc some space on heap for convenience
             String name = line.trim();
             Register reg = new Register();
-            reg.value = 0;
-            reg.timestamp = 0;
+            reg.value = heapTop;
+            reg.defined = true;
             globalRegisters.put(name, reg);
 
             long size = 8;
-            registerWrite(name, heapTop);
-            for (int i = 0; i < size; ++i) memory.put(heapTop + i, (byte) (0));
+            memory.allocate(heapTop, size);
             heapTop += size;
             heapTop += (int) (Math.random() * 4096);
         }
     }
 
-    private int stackRead(long addr) throws RuntimeError {
-        if (addr < registerRead("%rsp")) throw new RuntimeError("stack read violation");
-        Byte data = stackMemory.get(addr);
-        if (data == null) {
-            stackMemory.put(addr, (byte) 0);
-            return 0;
-        } else return data & 0xFF;
+    //====== resolve names into register numbers, global cells, immediates, blocks and callees
+
+    private void resolve() throws SemanticError {
+        for (Function func : functions.values()) {
+            for (BasicBlock BB : func.blocks.values()) {
+                for (PhiNode phi : BB.phi) {
+                    curInst = phi;
+                    phi.rDest = resolveOperand(phi.dest);
+                    for (Map.Entry<String, String> path : phi.paths.entrySet()) {
+                        BasicBlock pred = func.blocks.get(path.getKey());
+                        if (pred != null)
+                            phi.incoming.put(pred, path.getValue().equals("undef") ? null : resolveOperand(path.getValue()));
+                    }
+                }
+                for (Instruction inst : BB.instructions) {
+                    curInst = inst;
+                    switch (inst.operator) {
+                        case "br":
+                            Integer flag = conditionFlag(inst.dest);
+                            if (flag == null) throw new SemanticError("unknown condition `" + inst.dest + "`");
+                            inst.flag = flag;
+                            inst.target1 = func.blocks.get(inst.op1);
+                            inst.target2 = func.blocks.get(inst.op2);
+                            break;
+                        case "jump":
+                            inst.target1 = func.blocks.get(inst.op1);
+                            break;
+                        case "call":
+                            inst.rDest = resolveOperand(inst.dest);
+                            inst.callee = functions.get(inst.op1);
+                            inst.rArgs = new Operand[inst.args.size()];
+                            for (int i = 0; i < inst.rArgs.length; ++i) inst.rArgs[i] = resolveOperand(inst.args.get(i));
+                            break;
+                        default:
+                            inst.rDest = resolveOperand(inst.dest);
+                            inst.rOp1 = resolveOperand(inst.op1);
+                            inst.rOp2 = resolveOperand(inst.op2);
+                            // addresses based on %rbp or %rsp are on the stack
+                            inst.onStack = "%rbp".equals(inst.op1) || "%rsp".equals(inst.op1);
+                    }
+                }
+            }
+        }
+        curInst = null;
     }
 
-    private void stackWrite(long addr, Byte value) throws RuntimeError {
-        if (addr < registerRead("%rsp")) throw new RuntimeError("stack write violation");
-        stackMemory.put(addr, value);
+    private Operand resolveOperand(String name) throws SemanticError {
+        if (name == null) return null;
+        Operand operand = new Operand();
+        operand.name = name;
+        if (name.startsWith("%")) {
+            Integer index = registerIndex.get(name);
+            // not a physical register, reading or writing it is an error
+            operand.kind = index == null ? Operand.UNKNOWN : Operand.REGISTER;
+            operand.reg = index == null ? -1 : index;
+        } else if (name.startsWith("@")) {
+            operand.kind = Operand.GLOBAL;
+            operand.global = globalRegisters.computeIfAbsent(name, x -> new Register());
+        } else {
+            operand.kind = Operand.IMMEDIATE;
+            try {
+                operand.value = Long.parseLong(name);
+            } catch (NumberFormatException e) {
+                throw new SemanticError("`" + name + "` is neither a register nor an immediate");
+            }
+        }
+        return operand;
     }
 
-    private int memoryRead(long addr) throws RuntimeError {
-        Byte data = memory.get(addr);
-        if (data == null) throw new RuntimeError("memory read violation");
-        return data & 0xFF;
+    static private Integer conditionFlag(String name) {
+        for (int i = 0; i < conditionNames.length; ++i)
+            if (conditionNames[i].equals(name)) return 1 << i;
+        return null;
     }
 
-    private void memoryWrite(long addr, Byte value) throws RuntimeError {
-        if (!memory.containsKey(addr))
-            throw new RuntimeError("memory write violation");
-        memory.put(addr, value);
+    //====== memory and registers
+
+    // the stack is never freed explicitly, slots that were never written read as zero
+    private int stackSlot(long addr, String access) throws RuntimeError {
+        if (addr < regs[RSP] || addr >= STACK_TOP || ((STACK_TOP - addr) & 7) != 0)
+            throw new RuntimeError("stack " + access + " violation");
+        int slot = (int) ((STACK_TOP - addr - 8) >> 3);
+        if (slot >= stack.length) stack = Arrays.copyOf(stack, Math.max(stack.length * 2, slot + 1));
+        return slot;
     }
 
-    private long registerRead(String name) throws RuntimeError {
-        Register reg = registers.get(name);
-        if (reg == null) throw new RuntimeError("register `" + name + "` haven't been defined yet");
-        return reg.value;
+    // objects in the stack frame are reached through other registers too, the heap never grows up to the stack
+    private boolean onStack(long addr) {
+        return addr >= regs[RSP] && addr < STACK_TOP;
     }
 
-    private long globalRegistersRead(String name) throws RuntimeError {
-        Register reg = globalRegisters.get(name);
-        if (reg == null) throw new RuntimeError("global register `" + name + "` haven't been defined yet");
-        return reg.value;
+    private long stackRead(long addr) throws RuntimeError {
+        int slot = stackSlot(addr, "read");
+        return stack[slot];
     }
 
-    private void registerWrite(String name, long value) throws RuntimeError {
-        if (!name.startsWith("@") && !name.startsWith("%")) throw new RuntimeError("not a register");
-        if (name.startsWith("@")) {
-            Register reg = globalRegisters.get(name);
-            if (reg == null) {
-                reg = new Register();
-                globalRegisters.put(name, reg);
-            }
-            reg.value = value;
-            reg.timestamp = cntInst;
-        } else {
-            Register reg = registers.get(name);
-            if (reg == null) throw new RuntimeError("not a legal register");
-            reg.value = value;
-            reg.timestamp = cntInst;
+    private void stackWrite(long addr, long value) throws RuntimeError {
+        int slot = stackSlot(addr, "write");
+        stack[slot] = value;
+    }
+
+    private int memoryReadByte(long addr) throws RuntimeError {
+        if (!memory.isValid(addr, 1)) throw new RuntimeError("memory read violation");
+        return memory.readByte(addr);
+    }
+
+    private long memoryRead(long addr) throws RuntimeError {
+        if (!memory.isValid(addr, 8)) throw new RuntimeError("memory read violation");
+        return memory.readLong(addr);
+    }
+
+    private void memoryWrite(long addr, long value) throws RuntimeError {
+        if (!memory.isValid(addr, 8))
+            throw new RuntimeError("memory write violation");
+        memory.writeLong(addr, value);
+    }
+
+    private long readSrc(Operand operand) throws RuntimeError {
+        switch (operand.kind) {
+            case Operand.REGISTER:
+                return regs[operand.reg];
+            case Operand.IMMEDIATE:
+                return operand.value;
+            case Operand.GLOBAL:
+                if (!operand.global.defined)
+                    throw new RuntimeError("global register `" + operand.name + "` haven't been defined yet");
+                return operand.global.value;
+            default:
+                throw new RuntimeError("register `" + operand.name + "` haven't been defined yet");
         }
     }
 
-    private long readSrc(String name) throws RuntimeError {
-        if (name.startsWith("%")) return registerRead(name);
-        else if (name.startsWith("@")) return globalRegistersRead(name);
-        else return Long.valueOf(name);
+    private void registerWrite(Operand operand, long value) throws RuntimeError {
+        switch (operand.kind) {
+            case Operand.REGISTER:
+                regs[operand.reg] = value;
+                return;
+            case Operand.GLOBAL:
+                operand.global.value = value;
+                operand.global.defined = true;
+                return;
+            case Operand.UNKNOWN:
+                throw new RuntimeError("not a legal register");
+            default:
+                throw new RuntimeError("not a register");
+        }
     }
 
-    private void jump(String name) throws RuntimeError {
-        BasicBlock BB = curFunc.blocks.get(name);
+    private void jump(BasicBlock BB, String name) throws RuntimeError {
         if (BB == null)
             throw new RuntimeError("cannot resolve block `" + name + "` in function `" + curFunc.name + "`");
         lastBB = curBB;
@@ -374,113 +459,95 @@ public class IRInterpreter_codegen {
         if (++cntInst >= instLimit) throw new RuntimeError("instruction limit exceeded");
         switch (curInst.operator) {
             case "pop":
-                long addr_pop = registerRead("%rsp");
-                long res_pop = 0;
-                for (int i = 0; i < 8; ++i) res_pop = (res_pop << 8) | stackRead(addr_pop + i);
-                registerWrite(curInst.op1, res_pop);
-                registerWrite("%rsp", registerRead("%rsp") + 8);
+                registerWrite(curInst.rOp1, stackRead(regs[RSP]));
+                regs[RSP] += 8;
                 return;
 
             case "push":
-                registerWrite("%rsp", registerRead("%rsp") - 8);
-                long addr_push = registerRead("%rsp");
-                long data_push = readSrc(curInst.op1);
-                for (long i = 8 - 1; i >= 0; --i) {
-                    stackWrite(addr_push + i, (byte) (data_push & 0xFF));
-                    data_push >>= 8;
-                }
+                regs[RSP] -= 8;
+                stackWrite(regs[RSP], readSrc(curInst.rOp1));
                 return;
 
             case "cmp":
-                long op1 = readSrc(curInst.op1);
-                long op2 = readSrc(curInst.op2);
-                cmpResult.put("slt", op1 < op2);
-                cmpResult.put("sle", op1 <= op2);
-                cmpResult.put("seq", op1 == op2);
-                cmpResult.put("sge", op1 >= op2);
-                cmpResult.put("sgt", op1 > op2);
-                cmpResult.put("sne", op1 != op2);
+                long op1 = readSrc(curInst.rOp1);
+                long op2 = readSrc(curInst.rOp2);
+                flags = (op1 < op2 ? FLAG_SLT | FLAG_SLE | FLAG_SNE : op1 == op2 ? FLAG_SLE | FLAG_SEQ | FLAG_SGE : FLAG_SGE | FLAG_SGT | FLAG_SNE);
                 return;
 
             case "lea":
-                long base_lea = curInst.op1 == null ? 0 : readSrc(curInst.op1);
-                long index_lea = curInst.op2 == null ? 0 : readSrc(curInst.op2);
-                registerWrite(curInst.dest, base_lea + index_lea * curInst.scale + curInst.offset);
+                long base_lea = curInst.rOp1 == null ? 0 : readSrc(curInst.rOp1);
+                long index_lea = curInst.rOp2 == null ? 0 : readSrc(curInst.rOp2);
+                registerWrite(curInst.rDest, base_lea + index_lea * curInst.scale + curInst.offset);
                 return;
 
             case "load":
-                long base_load = curInst.op1 == null ? 0 : readSrc(curInst.op1);
-                long index_load = curInst.op2 == null ? 0 : readSrc(curInst.op2);
+                long base_load = curInst.rOp1 == null ? 0 : readSrc(curInst.rOp1);
+                long index_load = curInst.rOp2 == null ? 0 : readSrc(curInst.rOp2);
                 long addr_load = base_load + index_load * curInst.scale + curInst.offset;
-                long res = 0;
-                if (curInst.op1.equals("%rbp") || curInst.op1.equals("%rsp")) {
-                    for (int i = 0; i < 8; ++i) res = (res << 8) | stackRead(addr_load + i);
+                long res;
+                if (curInst.onStack || onStack(addr_load)) {
+                    res = stackRead(addr_load);
                 } else {
-                    for (int i = 0; i < 8; ++i) res = (res << 8) | memoryRead(addr_load + i);
+                    res = memoryRead(addr_load);
                 }
-                registerWrite(curInst.dest, res);
+                registerWrite(curInst.rDest, res);
                 return;
 
             case "store":
-                long base_store = curInst.op1 == null ? 0 : readSrc(curInst.op1);
-                long index_store = curInst.op2 == null ? 0 : readSrc(curInst.op2);
+                long base_store = curInst.rOp1 == null ? 0 : readSrc(curInst.rOp1);
+                long index_store = curInst.rOp2 == null ? 0 : readSrc(curInst.rOp2);
                 long addr_store = base_store + index_store * curInst.scale + curInst.offset;
-                long data = readSrc(curInst.dest);
-                if (curInst.op1.equals("%rbp") || curInst.op1.equals("%rsp")) {
-                    for (long i = 8 - 1; i >= 0; --i) {
-                        stackWrite(addr_store + i, (byte) (data & 0xFF));
-                        data >>= 8;
-                    }
+                long data = readSrc(curInst.rDest);
+                if (curInst.onStack || onStack(addr_store)) {
+                    stackWrite(addr_store, data);
                 } else {
-                    for (long i = 8 - 1; i >= 0; --i) {
-                        memoryWrite(addr_store + i, (byte) (data & 0xFF));
-                        data >>= 8;
-                    }
+                    memoryWrite(addr_store, data);
                 }
                 return;
 
             case "alloc":
-                long size = readSrc(curInst.op1);
-                registerWrite(curInst.dest, heapTop);
-                for (int i = 0; i < size; ++i) memory.put(heapTop + i, (byte) (0));
+                long size = readSrc(curInst.rOp1);
+                registerWrite(curInst.rDest, heapTop);
+                memory.allocate(heapTop, size);
                 heapTop += size;
                 heapTop += (int) (Math.random() * 4096);
                 return;
 
             case "ret":
-                if (curInst.op1 != null) retValue = readSrc(curInst.op1);
+                if (curInst.rOp1 != null) retValue = readSrc(curInst.rOp1);
                 ret = true;
                 return;
 
             case "br":
-                jump(cmpResult.get(curInst.dest) ? curInst.op1 : curInst.op2);
+                if ((flags & curInst.flag) != 0) jump(curInst.target1, curInst.op1);
+                else jump(curInst.target2, curInst.op2);
                 return;
 
             case "jump":
-                jump(curInst.op1);
+                jump(curInst.target1, curInst.op1);
                 return;
 
             case "call":
-                Function func = functions.get(curInst.op1);
+                Function func = curInst.callee;
                 switch (curInst.op1) {
                     case "string.length": {
-                        StringPair stringPair = new StringPair(readSrc(curInst.args.get(0)));
+                        StringPair stringPair = new StringPair(readSrc(curInst.rArgs[0]));
                         String str = stringPair.val;
-                        registerWrite(curInst.dest, str.length());
+                        registerWrite(curInst.rDest, str.length());
                         return;
                     }
                     case "string.substring": {
-                        StringPair stringPair = new StringPair(readSrc(curInst.args.get(0)));
+                        StringPair stringPair = new StringPair(readSrc(curInst.rArgs[0]));
                         String str = stringPair.val;
-                        long left = readSrc(curInst.args.get(1));
-                        long right = readSrc(curInst.args.get(2));
+                        long left = readSrc(curInst.rArgs[1]);
+                        long right = readSrc(curInst.rArgs[2]);
                         String resStr = str.substring((int) left, (int) right);
-                        registerWrite(curInst.dest, heapTop);
+                        registerWrite(curInst.rDest, heapTop);
                         new StringPair(resStr.length(), resStr);
                         return;
                     }
                     case "string.parseInt": {
-                        StringPair stringPair = new StringPair(readSrc(curInst.args.get(0)));
+                        StringPair stringPair = new StringPair(readSrc(curInst.rArgs[0]));
                         String str = stringPair.val;
                         char[] charArray = str.toCharArray();
                         long result = 0;
@@ -488,82 +555,82 @@ public class IRInterpreter_codegen {
                             if (ch < '0' || ch > '9') break;
                             result = result * 10 + ch - '0';
                         }
-                        registerWrite(curInst.dest, result);
+                        registerWrite(curInst.rDest, result);
                         return;
                     }
                     case "string.ord": {
-                        StringPair stringPair = new StringPair(readSrc(curInst.args.get(0)));
+                        StringPair stringPair = new StringPair(readSrc(curInst.rArgs[0]));
                         String str = stringPair.val;
-                        long pos = readSrc(curInst.args.get(1));
-                        registerWrite(curInst.dest, (int) str.charAt((int) pos));
+                        long pos = readSrc(curInst.rArgs[1]);
+                        registerWrite(curInst.rDest, (int) str.charAt((int) pos));
                         return;
                     }
                     case "string.add": {
-                        StringPair stringPair0 = new StringPair(readSrc(curInst.args.get(0)));
-                        StringPair stringPair1 = new StringPair(readSrc(curInst.args.get(1)));
+                        StringPair stringPair0 = new StringPair(readSrc(curInst.rArgs[0]));
+                        StringPair stringPair1 = new StringPair(readSrc(curInst.rArgs[1]));
                         String str1 = stringPair0.val;
                         String str2 = stringPair1.val;
                         String resStr = str1 + str2;
-                        registerWrite(curInst.dest, heapTop);
+                        registerWrite(curInst.rDest, heapTop);
                         new StringPair(resStr.length(), resStr);
                         return;
                     }
                     case "string.lt": {
-                        StringPair stringPair0 = new StringPair(readSrc(curInst.args.get(0)));
-                        StringPair stringPair1 = new StringPair(readSrc(curInst.args.get(1)));
+                        StringPair stringPair0 = new StringPair(readSrc(curInst.rArgs[0]));
+                        StringPair stringPair1 = new StringPair(readSrc(curInst.rArgs[1]));
                         String str1 = stringPair0.val;
                         String str2 = stringPair1.val;
-                        registerWrite(curInst.dest, str1.compareTo(str2) < 0 ? 1 : 0);
+                        registerWrite(curInst.rDest, str1.compareTo(str2) < 0 ? 1 : 0);
                         return;
                     }
                     case "string.leq": {
-                        StringPair stringPair0 = new StringPair(readSrc(curInst.args.get(0)));
-                        StringPair stringPair1 = new StringPair(readSrc(curInst.args.get(1)));
+                        StringPair stringPair0 = new StringPair(readSrc(curInst.rArgs[0]));
+                        StringPair stringPair1 = new StringPair(readSrc(curInst.rArgs[1]));
                         String str1 = stringPair0.val;
                         String str2 = stringPair1.val;
-                        registerWrite(curInst.dest, str1.compareTo(str2) <= 0 ? 1 : 0);
+                        registerWrite(curInst.rDest, str1.compareTo(str2) <= 0 ? 1 : 0);
                         return;
                     }
                     case "string.eq": {
-                        StringPair stringPair0 = new StringPair(readSrc(curInst.args.get(0)));
-                        StringPair stringPair1 = new StringPair(readSrc(curInst.args.get(1)));
+                        StringPair stringPair0 = new StringPair(readSrc(curInst.rArgs[0]));
+                        StringPair stringPair1 = new StringPair(readSrc(curInst.rArgs[1]));
                         String str1 = stringPair0.val;
                         String str2 = stringPair1.val;
-                        registerWrite(curInst.dest, str1.compareTo(str2) == 0 ? 1 : 0);
+                        registerWrite(curInst.rDest, str1.compareTo(str2) == 0 ? 1 : 0);
                         return;
                     }
                     case "string.geq": {
-                        StringPair stringPair0 = new StringPair(readSrc(curInst.args.get(0)));
-                        StringPair stringPair1 = new StringPair(readSrc(curInst.args.get(1)));
+                        StringPair stringPair0 = new StringPair(readSrc(curInst.rArgs[0]));
+                        StringPair stringPair1 = new StringPair(readSrc(curInst.rArgs[1]));
                         String str1 = stringPair0.val;
                         String str2 = stringPair1.val;
-                        registerWrite(curInst.dest, str1.compareTo(str2) >= 0 ? 1 : 0);
+                        registerWrite(curInst.rDest, str1.compareTo(str2) >= 0 ? 1 : 0);
                         return;
                     }
                     case "string.gt": {
-                        StringPair stringPair0 = new StringPair(readSrc(curInst.args.get(0)));
-                        StringPair stringPair1 = new StringPair(readSrc(curInst.args.get(1)));
+                        StringPair stringPair0 = new StringPair(readSrc(curInst.rArgs[0]));
+                        StringPair stringPair1 = new StringPair(readSrc(curInst.rArgs[1]));
                         String str1 = stringPair0.val;
                         String str2 = stringPair1.val;
-                        registerWrite(curInst.dest, str1.compareTo(str2) > 0 ? 1 : 0);
+                        registerWrite(curInst.rDest, str1.compareTo(str2) > 0 ? 1 : 0);
                         return;
                     }
                     case "string.neq": {
-                        StringPair stringPair0 = new StringPair(readSrc(curInst.args.get(0)));
-                        StringPair stringPair1 = new StringPair(readSrc(curInst.args.get(1)));
+                        StringPair stringPair0 = new StringPair(readSrc(curInst.rArgs[0]));
+                        StringPair stringPair1 = new StringPair(readSrc(curInst.rArgs[1]));
                         String str1 = stringPair0.val;
                         String str2 = stringPair1.val;
-                        registerWrite(curInst.dest, str1.compareTo(str2) != 0 ? 1 : 0);
+                        registerWrite(curInst.rDest, str1.compareTo(str2) != 0 ? 1 : 0);
                         return;
                     }
                     case "print": {
-                        StringPair stringPair = new StringPair(readSrc(curInst.args.get(0)));
+                        StringPair stringPair = new StringPair(readSrc(curInst.rArgs[0]));
                         String str = stringPair.val;
                         data_out.print(str);
                         return;
                     }
                     case "println": {
-                        StringPair stringPair = new StringPair(readSrc(curInst.args.get(0)));
+                        StringPair stringPair = new StringPair(readSrc(curInst.rArgs[0]));
                         String str = stringPair.val;
                         data_out.print(str);
                         data_out.print('\n');
@@ -571,19 +638,19 @@ public class IRInterpreter_codegen {
                     }
                     case "getString": {
                         String resStr = scanner.next();
-                        registerWrite(curInst.dest, heapTop);
+                        registerWrite(curInst.rDest, heapTop);
                         new StringPair(resStr.length(), resStr);
                         return;
                     }
                     case "getInt": {
-                        registerWrite(curInst.dest, scanner.nextInt());
+                        registerWrite(curInst.rDest, scanner.nextInt());
                         //if (scanner.hasNextLine()) scanner.nextLine();
                         return;
                     }
                     case "toString": {
-                        long i = readSrc(curInst.args.get(0));
+                        long i = readSrc(curInst.rArgs[0]);
                         String resStr = String.valueOf(i);
-                        registerWrite(curInst.dest, heapTop);
+                        registerWrite(curInst.rDest, heapTop);
                         new StringPair(resStr.length(), resStr);
                         return;
                     }
@@ -596,12 +663,12 @@ public class IRInterpreter_codegen {
                 Instruction bakCurInst = curInst;
                 Function bakCurFunc = curFunc;
 
-                long rsp = registers.get("%rsp").value;
-                registers.get("%rsp").value = rsp - 8;
+                // the return address
+                long rsp = regs[RSP];
+                regs[RSP] = rsp - 8;
                 runFunction(func);
-                if (registers.get("%rsp").value != rsp - 8) throw new RuntimeError("stack frame error");
-                rsp = registers.get("%rsp").value;
-                registers.get("%rsp").value = rsp + 8;
+                if (regs[RSP] != rsp - 8) throw new RuntimeError("stack frame error");
+                regs[RSP] = rsp;
 
                 ret = false;
                 curFunc = bakCurFunc;
@@ -611,69 +678,69 @@ public class IRInterpreter_codegen {
                 return;
 
             case "div":
-                if (readSrc(curInst.op2) == 0) throw new RuntimeError("divide by zero");
-                long src1_div = readSrc(curInst.op1), src2_div = readSrc(curInst.op2);
-                registerWrite("%rax", src1_div / src2_div);
-                registerWrite("%rdx", src1_div % src2_div);
+                if (readSrc(curInst.rOp2) == 0) throw new RuntimeError("divide by zero");
+                long src1_div = readSrc(curInst.rOp1), src2_div = readSrc(curInst.rOp2);
+                regs[RAX] = src1_div / src2_div;
+                regs[RDX] = src1_div % src2_div;
                 return;
 
             case "mod":
-                if (readSrc(curInst.op2) == 0) throw new RuntimeError("mod by zero");
-                long src1_mod = readSrc(curInst.op1), src2_mod = readSrc(curInst.op2);
-                registerWrite("%rax", src1_mod / src2_mod);
-                registerWrite("%rdx", src1_mod % src2_mod);
+                if (readSrc(curInst.rOp2) == 0) throw new RuntimeError("mod by zero");
+                long src1_mod = readSrc(curInst.rOp1), src2_mod = readSrc(curInst.rOp2);
+                regs[RAX] = src1_mod / src2_mod;
+                regs[RDX] = src1_mod % src2_mod;
                 return;
 
             case "move":
-                registerWrite(curInst.dest, readSrc(curInst.op1));
+                registerWrite(curInst.rDest, readSrc(curInst.rOp1));
                 return;
             case "neg":
-                registerWrite(curInst.dest, -readSrc(curInst.op1));
+                registerWrite(curInst.rDest, -readSrc(curInst.rOp1));
                 return;
             case "not":
-                registerWrite(curInst.dest, ~readSrc(curInst.op1));
+                registerWrite(curInst.rDest, ~readSrc(curInst.rOp1));
                 return;
             case "add":
-                registerWrite(curInst.dest, readSrc(curInst.op1) + readSrc(curInst.op2));
+                registerWrite(curInst.rDest, readSrc(curInst.rOp1) + readSrc(curInst.rOp2));
                 return;
             case "sub":
-                registerWrite(curInst.dest, readSrc(curInst.op1) - readSrc(curInst.op2));
+                registerWrite(curInst.rDest, readSrc(curInst.rOp1) - readSrc(curInst.rOp2));
                 return;
             case "mul":
-                registerWrite(curInst.dest, readSrc(curInst.op1) * readSrc(curInst.op2));
+                registerWrite(curInst.rDest, readSrc(curInst.rOp1) * readSrc(curInst.rOp2));
                 return;
             case "shl":
-                registerWrite(curInst.dest, readSrc(curInst.op1) << readSrc(curInst.op2));
+                registerWrite(curInst.rDest, readSrc(curInst.rOp1) << readSrc(curInst.rOp2));
                 return;
             case "shr":
-                registerWrite(curInst.dest, readSrc(curInst.op1) >> readSrc(curInst.op2));
+                registerWrite(curInst.rDest, readSrc(curInst.rOp1) >> readSrc(curInst.rOp2));
                 return;
             case "and":
-                registerWrite(curInst.dest, readSrc(curInst.op1) & readSrc(curInst.op2));
+                registerWrite(curInst.rDest, readSrc(curInst.rOp1) & readSrc(curInst.rOp2));
                 return;
             case "or":
-                registerWrite(curInst.dest, readSrc(curInst.op1) | readSrc(curInst.op2));
+                registerWrite(curInst.rDest, readSrc(curInst.rOp1) | readSrc(curInst.rOp2));
                 return;
             case "xor":
-                registerWrite(curInst.dest, readSrc(curInst.op1) ^ readSrc(curInst.op2));
+                registerWrite(curInst.rDest, readSrc(curInst.rOp1) ^ readSrc(curInst.rOp2));
                 return;
             case "slt":
-                registerWrite(curInst.dest, readSrc(curInst.op1) < readSrc(curInst.op2) ? 1 : 0);
+                registerWrite(curInst.rDest, readSrc(curInst.rOp1) < readSrc(curInst.rOp2) ? 1 : 0);
                 return;
             case "sgt":
-                registerWrite(curInst.dest, readSrc(curInst.op1) > readSrc(curInst.op2) ? 1 : 0);
+                registerWrite(curInst.rDest, readSrc(curInst.rOp1) > readSrc(curInst.rOp2) ? 1 : 0);
                 return;
             case "sle":
-                registerWrite(curInst.dest, readSrc(curInst.op1) <= readSrc(curInst.op2) ? 1 : 0);
+                registerWrite(curInst.rDest, readSrc(curInst.rOp1) <= readSrc(curInst.rOp2) ? 1 : 0);
                 return;
             case "sge":
-                registerWrite(curInst.dest, readSrc(curInst.op1) >= readSrc(curInst.op2) ? 1 : 0);
+                registerWrite(curInst.rDest, readSrc(curInst.rOp1) >= readSrc(curInst.rOp2) ? 1 : 0);
                 return;
             case "seq":
-                registerWrite(curInst.dest, readSrc(curInst.op1) == readSrc(curInst.op2) ? 1 : 0);
+                registerWrite(curInst.rDest, readSrc(curInst.rOp1) == readSrc(curInst.rOp2) ? 1 : 0);
                 return;
             case "sne":
-                registerWrite(curInst.dest, readSrc(curInst.op1) != readSrc(curInst.op2) ? 1 : 0);
+                registerWrite(curInst.rDest, readSrc(curInst.rOp1) != readSrc(curInst.rOp2) ? 1 : 0);
                 return;
 
             default:
@@ -696,19 +763,18 @@ public class IRInterpreter_codegen {
             // run phi nodes concurrently
             if (!curBB.phi.isEmpty()) {
                 ++cntInst;
-                tmpRegister.clear();
-                for (PhiNode phi : curBB.phi) {
+                if (phiBuffer.length < curBB.phi.size()) phiBuffer = new long[curBB.phi.size()];
+                for (int i = 0; i < curBB.phi.size(); ++i) {
+                    PhiNode phi = curBB.phi.get(i);
                     curInst = phi;
-                    String regName = phi.paths.get(lastBB.name);
-                    if (regName == null) {
+                    if (!phi.incoming.containsKey(lastBB))
                         throw new RuntimeError("this phi node has no value from incoming block `" + lastBB.name + "`");
-                    } else {
-                        long value = regName.equals("undef") ? (int) (Math.random() * Integer.MAX_VALUE) : readSrc(regName);
-                        tmpRegister.put(phi.dest, value);
-                    }
+                    Operand src = phi.incoming.get(lastBB);
+                    phiBuffer[i] = src == null ? (int) (Math.random() * Integer.MAX_VALUE) : readSrc(src);
                 }
-                for (Map.Entry<String, Long> e : tmpRegister.entrySet()) {
-                    registerWrite(e.getKey(), e.getValue());
+                for (int i = 0; i < curBB.phi.size(); ++i) {
+                    curInst = curBB.phi.get(i);
+                    registerWrite(curBB.phi.get(i).rDest, phiBuffer[i]);
                 }
             }
 
@@ -728,7 +794,12 @@ public class IRInterpreter_codegen {
             if (!isReady) throw new RuntimeException("not ready");
             Function init = functions.get("__init");
             if (init == null) throw new RuntimeError("cannot find `__init` function");
-            runFunction(init);
+            long startTime = System.nanoTime();
+            try {
+                runFunction(init);
+            } finally {
+                elapsedTime = System.nanoTime() - startTime;
+            }
             exitcode = retValue;
             exception = false;
         } catch (RuntimeError e) {
@@ -741,13 +812,18 @@ public class IRInterpreter_codegen {
         }
         System.err.println("exitcode:  " + exitcode);
         System.err.println("exception: " + retValue);
+        System.err.printf("instructions: %d (%.0f inst/s)%n", cntInst, elapsedTime == 0 ? 0.0 : cntInst * 1e9 / elapsedTime);
         isReady = false;
     }
 
-    public void setInstructionLimit(int instLimit) {
+    public void setInstructionLimit(long instLimit) {
         this.instLimit = instLimit;
     }
 
+    public long getInstructionCount() {
+        return cntInst;
+    }
+
     public boolean isReady() {
         return isReady;
     }
@@ -769,18 +845,42 @@ public class IRInterpreter_codegen {
         long offset;         // for `load` / `store`
         List<String> args;  // for `call` / `phi`
 
+        // resolved once the whole program is read
+        Operand rDest;
+        Operand rOp1;
+        Operand rOp2;
+        Operand[] rArgs;    // for `call`
+        Function callee;    // for `call`, null for builtins
+        BasicBlock target1; // for `br` / `jump`
+        BasicBlock target2; // for `br`
+        int flag;           // for `br`, the bit of the flags word it tests
+        boolean onStack;    // for `load` / `store`, the base is %rbp or %rsp
+
         int lineno;
         String text;
     }
 
+    private static class Operand {
+        static final int REGISTER = 0;
+        static final int GLOBAL = 1;
+        static final int IMMEDIATE = 2;
+        static final int UNKNOWN = 3;
+
+        int kind;
+        String name;
+        int reg;            // for REGISTER, index into `regs`
+        Register global;    // for GLOBAL
+        long value;         // for IMMEDIATE
+    }
+
     private class StringPair {
         long length;
         String val;
 
         StringPair(long addr) throws RuntimeError {
-            for (int i = 0; i < 8; ++i) length = (length << 8) | memoryRead(addr + i);
+            length = memoryRead(addr);
             byte[] bytes = new byte[(int) length];
-            for (int i = 0; i < length; ++i) bytes[i] = (byte) memoryRead(addr + 8 + i);
+            for (int i = 0; i < length; ++i) bytes[i] = (byte) memoryReadByte(addr + 8 + i);
             val = new String(bytes, StandardCharsets.ISO_8859_1);
         }
 
@@ -788,13 +888,11 @@ public class IRInterpreter_codegen {
             this.length = length;
             this.val = val;
             long size = 8 + length;
-            for (long i = 8 - 1; i >= 0; --i) {
-                memory.put(heapTop + i, (byte) (length & 0xFF));
-                length >>= 8;
-            }
+            memory.allocate(heapTop, size);
+            memory.writeLong(heapTop, length);
             byte[] bytes = val.getBytes(StandardCharsets.ISO_8859_1);
             for (long i = 0; i < this.length; i++) {
-                memory.put(heapTop + 8 + i, bytes[(int) i]);
+                memory.writeByte(heapTop + 8 + i, bytes[(int) i]);
             }
             heapTop += size;
             heapTop += (int) (Math.random() * 4096);
@@ -803,6 +901,7 @@ public class IRInterpreter_codegen {
 
     private static class PhiNode extends Instruction {
         HashMap<String, String> paths = new HashMap<>();
+        Map<BasicBlock, Operand> incoming = new IdentityHashMap<>(); // null for `undef`
 
         PhiNode(Instruction inst) {
             this.operator = inst.operator;
@@ -833,7 +932,7 @@ public class IRInterpreter_codegen {
 
     private static class Register {
         long value;
-        int timestamp;
+        boolean defined;
     }
 
     private class SemanticError extends Exception {
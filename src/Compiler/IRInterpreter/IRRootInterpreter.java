@@ -0,0 +1,914 @@
+package Compiler.IRInterpreter;
+
+import Compiler.IR.BasicBlock;
+import Compiler.IR.Function;
+import Compiler.IR.IRRoot;
+import Compiler.IR.Instruction.*;
+import Compiler.IR.Operand.*;
+
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static Compiler.IRInterpreter.IRInterpreter.BUILTIN_GET_INT;
+import static Compiler.IRInterpreter.IRInterpreter.BUILTIN_GET_STRING;
+import static Compiler.IRInterpreter.IRInterpreter.BUILTIN_PRINT;
+import static Compiler.IRInterpreter.IRInterpreter.BUILTIN_PRINTLN;
+import static Compiler.IRInterpreter.IRInterpreter.BUILTIN_STRING_ADD;
+import static Compiler.IRInterpreter.IRInterpreter.BUILTIN_STRING_EQ;
+import static Compiler.IRInterpreter.IRInterpreter.BUILTIN_STRING_GEQ;
+import static Compiler.IRInterpreter.IRInterpreter.BUILTIN_STRING_GT;
+import static Compiler.IRInterpreter.IRInterpreter.BUILTIN_STRING_LENGTH;
+import static Compiler.IRInterpreter.IRInterpreter.BUILTIN_STRING_LEQ;
+import static Compiler.IRInterpreter.IRInterpreter.BUILTIN_STRING_LT;
+import static Compiler.IRInterpreter.IRInterpreter.BUILTIN_STRING_NEQ;
+import static Compiler.IRInterpreter.IRInterpreter.BUILTIN_STRING_ORD;
+import static Compiler.IRInterpreter.IRInterpreter.BUILTIN_STRING_PARSE_INT;
+import static Compiler.IRInterpreter.IRInterpreter.BUILTIN_STRING_SUBSTRING;
+import static Compiler.IRInterpreter.IRInterpreter.BUILTIN_TO_STRING;
+import static Compiler.IRInterpreter.IRInterpreter.NOT_BUILTIN;
+import static Compiler.IRInterpreter.IRInterpreter.OP_ADD;
+import static Compiler.IRInterpreter.IRInterpreter.OP_ALLOC;
+import static Compiler.IRInterpreter.IRInterpreter.OP_AND;
+import static Compiler.IRInterpreter.IRInterpreter.OP_BR;
+import static Compiler.IRInterpreter.IRInterpreter.OP_CALL;
+import static Compiler.IRInterpreter.IRInterpreter.OP_DIV;
+import static Compiler.IRInterpreter.IRInterpreter.OP_JUMP;
+import static Compiler.IRInterpreter.IRInterpreter.OP_LEA;
+import static Compiler.IRInterpreter.IRInterpreter.OP_LOAD;
+import static Compiler.IRInterpreter.IRInterpreter.OP_MOD;
+import static Compiler.IRInterpreter.IRInterpreter.OP_MOVE;
+import static Compiler.IRInterpreter.IRInterpreter.OP_MUL;
+import static Compiler.IRInterpreter.IRInterpreter.OP_NEG;
+import static Compiler.IRInterpreter.IRInterpreter.OP_NOT;
+import static Compiler.IRInterpreter.IRInterpreter.OP_OR;
+import static Compiler.IRInterpreter.IRInterpreter.OP_RET;
+import static Compiler.IRInterpreter.IRInterpreter.OP_SEQ;
+import static Compiler.IRInterpreter.IRInterpreter.OP_SGE;
+import static Compiler.IRInterpreter.IRInterpreter.OP_SGT;
+import static Compiler.IRInterpreter.IRInterpreter.OP_SHL;
+import static Compiler.IRInterpreter.IRInterpreter.OP_SHR;
+import static Compiler.IRInterpreter.IRInterpreter.OP_SLE;
+import static Compiler.IRInterpreter.IRInterpreter.OP_SLT;
+import static Compiler.IRInterpreter.IRInterpreter.OP_SNE;
+import static Compiler.IRInterpreter.IRInterpreter.OP_STORE;
+import static Compiler.IRInterpreter.IRInterpreter.OP_SUB;
+import static Compiler.IRInterpreter.IRInterpreter.OP_XOR;
+import static Compiler.IRInterpreter.IRInterpreter.builtins;
+
+/**
+ * Interpreter for the in-memory IR.
+ * <p>
+ * Runs an IRRoot the way IRBuilder and the optimizer leave it, so a program can be checked after any phase in the same
+ * JVM instead of printing it with IRPrinter and parsing it back. Functions are linked once into slot-indexed blocks
+ * with integer opcodes and run like the compiled engine of IRInterpreter, with calls kept on an explicit frame stack.
+ * <p>
+ * Memory is laid out like the x86 backend does it: a global variable is an 8-byte cell, a static string is its length
+ * followed by its bytes, and the string builtins work on that layout. IR after X86ConstraintResolver (physical
+ * registers, stack slots, push/pop) is not supported.
+ */
+public class IRRootInterpreter {
+    static private final long DATA_BASE = 0x10000;
+    // gap left after every object, so that running off its end is reported instead of reading its neighbour
+    static private final long RED_ZONE = 64;
+
+    private IRRoot irRoot;
+    private Scanner scanner;
+    private PrintStream out;
+
+    private PagedMemory memory = new PagedMemory();
+    private long heapTop = DATA_BASE;
+    private Map<GlobalVariable, Long> globalAddress = new HashMap<>();
+    private Map<Function, Proc> procs = new HashMap<>();
+    private Deque<Proc> linkQueue = new ArrayDeque<>();
+
+    private Frame frame;
+    private Frame[] callStack = new Frame[64];
+    private int callDepth = 0;
+    private long[] phiBuffer = new long[16];
+    private long retValue;
+    private Proc curProc;
+    private Block curBlock;
+
+    private long cntInst = 0;
+    private long instLimit = Long.MAX_VALUE;
+    private long exitcode = -1;
+    private boolean exception = false;
+    private long elapsedTime = 0;
+    private boolean profiling = false;
+
+    public IRRootInterpreter(IRRoot irRoot, InputStream in, PrintStream out) {
+        this.irRoot = irRoot;
+        this.scanner = new Scanner(in);
+        this.out = out;
+    }
+
+    //====== static data
+
+    private void allocateStaticData() {
+        for (GlobalVariable globalVariable : irRoot.getGlobalVariableList()) globalAddress.put(globalVariable, allocate(8));
+        for (StaticString staticString : irRoot.getStaticStringList())
+            globalAddress.put((GlobalVariable) staticString.getBase(), newString(staticString.getVal()));
+    }
+
+    private long getGlobalAddress(GlobalVariable globalVariable) {
+        // globals the IRRoot does not list still get a cell of their own
+        return globalAddress.computeIfAbsent(globalVariable, x -> allocate(8));
+    }
+
+    private long allocate(long size) {
+        long res = heapTop;
+        memory.allocate(heapTop, size);
+        heapTop += (size + RED_ZONE + 7) & ~7L;
+        return res;
+    }
+
+    //====== link functions into blocks of integer opcodes
+
+    private Proc getProc(Function function) {
+        Proc proc = procs.get(function);
+        if (proc == null) {
+            proc = new Proc();
+            proc.function = function;
+            proc.name = function.getName();
+            procs.put(function, proc);
+            linkQueue.add(proc);
+        }
+        return proc;
+    }
+
+    private void linkAll() throws RuntimeError {
+        while (!linkQueue.isEmpty()) link(linkQueue.poll());
+    }
+
+    private void link(Proc proc) throws RuntimeError {
+        curProc = proc;
+        curBlock = null;
+        List<Register> parameters = proc.function.getAllParameterList();
+        proc.paramSlots = new int[parameters.size()];
+        for (int i = 0; i < parameters.size(); ++i) proc.paramSlots[i] = getSlot(proc, parameters.get(i));
+
+        Map<BasicBlock, Block> blocks = new LinkedHashMap<>();
+        for (Map.Entry<BasicBlock, String> entry : getBlockLabels(proc.function).entrySet()) {
+            Block block = new Block();
+            block.name = entry.getValue();
+            blocks.put(entry.getKey(), block);
+        }
+        Map<Block, List<Phi>> phiMap = new HashMap<>();
+        proc.entry = blocks.get(proc.function.getEntryBlock());
+        proc.blocks = blocks.values().toArray(new Block[0]);
+        for (Map.Entry<BasicBlock, Block> entry : blocks.entrySet()) {
+            BasicBlock basicBlock = entry.getKey();
+            Block block = entry.getValue();
+            curBlock = block;
+            List<Phi> phis = new ArrayList<>();
+            List<Code> code = new ArrayList<>();
+            int index = 0;
+            for (IRInstruction irInstruction = basicBlock.head; irInstruction != null; irInstruction = irInstruction.getNextInstruction(), ++index) {
+                if (irInstruction instanceof Phi) phis.add((Phi) irInstruction);
+                else if (!(irInstruction instanceof Cmp && ((Cmp) irInstruction).getDst() == null)) {
+                    Code res = linkInstruction(proc, irInstruction, blocks);
+                    res.index = index;
+                    code.add(res);
+                }
+            }
+            block.code = code.toArray(new Code[0]);
+            if (block.code.length == 0 || !isTerminator(block.code[block.code.length - 1]))
+                throw new RuntimeError("block has no end instruction");
+            phiMap.put(block, phis);
+        }
+
+        // phi nodes once all reachable blocks are known, a path from a block that is never reached is dropped
+        for (Map.Entry<Block, List<Phi>> entry : phiMap.entrySet()) {
+            Block block = entry.getKey();
+            List<Phi> phis = entry.getValue();
+            curBlock = block;
+            block.phiDst = new Src[phis.size()];
+            block.phiNames = new String[phis.size()];
+            block.phiCount = new long[phis.size()];
+            block.phiFrom = new Block[phis.size()][];
+            block.phiValue = new Src[phis.size()][];
+            for (int i = 0; i < phis.size(); ++i) {
+                List<Block> from = new ArrayList<>();
+                List<Src> value = new ArrayList<>();
+                for (Map.Entry<BasicBlock, Operand> path : phis.get(i).getPaths().entrySet()) {
+                    Block pred = blocks.get(path.getKey());
+                    if (pred == null) continue;
+                    from.add(pred);
+                    value.add(getSrc(proc, path.getValue()));
+                }
+                block.phiDst[i] = getDst(proc, phis.get(i).getDst());
+                // temporaries have no name, the slot tells them apart
+                String name = phis.get(i).getDst().getName();
+                block.phiNames[i] = name == null ? "%" + block.phiDst[i].slot : name;
+                block.phiFrom[i] = from.toArray(new Block[0]);
+                block.phiValue[i] = value.toArray(new Src[0]);
+            }
+        }
+        proc.slotCnt = proc.slots.size();
+        proc.slots = null;
+    }
+
+    // the blocks reachable from the entry, in breadth-first order of the terminators' targets, labelled by name and
+    // position since block names repeat; the order does not depend on hashing, so the labels of a profile written by
+    // one run of the compiler match the blocks IRBuilder creates in the next
+    public static Map<BasicBlock, String> getBlockLabels(Function function) {
+        Map<BasicBlock, String> labels = new LinkedHashMap<>();
+        Deque<BasicBlock> worklist = new ArrayDeque<>();
+        labels.put(function.getEntryBlock(), function.getEntryBlock().getName() + "#0");
+        worklist.add(function.getEntryBlock());
+        while (!worklist.isEmpty()) {
+            IRInstruction tail = worklist.poll().tail;
+            List<BasicBlock> targets = new ArrayList<>();
+            if (tail instanceof Branch) {
+                targets.add(((Branch) tail).getThenBB());
+                targets.add(((Branch) tail).getElseBB());
+            } else if (tail instanceof Jump) targets.add(((Jump) tail).getTargetBB());
+            for (BasicBlock target : targets) {
+                if (target == null || labels.containsKey(target)) continue;
+                labels.put(target, target.getName() + "#" + labels.size());
+                worklist.add(target);
+            }
+        }
+        return labels;
+    }
+
+    private Code linkInstruction(Proc proc, IRInstruction irInstruction, Map<BasicBlock, Block> blocks) throws RuntimeError {
+        Code code = new Code();
+        if (irInstruction instanceof Binary) {
+            Binary inst = (Binary) irInstruction;
+            code.opcode = getOpcode(inst.getOp());
+            code.dst = getDst(proc, inst.getDst());
+            code.src1 = getSrc(proc, inst.getSrc1());
+            code.src2 = getSrc(proc, inst.getSrc2());
+        } else if (irInstruction instanceof Unary) {
+            Unary inst = (Unary) irInstruction;
+            code.dst = getDst(proc, inst.getDst());
+            code.src1 = getSrc(proc, inst.getSrc());
+            switch (inst.getOp()) {
+                case NOT:
+                    code.opcode = OP_NOT;
+                    break;
+                case NEG:
+                    code.opcode = OP_NEG;
+                    break;
+                case INC:
+                    code.opcode = OP_ADD;
+                    code.src2 = immediate(1);
+                    break;
+                case DEC:
+                    code.opcode = OP_SUB;
+                    code.src2 = immediate(1);
+                    break;
+                case POS:
+                    code.opcode = OP_MOVE;
+                    break;
+                case NOTL:
+                    code.opcode = OP_SEQ;
+                    code.src2 = immediate(0);
+                    break;
+            }
+        } else if (irInstruction instanceof Cmp) {
+            Cmp inst = (Cmp) irInstruction;
+            code.opcode = getOpcode(inst.getOp());
+            code.dst = getDst(proc, inst.getDst());
+            code.src1 = getSrc(proc, inst.getSrc1());
+            code.src2 = getSrc(proc, inst.getSrc2());
+        } else if (irInstruction instanceof Move) {
+            code.opcode = OP_MOVE;
+            code.dst = getDst(proc, ((Move) irInstruction).getDst());
+            code.src1 = getSrc(proc, ((Move) irInstruction).getSrc());
+        } else if (irInstruction instanceof Load) {
+            code.opcode = OP_LOAD;
+            code.dst = getDst(proc, ((Load) irInstruction).getDst());
+            linkAddress(proc, code, ((Load) irInstruction).getSrc(), ((Load) irInstruction).isInsertedForGlobalVariable());
+        } else if (irInstruction instanceof Store) {
+            // like IRInterpreter, a store keeps the stored value in dst
+            code.opcode = OP_STORE;
+            code.dst = getSrc(proc, ((Store) irInstruction).getSrc());
+            linkAddress(proc, code, ((Store) irInstruction).getDst(), ((Store) irInstruction).isInsertedForGlobalVariable());
+        } else if (irInstruction instanceof Lea) {
+            code.opcode = OP_LEA;
+            code.dst = getDst(proc, ((Lea) irInstruction).getDst());
+            linkAddress(proc, code, ((Lea) irInstruction).getSrc(), false);
+        } else if (irInstruction instanceof Alloc) {
+            code.opcode = OP_ALLOC;
+            code.dst = getDst(proc, ((Alloc) irInstruction).getPointer());
+            code.src1 = getSrc(proc, ((Alloc) irInstruction).getSize());
+        } else if (irInstruction instanceof Call) {
+            Call inst = (Call) irInstruction;
+            code.opcode = OP_CALL;
+            code.dst = inst.getResult() == null ? null : getDst(proc, inst.getResult());
+            List<Src> args = new ArrayList<>();
+            if (inst.getObjectPointer() != null) args.add(getSrc(proc, inst.getObjectPointer()));
+            for (Operand operand : inst.getParameterList()) args.add(getSrc(proc, operand));
+            code.args = args.toArray(new Src[0]);
+            if (irRoot.builtinFunctions.contains(inst.getCallee())) {
+                code.builtin = builtins.get(inst.getCallee().getName());
+            } else {
+                code.callee = getProc(inst.getCallee());
+                if (code.args.length != inst.getCallee().getAllParameterList().size())
+                    throw new RuntimeError("argument scale of `" + inst.getCallee().getName() + "` cannot match");
+            }
+        } else if (irInstruction instanceof Branch) {
+            Branch inst = (Branch) irInstruction;
+            code.opcode = OP_BR;
+            if (inst.defOfCond != null) {
+                // the condition was merged into the branch by InstructionCombiner
+                code.cmp = getOpcode(inst.defOfCond.getOp());
+                code.src1 = getSrc(proc, inst.defOfCond.getSrc1());
+                code.src2 = getSrc(proc, inst.defOfCond.getSrc2());
+            } else code.src1 = getSrc(proc, inst.getCond());
+            code.target1 = blocks.get(inst.getThenBB());
+            code.target2 = blocks.get(inst.getElseBB());
+        } else if (irInstruction instanceof Jump) {
+            code.opcode = OP_JUMP;
+            code.target1 = blocks.get(((Jump) irInstruction).getTargetBB());
+        } else if (irInstruction instanceof Return) {
+            code.opcode = OP_RET;
+            Operand returnValue = ((Return) irInstruction).getReturnValue();
+            code.src1 = returnValue == null ? null : getSrc(proc, returnValue);
+        } else {
+            throw new RuntimeError("cannot interpret `" + irInstruction.getClass().getSimpleName() + "`, run before X86ConstraintResolver");
+        }
+        return code;
+    }
+
+    // address operands: base + index * scale + offset, a register used as an address is a base of its own, and so is an
+    // immediate: a null folded into an access that never runs must not stop the program, the access faults when it runs
+    private void linkAddress(Proc proc, Code code, Operand operand, boolean isGlobalCell) throws RuntimeError {
+        if (operand instanceof StackData)
+            throw new RuntimeError("cannot interpret stack slots, run before X86ConstraintResolver");
+        if (operand instanceof Memory) {
+            Memory memory = (Memory) operand;
+            code.src1 = memory.getBase() == null ? null : getBase(proc, memory.getBase(), isGlobalCell);
+            code.src2 = memory.getIndex() == null ? null : getSrc(proc, memory.getIndex());
+            code.scale = memory.getScale().getImmediate();
+            code.offset = memory.getOffset().getImmediate();
+        } else if (operand instanceof Register) {
+            code.src1 = getBase(proc, (Register) operand, isGlobalCell);
+        } else if (operand instanceof Immediate) {
+            code.src1 = immediate(((Immediate) operand).getImmediate());
+        } else throw new RuntimeError("invalid address");
+    }
+
+    // a global addresses its own cell only in the loads and stores GlobalVariableResolver inserted, as its label does in
+    // the emitted assembly; anywhere else it is a variable and the address is the pointer it holds
+    private Src getBase(Proc proc, Register register, boolean isGlobalCell) throws RuntimeError {
+        if (register instanceof GlobalVariable && isGlobalCell) return immediate(getGlobalAddress((GlobalVariable) register));
+        return getSrc(proc, register);
+    }
+
+    private Src getSrc(Proc proc, Operand operand) throws RuntimeError {
+        if (operand == null) return immediate(0); // undef
+        if (operand instanceof Immediate) return immediate(((Immediate) operand).getImmediate());
+        if (operand instanceof GlobalI64Value) {
+            long address = getGlobalAddress((GlobalVariable) operand);
+            // a static string is the address of its data, any other global is the value in its cell
+            if (((GlobalI64Value) operand).isString()) return immediate(address);
+            Src res = new Src();
+            res.kind = Src.GLOBAL;
+            res.value = address;
+            return res;
+        }
+        if (operand instanceof VirtualRegister) {
+            Src res = new Src();
+            res.kind = Src.LOCAL;
+            res.slot = getSlot(proc, (Register) operand);
+            return res;
+        }
+        throw new RuntimeError("cannot interpret operand `" + operand.getClass().getSimpleName() + "`, run before X86ConstraintResolver");
+    }
+
+    private Src getDst(Proc proc, Operand operand) throws RuntimeError {
+        Src res = getSrc(proc, operand);
+        if (res.kind == Src.IMMEDIATE) throw new RuntimeError("destination is not a register");
+        return res;
+    }
+
+    private int getSlot(Proc proc, Register register) throws RuntimeError {
+        if (!(register instanceof VirtualRegister) || register instanceof GlobalVariable)
+            throw new RuntimeError("invalid parameter register");
+        return proc.slots.computeIfAbsent(register, x -> proc.slots.size());
+    }
+
+    private Src immediate(long value) {
+        Src res = new Src();
+        res.kind = Src.IMMEDIATE;
+        res.value = value;
+        return res;
+    }
+
+    static private int getOpcode(Binary.Op op) {
+        switch (op) {
+            case ADD:
+                return OP_ADD;
+            case SUB:
+                return OP_SUB;
+            case MUL:
+                return OP_MUL;
+            case DIV:
+                return OP_DIV;
+            case MOD:
+                return OP_MOD;
+            case SHL:
+                return OP_SHL;
+            case SHR:
+                return OP_SHR;
+            case AND:
+                return OP_AND;
+            case OR:
+                return OP_OR;
+            default:
+                return OP_XOR;
+        }
+    }
+
+    static private int getOpcode(Cmp.Op op) {
+        switch (op) {
+            case LT:
+                return OP_SLT;
+            case LEQ:
+                return OP_SLE;
+            case EQ:
+                return OP_SEQ;
+            case GEQ:
+                return OP_SGE;
+            case GT:
+                return OP_SGT;
+            default:
+                return OP_SNE;
+        }
+    }
+
+    static private boolean isTerminator(Code code) {
+        return code.opcode == OP_RET || code.opcode == OP_BR || code.opcode == OP_JUMP;
+    }
+
+    //====== frames, reused between calls of the same function
+
+    private Frame newFrame(Proc proc) {
+        int size = proc.pool.size();
+        if (size == 0) return new Frame(proc.slotCnt);
+        Frame res = proc.pool.remove(size - 1);
+        Arrays.fill(res.values, 0);
+        return res;
+    }
+
+    private void releaseFrame(Proc proc, Frame released) {
+        proc.pool.add(released);
+    }
+
+    private void pushFrame(Frame caller) {
+        if (callDepth == callStack.length) callStack = Arrays.copyOf(callStack, callDepth * 2);
+        callStack[callDepth++] = caller;
+    }
+
+    private Frame popFrame() {
+        Frame caller = callStack[--callDepth];
+        callStack[callDepth] = null;
+        return caller;
+    }
+
+    //====== memory and registers
+
+    private long memoryRead(long addr) throws RuntimeError {
+        if (!memory.isValid(addr, 8)) throw new RuntimeError("memory read violation");
+        return memory.readLong(addr);
+    }
+
+    private void memoryWrite(long addr, long value) throws RuntimeError {
+        if (!memory.isValid(addr, 8)) throw new RuntimeError("memory write violation");
+        memory.writeLong(addr, value);
+    }
+
+    private long read(Src src) throws RuntimeError {
+        switch (src.kind) {
+            case Src.LOCAL:
+                return frame.values[src.slot];
+            case Src.GLOBAL:
+                return memoryRead(src.value);
+            default:
+                return src.value;
+        }
+    }
+
+    private void write(Src dst, long value) throws RuntimeError {
+        if (dst.kind == Src.LOCAL) frame.values[dst.slot] = value;
+        else memoryWrite(dst.value, value);
+    }
+
+    private long address(Code code) throws RuntimeError {
+        long base = code.src1 == null ? 0 : read(code.src1);
+        long index = code.src2 == null ? 0 : read(code.src2);
+        return base + index * code.scale + code.offset;
+    }
+
+    //====== strings, a length followed by the bytes and a terminating zero
+
+    private long newString(String str) {
+        byte[] bytes = str.getBytes(StandardCharsets.ISO_8859_1);
+        long res = allocate(8 + bytes.length + 1);
+        memory.writeLong(res, bytes.length);
+        for (int i = 0; i < bytes.length; ++i) memory.writeByte(res + 8 + i, bytes[i]);
+        return res;
+    }
+
+    private String readString(long addr) throws RuntimeError {
+        long length = memoryRead(addr);
+        if (length < 0 || !memory.isValid(addr + 8, (int) length)) throw new RuntimeError("invalid string");
+        byte[] bytes = new byte[(int) length];
+        for (int i = 0; i < bytes.length; ++i) bytes[i] = (byte) memory.readByte(addr + 8 + i);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    private long runBuiltin(int builtin, long[] args) throws RuntimeError {
+        try {
+            switch (builtin) {
+                case BUILTIN_STRING_LENGTH:
+                    return memoryRead(args[0]);
+                case BUILTIN_STRING_SUBSTRING:
+                    // the runtime library takes an inclusive right end
+                    return newString(readString(args[0]).substring((int) args[1], (int) args[2] + 1));
+                case BUILTIN_STRING_PARSE_INT: {
+                    long result = 0;
+                    for (char ch : readString(args[0]).toCharArray()) {
+                        if (ch < '0' || ch > '9') break;
+                        result = result * 10 + ch - '0';
+                    }
+                    return result;
+                }
+                case BUILTIN_STRING_ORD:
+                    return readString(args[0]).charAt((int) args[1]);
+                case BUILTIN_STRING_ADD:
+                    return newString(readString(args[0]) + readString(args[1]));
+                case BUILTIN_STRING_LT:
+                    return readString(args[0]).compareTo(readString(args[1])) < 0 ? 1 : 0;
+                case BUILTIN_STRING_LEQ:
+                    return readString(args[0]).compareTo(readString(args[1])) <= 0 ? 1 : 0;
+                case BUILTIN_STRING_EQ:
+                    return readString(args[0]).compareTo(readString(args[1])) == 0 ? 1 : 0;
+                case BUILTIN_STRING_GEQ:
+                    return readString(args[0]).compareTo(readString(args[1])) >= 0 ? 1 : 0;
+                case BUILTIN_STRING_GT:
+                    return readString(args[0]).compareTo(readString(args[1])) > 0 ? 1 : 0;
+                case BUILTIN_STRING_NEQ:
+                    return readString(args[0]).compareTo(readString(args[1])) != 0 ? 1 : 0;
+                case BUILTIN_PRINT:
+                    out.print(readString(args[0]));
+                    return 0;
+                case BUILTIN_PRINTLN:
+                    out.print(readString(args[0]));
+                    out.print('\n');
+                    return 0;
+                case BUILTIN_GET_STRING:
+                    return newString(scanner.next());
+                case BUILTIN_GET_INT:
+                    return scanner.nextInt();
+                case BUILTIN_TO_STRING:
+                    return newString(String.valueOf(args[0]));
+                default:
+                    throw new RuntimeError("unknown builtin function");
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new RuntimeError("string index out of range");
+        } catch (NoSuchElementException e) {
+            throw new RuntimeError("no more input");
+        }
+    }
+
+    //====== engine, calls push the caller onto callStack instead of recursing
+
+    private void runProc(Proc proc) throws RuntimeError {
+        int baseDepth = callDepth;
+        Block BB = proc.entry;
+        Block prevBB = null;
+        int pc = 0;
+
+        dispatch:
+        while (true) {
+            execute:
+            {
+                if (pc == 0) {
+                    curProc = proc;
+                    curBlock = BB;
+                    if (profiling) ++BB.count;
+                    // run phi nodes concurrently
+                    int phiCnt = BB.phiDst.length;
+                    if (phiCnt != 0) {
+                        ++cntInst;
+                        if (phiBuffer.length < phiCnt) phiBuffer = new long[phiCnt];
+                        for (int i = 0; i < phiCnt; ++i) {
+                            Src src = null;
+                            for (int j = 0; j < BB.phiFrom[i].length; ++j)
+                                if (BB.phiFrom[i][j] == prevBB) {
+                                    src = BB.phiValue[i][j];
+                                    break;
+                                }
+                            if (src == null)
+                                throw new RuntimeError("phi node has no value from incoming block `" + (prevBB == null ? "" : prevBB.name) + "`");
+                            phiBuffer[i] = read(src);
+                            if (profiling) ++BB.phiCount[i];
+                        }
+                        for (int i = 0; i < phiCnt; ++i) write(BB.phiDst[i], phiBuffer[i]);
+                    }
+                }
+
+                Code[] code = BB.code;
+                while (true) {
+                    Code inst = code[pc++];
+                    if (++cntInst >= instLimit) throw new RuntimeError("instruction limit exceeded");
+                    switch (inst.opcode) {
+                        case OP_LEA:
+                            write(inst.dst, address(inst));
+                            break;
+                        case OP_LOAD:
+                            write(inst.dst, memoryRead(address(inst)));
+                            break;
+                        case OP_STORE:
+                            memoryWrite(address(inst), read(inst.dst));
+                            break;
+                        case OP_ALLOC:
+                            write(inst.dst, allocate(read(inst.src1)));
+                            break;
+                        case OP_DIV: {
+                            long src2 = read(inst.src2);
+                            if (src2 == 0) throw new RuntimeError("divide by zero");
+                            write(inst.dst, read(inst.src1) / src2);
+                            break;
+                        }
+                        case OP_MOD: {
+                            long src2 = read(inst.src2);
+                            if (src2 == 0) throw new RuntimeError("mod by zero");
+                            write(inst.dst, read(inst.src1) % src2);
+                            break;
+                        }
+                        case OP_MOVE:
+                            write(inst.dst, read(inst.src1));
+                            break;
+                        case OP_NEG:
+                            write(inst.dst, -read(inst.src1));
+                            break;
+                        case OP_NOT:
+                            write(inst.dst, ~read(inst.src1));
+                            break;
+                        case OP_ADD:
+                            write(inst.dst, read(inst.src1) + read(inst.src2));
+                            break;
+                        case OP_SUB:
+                            write(inst.dst, read(inst.src1) - read(inst.src2));
+                            break;
+                        case OP_MUL:
+                            write(inst.dst, read(inst.src1) * read(inst.src2));
+                            break;
+                        case OP_SHL:
+                            write(inst.dst, read(inst.src1) << read(inst.src2));
+                            break;
+                        case OP_SHR:
+                            write(inst.dst, read(inst.src1) >> read(inst.src2));
+                            break;
+                        case OP_AND:
+                            write(inst.dst, read(inst.src1) & read(inst.src2));
+                            break;
+                        case OP_OR:
+                            write(inst.dst, read(inst.src1) | read(inst.src2));
+                            break;
+                        case OP_XOR:
+                            write(inst.dst, read(inst.src1) ^ read(inst.src2));
+                            break;
+                        case OP_SLT:
+                        case OP_SGT:
+                        case OP_SLE:
+                        case OP_SGE:
+                        case OP_SEQ:
+                        case OP_SNE:
+                            write(inst.dst, compare(inst.opcode, read(inst.src1), read(inst.src2)) ? 1 : 0);
+                            break;
+                        case OP_RET:
+                            if (inst.src1 != null) retValue = read(inst.src1);
+                            break execute;
+                        case OP_BR: {
+                            boolean cond = inst.cmp >= 0 ? compare(inst.cmp, read(inst.src1), read(inst.src2)) : read(inst.src1) != 0;
+                            if (profiling) ++BB.edgeCount[cond ? 0 : 1];
+                            prevBB = BB;
+                            BB = cond ? inst.target1 : inst.target2;
+                            pc = 0;
+                            continue dispatch;
+                        }
+                        case OP_JUMP:
+                            if (profiling) ++BB.edgeCount[0];
+                            prevBB = BB;
+                            BB = inst.target1;
+                            pc = 0;
+                            continue dispatch;
+                        case OP_CALL: {
+                            if (profiling) ++inst.count;
+                            long[] args = new long[inst.args.length];
+                            for (int i = 0; i < args.length; ++i) args[i] = read(inst.args[i]);
+                            if (inst.builtin != NOT_BUILTIN) {
+                                long res = runBuiltin(inst.builtin, args);
+                                if (inst.dst != null) write(inst.dst, res);
+                                break;
+                            }
+                            Proc callee = inst.callee;
+                            Frame calleeFrame = newFrame(callee);
+                            for (int i = 0; i < args.length; ++i) calleeFrame.values[callee.paramSlots[i]] = args[i];
+                            frame.proc = proc;
+                            frame.BB = BB;
+                            frame.prevBB = prevBB;
+                            frame.pc = pc;
+                            pushFrame(frame);
+                            frame = calleeFrame;
+                            proc = callee;
+                            if (profiling) ++proc.calls;
+                            BB = callee.entry;
+                            prevBB = null;
+                            pc = 0;
+                            continue dispatch;
+                        }
+                        default:
+                            throw new RuntimeError("unknown opcode " + inst.opcode);
+                    }
+                }
+            }
+
+            // `proc` has returned, resume its caller right after the call
+            if (callDepth == baseDepth) return;
+            releaseFrame(proc, frame);
+            frame = popFrame();
+            proc = frame.proc;
+            BB = frame.BB;
+            prevBB = frame.prevBB;
+            pc = frame.pc;
+            curProc = proc;
+            curBlock = BB;
+            Code call = BB.code[pc - 1];
+            if (call.dst != null) write(call.dst, retValue);
+        }
+    }
+
+    static private boolean compare(int opcode, long src1, long src2) {
+        switch (opcode) {
+            case OP_SLT:
+                return src1 < src2;
+            case OP_SGT:
+                return src1 > src2;
+            case OP_SLE:
+                return src1 <= src2;
+            case OP_SGE:
+                return src1 >= src2;
+            case OP_SEQ:
+                return src1 == src2;
+            default:
+                return src1 != src2;
+        }
+    }
+
+    //====== public methods
+
+    public void run() {
+        try {
+            Function init = irRoot.getFunctionMap().get("__init");
+            if (init == null) throw new RuntimeError("cannot find `__init` function");
+            allocateStaticData();
+            Proc proc = getProc(init);
+            linkAll();
+            frame = newFrame(proc);
+            if (profiling) ++proc.calls;
+            long startTime = System.nanoTime();
+            runProc(proc);
+            elapsedTime = System.nanoTime() - startTime;
+            exitcode = retValue;
+            exception = false;
+        } catch (RuntimeError e) {
+            System.err.println("Runtime Error");
+            System.err.println("    " + e.getMessage());
+            exitcode = -1;
+            exception = true;
+        }
+        out.flush();
+    }
+
+    // count blocks, edges, call sites and phi nodes for getProfile
+    public void setProfiling(boolean profiling) {
+        this.profiling = profiling;
+    }
+
+    // blocks are keyed by their labels from getBlockLabels, call sites by the position among the IR instructions
+    public Profile getProfile() {
+        Profile profile = new Profile();
+        for (Proc proc : procs.values()) {
+            if (proc.calls == 0) continue;
+            Profile.FunctionProfile res = profile.addFunction(proc.name);
+            res.calls = proc.calls;
+            for (Block block : proc.blocks) {
+                if (block.count == 0) continue;
+                res.addBlock(block.name, block.count, block.count * (block.code.length + (block.phiDst.length != 0 ? 1 : 0)));
+                Code end = block.code[block.code.length - 1];
+                if (end.opcode == OP_BR || end.opcode == OP_JUMP) res.addEdge(block.name, end.target1.name, block.edgeCount[0]);
+                if (end.opcode == OP_BR) res.addEdge(block.name, end.target2.name, block.edgeCount[1]);
+                for (Code code : block.code)
+                    if (code.opcode == OP_CALL && code.count != 0)
+                        res.addCallSite(block.name, code.index, code.callee == null ? "builtin" : code.callee.name, code.count);
+                for (int i = 0; i < block.phiDst.length; ++i)
+                    if (block.phiCount[i] != 0) res.addPhi(block.name, block.phiNames[i], block.phiCount[i]);
+            }
+        }
+        return profile;
+    }
+
+    public void setInstructionLimit(long instLimit) {
+        this.instLimit = instLimit;
+    }
+
+    public long getInstructionCount() {
+        return cntInst;
+    }
+
+    public long getElapsedTime() {
+        return elapsedTime;
+    }
+
+    public long getExitcode() {
+        return exitcode;
+    }
+
+    public boolean exitException() {
+        return exception;
+    }
+
+    //====== internal classes
+
+    static class Proc {
+        String name;
+        Function function;
+        Block entry;
+        Map<Register, Integer> slots = new HashMap<>(); // only while linking
+        int slotCnt;
+        int[] paramSlots;
+        List<Frame> pool = new ArrayList<>();
+        Block[] blocks;
+        long calls;
+    }
+
+    static class Block {
+        String name;
+        Code[] code;
+        Src[] phiDst;
+        Block[][] phiFrom;
+        Src[][] phiValue;
+
+        // profiled executions, of the edges to target1 / target2 of the terminator and of each phi node
+        long count;
+        long[] edgeCount = new long[2];
+        long[] phiCount;
+        String[] phiNames;
+    }
+
+    static class Code {
+        int opcode;
+        int cmp = -1;       // for br, the comparison merged into it
+        Src dst;            // for store, the value to store
+        Src src1, src2;     // for lea, load and store, the base and the index
+        long scale;
+        long offset;
+        Block target1, target2;
+        Proc callee;
+        int builtin = NOT_BUILTIN;
+        Src[] args;
+
+        int index;          // position among the IR instructions of the block
+        long count;         // profiled executions of calls
+    }
+
+    static class Src {
+        static final int IMMEDIATE = 0;
+        static final int LOCAL = 1;
+        static final int GLOBAL = 2;
+
+        int kind;
+        int slot;           // for local registers
+        long value;         // for immediates, the address of the cell for globals
+    }
+
+    static class Frame {
+        long[] values;
+        // where to resume once the callee returns, set while the frame waits on callStack
+        Proc proc;
+        Block BB;
+        Block prevBB;
+        int pc;
+
+        Frame(int size) {
+            values = new long[size];
+        }
+    }
+
+    private class RuntimeError extends Exception {
+        RuntimeError(String reason) {
+            super(curProc == null ? reason
+                    : reason + " | function " + curProc.name + (curBlock == null ? "" : ", block " + curBlock.name));
+        }
+    }
+}
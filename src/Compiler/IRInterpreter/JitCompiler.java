@@ -0,0 +1,645 @@
+package Compiler.IRInterpreter;
+
+import Compiler.IRInterpreter.IRInterpreter.BasicBlock;
+import Compiler.IRInterpreter.IRInterpreter.Function;
+import Compiler.IRInterpreter.IRInterpreter.Instruction;
+import Compiler.IRInterpreter.IRInterpreter.Operand;
+import Compiler.IRInterpreter.IRInterpreter.PhiNode;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * JIT tier of IRInterpreter.
+ * <p>
+ * Translates one resolved function into a hidden JVM class implementing JitFunction, so that HotSpot compiles it
+ * like any other Java code. Registers become long locals, phi nodes become parallel copies on the CFG edges and
+ * memory, global registers, calls and builtins go back to the interpreter through JitRuntime.
+ * Class files are emitted with version 49, which needs no stack map frames.
+ */
+class JitCompiler {
+    static private final int MAX_BRANCH_OFFSET = 32767;
+    static private final String CLASS_PREFIX = "Compiler/IRInterpreter/JitCode_";
+    static private final String RUNTIME = "Compiler/IRInterpreter/JitRuntime";
+    static private final AtomicInteger classCnt = new AtomicInteger();
+
+    // local variables of `invoke`: 0 this, 1 runtime, 2 registers, 3 entry, then two slots for every register
+    static private final int LOCAL_FIRST_REGISTER = 4;
+
+    private Function func;
+    private ConstantPool pool = new ConstantPool();
+    private Code code = new Code();
+    private Label[] blockLabels;    // before the phi count of a block, targets of CFG edges
+    private Label[] bodyLabels;     // after it, targets of on-stack replacement
+    private int tempBase;
+
+    private JitCompiler(Function func) {
+        this.func = func;
+    }
+
+    // returns null if the function cannot be translated, the interpreter keeps running it then
+    static JitFunction compile(Function func) {
+        JitCompiler compiler = new JitCompiler(func);
+        if (!compiler.isCompilable()) return null;
+        byte[] classFile = compiler.translate();
+        if (classFile == null) return null;
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(classFile, true);
+            return (JitFunction) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+        } catch (Throwable e) {
+            return null;
+        }
+    }
+
+    //====== check
+
+    private boolean isCompilable() {
+        if (func.entry == null || func.entry.phiNodes.length != 0) return false;
+        for (BasicBlock BB : func.blockList) {
+            if (!BB.hasEnd) return false;
+            for (PhiNode phi : BB.phiNodes)
+                if (!isDestination(phi.rDest)) return false;
+            for (Instruction inst : BB.code) {
+                switch (inst.opcode) {
+                    case IRInterpreter.OP_JUMP:
+                        if (!isEdge(BB, inst.target1)) return false;
+                        break;
+                    case IRInterpreter.OP_BR:
+                        if (!isEdge(BB, inst.target1) || !isEdge(BB, inst.target2)) return false;
+                        break;
+                    case IRInterpreter.OP_CALL:
+                        if (inst.builtin == IRInterpreter.NOT_BUILTIN) {
+                            if (inst.callee == null || inst.args.size() != inst.callee.args.size()) return false;
+                            if (inst.dest != null && !inst.callee.hasReturnValue) return false;
+                        }
+                        if (inst.dest != null && !isDestination(inst.rDest)) return false;
+                        break;
+                    case IRInterpreter.OP_STORE:
+                    case IRInterpreter.OP_RET:
+                        break;
+                    default:
+                        if (!isDestination(inst.rDest)) return false;
+                }
+                if (IRInterpreter.isTerminator(inst)) break;
+            }
+        }
+        return true;
+    }
+
+    private boolean isDestination(Operand operand) {
+        return operand != null && (operand.kind == Operand.LOCAL || operand.kind == Operand.GLOBAL);
+    }
+
+    private boolean isEdge(BasicBlock from, BasicBlock to) {
+        if (to == null) return false;
+        for (PhiNode phi : to.phiNodes)
+            if (!phi.incoming.containsKey(from)) return false;
+        return true;
+    }
+
+    //====== translate
+
+    private byte[] translate() {
+        int maxPhi = 0;
+        for (BasicBlock BB : func.blockList) maxPhi = Math.max(maxPhi, BB.phiNodes.length);
+        tempBase = LOCAL_FIRST_REGISTER + 2 * func.registerCnt;
+        int maxLocals = tempBase + 2 * maxPhi;
+        if (maxLocals > 0xFFFF) return null;
+
+        int blockCnt = func.blockList.size();
+        blockLabels = new Label[blockCnt];
+        bodyLabels = new Label[blockCnt];
+        for (int i = 0; i < blockCnt; ++i) {
+            blockLabels[i] = new Label();
+            bodyLabels[i] = new Label();
+        }
+
+        // load every register from the frame handed over by the interpreter
+        for (int i = 0; i < func.registerCnt; ++i) {
+            code.u1(0x2c); // aload_2
+            pushInt(i);
+            code.u1(0x2f); // laload
+            storeLocal(i);
+        }
+        // entry -1 (the default) starts the function, any other value enters that block after its phi nodes
+        code.u1(0x1d); // iload_3
+        int switchPos = code.length;
+        code.u1(0xaa); // tableswitch
+        while (code.length % 4 != 0) code.u1(0);
+        code.jump32(switchPos, blockLabels[func.entry.index]);
+        code.u4(0);
+        code.u4(blockCnt - 1);
+        for (int i = 0; i < blockCnt; ++i) code.jump32(switchPos, bodyLabels[i]);
+
+        for (BasicBlock BB : func.blockList) translateBlock(BB);
+
+        if (!code.resolve()) return null;
+        return writeClassFile(maxLocals);
+    }
+
+    private void translateBlock(BasicBlock BB) {
+        code.bind(blockLabels[BB.index]);
+        if (BB.phiNodes.length != 0) tick(1);
+        code.bind(bodyLabels[BB.index]);
+        int instCnt = 0;
+        while (!IRInterpreter.isTerminator(BB.code[instCnt])) ++instCnt;
+        tick(instCnt + 1);
+
+        for (Instruction inst : BB.code) {
+            switch (inst.opcode) {
+                case IRInterpreter.OP_LEA:
+                    beginStore(inst.rDest);
+                    pushAddress(inst);
+                    endStore(inst.rDest);
+                    break;
+                case IRInterpreter.OP_LOAD:
+                    beginStore(inst.rDest);
+                    code.u1(0x2b); // aload_1
+                    pushAddress(inst);
+                    invokeRuntime("load", "(J)J", 3);
+                    endStore(inst.rDest);
+                    break;
+                case IRInterpreter.OP_STORE:
+                    code.u1(0x2b); // aload_1
+                    pushAddress(inst);
+                    push(inst.rDest);
+                    invokeRuntime("store", "(JJ)V", 5);
+                    break;
+                case IRInterpreter.OP_ALLOC:
+                    beginStore(inst.rDest);
+                    code.u1(0x2b); // aload_1
+                    push(inst.rOp1);
+                    invokeRuntime("alloc", "(J)J", 3);
+                    endStore(inst.rDest);
+                    break;
+                case IRInterpreter.OP_RET:
+                    if (inst.rOp1 != null) push(inst.rOp1);
+                    else code.u1(0x09); // lconst_0
+                    code.u1(0xad); // lreturn
+                    return;
+                case IRInterpreter.OP_BR: {
+                    Label elseLabel = new Label();
+                    push(inst.rDest);
+                    code.u1(0x09); // lconst_0
+                    code.u1(0x94); // lcmp
+                    code.jump16(0x99, elseLabel); // ifeq
+                    translateEdge(BB, inst.target1);
+                    code.bind(elseLabel);
+                    translateEdge(BB, inst.target2);
+                    return;
+                }
+                case IRInterpreter.OP_JUMP:
+                    translateEdge(BB, inst.target1);
+                    return;
+                case IRInterpreter.OP_CALL:
+                    if (inst.dest != null) beginStore(inst.rDest);
+                    code.u1(0x2b); // aload_1
+                    if (inst.builtin != IRInterpreter.NOT_BUILTIN) pushInt(inst.builtin);
+                    else pushInt(inst.callee.index);
+                    pushInt(inst.rArgs.length);
+                    code.u1(0xbc); // newarray
+                    code.u1(11); // T_LONG
+                    for (int i = 0; i < inst.rArgs.length; ++i) {
+                        code.u1(0x59); // dup
+                        pushInt(i);
+                        push(inst.rArgs[i]);
+                        code.u1(0x50); // lastore
+                    }
+                    if (inst.builtin != IRInterpreter.NOT_BUILTIN) invokeRuntime("callBuiltin", "(I[J)J", 3);
+                    else invokeRuntime("call", "(I[J)J", 3);
+                    if (inst.dest != null) endStore(inst.rDest);
+                    else code.u1(0x58); // pop2
+                    break;
+                case IRInterpreter.OP_DIV:
+                case IRInterpreter.OP_MOD:
+                    beginStore(inst.rDest);
+                    code.u1(0x2b); // aload_1
+                    push(inst.rOp1);
+                    push(inst.rOp2);
+                    invokeRuntime(inst.opcode == IRInterpreter.OP_DIV ? "div" : "mod", "(JJ)J", 5);
+                    endStore(inst.rDest);
+                    break;
+                case IRInterpreter.OP_MOVE:
+                    beginStore(inst.rDest);
+                    push(inst.rOp1);
+                    endStore(inst.rDest);
+                    break;
+                case IRInterpreter.OP_NEG:
+                    beginStore(inst.rDest);
+                    push(inst.rOp1);
+                    code.u1(0x75); // lneg
+                    endStore(inst.rDest);
+                    break;
+                case IRInterpreter.OP_NOT:
+                    beginStore(inst.rDest);
+                    push(inst.rOp1);
+                    pushLong(-1);
+                    code.u1(0x83); // lxor
+                    endStore(inst.rDest);
+                    break;
+                case IRInterpreter.OP_ADD:
+                    translateBinary(inst, 0x61); // ladd
+                    break;
+                case IRInterpreter.OP_SUB:
+                    translateBinary(inst, 0x65); // lsub
+                    break;
+                case IRInterpreter.OP_MUL:
+                    translateBinary(inst, 0x69); // lmul
+                    break;
+                case IRInterpreter.OP_AND:
+                    translateBinary(inst, 0x7f); // land
+                    break;
+                case IRInterpreter.OP_OR:
+                    translateBinary(inst, 0x81); // lor
+                    break;
+                case IRInterpreter.OP_XOR:
+                    translateBinary(inst, 0x83); // lxor
+                    break;
+                case IRInterpreter.OP_SHL:
+                case IRInterpreter.OP_SHR:
+                    beginStore(inst.rDest);
+                    push(inst.rOp1);
+                    push(inst.rOp2);
+                    code.u1(0x88); // l2i
+                    code.u1(inst.opcode == IRInterpreter.OP_SHL ? 0x79 : 0x7b); // lshl, lshr
+                    endStore(inst.rDest);
+                    break;
+                case IRInterpreter.OP_SLT:
+                    translateCompare(inst, 0x9b); // iflt
+                    break;
+                case IRInterpreter.OP_SGT:
+                    translateCompare(inst, 0x9d); // ifgt
+                    break;
+                case IRInterpreter.OP_SLE:
+                    translateCompare(inst, 0x9e); // ifle
+                    break;
+                case IRInterpreter.OP_SGE:
+                    translateCompare(inst, 0x9c); // ifge
+                    break;
+                case IRInterpreter.OP_SEQ:
+                    translateCompare(inst, 0x99); // ifeq
+                    break;
+                case IRInterpreter.OP_SNE:
+                    translateCompare(inst, 0x9a); // ifne
+                    break;
+                default:
+                    throw new RuntimeException("unknown opcode " + inst.opcode);
+            }
+        }
+    }
+
+    private void translateBinary(Instruction inst, int opcode) {
+        beginStore(inst.rDest);
+        push(inst.rOp1);
+        push(inst.rOp2);
+        code.u1(opcode);
+        endStore(inst.rDest);
+    }
+
+    private void translateCompare(Instruction inst, int branch) {
+        Label trueLabel = new Label();
+        Label endLabel = new Label();
+        beginStore(inst.rDest);
+        push(inst.rOp1);
+        push(inst.rOp2);
+        code.u1(0x94); // lcmp
+        code.jump16(branch, trueLabel);
+        code.u1(0x09); // lconst_0
+        code.jump16(0xa7, endLabel); // goto
+        code.bind(trueLabel);
+        code.u1(0x0a); // lconst_1
+        code.bind(endLabel);
+        endStore(inst.rDest);
+    }
+
+    // phi nodes of `to` read their values in parallel, then jump
+    private void translateEdge(BasicBlock from, BasicBlock to) {
+        PhiNode[] phis = to.phiNodes;
+        for (int i = 0; i < phis.length; ++i) {
+            push(phis[i].incoming.get(from));
+            code.local(0x37, tempBase + 2 * i); // lstore
+        }
+        for (int i = 0; i < phis.length; ++i) {
+            beginStore(phis[i].rDest);
+            code.local(0x16, tempBase + 2 * i); // lload
+            endStore(phis[i].rDest);
+        }
+        code.jump16(0xa7, blockLabels[to.index]); // goto
+    }
+
+    //====== operands
+
+    private void pushAddress(Instruction inst) {
+        if (inst.rOp1 != null) push(inst.rOp1);
+        else code.u1(0x09); // lconst_0
+        if (inst.rOp2 != null) {
+            push(inst.rOp2);
+            pushLong(inst.scale);
+            code.u1(0x69); // lmul
+            code.u1(0x61); // ladd
+        }
+        if (inst.offset != 0) {
+            pushLong(inst.offset);
+            code.u1(0x61); // ladd
+        }
+    }
+
+    private void push(Operand operand) {
+        switch (operand.kind) {
+            case Operand.LOCAL:
+                code.local(0x16, LOCAL_FIRST_REGISTER + 2 * operand.slot); // lload
+                return;
+            case Operand.IMMEDIATE:
+                pushLong(operand.value);
+                return;
+            case Operand.GLOBAL:
+                code.u1(0x2b); // aload_1
+                pushInt(operand.global.index);
+                invokeRuntime("readGlobal", "(I)J", 2);
+                return;
+            default:
+                code.u1(0x09); // lconst_0 for undef
+        }
+    }
+
+    // a global register is written through the runtime, whose arguments go below the value
+    private void beginStore(Operand operand) {
+        if (operand.kind == Operand.GLOBAL) {
+            code.u1(0x2b); // aload_1
+            pushInt(operand.global.index);
+        }
+    }
+
+    private void endStore(Operand operand) {
+        if (operand.kind == Operand.GLOBAL) invokeRuntime("writeGlobal", "(IJ)V", 4);
+        else storeLocal(operand.slot);
+    }
+
+    private void storeLocal(int slot) {
+        code.local(0x37, LOCAL_FIRST_REGISTER + 2 * slot); // lstore
+    }
+
+    private void pushLong(long value) {
+        if (value == 0) code.u1(0x09); // lconst_0
+        else if (value == 1) code.u1(0x0a); // lconst_1
+        else {
+            code.u1(0x14); // ldc2_w
+            code.u2(pool.longConstant(value));
+        }
+    }
+
+    private void pushInt(int value) {
+        if (value >= -1 && value <= 5) code.u1(0x03 + value); // iconst_<n>
+        else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            code.u1(0x10); // bipush
+            code.u1(value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            code.u1(0x11); // sipush
+            code.u2(value);
+        } else {
+            code.u1(0x13); // ldc_w
+            code.u2(pool.intConstant(value));
+        }
+    }
+
+    private void tick(int instructions) {
+        code.u1(0x2b); // aload_1
+        pushInt(instructions);
+        invokeRuntime("tick", "(I)V", 2);
+    }
+
+    private void invokeRuntime(String name, String descriptor, int argSlots) {
+        code.u1(0xb9); // invokeinterface
+        code.u2(pool.interfaceMethod(RUNTIME, name, descriptor));
+        code.u1(argSlots);
+        code.u1(0);
+    }
+
+    //====== class file
+
+    private byte[] writeClassFile(int maxLocals) {
+        String className = CLASS_PREFIX + classCnt.incrementAndGet();
+        int thisClass = pool.classEntry(className);
+        int superClass = pool.classEntry("java/lang/Object");
+        int interfaceClass = pool.classEntry("Compiler/IRInterpreter/JitFunction");
+        int objectInit = pool.method("java/lang/Object", "<init>", "()V");
+        int initName = pool.utf8("<init>");
+        int initType = pool.utf8("()V");
+        int invokeName = pool.utf8("invoke");
+        int invokeType = pool.utf8("(L" + RUNTIME + ";[JI)J");
+        int codeName = pool.utf8("Code");
+
+        ByteWriter out = new ByteWriter();
+        out.u4(0xCAFEBABE);
+        out.u2(0);
+        out.u2(49);
+        out.u2(pool.count);
+        out.bytes(pool.entries.toByteArray());
+        out.u2(0x0031); // public final super
+        out.u2(thisClass);
+        out.u2(superClass);
+        out.u2(1);
+        out.u2(interfaceClass);
+        out.u2(0); // fields
+        out.u2(2); // methods
+
+        // public <init>() { super(); }
+        out.u2(0x0001);
+        out.u2(initName);
+        out.u2(initType);
+        out.u2(1);
+        out.u2(codeName);
+        out.u4(12 + 5);
+        out.u2(1);
+        out.u2(1);
+        out.u4(5);
+        out.u1(0x2a); // aload_0
+        out.u1(0xb7); // invokespecial
+        out.u2(objectInit);
+        out.u1(0xb1); // return
+        out.u2(0);
+        out.u2(0);
+
+        // public long invoke(JitRuntime runtime, long[] registers, int entry)
+        out.u2(0x0001);
+        out.u2(invokeName);
+        out.u2(invokeType);
+        out.u2(1);
+        out.u2(codeName);
+        out.u4(12 + code.length);
+        out.u2(16); // max stack, enough for an address, a call argument array or a global store
+        out.u2(maxLocals);
+        out.u4(code.length);
+        out.bytes(Arrays.copyOf(code.bytes, code.length));
+        out.u2(0);
+        out.u2(0);
+
+        out.u2(0); // attributes
+        return out.toByteArray();
+    }
+
+    private static class ByteWriter {
+        byte[] bytes = new byte[256];
+        int length = 0;
+
+        void u1(int value) {
+            if (length == bytes.length) bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            bytes[length++] = (byte) value;
+        }
+
+        void u2(int value) {
+            u1(value >>> 8);
+            u1(value);
+        }
+
+        void u4(int value) {
+            u2(value >>> 16);
+            u2(value);
+        }
+
+        void bytes(byte[] data) {
+            for (byte b : data) u1(b);
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, length);
+        }
+    }
+
+    private static class ConstantPool {
+        ByteWriter entries = new ByteWriter();
+        Map<String, Integer> indices = new HashMap<>();
+        int count = 1;
+
+        int utf8(String value) {
+            Integer index = indices.get("U" + value);
+            if (index != null) return index;
+            entries.u1(1);
+            entries.u2(value.length());
+            for (char ch : value.toCharArray()) entries.u1(ch);
+            return add("U" + value, 1);
+        }
+
+        int classEntry(String name) {
+            Integer index = indices.get("C" + name);
+            if (index != null) return index;
+            int nameIndex = utf8(name);
+            entries.u1(7);
+            entries.u2(nameIndex);
+            return add("C" + name, 1);
+        }
+
+        int method(String owner, String name, String descriptor) {
+            return memberRef(10, owner, name, descriptor);
+        }
+
+        int interfaceMethod(String owner, String name, String descriptor) {
+            return memberRef(11, owner, name, descriptor);
+        }
+
+        private int memberRef(int tag, String owner, String name, String descriptor) {
+            String key = "M" + tag + owner + "." + name + descriptor;
+            Integer index = indices.get(key);
+            if (index != null) return index;
+            int ownerIndex = classEntry(owner);
+            int nameIndex = utf8(name);
+            int typeIndex = utf8(descriptor);
+            Integer nameAndType = indices.get("N" + name + descriptor);
+            if (nameAndType == null) {
+                entries.u1(12);
+                entries.u2(nameIndex);
+                entries.u2(typeIndex);
+                nameAndType = add("N" + name + descriptor, 1);
+            }
+            entries.u1(tag);
+            entries.u2(ownerIndex);
+            entries.u2(nameAndType);
+            return add(key, 1);
+        }
+
+        int longConstant(long value) {
+            Integer index = indices.get("J" + value);
+            if (index != null) return index;
+            entries.u1(5);
+            entries.u4((int) (value >>> 32));
+            entries.u4((int) value);
+            return add("J" + value, 2);
+        }
+
+        int intConstant(int value) {
+            Integer index = indices.get("I" + value);
+            if (index != null) return index;
+            entries.u1(3);
+            entries.u4(value);
+            return add("I" + value, 1);
+        }
+
+        private int add(String key, int size) {
+            int index = count;
+            indices.put(key, index);
+            count += size;
+            return index;
+        }
+    }
+
+    private static class Label {
+        int position = -1;
+    }
+
+    private static class Code extends ByteWriter {
+        // branches waiting for their labels: position of the instruction, position of the offset, size of the offset
+        private List<int[]> fixups = new ArrayList<>();
+        private List<Label> fixupLabels = new ArrayList<>();
+
+        void bind(Label label) {
+            label.position = length;
+        }
+
+        void jump16(int opcode, Label label) {
+            int pos = length;
+            u1(opcode);
+            fixups.add(new int[]{pos, length, 2});
+            fixupLabels.add(label);
+            u2(0);
+        }
+
+        void jump32(int pos, Label label) {
+            fixups.add(new int[]{pos, length, 4});
+            fixupLabels.add(label);
+            u4(0);
+        }
+
+        void local(int opcode, int index) {
+            if (index <= 0xFF) {
+                u1(opcode);
+                u1(index);
+            } else {
+                u1(0xc4); // wide
+                u1(opcode);
+                u2(index);
+            }
+        }
+
+        boolean resolve() {
+            if (length > 0xFFFF) return false;
+            for (int i = 0; i < fixups.size(); ++i) {
+                int[] fixup = fixups.get(i);
+                int offset = fixupLabels.get(i).position - fixup[0];
+                if (fixup[2] == 2) {
+                    if (Math.abs(offset) > MAX_BRANCH_OFFSET) return false;
+                    bytes[fixup[1]] = (byte) (offset >>> 8);
+                    bytes[fixup[1] + 1] = (byte) offset;
+                } else {
+                    for (int j = 0; j < 4; ++j) bytes[fixup[1] + j] = (byte) (offset >>> (24 - 8 * j));
+                }
+            }
+            return true;
+        }
+    }
+}
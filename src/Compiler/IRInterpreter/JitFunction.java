@@ -0,0 +1,11 @@
+package Compiler.IRInterpreter;
+
+/**
+ * A function of the IR translated into JVM bytecode by JitCompiler.
+ * <p>
+ * `registers` holds the initial value of every register slot of the function, `entry` is -1 to start at the entry
+ * block, or the index of a block to continue a running activation there (on-stack replacement).
+ */
+interface JitFunction {
+    long invoke(JitRuntime runtime, long[] registers, int entry) throws Exception;
+}
@@ -0,0 +1,28 @@
+package Compiler.IRInterpreter;
+
+/**
+ * Services the translated functions call back into the interpreter for.
+ * Errors are reported with the interpreter's own runtime errors, hence the `throws Exception`.
+ */
+interface JitRuntime {
+    // account for executed instructions and check the instruction limit
+    void tick(int instructions) throws Exception;
+
+    long load(long addr) throws Exception;
+
+    void store(long addr, long value) throws Exception;
+
+    long alloc(long size) throws Exception;
+
+    long div(long src1, long src2) throws Exception;
+
+    long mod(long src1, long src2) throws Exception;
+
+    long readGlobal(int index) throws Exception;
+
+    void writeGlobal(int index, long value) throws Exception;
+
+    long call(int function, long[] args) throws Exception;
+
+    long callBuiltin(int builtin, long[] args) throws Exception;
+}
@@ -0,0 +1,145 @@
+package Compiler.IRInterpreter;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Paged flat memory shared by the interpreters.
+ * <p>
+ * Memory is split into 4KB pages. Each page is a ByteBuffer (big-endian, the byte order the interpreters have always
+ * used for 8-byte values) together with a bitmap recording which bytes have been allocated, so that the
+ * "memory read violation" / "memory write violation" checks keep working without one boxed entry per byte.
+ */
+class PagedMemory {
+    static final int PAGE_BITS = 12;
+    static final int PAGE_SIZE = 1 << PAGE_BITS;
+    static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private Map<Long, Page> pages = new HashMap<>();
+    // most programs hit the same page again and again, so keep the last one at hand
+    private long lastPageIndex = -1;
+    private Page lastPage = null;
+
+    //====== allocation
+
+    // mark [addr, addr + size) as valid and fill it with zero
+    void allocate(long addr, long size) {
+        long end = addr + size;
+        while (addr < end) {
+            Page page = getOrCreatePage(addr >>> PAGE_BITS);
+            int begin = (int) (addr & PAGE_MASK);
+            int stop = (int) Math.min(PAGE_SIZE, begin + (end - addr));
+            Arrays.fill(page.bytes, begin, stop, (byte) 0);
+            page.setValid(begin, stop);
+            addr += stop - begin;
+        }
+    }
+
+    boolean isValid(long addr, int size) {
+        Page page = getPage(addr >>> PAGE_BITS);
+        int offset = (int) (addr & PAGE_MASK);
+        if (page != null && offset + size <= PAGE_SIZE) return page.isValid(offset, offset + size);
+        for (int i = 0; i < size; ++i) {
+            page = getPage((addr + i) >>> PAGE_BITS);
+            if (page == null || !page.isValid((int) ((addr + i) & PAGE_MASK))) return false;
+        }
+        return true;
+    }
+
+    //====== access, callers are expected to check validity first if they care about it
+    //====== bytes that were never written read as zero
+
+    int readByte(long addr) {
+        Page page = getPage(addr >>> PAGE_BITS);
+        return page == null ? 0 : page.bytes[(int) (addr & PAGE_MASK)] & 0xFF;
+    }
+
+    void writeByte(long addr, byte value) {
+        Page page = getOrCreatePage(addr >>> PAGE_BITS);
+        int offset = (int) (addr & PAGE_MASK);
+        page.bytes[offset] = value;
+        page.setValid(offset, offset + 1);
+    }
+
+    long readLong(long addr) {
+        int offset = (int) (addr & PAGE_MASK);
+        if (offset + 8 <= PAGE_SIZE) {
+            Page page = getPage(addr >>> PAGE_BITS);
+            return page == null ? 0 : page.buffer.getLong(offset);
+        }
+        long res = 0;
+        for (int i = 0; i < 8; ++i) res = (res << 8) | readByte(addr + i);
+        return res;
+    }
+
+    void writeLong(long addr, long value) {
+        int offset = (int) (addr & PAGE_MASK);
+        if (offset + 8 <= PAGE_SIZE) {
+            Page page = getOrCreatePage(addr >>> PAGE_BITS);
+            page.buffer.putLong(offset, value);
+            page.setValid(offset, offset + 8);
+            return;
+        }
+        for (int i = 8 - 1; i >= 0; --i) {
+            writeByte(addr + i, (byte) (value & 0xFF));
+            value >>= 8;
+        }
+    }
+
+    //====== pages
+
+    private Page getPage(long index) {
+        if (index == lastPageIndex) return lastPage;
+        Page page = pages.get(index);
+        if (page != null) {
+            lastPageIndex = index;
+            lastPage = page;
+        }
+        return page;
+    }
+
+    private Page getOrCreatePage(long index) {
+        Page page = getPage(index);
+        if (page == null) {
+            page = new Page();
+            pages.put(index, page);
+            lastPageIndex = index;
+            lastPage = page;
+        }
+        return page;
+    }
+
+    private static class Page {
+        byte[] bytes = new byte[PAGE_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        long[] valid = new long[PAGE_SIZE >>> 6];
+
+        boolean isValid(int offset) {
+            return (valid[offset >>> 6] & (1L << offset)) != 0;
+        }
+
+        // all bytes in [begin, end) are valid
+        boolean isValid(int begin, int end) {
+            for (int word = begin >>> 6; word <= (end - 1) >>> 6; ++word) {
+                long mask = rangeMask(word, begin, end);
+                if ((valid[word] & mask) != mask) return false;
+            }
+            return true;
+        }
+
+        void setValid(int begin, int end) {
+            for (int word = begin >>> 6; word <= (end - 1) >>> 6; ++word)
+                valid[word] |= rangeMask(word, begin, end);
+        }
+
+        // bits of `word` covered by [begin, end)
+        private static long rangeMask(int word, int begin, int end) {
+            int lo = Math.max(begin, word << 6) & 63;
+            int hi = Math.min(end, (word + 1) << 6) - (word << 6);
+            long mask = hi == 64 ? -1L : (1L << hi) - 1;
+            return mask & (-1L << lo);
+        }
+    }
+}
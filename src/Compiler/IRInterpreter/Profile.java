@@ -0,0 +1,186 @@
+package Compiler.IRInterpreter;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Execution counts collected by the interpreters, keyed by function and block name.
+ * <p>
+ * The profile file is plain text, one record per line, and the records after a `function` line belong to it:
+ * <pre>
+ * function &lt;name&gt; &lt;calls&gt;
+ * block &lt;name&gt; &lt;count&gt; &lt;instructions&gt;
+ * edge &lt;from&gt; &lt;to&gt; &lt;count&gt;
+ * call &lt;block&gt; &lt;index&gt; &lt;callee&gt; &lt;count&gt;
+ * phi &lt;block&gt; &lt;register&gt; &lt;count&gt;
+ * </pre>
+ * `instructions` is the number of dynamic instructions spent in the block, `index` is the position of the call among
+ * the instructions of its block.
+ */
+public class Profile {
+    private Map<String, FunctionProfile> functions = new LinkedHashMap<>();
+
+    public FunctionProfile getFunction(String name) {
+        return functions.get(name);
+    }
+
+    public FunctionProfile addFunction(String name) {
+        return functions.computeIfAbsent(name, FunctionProfile::new);
+    }
+
+    public Collection<FunctionProfile> getFunctions() {
+        return functions.values();
+    }
+
+    //====== file
+
+    public void write(PrintStream out) {
+        for (FunctionProfile function : functions.values()) {
+            out.println("function " + function.name + " " + function.calls);
+            function.blocks.forEach((name, block) -> out.println("block " + name + " " + block.count + " " + block.instructions));
+            function.edges.forEach((from, successors) ->
+                    successors.forEach((to, count) -> out.println("edge " + from + " " + to + " " + count)));
+            for (CallSite callSite : function.callSites.values())
+                out.println("call " + callSite.block + " " + callSite.index + " " + callSite.callee + " " + callSite.count);
+            function.phis.forEach((block, phis) ->
+                    phis.forEach((register, count) -> out.println("phi " + block + " " + register + " " + count)));
+        }
+    }
+
+    public static Profile read(InputStream in) throws IOException {
+        Profile profile = new Profile();
+        BufferedReader br = new BufferedReader(new InputStreamReader(in));
+        FunctionProfile function = null;
+        int lineno = 0;
+        for (String line = br.readLine(); line != null; line = br.readLine()) {
+            ++lineno;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            String[] words = line.split(" +");
+            try {
+                if (words[0].equals("function")) {
+                    function = profile.addFunction(words[1]);
+                    function.calls = Long.parseLong(words[2]);
+                    continue;
+                }
+                if (function == null) throw new IOException("profile line " + lineno + ": record outside of a function");
+                switch (words[0]) {
+                    case "block":
+                        function.addBlock(words[1], Long.parseLong(words[2]), Long.parseLong(words[3]));
+                        break;
+                    case "edge":
+                        function.addEdge(words[1], words[2], Long.parseLong(words[3]));
+                        break;
+                    case "call":
+                        function.addCallSite(words[1], Integer.parseInt(words[2]), words[3], Long.parseLong(words[4]));
+                        break;
+                    case "phi":
+                        function.addPhi(words[1], words[2], Long.parseLong(words[3]));
+                        break;
+                    default:
+                        throw new IOException("profile line " + lineno + ": unknown record `" + words[0] + "`");
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                throw new IOException("profile line " + lineno + ": malformed record");
+            }
+        }
+        return profile;
+    }
+
+    //====== report
+
+    // the functions and blocks where most of the dynamic instructions go
+    public void report(PrintStream out, int limit) {
+        long total = 0;
+        List<FunctionProfile> hotFunctions = new ArrayList<>(functions.values());
+        List<Map.Entry<String, BlockProfile>> hotBlocks = new ArrayList<>();
+        for (FunctionProfile function : functions.values()) {
+            total += function.getInstructions();
+            function.blocks.forEach((name, block) -> hotBlocks.add(new AbstractMap.SimpleEntry<>(function.name + " " + name, block)));
+        }
+        hotFunctions.sort(Comparator.comparingLong(FunctionProfile::getInstructions).reversed());
+        hotBlocks.sort(Comparator.comparingLong((Map.Entry<String, BlockProfile> entry) -> entry.getValue().instructions).reversed());
+
+        double percent = total == 0 ? 0 : 100.0 / total;
+        out.println("hot functions (of " + total + " instructions):");
+        for (FunctionProfile function : hotFunctions.subList(0, Math.min(limit, hotFunctions.size())))
+            out.printf("  %6.2f%% %12d  %s (%d calls)%n", function.getInstructions() * percent,
+                    function.getInstructions(), function.name, function.calls);
+        out.println("hot blocks:");
+        for (Map.Entry<String, BlockProfile> entry : hotBlocks.subList(0, Math.min(limit, hotBlocks.size())))
+            out.printf("  %6.2f%% %12d  %s (%d times)%n", entry.getValue().instructions * percent,
+                    entry.getValue().instructions, entry.getKey(), entry.getValue().count);
+    }
+
+    //====== counters of one function
+
+    public static class FunctionProfile {
+        public final String name;
+        public long calls;
+        public Map<String, BlockProfile> blocks = new LinkedHashMap<>();
+        public Map<String, Map<String, Long>> edges = new LinkedHashMap<>();
+        public Map<String, CallSite> callSites = new LinkedHashMap<>();
+        public Map<String, Map<String, Long>> phis = new LinkedHashMap<>();
+
+        FunctionProfile(String name) {
+            this.name = name;
+        }
+
+        public void addBlock(String block, long count, long instructions) {
+            BlockProfile res = blocks.computeIfAbsent(block, x -> new BlockProfile());
+            res.count += count;
+            res.instructions += instructions;
+        }
+
+        public void addEdge(String from, String to, long count) {
+            edges.computeIfAbsent(from, x -> new LinkedHashMap<>()).merge(to, count, Long::sum);
+        }
+
+        public void addCallSite(String block, int index, String callee, long count) {
+            CallSite res = callSites.computeIfAbsent(block + " " + index, x -> new CallSite(block, index, callee));
+            res.count += count;
+        }
+
+        public void addPhi(String block, String register, long count) {
+            phis.computeIfAbsent(block, x -> new LinkedHashMap<>()).merge(register, count, Long::sum);
+        }
+
+        public long getBlockCount(String block) {
+            BlockProfile res = blocks.get(block);
+            return res == null ? 0 : res.count;
+        }
+
+        public long getEdgeCount(String from, String to) {
+            Map<String, Long> successors = edges.get(from);
+            return successors == null ? 0 : successors.getOrDefault(to, 0L);
+        }
+
+        public CallSite getCallSite(String block, int index) {
+            return callSites.get(block + " " + index);
+        }
+
+        public long getInstructions() {
+            long res = 0;
+            for (BlockProfile block : blocks.values()) res += block.instructions;
+            return res;
+        }
+    }
+
+    public static class BlockProfile {
+        public long count;
+        public long instructions;
+    }
+
+    public static class CallSite {
+        public final String block;
+        public final int index;
+        public final String callee;
+        public long count;
+
+        CallSite(String block, int index, String callee) {
+            this.block = block;
+            this.index = index;
+            this.callee = callee;
+        }
+    }
+}
@@ -4,29 +4,114 @@ import Compiler.AST.ProgramNode;
 import Compiler.Backend.*;
 import Compiler.Frontend.*;
 import Compiler.IR.IRRoot;
+import Compiler.IRInterpreter.IRRootInterpreter;
+import Compiler.IRInterpreter.Profile;
 import Compiler.Optim.Optimizer;
 import Compiler.Parser.MxstarErrorListener;
 import Compiler.Parser.MxstarLexer;
 import Compiler.Parser.MxstarParser;
 import Compiler.Symbol.GlobalScope;
+import Compiler.Utils.TimeReport;
 import org.antlr.v4.runtime.CharStreams;
 import org.antlr.v4.runtime.CommonTokenStream;
 import org.antlr.v4.runtime.tree.ParseTree;
 
-import java.io.FileInputStream;
-import java.io.InputStream;
+import java.io.*;
+import java.util.Arrays;
 
 public class Main {
+    private static byte[] interpreterInput = null;
+
+    private interface Phase {
+        void run() throws Exception;
+    }
+
+    //run a phase of the compiler, measured for -ftime-report
+    private static void phase(String name, IRRoot irRoot, Phase phase) throws Exception {
+        TimeReport.begin(name, irRoot);
+        phase.run();
+        TimeReport.end(irRoot);
+    }
+
     private static ProgramNode buildAST(InputStream in) throws Exception {
+        TimeReport.begin("parse");
         MxstarParser parser = new MxstarParser(new CommonTokenStream(new MxstarLexer(CharStreams.fromStream(in))));
         parser.removeErrorListeners();
         parser.addErrorListener(new MxstarErrorListener());
         ParseTree tree = parser.program();
+        TimeReport.end();
+        TimeReport.begin("ASTBuilder");
         ASTBuilder astBuilder = new ASTBuilder();
-        return (ProgramNode) astBuilder.visit(tree);
+        ProgramNode ast = (ProgramNode) astBuilder.visit(tree);
+        TimeReport.end();
+        return ast;
+    }
+
+    private static void parseArguments(String... args) {
+        for (String arg : args) {
+            if (arg.startsWith("-finterpret="))
+                Configuration.INTERPRET_PHASES.addAll(Arrays.asList(arg.substring("-finterpret=".length()).split(",")));
+            else if (arg.startsWith("-fprofile-generate="))
+                Configuration.PROFILE_GENERATE = arg.substring("-fprofile-generate=".length());
+            else if (arg.startsWith("-fprofile-use="))
+                Configuration.PROFILE_USE = arg.substring("-fprofile-use=".length());
+            else if (arg.startsWith("-foptim-threads="))
+                Configuration.OPTIM_THREADS = Integer.parseInt(arg.substring("-foptim-threads=".length()));
+            else if (arg.startsWith("-funroll-factor="))
+                Configuration.UNROLL_FACTOR = Integer.parseInt(arg.substring("-funroll-factor=".length()));
+            else if (arg.startsWith("-fstack-alloc-limit="))
+                Configuration.STACK_ALLOCATION_LIMIT = Integer.parseInt(arg.substring("-fstack-alloc-limit=".length()));
+            else if (arg.equals("-fregalloc=graph") || arg.equals("-fregalloc=linear") || arg.equals("-fregalloc=ssa"))
+                Configuration.REGISTER_ALLOCATOR = arg.substring("-fregalloc=".length());
+            else if (arg.equals("-ftime-report"))
+                Configuration.TIME_REPORT = "table";
+            else if (arg.equals("-ftime-report=json"))
+                Configuration.TIME_REPORT = "json";
+            else throw new RuntimeException("unknown argument " + arg);
+        }
+    }
+
+    //run the IR in process after the given phase if asked to, the program reads stdin and writes to stderr
+    //every run sees the same input, so that the phases can be compared
+    private static void interpret(String phase, IRRoot irRoot) throws IOException {
+        if (!Configuration.INTERPRET_PHASES.contains(phase) && !Configuration.INTERPRET_PHASES.contains("all")) return;
+        IRRootInterpreter interpreter = new IRRootInterpreter(irRoot, getInterpreterInput(), System.err);
+        interpreter.run();
+        System.err.printf("[interpret %s] exitcode: %d, instructions: %d, %.3f ms%n", phase,
+                interpreter.getExitcode(), interpreter.getInstructionCount(), interpreter.getElapsedTime() / 1e6);
+    }
+
+    private static InputStream getInterpreterInput() throws IOException {
+        if (interpreterInput == null) interpreterInput = System.in.readAllBytes();
+        return new ByteArrayInputStream(interpreterInput);
+    }
+
+    //-fprofile-generate: run the program on stdin and write its block counts, the blocks are still the ones IRBuilder made
+    //-fprofile-use: attach the counts of an earlier run to the same blocks
+    private static void profile(IRRoot irRoot) throws IOException {
+        if (Configuration.PROFILE_GENERATE != null) {
+            IRRootInterpreter interpreter = new IRRootInterpreter(irRoot, getInterpreterInput(), System.err);
+            interpreter.setProfiling(true);
+            interpreter.run();
+            //the counts of a run that stopped at an error would guide the compile with a path it never finished
+            if (interpreter.exitException()) throw new RuntimeException("the profiling run stopped at an error");
+            Profile profile = interpreter.getProfile();
+            try (PrintStream out = new PrintStream(new FileOutputStream(Configuration.PROFILE_GENERATE))) {
+                profile.write(out);
+            }
+            profile.report(System.err, 10);
+        }
+        if (Configuration.PROFILE_USE != null) {
+            Profile profile;
+            try (InputStream in = new FileInputStream(Configuration.PROFILE_USE)) {
+                profile = Profile.read(in);
+            }
+            new ProfileAnnotator(irRoot, profile).run();
+        }
     }
 
     public static void main(String... args) throws Exception {
+        parseArguments(args);
         //for program to be compiled
         InputStream in = new FileInputStream("test.txt");
 
@@ -35,48 +120,63 @@ public class Main {
             ProgramNode ast = buildAST(in);
 
             //Semantic Analysis
+            TimeReport.begin("BuiltinSymbolsInitializer");
             GlobalScope globalScope = (new BuiltinSymbolsInitializer(ast)).getGlobalScope();
-            new ClassDeclarationScanner(globalScope).visit(ast);
-            new GlobalFunctionDeclarationScanner(globalScope).visit(ast);
-            new ClassMemberScanner(globalScope).visit(ast);
-            new SymbolTableBuilder(globalScope).visit(ast);
-            new SemanticChecker(globalScope).visit(ast);
+            TimeReport.end();
+            phase("ClassDeclarationScanner", null, () -> new ClassDeclarationScanner(globalScope).visit(ast));
+            phase("GlobalFunctionDeclarationScanner", null, () -> new GlobalFunctionDeclarationScanner(globalScope).visit(ast));
+            phase("ClassMemberScanner", null, () -> new ClassMemberScanner(globalScope).visit(ast));
+            phase("SymbolTableBuilder", null, () -> new SymbolTableBuilder(globalScope).visit(ast));
+            phase("SemanticChecker", null, () -> new SemanticChecker(globalScope).visit(ast));
 
             //HIR optimization
-            new BoolExpressionTransformer().visit(ast);
-            new SideEffectSolver(globalScope).visit(ast);
-            new OutputIrrelevantCodeEliminator(globalScope).visit(ast);
+            phase("BoolExpressionTransformer", null, () -> new BoolExpressionTransformer().visit(ast));
+            phase("SideEffectSolver", null, () -> new SideEffectSolver(globalScope).visit(ast));
+            phase("OutputIrrelevantCodeEliminator", null, () -> new OutputIrrelevantCodeEliminator(globalScope).visit(ast));
 
             //LIR Construction (Explicit CFG with Quad & Explicit Variables without SSA form )
+            TimeReport.begin("IRBuilder");
             IRBuilder irBuilder = new IRBuilder(globalScope);
             irBuilder.visit(ast);
             IRRoot irRoot = irBuilder.getIrRoot();
-            new FunctionInliner(irRoot).run();
+            TimeReport.end(irRoot);
+            interpret("build", irRoot);
+            phase("profile", irRoot, () -> profile(irRoot));
+            phase("FunctionInliner", irRoot, () -> new FunctionInliner(irRoot).run());
+            interpret("inline", irRoot);
             //new MemorizationSeeker(irRoot).run();
-            new GlobalVariableResolver(irRoot).run();
+            phase("GlobalVariableResolver", irRoot, () -> new GlobalVariableResolver(irRoot).run());
+            interpret("global", irRoot);
 
             //LIR Optimization based on SSA
             Optimizer optimizer = new Optimizer(irRoot);
-            optimizer.CFGSimplification();
-            optimizer.SSAConstruction();
-            for (boolean changed = true; changed; ) {
-                changed = optimizer.CommonSubexpressionElimination();
-                changed |= optimizer.ConstantAndCopyPropagation();
-                changed |= optimizer.CFGSimplification();
-                changed |= optimizer.DeadCodeElimination();
-                changed |= optimizer.CFGSimplification();
+            phase("CFGSimplification", irRoot, optimizer::CFGSimplification);
+            phase("SSAConstruction", irRoot, optimizer::SSAConstruction);
+            interpret("ssa", irRoot);
+            phase("SSAOptimization", irRoot, optimizer::SSAOptimization);
+            interpret("optim", irRoot);
+            phase("InstructionCombination", irRoot, optimizer::InstructionCombination);
+            interpret("combine", irRoot);
+            //the SSA allocator takes the phis to the end and turns them into copies itself
+            boolean ssaAllocation = Configuration.REGISTER_ALLOCATOR.equals("ssa");
+            if (!ssaAllocation) {
+                phase("SSADestruction", irRoot, optimizer::SSADestruction);
+                phase("CFGSimplification after SSADestruction", irRoot, () -> optimizer.CFGSimplification(true));
+                interpret("destruct", irRoot);
             }
-            optimizer.InstructionCombination();
-            optimizer.SSADestruction();
-            optimizer.CFGSimplification(true);
 
             //Codegen
-            optimizer.ArithmeticTransformation();
-            new X86ConstraintResolver(irRoot).run();
-            optimizer.SpillPriorityCalculation();
-            new RegisterAllocator(irRoot).run();
-            optimizer.CFGSimplification(true);
-            new X86CodeEmitter(irRoot, System.out).run();
+            phase("ArithmeticTransformation", irRoot, optimizer::ArithmeticTransformation);
+            phase("X86ConstraintResolver", irRoot, () -> new X86ConstraintResolver(irRoot).run());
+            phase("SpillPriorityCalculation", irRoot, optimizer::SpillPriorityCalculation);
+            phase("RegisterAllocator", irRoot, () -> {
+                if (ssaAllocation) new SSARegisterAllocator(irRoot).run();
+                else if (Configuration.REGISTER_ALLOCATOR.equals("linear")) new LinearScanAllocator(irRoot).run();
+                else new RegisterAllocator(irRoot).run();
+            });
+            phase("CFGSimplification after RegisterAllocator", irRoot, () -> optimizer.CFGSimplification(true));
+            phase("X86CodeEmitter", irRoot, () -> new X86CodeEmitter(irRoot, System.out).run());
+            TimeReport.report(System.err);
 
         } catch (Exception e) {
             e.printStackTrace();
@@ -0,0 +1,64 @@
+package Compiler.Optim;
+
+import Compiler.IR.Function;
+import Compiler.IR.IRRoot;
+import Compiler.IR.Instruction.Call;
+import Compiler.IR.Instruction.IRInstruction;
+import Compiler.IR.Instruction.Load;
+import Compiler.IR.Instruction.Store;
+import Compiler.IR.Operand.GlobalVariable;
+import Compiler.IR.Operand.Operand;
+
+import java.util.Set;
+
+//Type-based Alias Analysis
+//        The IR has no types, so IRBuilder tags the loads and stores through pointers with what they access: a member of
+//        a class by the class and its offset, an element of an array by the type of the array, or the size of an array.
+//        Mx* has no casts and no pointer arithmetic, so accesses with different tags never overlap. Global variables are
+//        accessed by their operand and never overlap with the heap either. Accesses without a tag, which later passes
+//        create, may be to anything.
+//        A location is a tag, a global variable or ANY. A call writes ANY unless the callee is side-effect free or a
+//        builtin, and reads ANY unless it is a builtin: the builtins only read strings, which are never stored to.
+//TBAA
+
+final class AliasAnalysis {
+    static final Object ANY = "any";
+
+    private AliasAnalysis() {
+    }
+
+    //the location a load reads or a store writes
+    static Object locationOf(IRInstruction irInstruction) {
+        Operand address = irInstruction instanceof Load ? ((Load) irInstruction).getSrc() : ((Store) irInstruction).getDst();
+        if (address instanceof GlobalVariable) return address;
+        String tag = irInstruction instanceof Load ? ((Load) irInstruction).getAliasTag() : ((Store) irInstruction).getAliasTag();
+        return tag == null ? ANY : tag;
+    }
+
+    //the location `irInstruction` may write, null for none
+    static Object writtenLocation(IRRoot irRoot, IRInstruction irInstruction) {
+        if (irInstruction instanceof Store) return locationOf(irInstruction);
+        if (irInstruction instanceof Call) {
+            Function callee = ((Call) irInstruction).getCallee();
+            return callee.sideEffectFree || irRoot.builtinFunctions.contains(callee) ? null : ANY;
+        }
+        return null;
+    }
+
+    //the location `irInstruction` may read, null for none
+    static Object readLocation(IRRoot irRoot, IRInstruction irInstruction) {
+        if (irInstruction instanceof Load) return locationOf(irInstruction);
+        if (irInstruction instanceof Call) return irRoot.builtinFunctions.contains(((Call) irInstruction).getCallee()) ? null : ANY;
+        return null;
+    }
+
+    static boolean mayAlias(Object location1, Object location2) {
+        return location1 == ANY || location2 == ANY || location1.equals(location2);
+    }
+
+    //whether `location` may alias one of `locations`
+    static boolean mayAliasAny(Object location, Set<Object> locations) {
+        if (locations.isEmpty()) return false;
+        return location == ANY || locations.contains(ANY) || locations.contains(location);
+    }
+}
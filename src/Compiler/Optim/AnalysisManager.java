@@ -0,0 +1,115 @@
+package Compiler.Optim;
+
+import Compiler.IR.BasicBlock;
+import Compiler.IR.Function;
+import Compiler.IR.Instruction.IRInstruction;
+import Compiler.IR.Operand.Register;
+import Compiler.Utils.TimeReport;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+//Analysis Manager
+//Keeps the results of the function analyses of Pass until a pass changes what they were computed from, in the style of
+//LLVM's new pass manager. After a pass runs on a function it tells the manager which analyses it preserved and the
+//others are dropped, together with the analyses that were derived from them. The dominator trees and frontiers live in
+//the blocks, the manager only knows whether they are up to date; def-use chains and loops are kept here.
+//Passes run on different functions at the same time, but never on the same function, so the state of a function is
+//only touched by one thread at a time.
+//LLVM Pass
+
+class AnalysisManager {
+    enum Analysis {DOMINATOR_TREE, DOMINANCE_FRONTIER, POST_DOMINATOR_TREE, POST_DOMINANCE_FRONTIER, DEF_USE, LOOPS}
+
+    //analyses that only depend on the CFG, kept by passes that change instructions but not the edges between blocks
+    static final Set<Analysis> CFG = Collections.unmodifiableSet(EnumSet.of(Analysis.DOMINATOR_TREE, Analysis.DOMINANCE_FRONTIER,
+            Analysis.POST_DOMINATOR_TREE, Analysis.POST_DOMINANCE_FRONTIER, Analysis.LOOPS));
+    static final Set<Analysis> ALL = Collections.unmodifiableSet(EnumSet.allOf(Analysis.class));
+    static final Set<Analysis> NONE = Collections.unmodifiableSet(EnumSet.noneOf(Analysis.class));
+
+    private Map<Function, Set<Analysis>> valid = new ConcurrentHashMap<>();
+    private Map<Function, DefUseChain> defUseChains = new ConcurrentHashMap<>();
+    private Map<Function, LoopInformation> loopInformation = new ConcurrentHashMap<>();
+
+    static class DefUseChain {
+        Map<Register, IRInstruction> def;
+        Map<Register, Set<IRInstruction>> use;
+    }
+
+    static class LoopInformation {
+        Set<BasicBlock> loopHeaders;
+        Map<BasicBlock, Set<BasicBlock>> loopBackers;
+        Map<BasicBlock, Set<BasicBlock>> belongingLoopHeaders;
+        Map<BasicBlock, Set<BasicBlock>> loopGroups;
+        Map<BasicBlock, Set<BasicBlock>> loopExits;
+    }
+
+    private static Set<Analysis> dependencies(Analysis analysis) {
+        switch (analysis) {
+            case DOMINANCE_FRONTIER:
+            case LOOPS:
+                return EnumSet.of(Analysis.DOMINATOR_TREE);
+            case POST_DOMINANCE_FRONTIER:
+                return EnumSet.of(Analysis.POST_DOMINATOR_TREE);
+            default:
+                return NONE;
+        }
+    }
+
+    private Set<Analysis> validOf(Function function) {
+        return valid.computeIfAbsent(function, x -> EnumSet.noneOf(Analysis.class));
+    }
+
+    //whether `analysis` of `function` is up to date, counted for -ftime-report
+    boolean isValid(Function function, Analysis analysis) {
+        boolean res = validOf(function).contains(analysis);
+        if (TimeReport.enabled())
+            TimeReport.count(analysis.name().toLowerCase().replace('_', ' ') + (res ? " reused" : " computed"), 1);
+        return res;
+    }
+
+    void markValid(Function function, Analysis analysis) {
+        validOf(function).add(analysis);
+    }
+
+    DefUseChain getDefUseChain(Function function) {
+        return defUseChains.get(function);
+    }
+
+    void setDefUseChain(Function function, DefUseChain defUseChain) {
+        defUseChains.put(function, defUseChain);
+        markValid(function, Analysis.DEF_USE);
+    }
+
+    LoopInformation getLoopInformation(Function function) {
+        return loopInformation.get(function);
+    }
+
+    void setLoopInformation(Function function, LoopInformation information) {
+        loopInformation.put(function, information);
+        markValid(function, Analysis.LOOPS);
+    }
+
+    //drop the analyses of `function` that a pass did not preserve
+    void invalidate(Function function, Set<Analysis> preserved) {
+        Set<Analysis> analyses = validOf(function);
+        analyses.retainAll(preserved);
+        for (boolean changed = true; changed; ) {
+            changed = false;
+            for (Iterator<Analysis> iterator = analyses.iterator(); iterator.hasNext(); )
+                if (!analyses.containsAll(dependencies(iterator.next()))) {
+                    iterator.remove();
+                    changed = true;
+                }
+        }
+        if (!analyses.contains(Analysis.DEF_USE)) defUseChains.remove(function);
+        if (!analyses.contains(Analysis.LOOPS)) loopInformation.remove(function);
+    }
+
+    //forget everything, for when the IR was changed by code that does not report to the manager
+    void clear() {
+        valid.clear();
+        defUseChains.clear();
+        loopInformation.clear();
+    }
+}
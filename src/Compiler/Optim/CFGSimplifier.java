@@ -9,8 +9,10 @@ import Compiler.IR.Instruction.Jump;
 import Compiler.IR.Instruction.Phi;
 import Compiler.IR.Operand.Immediate;
 
+import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 
 //Simplify the CFG
 //        Performs dead code elimination and basic block merging. Specifically:
@@ -27,22 +29,29 @@ class CFGSimplifier extends Pass {
 
     @Override
     boolean run() {
-        changed = false;
-        irRoot.getFunctionMap().forEach((name, function) -> {
-            convertClearBranch(function);
-            removeUnreachableBB(function);
-        });
+        changed = !run(irRoot.getFunctionMap().values()).isEmpty();
         return changed;
     }
 
+    Set<Function> run(Collection<Function> functions) {
+        return changedFunctions(runOnFunctions(functions, () -> new CFGSimplifier(irRoot), (pass, function) -> {
+            pass.convertClearBranch(function);
+            pass.removeUnreachableBB(function);
+        }));
+    }
+
+    @Override
+    Set<AnalysisManager.Analysis> preservedAnalyses() {
+        return changed ? AnalysisManager.NONE : AnalysisManager.ALL;
+    }
+
     boolean runMore() {
-        changed = false;
-        irRoot.getFunctionMap().forEach((name, function) -> {
-            convertClearBranch(function);
-            eliminateSingleBranchBB(function);
-            removeUnreachableBB(function);
-            mergeBB(function);
-        });
+        changed = anyChanged(runOnFunctions(() -> new CFGSimplifier(irRoot), (pass, function) -> {
+            pass.convertClearBranch(function);
+            pass.eliminateSingleBranchBB(function);
+            pass.removeUnreachableBB(function);
+            pass.mergeBB(function);
+        }));
         return changed;
     }
 
@@ -1,13 +1,12 @@
 package Compiler.Optim;
 
+import Compiler.IR.BasicBlock;
 import Compiler.IR.Function;
 import Compiler.IR.IRRoot;
 import Compiler.IR.Instruction.*;
 import Compiler.IR.Operand.*;
 
-import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.Set;
+import java.util.*;
 
 //Simple constant propagation
 //        This pass implements constant propagation and merging. It looks for instructions involving only constant operands and replaces them with a constant value instead of an instruction. For example:
@@ -16,25 +15,57 @@ import java.util.Set;
 //        i32 3
 //        NOTE: this pass has a habit of making definitions be dead. It is a good idea to run a Dead Instruction Elimination pass sometime after running this pass.
 //LLVM Pass
-
-// TODO : SCCP
+//The constants are found by SCCP first, see sparseConditionalConstantPropagation.
 
 class ConstantAndCopyPropagator extends Pass {
+    //strings folded in this function, added to IRRoot once all functions are done
+    private List<StaticString> newStaticStrings = new ArrayList<>();
+    private Map<GlobalVariable, String> newStaticStringValMap = new HashMap<>();
+    //copies without uses are dropped without counting as a change, but the def-use chain is stale afterwards
+    private boolean removedUnusedCopies = false;
+    //SCCP state: the lattice value of each register, the executable blocks and the executable edges into each block
+    private static final long UNDEFINED = Long.MIN_VALUE, OVERDEFINED = Long.MAX_VALUE;
+    private Map<Register, Long> latticeValue;
+    private Set<BasicBlock> executableBlocks;
+    private Map<BasicBlock, Set<BasicBlock>> executableEdges;
+    private ArrayDeque<BasicBlock[]> flowWorkList;
+    private ArrayDeque<IRInstruction> ssaWorkList;
+
     ConstantAndCopyPropagator(IRRoot irRoot) {
         super(irRoot);
     }
 
     @Override
     boolean run() {
-        changed = false;
-        irRoot.getFunctionMap().values().forEach(function -> {
-            calcDefUseChain(function);
-            constantAndCopyPropagation(function);
-        });
+        changed = !run(irRoot.getFunctionMap().values()).isEmpty();
         return changed;
     }
 
+    Set<Function> run(Collection<Function> functions) {
+        List<ConstantAndCopyPropagator> passes = runOnFunctions(functions, () -> new ConstantAndCopyPropagator(irRoot), ConstantAndCopyPropagator::constantAndCopyPropagation);
+        passes.forEach(pass -> pass.newStaticStrings.forEach(irRoot::addStaticString));
+        return changedFunctions(passes);
+    }
+
+    //operands are rewritten and instructions replaced in place, the CFG stays as it is
+    @Override
+    Set<AnalysisManager.Analysis> preservedAnalyses() {
+        return changed || removedUnusedCopies ? AnalysisManager.CFG : AnalysisManager.ALL;
+    }
+
+    private void addStaticString(StaticString staticString) {
+        newStaticStrings.add(staticString);
+        newStaticStringValMap.put((GlobalVariable) staticString.getBase(), staticString.getVal());
+    }
+
+    private String stringValue(GlobalVariable globalVariable) {
+        String res = newStaticStringValMap.get(globalVariable);
+        return res != null ? res : irRoot.staticStringValMap.get(globalVariable);
+    }
+
     private void constantAndCopyPropagation(Function function) {
+        calcDefUseChain(function);
+        sparseConditionalConstantPropagation(function);
         LinkedList<IRInstruction> workList = getAllStatements(function);
         Set<IRInstruction> inQueue = new HashSet<>(workList);
         while (!workList.isEmpty()) {
@@ -55,41 +86,7 @@ class ConstantAndCopyPropagator extends Pass {
                 Binary inst = (Binary) S;
                 if (inst.getSrc1() instanceof Immediate && inst.getSrc2() instanceof Immediate) {
                     changed = true;
-                    int src1 = ((Immediate) inst.getSrc1()).getImmediate(), src2 = ((Immediate) inst.getSrc2()).getImmediate(), res;
-                    switch (inst.getOp()) {
-                        case ADD:
-                            res = src1 + src2;
-                            break;
-                        case SUB:
-                            res = src1 - src2;
-                            break;
-                        case MUL:
-                            res = src1 * src2;
-                            break;
-                        case OR:
-                            res = src1 | src2;
-                            break;
-                        case AND:
-                            res = src1 & src2;
-                            break;
-                        case XOR:
-                            res = src1 ^ src2;
-                            break;
-                        case DIV:
-                            res = src2 == 0 ? 0 : src1 / src2;
-                            break;
-                        case MOD:
-                            res = src2 == 0 ? 0 : src1 % src2;
-                            break;
-                        case SHL:
-                            res = src1 << src2;
-                            break;
-                        case SHR:
-                            res = src1 >> src2;
-                            break;
-                        default:
-                            throw new RuntimeException();
-                    }
+                    int res = evaluate(inst.getOp(), ((Immediate) inst.getSrc1()).getImmediate(), ((Immediate) inst.getSrc2()).getImmediate());
                     Move newMove = new Move(inst.getCurrentBB(), new Immediate(res), inst.getDst());
                     S.replaceInstruction(newMove);
                     workList.add(newMove);
@@ -117,26 +114,7 @@ class ConstantAndCopyPropagator extends Pass {
                 Unary inst = (Unary) S;
                 if (inst.getSrc() instanceof Immediate) {
                     changed = true;
-                    int src = ((Immediate) inst.getSrc()).getImmediate(), res;
-                    switch (inst.getOp()) {
-                        case DEC:
-                            res = src - 1;
-                            break;
-                        case INC:
-                            res = src + 1;
-                            break;
-                        case NOT:
-                            res = ~src;
-                            break;
-                        case NEG:
-                            res = -src;
-                            break;
-                        case POS:
-                            res = src;
-                            break;
-                        default:
-                            throw new RuntimeException();
-                    }
+                    int res = evaluate(inst.getOp(), ((Immediate) inst.getSrc()).getImmediate());
                     Move newMove = new Move(inst.getCurrentBB(), new Immediate(res), inst.getDst());
                     S.replaceInstruction(newMove);
                     workList.add(newMove);
@@ -146,29 +124,7 @@ class ConstantAndCopyPropagator extends Pass {
                 Cmp inst = (Cmp) S;
                 if (inst.getSrc1() instanceof Immediate && inst.getSrc2() instanceof Immediate) {
                     changed = true;
-                    int src1 = ((Immediate) inst.getSrc1()).getImmediate(), src2 = ((Immediate) inst.getSrc2()).getImmediate(), res;
-                    switch (inst.getOp()) {
-                        case LT:
-                            res = src1 < src2 ? 1 : 0;
-                            break;
-                        case EQ:
-                            res = src1 == src2 ? 1 : 0;
-                            break;
-                        case GT:
-                            res = src1 > src2 ? 1 : 0;
-                            break;
-                        case GEQ:
-                            res = src1 >= src2 ? 1 : 0;
-                            break;
-                        case LEQ:
-                            res = src1 <= src2 ? 1 : 0;
-                            break;
-                        case NEQ:
-                            res = src1 != src2 ? 1 : 0;
-                            break;
-                        default:
-                            throw new RuntimeException();
-                    }
+                    int res = evaluate(inst.getOp(), ((Immediate) inst.getSrc1()).getImmediate(), ((Immediate) inst.getSrc2()).getImmediate());
                     Move newMove = new Move(inst.getCurrentBB(), new Immediate(res), inst.getDst());
                     S.replaceInstruction(newMove);
                     workList.add(newMove);
@@ -186,45 +142,45 @@ class ConstantAndCopyPropagator extends Pass {
                 if (callee == irRoot.builtinStringAdd) {
                     if (check1 && check2) {
                         changed = true;
-                        String res = irRoot.staticStringValMap.get(lhs) + irRoot.staticStringValMap.get(rhs);
+                        String res = stringValue(lhs) + stringValue(rhs);
                         StaticString staticString = new StaticString(new GlobalI64Value("__str_const", true), res);
-                        irRoot.addStaticString(staticString);
+                        addStaticString(staticString);
                         S.replaceInstruction(new Move(S.getCurrentBB(), staticString.getBase(), ((Call) S).getResult()));
                     }
                 } else if (callee == irRoot.builtinStringLT) {
                     if (check1 && check2) {
                         changed = true;
-                        int res = irRoot.staticStringValMap.get(lhs).compareTo(irRoot.staticStringValMap.get(rhs)) < 0 ? 1 : 0;
+                        int res = stringValue(lhs).compareTo(stringValue(rhs)) < 0 ? 1 : 0;
                         S.replaceInstruction(new Move(S.getCurrentBB(), new Immediate(res), ((Call) S).getResult()));
                     }
                 } else if (callee == irRoot.builtinStringLEQ) {
                     if (check1 && check2) {
                         changed = true;
-                        int res = irRoot.staticStringValMap.get(lhs).compareTo(irRoot.staticStringValMap.get(rhs)) <= 0 ? 1 : 0;
+                        int res = stringValue(lhs).compareTo(stringValue(rhs)) <= 0 ? 1 : 0;
                         S.replaceInstruction(new Move(S.getCurrentBB(), new Immediate(res), ((Call) S).getResult()));
                     }
                 } else if (callee == irRoot.builtinStringEQ) {
                     if (check1 && check2) {
                         changed = true;
-                        int res = irRoot.staticStringValMap.get(lhs).compareTo(irRoot.staticStringValMap.get(rhs)) == 0 ? 1 : 0;
+                        int res = stringValue(lhs).compareTo(stringValue(rhs)) == 0 ? 1 : 0;
                         S.replaceInstruction(new Move(S.getCurrentBB(), new Immediate(res), ((Call) S).getResult()));
                     }
                 } else if (callee == irRoot.builtinStringGEQ) {
                     if (check1 && check2) {
                         changed = true;
-                        int res = irRoot.staticStringValMap.get(lhs).compareTo(irRoot.staticStringValMap.get(rhs)) >= 0 ? 1 : 0;
+                        int res = stringValue(lhs).compareTo(stringValue(rhs)) >= 0 ? 1 : 0;
                         S.replaceInstruction(new Move(S.getCurrentBB(), new Immediate(res), ((Call) S).getResult()));
                     }
                 } else if (callee == irRoot.builtinStringGT) {
                     if (check1 && check2) {
                         changed = true;
-                        int res = irRoot.staticStringValMap.get(lhs).compareTo(irRoot.staticStringValMap.get(rhs)) > 0 ? 1 : 0;
+                        int res = stringValue(lhs).compareTo(stringValue(rhs)) > 0 ? 1 : 0;
                         S.replaceInstruction(new Move(S.getCurrentBB(), new Immediate(res), ((Call) S).getResult()));
                     }
                 } else if (callee == irRoot.builtinStringNEQ) {
                     if (check1 && check2) {
                         changed = true;
-                        int res = irRoot.staticStringValMap.get(lhs).compareTo(irRoot.staticStringValMap.get(rhs)) != 0 ? 1 : 0;
+                        int res = stringValue(lhs).compareTo(stringValue(rhs)) != 0 ? 1 : 0;
                         S.replaceInstruction(new Move(S.getCurrentBB(), new Immediate(res), ((Call) S).getResult()));
                     }
                 } else if (callee == irRoot.builtinToString) {
@@ -232,13 +188,13 @@ class ConstantAndCopyPropagator extends Pass {
                         changed = true;
                         int res = ((Immediate) ((Call) S).getParameterList().get(0)).getImmediate();
                         StaticString staticString = new StaticString(new GlobalI64Value("__str_const", true), String.valueOf(res));
-                        irRoot.addStaticString(staticString);
+                        addStaticString(staticString);
                         S.replaceInstruction(new Move(S.getCurrentBB(), staticString.getBase(), ((Call) S).getResult()));
                     }
                 } else if (callee == irRoot.builtinStringLength) {
                     if (check0) {
                         changed = true;
-                        int res = irRoot.staticStringValMap.get(_this).length();
+                        int res = stringValue(_this).length();
                         S.replaceInstruction(new Move(S.getCurrentBB(), new Immediate(res), ((Call) S).getResult()));
                     }
                 } else if (callee == irRoot.builtinSubstring) {
@@ -247,16 +203,16 @@ class ConstantAndCopyPropagator extends Pass {
                             changed = true;
                             int left = ((Immediate) ((Call) S).getParameterList().get(0)).getImmediate();
                             int right = ((Immediate) ((Call) S).getParameterList().get(1)).getImmediate() + 1;
-                            String res = irRoot.staticStringValMap.get(_this).substring(left, right);
+                            String res = stringValue(_this).substring(left, right);
                             StaticString staticString = new StaticString(new GlobalI64Value("__str__const", true), res);
-                            irRoot.addStaticString(staticString);
+                            addStaticString(staticString);
                             S.replaceInstruction(new Move(S.getCurrentBB(), staticString.getBase(), ((Call) S).getResult()));
                         }
                     }
                 } else if (callee == irRoot.builtinParseInt) {
                     if (check0) {
                         changed = true;
-                        String str = irRoot.staticStringValMap.get(_this);
+                        String str = stringValue(_this);
                         char[] charArray = str.toCharArray();
                         int res = 0;
                         for (char ch : charArray) {
@@ -269,9 +225,9 @@ class ConstantAndCopyPropagator extends Pass {
                     if (check0) {
                         if (((Call) S).getParameterList().get(0) instanceof Immediate) {
                             int pos = ((Immediate) ((Call) S).getParameterList().get(0)).getImmediate();
-                            if (pos < irRoot.staticStringValMap.get(_this).length()) {
+                            if (pos < stringValue(_this).length()) {
                                 changed = true;
-                                int res = (int) irRoot.staticStringValMap.get(_this).charAt(pos);
+                                int res = (int) stringValue(_this).charAt(pos);
                                 S.replaceInstruction(new Move(S.getCurrentBB(), new Immediate(res), ((Call) S).getResult()));
                             }
                         }
@@ -281,6 +237,229 @@ class ConstantAndCopyPropagator extends Pass {
         }
     }
 
+    //Sparse Conditional Constant Propagation
+    //        Wegman & Zadeck: every register starts undefined and every block unreachable, and a block becomes executable
+    //        with the first edge into it that does. The instructions of executable blocks are evaluated over the lattice
+    //        undefined > constant > overdefined, a phi only over the operands of its executable edges and a branch only
+    //        marks the edges its condition can take, so that a constant found on one side of a branch is not lost to a
+    //        merge with code that never runs. Registers found constant are then defined by moves of the constant, which
+    //        the propagation above takes to their uses, and branches on constants get an immediate condition, on which
+    //        CFGSimplifier cuts the edges that never run and everything only they reached.
+    private void sparseConditionalConstantPropagation(Function function) {
+        latticeValue = new HashMap<>();
+        executableBlocks = new HashSet<>();
+        executableEdges = new HashMap<>();
+        flowWorkList = new ArrayDeque<>();
+        ssaWorkList = new ArrayDeque<>();
+        executableBlocks.add(function.getEntryBlock());
+        for (IRInstruction irInstruction = function.getEntryBlock().head; irInstruction != null; irInstruction = irInstruction.getNextInstruction())
+            visit(irInstruction);
+        while (!flowWorkList.isEmpty() || !ssaWorkList.isEmpty()) {
+            while (!flowWorkList.isEmpty()) {
+                BasicBlock[] edge = flowWorkList.poll();
+                BasicBlock basicBlock = edge[1];
+                if (!executableEdges.computeIfAbsent(basicBlock, k -> new HashSet<>()).add(edge[0])) continue;
+                //the phis see one more operand, the rest of the block is visited once
+                boolean first = executableBlocks.add(basicBlock);
+                for (IRInstruction irInstruction = basicBlock.head; irInstruction != null; irInstruction = irInstruction.getNextInstruction()) {
+                    if (!first && !(irInstruction instanceof Phi)) break;
+                    visit(irInstruction);
+                }
+            }
+            while (!ssaWorkList.isEmpty()) {
+                IRInstruction irInstruction = ssaWorkList.poll();
+                if (executableBlocks.contains(irInstruction.getCurrentBB())) visit(irInstruction);
+            }
+        }
+
+        for (BasicBlock basicBlock : function.getReversePostOrderDFSBBList()) {
+            if (!executableBlocks.contains(basicBlock)) continue;
+            //constant phis become moves after the phis, which stay together at the start of the block
+            List<Phi> constantPhis = new ArrayList<>();
+            IRInstruction first = basicBlock.head;
+            for (; first instanceof Phi; first = first.getNextInstruction())
+                if (isConstant(latticeValue(((Phi) first).getDefRegister()))) constantPhis.add((Phi) first);
+            for (Phi phi : constantPhis) {
+                phi.removeSelf();
+                Move move = new Move(basicBlock, new Immediate((int) latticeValue(phi.getDefRegister())), phi.getDst());
+                first.prependInstruction(move);
+                replacedBy(phi, move);
+            }
+            for (IRInstruction irInstruction = first; irInstruction != null; irInstruction = irInstruction.getNextInstruction()) {
+                if (irInstruction instanceof Branch) {
+                    Branch branch = (Branch) irInstruction;
+                    long cond = valueOf(branch.getCond());
+                    if (isConstant(cond) && !(branch.getCond() instanceof Immediate)) {
+                        changed = true;
+                        use.get(branch.getCond()).remove(branch);
+                        branch.setCond(new Immediate(cond != 0 ? 1 : 0));
+                    }
+                    continue;
+                }
+                Register dst = irInstruction.getDefRegister();
+                if (dst == null || !isConstant(latticeValue(dst))) continue;
+                if (irInstruction instanceof Move && ((Move) irInstruction).getSrc() instanceof Immediate) continue;
+                Move move = new Move(basicBlock, new Immediate((int) latticeValue(dst)), dst);
+                irInstruction.replaceInstruction(move);
+                replacedBy(irInstruction, move);
+                irInstruction = move;
+            }
+        }
+    }
+
+    private static boolean isConstant(long value) {
+        return value != UNDEFINED && value != OVERDEFINED;
+    }
+
+    private static long meet(long value1, long value2) {
+        if (value1 == UNDEFINED) return value2;
+        if (value2 == UNDEFINED || value1 == value2) return value1;
+        return OVERDEFINED;
+    }
+
+    private long latticeValue(Register register) {
+        return latticeValue.getOrDefault(register, UNDEFINED);
+    }
+
+    //registers not defined once in this function, like parameters and global variables, can be anything
+    private long valueOf(Operand operand) {
+        if (operand instanceof Immediate) return ((Immediate) operand).getImmediate();
+        if (!(operand instanceof VirtualRegister) || operand instanceof GlobalVariable) return OVERDEFINED;
+        Long value = latticeValue.get(operand);
+        if (value != null) return value;
+        return def.containsKey(operand) ? UNDEFINED : OVERDEFINED;
+    }
+
+    private void addEdge(BasicBlock from, BasicBlock to) {
+        flowWorkList.add(new BasicBlock[]{from, to});
+    }
+
+    private void visit(IRInstruction irInstruction) {
+        BasicBlock basicBlock = irInstruction.getCurrentBB();
+        if (irInstruction instanceof Jump) {
+            addEdge(basicBlock, ((Jump) irInstruction).getTargetBB());
+            return;
+        }
+        if (irInstruction instanceof Branch) {
+            Branch branch = (Branch) irInstruction;
+            long cond = valueOf(branch.getCond());
+            if (cond == UNDEFINED) return;
+            if (cond == OVERDEFINED || cond != 0) addEdge(basicBlock, branch.getThenBB());
+            if (cond == OVERDEFINED || cond == 0) addEdge(basicBlock, branch.getElseBB());
+            return;
+        }
+        Register dst = irInstruction.getDefRegister();
+        if (dst == null) return;
+        //overdefined is as low as it goes
+        Long old = latticeValue.get(dst);
+        if (old != null && old == OVERDEFINED) return;
+        IRInstruction definition = def.get(dst);
+        if (definition == null) return;
+        long value = definition == irInstruction ? evaluate(irInstruction) : OVERDEFINED;
+        if (old != null && old == value) return;
+        latticeValue.put(dst, value);
+        for (IRInstruction user : use.get(dst)) ssaWorkList.add(user);
+    }
+
+    private long evaluate(IRInstruction irInstruction) {
+        if (irInstruction instanceof Move) return valueOf(((Move) irInstruction).getSrc());
+        if (irInstruction instanceof Phi) {
+            Set<BasicBlock> executable = executableEdges.getOrDefault(irInstruction.getCurrentBB(), Collections.emptySet());
+            long value = UNDEFINED;
+            for (Map.Entry<BasicBlock, Operand> entry : ((Phi) irInstruction).getPaths().entrySet())
+                //a missing operand is 0, as SSADestructor copies it
+                if (executable.contains(entry.getKey()))
+                    value = meet(value, entry.getValue() == null ? 0 : valueOf(entry.getValue()));
+            return value;
+        }
+        if (irInstruction instanceof Unary) {
+            long src = valueOf(((Unary) irInstruction).getSrc());
+            return isConstant(src) ? evaluate(((Unary) irInstruction).getOp(), (int) src) : src;
+        }
+        long src1, src2;
+        if (irInstruction instanceof Binary) {
+            src1 = valueOf(((Binary) irInstruction).getSrc1());
+            src2 = valueOf(((Binary) irInstruction).getSrc2());
+        } else if (irInstruction instanceof Cmp) {
+            src1 = valueOf(((Cmp) irInstruction).getSrc1());
+            src2 = valueOf(((Cmp) irInstruction).getSrc2());
+        } else return OVERDEFINED;
+        if (src1 == OVERDEFINED || src2 == OVERDEFINED) return OVERDEFINED;
+        if (src1 == UNDEFINED || src2 == UNDEFINED) return UNDEFINED;
+        if (irInstruction instanceof Binary) return evaluate(((Binary) irInstruction).getOp(), (int) src1, (int) src2);
+        return evaluate(((Cmp) irInstruction).getOp(), (int) src1, (int) src2);
+    }
+
+    //keeps the def-use chain right for the propagation that follows
+    private void replacedBy(IRInstruction irInstruction, Move move) {
+        changed = true;
+        for (Register register : irInstruction.getUseRegisters()) use.get(register).remove(irInstruction);
+        def.put(move.getDefRegister(), move);
+    }
+
+    private static int evaluate(Binary.Op op, int src1, int src2) {
+        switch (op) {
+            case ADD:
+                return src1 + src2;
+            case SUB:
+                return src1 - src2;
+            case MUL:
+                return src1 * src2;
+            case OR:
+                return src1 | src2;
+            case AND:
+                return src1 & src2;
+            case XOR:
+                return src1 ^ src2;
+            case DIV:
+                return src2 == 0 ? 0 : src1 / src2;
+            case MOD:
+                return src2 == 0 ? 0 : src1 % src2;
+            case SHL:
+                return src1 << src2;
+            case SHR:
+                return src1 >> src2;
+            default:
+                throw new RuntimeException();
+        }
+    }
+
+    private static int evaluate(Unary.Op op, int src) {
+        switch (op) {
+            case DEC:
+                return src - 1;
+            case INC:
+                return src + 1;
+            case NOT:
+                return ~src;
+            case NEG:
+                return -src;
+            case POS:
+                return src;
+            default:
+                throw new RuntimeException();
+        }
+    }
+
+    private static int evaluate(Cmp.Op op, int src1, int src2) {
+        switch (op) {
+            case LT:
+                return src1 < src2 ? 1 : 0;
+            case EQ:
+                return src1 == src2 ? 1 : 0;
+            case GT:
+                return src1 > src2 ? 1 : 0;
+            case GEQ:
+                return src1 >= src2 ? 1 : 0;
+            case LEQ:
+                return src1 <= src2 ? 1 : 0;
+            case NEQ:
+                return src1 != src2 ? 1 : 0;
+            default:
+                throw new RuntimeException();
+        }
+    }
+
     private void substituteOperand(LinkedList<IRInstruction> workList, Set<IRInstruction> inQueue, IRInstruction irInstruction, Operand oldOperand, Operand newOperand) {
         if (newOperand instanceof Immediate) {
             boolean hasPhi = false;
@@ -297,7 +476,10 @@ class ConstantAndCopyPropagator extends Pass {
                         }
                     } else hasPhi = true;
                 }
-            if (!hasPhi) irInstruction.removeSelf();
+            if (!hasPhi) {
+                removedUnusedCopies = true;
+                irInstruction.removeSelf();
+            }
         } else if (newOperand instanceof VirtualRegister) {
             boolean hasPhi = false;
             Set<IRInstruction> oldUses = new HashSet<>(use.get(oldOperand));
@@ -316,6 +498,7 @@ class ConstantAndCopyPropagator extends Pass {
                     } else hasPhi = true;
                 }
             if (!hasPhi) {
+                removedUnusedCopies = true;
                 newUses.remove(irInstruction);
                 irInstruction.removeSelf();
             }
@@ -6,16 +6,21 @@ import Compiler.IR.IRRoot;
 import Compiler.IR.Instruction.*;
 import Compiler.IR.Operand.Register;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.util.*;
 
 //Dead Code Elimination
 //          Dead instruction elimination performs a single pass over the function, removing instructions that are obviously dead.
 //          Dead code elimination is similar to dead instruction elimination, but it rechecks instructions that were used by removed instructions to see if they are newly dead.
+//          Stores are dead when no load of the program reads their location (AliasAnalysis), or when a later store of the
+//          block writes the same address and nothing that may read it comes in between.
 //LLVM Pass
 
 class DeadCodeEliminator extends Pass {
     private Set<IRInstruction> markSet = new HashSet<>();
+    private Set<IRInstruction> deadStores = new HashSet<>();
+    //the locations the loads of the whole program read, a call only reads what the loads of its callee read
+    private Set<Object> readLocations;
+    private boolean removedBranch = false;
 
     DeadCodeEliminator(IRRoot irRoot) {
         super(irRoot);
@@ -23,26 +28,65 @@ class DeadCodeEliminator extends Pass {
 
     @Override
     boolean run() {
-        changed = false;
-        irRoot.getFunctionMap().values().forEach(function -> {
-            calcDefUseChain(function);
-            computePostDominateTree(function);
-            computeReverseDominantFrontier(function);
-            aggressiveDeadCodeElimination(function);
-        });
+        changed = !run(irRoot.getFunctionMap().values()).isEmpty();
         return changed;
     }
 
+    Set<Function> run(Collection<Function> functions) {
+        Set<Object> readLocations = new HashSet<>();
+        for (Function function : irRoot.getFunctionMap().values())
+            for (BasicBlock basicBlock : function.getReversePostOrderDFSBBList())
+                for (IRInstruction irInstruction = basicBlock.head; irInstruction != null; irInstruction = irInstruction.getNextInstruction())
+                    if (irInstruction instanceof Load) readLocations.add(AliasAnalysis.locationOf(irInstruction));
+        return changedFunctions(runOnFunctions(functions, () -> {
+            DeadCodeEliminator pass = new DeadCodeEliminator(irRoot);
+            pass.readLocations = readLocations;
+            return pass;
+        }, DeadCodeEliminator::aggressiveDeadCodeElimination));
+    }
+
+    //removing instructions keeps the CFG, turning a dead branch into a jump does not
+    @Override
+    Set<AnalysisManager.Analysis> preservedAnalyses() {
+        if (!changed) return AnalysisManager.ALL;
+        return removedBranch ? AnalysisManager.NONE : AnalysisManager.CFG;
+    }
+
     private void aggressiveDeadCodeElimination(Function function) {
+        calcDefUseChain(function);
+        computePostDominateTree(function);
+        computeReverseDominantFrontier(function);
+        findDeadStores(function);
         mark(function);
         sweep(function);
     }
 
     private boolean isCritical(IRInstruction irInstruction) {
+        //a call to a function without side effects (SideEffectAnalyzer) is only live if its result is
+        if (irInstruction instanceof Call) return !((Call) irInstruction).getCallee().sideEffectFree;
+        if (irInstruction instanceof Store) return !deadStores.contains(irInstruction);
         return !(irInstruction instanceof Binary || irInstruction instanceof Cmp || irInstruction instanceof Unary
                 || irInstruction instanceof Branch || irInstruction instanceof Move || irInstruction instanceof Phi || irInstruction instanceof Jump);
     }
 
+    private void findDeadStores(Function function) {
+        for (BasicBlock basicBlock : function.getReversePostOrderDFSBBList()) {
+            //location and address of the stores below that nothing reads before
+            Set<List<Object>> overwritten = new HashSet<>();
+            for (IRInstruction irInstruction = basicBlock.tail; irInstruction != null; irInstruction = irInstruction.getLastInstruction()) {
+                if (irInstruction instanceof Store) {
+                    Object location = AliasAnalysis.locationOf(irInstruction);
+                    if (location != AliasAnalysis.ANY && !AliasAnalysis.mayAliasAny(location, readLocations)
+                            || !overwritten.add(Arrays.asList(location, ((Store) irInstruction).getDst())))
+                        deadStores.add(irInstruction);
+                    continue;
+                }
+                Object location = AliasAnalysis.readLocation(irRoot, irInstruction);
+                if (location != null) overwritten.removeIf(key -> AliasAnalysis.mayAlias(key.get(0), location));
+            }
+        }
+    }
+
     private void mark(Function function) {
         Set<IRInstruction> workList = new HashSet<>();
         markSet.clear();
@@ -84,6 +128,7 @@ class DeadCodeEliminator extends Pass {
                 if (!markSet.contains(irInstruction)) {
                     if (irInstruction instanceof Branch) {
                         changed = true;
+                        removedBranch = true;
                         irInstruction.getCurrentBB().removeInst();
                         irInstruction.getCurrentBB().terminate(new Jump(basicBlock, basicBlock.postIDOM));
                     } else if (!(irInstruction instanceof Jump)) {
@@ -0,0 +1,243 @@
+package Compiler.Optim;
+
+import Compiler.Configuration;
+import Compiler.IR.BasicBlock;
+import Compiler.IR.Function;
+import Compiler.IR.IRRoot;
+import Compiler.IR.Instruction.*;
+import Compiler.IR.Operand.*;
+
+import java.util.*;
+
+//Escape Analysis and Scalar Replacement
+//        An object escapes when a pointer to it may be kept after the function that allocated it returns or after the
+//        next time its allocation runs: it is stored to memory, returned, merged by a phi, or passed to a function that
+//        lets that parameter escape. Pointers derived from it by additions and copies are followed. Parameters are
+//        summarized for the whole program first, optimistically: none escapes until one of its uses proves otherwise,
+//        which is repeated until nothing changes, so a recursive call alone does not make a parameter escape. A phi
+//        does not make a parameter escape, the callee returns before the object of the caller could be reused.
+//        An object whose pointer is only used to load and store at constant offsets is replaced by its fields: each
+//        becomes a register, renamed into SSA form the way SSAConstructor does for variables, with phis at the
+//        iterated dominance frontier of the stores among the blocks the allocation dominates. A field read before it
+//        is written is unspecified, the registers start as 0 at the allocation so that every phi has a value.
+//        An object of constant size that does not escape otherwise but is passed to calls is allocated in the stack
+//        frame by X86ConstraintResolver, up to Configuration.STACK_ALLOCATION_LIMIT bytes per function. Without
+//        phis no pointer of one run of an allocation reaches the next, so every run can take the same slots.
+//SROA
+
+class EscapeAnalyzer extends Pass {
+    //the parameters of the program a pointer passed for may be kept after the call returns
+    private Set<Register> escapingParameters;
+    //bytes of the objects allocated in the stack frame of the function
+    private int stackBytes = 0;
+    //the phis of the fields of the object being replaced, by block and offset
+    private Map<BasicBlock, Map<Integer, Phi>> fieldPhis = new HashMap<>();
+
+    EscapeAnalyzer(IRRoot irRoot) {
+        super(irRoot);
+    }
+
+    @Override
+    boolean run() {
+        changed = !run(irRoot.getFunctionMap().values()).isEmpty();
+        return changed;
+    }
+
+    Set<Function> run(Collection<Function> functions) {
+        Set<Register> escapingParameters = summarizeParameters();
+        return changedFunctions(runOnFunctions(functions, () -> {
+            EscapeAnalyzer pass = new EscapeAnalyzer(irRoot);
+            pass.escapingParameters = escapingParameters;
+            return pass;
+        }, EscapeAnalyzer::replaceObjects));
+    }
+
+    //the fields become registers, the CFG stays as it is; marking objects for the stack changes nothing the passes see
+    @Override
+    Set<AnalysisManager.Analysis> preservedAnalyses() {
+        return changed ? AnalysisManager.CFG : AnalysisManager.ALL;
+    }
+
+    private Set<Register> summarizeParameters() {
+        Map<Function, Map<Register, Set<IRInstruction>>> uses = new HashMap<>();
+        for (Function function : irRoot.getFunctionMap().values()) {
+            calcDefUseChain(function);
+            uses.put(function, use);
+        }
+        escapingParameters = new HashSet<>();
+        for (boolean changed = true; changed; ) {
+            changed = false;
+            for (Function function : irRoot.getFunctionMap().values()) {
+                List<Register> parameters = new ArrayList<>(function.getParameterList());
+                if (function.getReferenceForClassMethod() != null) parameters.add(function.getReferenceForClassMethod());
+                for (Register parameter : parameters)
+                    if (!escapingParameters.contains(parameter) && escapes(uses.get(function), parameter, true)) {
+                        escapingParameters.add(parameter);
+                        changed = true;
+                    }
+            }
+        }
+        return escapingParameters;
+    }
+
+    //whether the pointer in `pointer` or one derived from it may be kept, phis are followed if `throughPhi`
+    private boolean escapes(Map<Register, Set<IRInstruction>> use, Register pointer, boolean throughPhi) {
+        Set<Register> visited = new HashSet<>(Collections.singleton(pointer));
+        Queue<Register> workList = new LinkedList<>(visited);
+        while (!workList.isEmpty()) {
+            Register register = workList.remove();
+            for (IRInstruction irInstruction : use.getOrDefault(register, Collections.emptySet())) {
+                Operand derived = null;
+                if (irInstruction instanceof Binary && ((Binary) irInstruction).getOp() == Binary.Op.ADD)
+                    derived = ((Binary) irInstruction).getDst();
+                else if (irInstruction instanceof Move) derived = ((Move) irInstruction).getDst();
+                else if (irInstruction instanceof Phi && throughPhi) derived = ((Phi) irInstruction).getDst();
+                else if (irInstruction instanceof Load || irInstruction instanceof Cmp) continue;
+                else if (irInstruction instanceof Store) {
+                    if (((Store) irInstruction).getSrc() == register) return true;
+                    continue;
+                } else if (irInstruction instanceof Call) {
+                    if (passedToEscapingParameter((Call) irInstruction, register)) return true;
+                    continue;
+                } else return true;
+                if (!(derived instanceof VirtualRegister)) return true;
+                if (visited.add((Register) derived)) workList.add((Register) derived);
+            }
+        }
+        return false;
+    }
+
+    private boolean passedToEscapingParameter(Call call, Register register) {
+        Function callee = call.getCallee();
+        if (irRoot.builtinFunctions.contains(callee)) return true;
+        if (call.getObjectPointer() == register && escapingParameters.contains(callee.getReferenceForClassMethod()))
+            return true;
+        for (int i = 0; i < call.getParameterList().size(); i++)
+            if (call.getParameterList().get(i) == register && escapingParameters.contains(callee.getParameterList().get(i)))
+                return true;
+        return false;
+    }
+
+    private void replaceObjects(Function function) {
+        List<Alloc> allocs = new ArrayList<>();
+        for (BasicBlock basicBlock : function.getReversePostOrderDFSBBList())
+            for (IRInstruction irInstruction = basicBlock.head; irInstruction != null; irInstruction = irInstruction.getNextInstruction())
+                if (irInstruction instanceof Alloc && ((Alloc) irInstruction).getSize() instanceof Immediate) {
+                    allocs.add((Alloc) irInstruction);
+                    if (((Alloc) irInstruction).isOnStack()) stackBytes += ((Immediate) ((Alloc) irInstruction).getSize()).getImmediate();
+                }
+        //a replaced object may have held the pointer to another one, which is found once the def-use chain is redone
+        for (boolean replaced = true; replaced; ) {
+            replaced = false;
+            calcDefUseChain(function);
+            for (Iterator<Alloc> iterator = allocs.iterator(); iterator.hasNext(); ) {
+                Alloc alloc = iterator.next();
+                Map<IRInstruction, Integer> accesses = new HashMap<>();
+                List<IRInstruction> derivations = new ArrayList<>();
+                if (findFields(alloc, accesses, derivations)) {
+                    computeDominateTree(function);
+                    computeDominanceFrontier(function);
+                    replaceFields(alloc, accesses, derivations);
+                    iterator.remove();
+                    changed = replaced = true;
+                }
+            }
+            if (replaced) analysisManager.invalidate(function, AnalysisManager.CFG);
+        }
+        for (Alloc alloc : allocs) {
+            int size = ((Immediate) alloc.getSize()).getImmediate();
+            if (alloc.isOnStack() || size <= 0 || stackBytes + size > Configuration.STACK_ALLOCATION_LIMIT) continue;
+            if (!escapes(use, (Register) alloc.getPointer(), false)) {
+                alloc.setOnStack(true);
+                stackBytes += size;
+            }
+        }
+    }
+
+    //the loads and stores of the object and their offsets, true if they are the only uses of its pointer
+    private boolean findFields(Alloc alloc, Map<IRInstruction, Integer> accesses, List<IRInstruction> derivations) {
+        Map<Register, Integer> offsets = new HashMap<>();
+        offsets.put((Register) alloc.getPointer(), 0);
+        Queue<Register> workList = new LinkedList<>(offsets.keySet());
+        while (!workList.isEmpty()) {
+            Register register = workList.remove();
+            int offset = offsets.get(register);
+            for (IRInstruction irInstruction : use.getOrDefault(register, Collections.emptySet())) {
+                Operand derived;
+                int derivedOffset = offset;
+                if (irInstruction instanceof Load || irInstruction instanceof Store && ((Store) irInstruction).getSrc() != register) {
+                    accesses.put(irInstruction, offset);
+                    continue;
+                } else if (irInstruction instanceof Move) {
+                    derived = ((Move) irInstruction).getDst();
+                } else if (irInstruction instanceof Binary && ((Binary) irInstruction).getOp() == Binary.Op.ADD) {
+                    Binary binary = (Binary) irInstruction;
+                    Operand other = binary.getSrc1() == register ? binary.getSrc2() : binary.getSrc1();
+                    if (!(other instanceof Immediate)) return false;
+                    derivedOffset += ((Immediate) other).getImmediate();
+                    derived = binary.getDst();
+                } else return false;
+                if (!(derived instanceof VirtualRegister) || offsets.containsKey(derived)) return false;
+                offsets.put((Register) derived, derivedOffset);
+                derivations.add(irInstruction);
+                workList.add((Register) derived);
+            }
+        }
+        return true;
+    }
+
+    private void replaceFields(Alloc alloc, Map<IRInstruction, Integer> accesses, List<IRInstruction> derivations) {
+        BasicBlock allocBB = alloc.getCurrentBB();
+        String pointerName = ((VirtualRegister) alloc.getPointer()).getName();
+        String name = pointerName == null ? "field" : pointerName;
+        Map<Integer, Set<BasicBlock>> defBBs = new HashMap<>();
+        accesses.forEach((irInstruction, offset) -> {
+            defBBs.computeIfAbsent(offset, k -> new HashSet<>(Collections.singleton(allocBB)));
+            if (irInstruction instanceof Store) defBBs.get(offset).add(irInstruction.getCurrentBB());
+        });
+        //phis only go to the blocks the allocation strictly dominates, the object does not exist anywhere else
+        fieldPhis.clear();
+        defBBs.forEach((offset, basicBlocks) -> {
+            Queue<BasicBlock> workList = new LinkedList<>(basicBlocks);
+            Set<BasicBlock> visited = new HashSet<>();
+            while (!workList.isEmpty())
+                for (BasicBlock frontier : workList.remove().DF)
+                    if (frontier != allocBB && allocBB.DTAllSuccessors.contains(frontier) && visited.add(frontier)) {
+                        Phi phi = new Phi(frontier, new I64Value(name + "_" + offset));
+                        frontier.appendFront(phi);
+                        fieldPhis.computeIfAbsent(frontier, k -> new HashMap<>()).put(offset, phi);
+                        workList.add(frontier);
+                    }
+        });
+        //the fields start as moves of 0 where the object was allocated, like the variables SSAConstructor renames
+        //are defined before their uses
+        Map<Integer, Operand> values = new HashMap<>();
+        for (Integer offset : defBBs.keySet()) {
+            values.put(offset, new I64Value(name + "_" + offset));
+            alloc.prependInstruction(new Move(allocBB, new Immediate(0), values.get(offset)));
+        }
+        renameFields(allocBB, alloc.getNextInstruction(), values, accesses, name);
+        derivations.forEach(IRInstruction::removeSelf);
+        alloc.removeSelf();
+    }
+
+    //walk the dominator tree below the allocation with the registers holding the fields, a store becomes a move to a
+    //new one, since the copies into phis are what keep the branches they depend on (ConstantAndCopyPropagator)
+    private void renameFields(BasicBlock basicBlock, IRInstruction first, Map<Integer, Operand> values, Map<IRInstruction, Integer> accesses, String name) {
+        fieldPhis.getOrDefault(basicBlock, Collections.emptyMap()).forEach((offset, phi) -> values.put(offset, phi.getDst()));
+        for (IRInstruction irInstruction = first, next; irInstruction != null; irInstruction = next) {
+            next = irInstruction.getNextInstruction();
+            Integer offset = accesses.get(irInstruction);
+            if (offset == null) continue;
+            if (irInstruction instanceof Store) {
+                values.put(offset, new I64Value(name + "_" + offset));
+                irInstruction.replaceInstruction(new Move(basicBlock, ((Store) irInstruction).getSrc(), values.get(offset)));
+            } else
+                irInstruction.replaceInstruction(new Move(basicBlock, values.get(offset), ((Load) irInstruction).getDst()));
+        }
+        for (BasicBlock successor : basicBlock.getSuccessors())
+            fieldPhis.getOrDefault(successor, Collections.emptyMap()).forEach((offset, phi) ->
+                    phi.getPaths().put(basicBlock, values.get(offset)));
+        for (BasicBlock successor : basicBlock.DTSuccessors) renameFields(successor, successor.head, new HashMap<>(values), accesses, name);
+    }
+}
@@ -0,0 +1,353 @@
+package Compiler.Optim;
+
+import Compiler.IR.BasicBlock;
+import Compiler.IR.Function;
+import Compiler.IR.IRRoot;
+import Compiler.IR.Instruction.*;
+import Compiler.IR.Operand.*;
+
+import java.util.*;
+
+//Dominator-based Global Value Numbering
+//        Briggs, Cooper & Simpson's dominator-based value numbering: the blocks are visited along the dominator tree and
+//        an expression is looked up in a hash table that holds the expressions of the dominating blocks only, so that
+//        the one found is computed on every path to the current one. Operands are numbered instead of named: a register
+//        gets the number of the expression it holds, copies the number of their source and constants one number per
+//        value, so that `a + b` is found again as `b + a` or as `c + b` after `c = a`. A redundant expression becomes a
+//        move from the register that computed it first, which copy propagation removes.
+//        Binary, Cmp, Lea and calls of the string builtins, which read nothing that changes, are numbered, except a Cmp
+//        used by a branch only: InstructionCombiner fuses it with the branch, which would otherwise have to test the
+//        result of another compare kept in a register, or keep its own for one. A phi whose operands all have one number
+//        has that number, and phis of one block with the same numbers on every edge have the same number.
+//        Loads are numbered by their address and the version of the location they read (AliasAnalysis), which a write
+//        that may alias it changes, so that a second load of the same memory is redundant. A store makes the load of
+//        its address have the number of the stored value, which forwards it. A block starts with the versions at the
+//        end of its immediate dominator, changed by what the blocks on the paths between them write.
+//GVN
+
+class GlobalValueNumberer extends Pass {
+    //the register or constant holding each value number, it dominates every use of the number
+    private List<Operand> leader = new ArrayList<>();
+    private Map<Operand, Integer> valueNumber = new HashMap<>();
+    private Map<Integer, Integer> constantNumber = new HashMap<>();
+    private Map<Function, Integer> calleeNumber = new HashMap<>();
+    //the expressions of the blocks on the dominator tree path to the current one
+    private Map<Expression, Integer> table = new HashMap<>();
+    //memory versions: a written location gets a new version, and so does ANY, writing ANY gives all of them `epoch`
+    private Map<Object, Integer> versions = new HashMap<>();
+    private int epoch = 0, lastVersion = 0;
+    private Map<Object, Integer> locationNumber = new HashMap<>();
+    //the locations each block may write, and those the blocks on the paths to it from its immediate dominator may write
+    private Map<BasicBlock, Set<Object>> writes = new HashMap<>();
+    private Map<BasicBlock, Set<Object>> writesOnTheWay = new HashMap<>();
+
+    GlobalValueNumberer(IRRoot irRoot) {
+        super(irRoot);
+    }
+
+    @Override
+    boolean run() {
+        changed = !run(irRoot.getFunctionMap().values()).isEmpty();
+        return changed;
+    }
+
+    Set<Function> run(Collection<Function> functions) {
+        return changedFunctions(runOnFunctions(functions, () -> new GlobalValueNumberer(irRoot), GlobalValueNumberer::globalValueNumbering));
+    }
+
+    //expressions are replaced by moves in place, the CFG stays as it is
+    @Override
+    Set<AnalysisManager.Analysis> preservedAnalyses() {
+        return changed ? AnalysisManager.CFG : AnalysisManager.ALL;
+    }
+
+    //an operator and the value numbers of its operands, operators are < 0 to keep them apart from numbers
+    static class Expression {
+        private static final int BINARY = -100, CMP = -200, LEA = -300, CALL = -400, PHI = -500, LOAD = -600;
+        final int[] key;
+        private final int hash;
+
+        Expression(int[] key) {
+            this.key = key;
+            //the numbers are dense, the polynomial of Arrays.hashCode would give e.g. {1, 31} and {2, 0} one hash
+            long h = key.length;
+            for (int x : key) h = (h + x) * 0x9E3779B97F4A7C15L;
+            hash = (int) (h ^ h >>> 32);
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            return object instanceof Expression && Arrays.equals(key, ((Expression) object).key);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private void globalValueNumbering(Function function) {
+        computeDominateTree(function);
+        calcDefUseChain(function);
+        for (BasicBlock basicBlock : function.getReversePostOrderDFSBBList())
+            for (IRInstruction irInstruction = basicBlock.head; irInstruction != null; irInstruction = irInstruction.getNextInstruction()) {
+                Object location = AliasAnalysis.writtenLocation(irRoot, irInstruction);
+                if (location != null) writes.computeIfAbsent(basicBlock, x -> new HashSet<>()).add(location);
+            }
+        for (BasicBlock basicBlock : function.getReversePostOrderDFSBBList()) writesOnTheWay.put(basicBlock, new HashSet<>());
+        //around loops the blocks depend on each other, until nothing grows
+        for (boolean grown = true; grown; ) {
+            grown = false;
+            for (BasicBlock basicBlock : function.getReversePostOrderDFSBBList()) {
+                Set<Object> onTheWay = writesOnTheWay(basicBlock);
+                if (!onTheWay.equals(writesOnTheWay.get(basicBlock))) {
+                    writesOnTheWay.put(basicBlock, onTheWay);
+                    grown = true;
+                }
+            }
+        }
+        valueNumber(function.getEntryBlock());
+    }
+
+    private void write(Object location) {
+        if (location == AliasAnalysis.ANY) {
+            versions.clear();
+            epoch = ++lastVersion;
+        } else {
+            versions.put(location, ++lastVersion);
+            versions.put(AliasAnalysis.ANY, lastVersion);
+        }
+    }
+
+    //what may be written on the paths from the immediate dominator of `basicBlock` to it: a path from a predecessor
+    //goes through the blocks up the dominator tree from it and the paths to them, on a back edge through this block
+    private Set<Object> writesOnTheWay(BasicBlock basicBlock) {
+        Set<Object> res = new HashSet<>();
+        for (BasicBlock predecessor : basicBlock.getPredecessors()) {
+            //unreachable
+            if (!writesOnTheWay.containsKey(predecessor)) continue;
+            for (BasicBlock block = predecessor; block != basicBlock.IDOM; block = block.IDOM) {
+                res.addAll(writes.getOrDefault(block, Collections.emptySet()));
+                res.addAll(writesOnTheWay.get(block));
+                if (res.contains(AliasAnalysis.ANY)) return Collections.singleton(AliasAnalysis.ANY);
+            }
+        }
+        return res;
+    }
+
+    //a load of `address`, null if it is not a value or a global variable
+    private Expression loadOf(Operand address, Object location) {
+        int number = address instanceof GlobalVariable ? -1 : valueNumberOf(address);
+        if (number < 0 && !(address instanceof GlobalVariable)) return null;
+        int version = versions.getOrDefault(location, epoch);
+        return new Expression(new int[]{Expression.LOAD, locationNumber.computeIfAbsent(location, x -> locationNumber.size()), number, version});
+    }
+
+    private int newValueNumber(Operand operand) {
+        leader.add(operand);
+        return leader.size() - 1;
+    }
+
+    //-1 for operands that are not values, like global variables that are not in SSA form
+    private int valueNumberOf(Operand operand) {
+        if (operand instanceof Immediate) {
+            int value = ((Immediate) operand).getImmediate();
+            Integer number = constantNumber.get(value);
+            if (number == null) {
+                number = newValueNumber(new Immediate(value));
+                constantNumber.put(value, number);
+            }
+            return number;
+        }
+        if (!(operand instanceof VirtualRegister) || operand instanceof GlobalVariable) return -1;
+        //a parameter, or a register defined in a block that is not visited yet
+        return valueNumber.computeIfAbsent(operand, this::newValueNumber);
+    }
+
+    private static boolean isValue(Operand operand) {
+        return operand instanceof VirtualRegister && !(operand instanceof GlobalVariable);
+    }
+
+    private Expression expressionOf(IRInstruction irInstruction) {
+        if (irInstruction instanceof Binary) {
+            Binary binary = (Binary) irInstruction;
+            int src1 = valueNumberOf(binary.getSrc1()), src2 = valueNumberOf(binary.getSrc2());
+            if (src1 < 0 || src2 < 0) return null;
+            if (binary.isCommutative() && src1 > src2) {
+                int tmp = src1;
+                src1 = src2;
+                src2 = tmp;
+            }
+            return new Expression(new int[]{Expression.BINARY - binary.getOp().ordinal(), src1, src2});
+        }
+        if (irInstruction instanceof Cmp) {
+            Cmp cmp = (Cmp) irInstruction;
+            int src1 = valueNumberOf(cmp.getSrc1()), src2 = valueNumberOf(cmp.getSrc2());
+            if (src1 < 0 || src2 < 0) return null;
+            Cmp.Op op = cmp.getOp();
+            //a > b is b < a
+            if (op == Cmp.Op.GT || op == Cmp.Op.GEQ || cmp.isCommutative() && src1 > src2) {
+                int tmp = src1;
+                src1 = src2;
+                src2 = tmp;
+                if (op == Cmp.Op.GT) op = Cmp.Op.LT;
+                else if (op == Cmp.Op.GEQ) op = Cmp.Op.LEQ;
+            }
+            return new Expression(new int[]{Expression.CMP - op.ordinal(), src1, src2});
+        }
+        if (irInstruction instanceof Lea) {
+            Memory src = ((Lea) irInstruction).getSrc();
+            int base = src.getBase() == null ? -1 : valueNumberOf(src.getBase());
+            int index = src.getIndex() == null ? -1 : valueNumberOf(src.getIndex());
+            if (src.getBase() != null && base < 0 || src.getIndex() != null && index < 0) return null;
+            return new Expression(new int[]{Expression.LEA, base, index,
+                    src.getScale() == null ? 0 : src.getScale().getImmediate(), src.getOffset() == null ? 0 : src.getOffset().getImmediate()});
+        }
+        if (irInstruction instanceof Call) {
+            Call call = (Call) irInstruction;
+            if (!irRoot.stringConstantFunctions.contains(call.getCallee())) return null;
+            int[] key = new int[call.getParameterList().size() + 3];
+            key[0] = Expression.CALL;
+            key[1] = calleeNumber.computeIfAbsent(call.getCallee(), x -> calleeNumber.size());
+            key[2] = call.getObjectPointer() == null ? -1 : valueNumberOf(call.getObjectPointer());
+            if (call.getObjectPointer() != null && key[2] < 0) return null;
+            int i = 3;
+            for (Operand parameter : call.getParameterList())
+                if ((key[i++] = valueNumberOf(parameter)) < 0) return null;
+            return new Expression(key);
+        }
+        if (irInstruction instanceof Load)
+            return loadOf(((Load) irInstruction).getSrc(), AliasAnalysis.locationOf(irInstruction));
+        return null;
+    }
+
+    private boolean fusedWithBranch(IRInstruction irInstruction) {
+        if (!(irInstruction instanceof Cmp)) return false;
+        Set<IRInstruction> users = use.getOrDefault(((Cmp) irInstruction).getDst(), Collections.emptySet());
+        return users.size() == 1 && users.iterator().next() instanceof Branch;
+    }
+
+    private static Operand dstOf(IRInstruction irInstruction) {
+        if (irInstruction instanceof Binary) return ((Binary) irInstruction).getDst();
+        if (irInstruction instanceof Cmp) return ((Cmp) irInstruction).getDst();
+        if (irInstruction instanceof Lea) return ((Lea) irInstruction).getDst();
+        if (irInstruction instanceof Load) return ((Load) irInstruction).getDst();
+        return ((Call) irInstruction).getResult();
+    }
+
+    private static Operand copyOf(Operand operand) {
+        return operand instanceof Immediate ? new Immediate(((Immediate) operand).getImmediate()) : operand;
+    }
+
+    private void valueNumber(BasicBlock basicBlock) {
+        List<Expression> scope = new ArrayList<>();
+        Set<Object> onTheWay = writesOnTheWay.get(basicBlock);
+        if (onTheWay.contains(AliasAnalysis.ANY)) write(AliasAnalysis.ANY);
+        else onTheWay.forEach(this::write);
+
+        //phis
+        List<Phi> redundantPhis = new ArrayList<>();
+        IRInstruction first = basicBlock.head;
+        //the numbers of the operands of a phi go by predecessor, in the order of the predecessors
+        List<BasicBlock> predecessors = new ArrayList<>(basicBlock.getPredecessors());
+        predecessors.sort(Comparator.comparingInt(predecessor -> predecessor.postOrderNumber));
+        for (; first instanceof Phi; first = first.getNextInstruction()) {
+            Phi phi = (Phi) first;
+            if (!isValue(phi.getDst())) continue;
+            int[] key = new int[predecessors.size() * 2 + 2];
+            key[0] = Expression.PHI;
+            key[1] = basicBlock.postOrderNumber;
+            int same = -2;
+            boolean numbered = true;
+            for (int i = 0; i < predecessors.size(); ++i) {
+                Operand operand = phi.getPaths().get(predecessors.get(i));
+                //a missing operand is 0, as SSADestructor copies it
+                int number = operand == phi.getDst() ? -3 : valueNumberOf(operand == null ? new Immediate(0) : operand);
+                key[i * 2 + 2] = predecessors.get(i).postOrderNumber;
+                key[i * 2 + 3] = number;
+                if (number == -1) numbered = false;
+                //operands that are the phi itself do not count
+                if (number != -3) same = same == -2 || same == number ? number : -1;
+            }
+            if (!numbered) {
+                valueNumber.put(phi.getDst(), newValueNumber(phi.getDst()));
+                continue;
+            }
+            if (same >= 0) {
+                valueNumber.put(phi.getDst(), same);
+                redundantPhis.add(phi);
+                continue;
+            }
+            Expression expression = new Expression(key);
+            Integer number = table.get(expression);
+            if (number != null) {
+                valueNumber.put(phi.getDst(), number);
+                redundantPhis.add(phi);
+            } else {
+                number = newValueNumber(phi.getDst());
+                valueNumber.put(phi.getDst(), number);
+                table.put(expression, number);
+                scope.add(expression);
+            }
+        }
+        //the moves go after the phis, which stay together at the start of the block
+        for (Phi phi : redundantPhis) {
+            phi.removeSelf();
+            first.prependInstruction(new Move(basicBlock, copyOf(leader.get(valueNumber.get(phi.getDst()))), phi.getDst()));
+            changed = true;
+        }
+
+        for (IRInstruction irInstruction = first; irInstruction != null; irInstruction = irInstruction.getNextInstruction()) {
+            if (irInstruction instanceof Move) {
+                Operand dst = ((Move) irInstruction).getDst();
+                int number = valueNumberOf(((Move) irInstruction).getSrc());
+                if (isValue(dst)) valueNumber.put(dst, number >= 0 ? number : newValueNumber(dst));
+                continue;
+            }
+            Object written = AliasAnalysis.writtenLocation(irRoot, irInstruction);
+            if (written != null) write(written);
+            if (irInstruction instanceof Store) {
+                //forward the stored value to the loads of its address
+                Store store = (Store) irInstruction;
+                Expression expression = loadOf(store.getDst(), written);
+                int number = valueNumberOf(store.getSrc());
+                if (expression != null && number >= 0) {
+                    table.put(expression, number);
+                    scope.add(expression);
+                }
+                continue;
+            }
+            if (!(irInstruction instanceof Binary || irInstruction instanceof Cmp || irInstruction instanceof Lea || irInstruction instanceof Call
+                    || irInstruction instanceof Load))
+                continue;
+            Operand dst = dstOf(irInstruction);
+            if (!isValue(dst)) continue;
+            Expression expression = fusedWithBranch(irInstruction) ? null : expressionOf(irInstruction);
+            Integer number = expression == null ? null : table.get(expression);
+            if (number != null) {
+                valueNumber.put(dst, number);
+                IRInstruction move = new Move(basicBlock, copyOf(leader.get(number)), dst);
+                irInstruction.replaceInstruction(move);
+                irInstruction = move;
+                changed = true;
+            } else {
+                number = newValueNumber(dst);
+                valueNumber.put(dst, number);
+                if (expression != null) {
+                    table.put(expression, number);
+                    scope.add(expression);
+                }
+            }
+        }
+
+        //the children start from the versions at the end of this block
+        Map<Object, Integer> versions = this.versions;
+        int epoch = this.epoch;
+        for (BasicBlock successor : basicBlock.DTSuccessors) {
+            this.versions = new HashMap<>(versions);
+            this.epoch = epoch;
+            valueNumber(successor);
+        }
+        for (Expression expression : scope) table.remove(expression);
+    }
+}
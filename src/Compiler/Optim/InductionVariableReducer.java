@@ -0,0 +1,404 @@
+package Compiler.Optim;
+
+import Compiler.IR.BasicBlock;
+import Compiler.IR.Function;
+import Compiler.IR.IRRoot;
+import Compiler.IR.Instruction.*;
+import Compiler.IR.Operand.*;
+
+import java.util.*;
+
+//Induction Variable Strength Reduction
+//        Loops are visited inner first. A basic induction variable is a phi of the header that every edge from inside the
+//        loop gives the same `phi + c`, and a derived one is `a * basic + b` for a constant a and a sum b of constants and
+//        registers defined outside of the loop, found through add, sub, mul and shl, like the `base + i * 8 + 8` of an
+//        array access. One used by more than other derived ones is reduced when that saves a multiplication that is not
+//        a shift, or for the test replacement below: it gets a phi of its own, started at `a * init + b` before the loop
+//        and stepped by `a * c` right after the basic one, so the multiplication and the additions leave the loop.
+//        Linear function test replacement: when a basic one is only used by its step, the exit test and derived ones,
+//        all of these are reduced and the test is made on one of them with a > 0 against `a * n + b`, so the basic one
+//        is removed. Ints of Mx* fit in 32 bits, so the scaled sides do not overflow the 64-bit registers and the test
+//        keeps its result.
+//        Basic ones with the same step and equal or constant starts are one variable, the others become `basic + d`.
+//LSR
+
+class InductionVariableReducer extends Pass {
+    //scale * basic + the sum of offsets + constant
+    private static class InductionVariable {
+        final Phi basic;
+        final int scale, constant;
+        final List<Register> offsets;
+
+        InductionVariable(Phi basic, int scale, List<Register> offsets, int constant) {
+            this.basic = basic;
+            this.scale = scale;
+            this.offsets = offsets;
+            this.constant = constant;
+        }
+
+        InductionVariable plus(Operand operand) {
+            if (operand instanceof Immediate) {
+                long constant = (long) this.constant + ((Immediate) operand).getImmediate();
+                return constant == (int) constant ? new InductionVariable(basic, scale, offsets, (int) constant) : null;
+            }
+            List<Register> offsets = new ArrayList<>(this.offsets);
+            offsets.add((Register) operand);
+            return new InductionVariable(basic, scale, offsets, constant);
+        }
+
+        //registers cannot be scaled before the loop without a multiplication of their own
+        InductionVariable times(int factor) {
+            long scale = (long) this.scale * factor, constant = (long) this.constant * factor;
+            if (!offsets.isEmpty() || scale != (int) scale || constant != (int) constant) return null;
+            return new InductionVariable(basic, (int) scale, offsets, (int) constant);
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (!(object instanceof InductionVariable)) return false;
+            InductionVariable other = (InductionVariable) object;
+            return basic == other.basic && scale == other.scale && constant == other.constant && offsets.equals(other.offsets);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(basic, scale, constant, offsets);
+        }
+    }
+
+    private Set<BasicBlock> loop;
+    private BasicBlock entering;
+    //the instruction that steps each basic induction variable
+    private Map<Phi, Binary> steps = new LinkedHashMap<>();
+    private Map<Register, InductionVariable> inductionVariables = new LinkedHashMap<>();
+
+    InductionVariableReducer(IRRoot irRoot) {
+        super(irRoot);
+    }
+
+    @Override
+    boolean run() {
+        changed = !run(irRoot.getFunctionMap().values()).isEmpty();
+        return changed;
+    }
+
+    Set<Function> run(Collection<Function> functions) {
+        return changedFunctions(runOnFunctions(functions, () -> new InductionVariableReducer(irRoot), InductionVariableReducer::strengthReduction));
+    }
+
+    //instructions are added and replaced, the CFG stays as it is
+    @Override
+    Set<AnalysisManager.Analysis> preservedAnalyses() {
+        return changed ? AnalysisManager.CFG : AnalysisManager.ALL;
+    }
+
+    private void strengthReduction(Function function) {
+        calcDefUseChain(function);
+        calcLoopInformation(function);
+        List<BasicBlock> headers = new ArrayList<>(loopHeaders);
+        headers.sort(Comparator.comparingInt((BasicBlock header) -> loopGroups.get(header).size()).thenComparingInt(header -> header.postOrderNumber));
+        for (BasicBlock header : headers) reduce(header);
+    }
+
+    private void reduce(BasicBlock header) {
+        loop = loopGroups.get(header);
+        entering = null;
+        for (BasicBlock predecessor : header.getPredecessors())
+            if (!loop.contains(predecessor)) {
+                if (entering != null) return;
+                entering = predecessor;
+            }
+        if (entering == null) return;
+
+        steps.clear();
+        inductionVariables.clear();
+        for (IRInstruction irInstruction = header.head; irInstruction instanceof Phi; irInstruction = irInstruction.getNextInstruction()) {
+            Phi phi = (Phi) irInstruction;
+            Binary step = stepOf(header, phi);
+            if (step != null) steps.put(phi, step);
+        }
+        if (steps.isEmpty()) return;
+        mergeBasicInductionVariables(header);
+
+        //derived induction variables, the definitions of the operands come first in reverse post order
+        for (Phi phi : steps.keySet())
+            inductionVariables.put(phi.getDefRegister(), new InductionVariable(phi, 1, Collections.emptyList(), 0));
+        List<BasicBlock> blocks = new ArrayList<>(loop);
+        blocks.sort(Comparator.comparingInt(basicBlock -> -basicBlock.postOrderNumber));
+        for (BasicBlock basicBlock : blocks)
+            for (IRInstruction irInstruction = basicBlock.head; irInstruction != null; irInstruction = irInstruction.getNextInstruction()) {
+                InductionVariable inductionVariable = derive(irInstruction);
+                if (inductionVariable != null) inductionVariables.put(irInstruction.getDefRegister(), inductionVariable);
+            }
+
+        //the derived induction variables used by anything but other derived ones, by basic one
+        Map<Phi, List<Register>> candidates = new LinkedHashMap<>();
+        Set<Register> stepRegisters = new HashSet<>();
+        for (Binary step : steps.values()) stepRegisters.add(step.getDefRegister());
+        for (Map.Entry<Register, InductionVariable> entry : inductionVariables.entrySet()) {
+            //0 * basic + b is no induction variable
+            if (entry.getValue().scale == 0 || def.get(entry.getKey()) instanceof Phi || stepRegisters.contains(entry.getKey()))
+                continue;
+            for (IRInstruction user : use.getOrDefault(entry.getKey(), Collections.emptySet()))
+                if (!derived(user)) {
+                    candidates.computeIfAbsent(entry.getValue().basic, k -> new ArrayList<>()).add(entry.getKey());
+                    break;
+                }
+        }
+        for (Map.Entry<Phi, List<Register>> entry : candidates.entrySet()) reduce(header, entry.getKey(), entry.getValue());
+    }
+
+    private boolean derived(IRInstruction irInstruction) {
+        return irInstruction.getDefRegister() != null && inductionVariables.containsKey(irInstruction.getDefRegister());
+    }
+
+    //A phi costs a register and an add per iteration. A multiplication by 2, 4 or 8 is free in an address and a shift
+    //otherwise, so those are only reduced all together when the basic one goes away with its test.
+    private void reduce(BasicBlock header, Phi basic, List<Register> candidates) {
+        boolean replaceTest = exitTest(basic, true) != null;
+        if (replaceTest) {
+            replaceTest = false;
+            for (Register register : candidates) replaceTest |= inductionVariables.get(register).scale > 0;
+        }
+        Map<InductionVariable, List<Register>> reduced = new LinkedHashMap<>();
+        for (Register register : candidates) {
+            InductionVariable inductionVariable = inductionVariables.get(register);
+            if (replaceTest || inductionVariable.scale < 0 || Integer.bitCount(inductionVariable.scale) != 1)
+                reduced.computeIfAbsent(inductionVariable, k -> new ArrayList<>()).add(register);
+        }
+        if (reduced.isEmpty()) return;
+        changed = true;
+
+        InductionVariable testedThrough = null;
+        Phi testedPhi = null;
+        for (Map.Entry<InductionVariable, List<Register>> entry : reduced.entrySet()) {
+            InductionVariable inductionVariable = entry.getKey();
+            Phi phi = newInductionVariable(header, inductionVariable, ((VirtualRegister) entry.getValue().get(0)).getName());
+            if (phi == null) continue;
+            if (inductionVariable.scale > 0 && testedThrough == null) {
+                testedThrough = inductionVariable;
+                testedPhi = phi;
+            }
+            for (Register register : entry.getValue()) {
+                IRInstruction definition = def.get(register);
+                Move move = new Move(definition.getCurrentBB(), phi.getDst(), register);
+                definition.replaceInstruction(move);
+                defineAndUse(move);
+                removeUses(definition);
+            }
+        }
+        if (replaceTest && testedThrough != null) replaceTest(basic, testedThrough, testedPhi);
+    }
+
+    //`phi + c` on every edge from inside the loop, by one instruction of the loop
+    private Binary stepOf(BasicBlock header, Phi phi) {
+        Operand next = null;
+        for (BasicBlock predecessor : header.getPredecessors()) {
+            if (predecessor == entering) continue;
+            Operand operand = phi.getPaths().get(predecessor);
+            if (operand == null || next != null && operand != next) return null;
+            next = operand;
+        }
+        if (!(next instanceof VirtualRegister) || next instanceof GlobalVariable) return null;
+        IRInstruction definition = def.get(next);
+        if (!(definition instanceof Binary) || !loop.contains(definition.getCurrentBB())) return null;
+        Binary step = (Binary) definition;
+        Operand dst = phi.getDst();
+        if (step.getOp() == Binary.Op.ADD && step.getSrc1() == dst && step.getSrc2() instanceof Immediate) return step;
+        if (step.getOp() == Binary.Op.ADD && step.getSrc2() == dst && step.getSrc1() instanceof Immediate) return step;
+        if (step.getOp() == Binary.Op.SUB && step.getSrc1() == dst && step.getSrc2() instanceof Immediate) return step;
+        return null;
+    }
+
+    private static int stepValue(Binary step) {
+        int value = ((Immediate) (step.getSrc1() instanceof Immediate ? step.getSrc1() : step.getSrc2())).getImmediate();
+        return step.getOp() == Binary.Op.SUB ? -value : value;
+    }
+
+    //a missing operand is 0, as SSADestructor copies it
+    private Operand initOf(Phi phi) {
+        Operand operand = phi.getPaths().get(entering);
+        return operand == null ? new Immediate(0) : operand;
+    }
+
+    //a basic induction variable with the step and a start at a known distance of another one becomes it plus the distance
+    private void mergeBasicInductionVariables(BasicBlock header) {
+        IRInstruction first = header.head;
+        while (first instanceof Phi) first = first.getNextInstruction();
+        List<Phi> basics = new ArrayList<>(steps.keySet());
+        for (int i = 0; i < basics.size(); ++i) {
+            Phi phi = basics.get(i);
+            if (!steps.containsKey(phi)) continue;
+            for (int j = i + 1; j < basics.size(); ++j) {
+                Phi other = basics.get(j);
+                if (!steps.containsKey(other) || stepValue(steps.get(phi)) != stepValue(steps.get(other))) continue;
+                Operand init = initOf(phi), otherInit = initOf(other);
+                long distance;
+                if (init == otherInit) distance = 0;
+                else if (init instanceof Immediate && otherInit instanceof Immediate)
+                    distance = (long) ((Immediate) otherInit).getImmediate() - ((Immediate) init).getImmediate();
+                else continue;
+                if (distance != (int) distance) continue;
+                changed = true;
+                other.removeSelf();
+                removeUses(other);
+                IRInstruction replacement = distance == 0 ? new Move(header, phi.getDst(), other.getDst())
+                        : new Binary(header, Binary.Op.ADD, phi.getDst(), new Immediate((int) distance), other.getDst());
+                first.prependInstruction(replacement);
+                defineAndUse(replacement);
+                removeIfDead(steps.remove(other).getDefRegister());
+            }
+        }
+    }
+
+    private boolean invariant(Operand operand) {
+        if (operand instanceof Immediate) return true;
+        if (!(operand instanceof VirtualRegister) || operand instanceof GlobalVariable) return false;
+        IRInstruction definition = def.get(operand);
+        return definition == null || !loop.contains(definition.getCurrentBB());
+    }
+
+    private InductionVariable derive(IRInstruction irInstruction) {
+        Register dst = irInstruction.getDefRegister();
+        if (!(dst instanceof VirtualRegister) || dst instanceof GlobalVariable || inductionVariables.containsKey(dst))
+            return null;
+        if (irInstruction instanceof Move) return inductionVariables.get(((Move) irInstruction).getSrc());
+        if (!(irInstruction instanceof Binary)) return null;
+        Binary binary = (Binary) irInstruction;
+        Operand src1 = binary.getSrc1(), src2 = binary.getSrc2();
+        InductionVariable inductionVariable1 = inductionVariables.get(src1), inductionVariable2 = inductionVariables.get(src2);
+        switch (binary.getOp()) {
+            case ADD:
+                if (inductionVariable1 != null && invariant(src2)) return inductionVariable1.plus(src2);
+                if (inductionVariable2 != null && invariant(src1)) return inductionVariable2.plus(src1);
+                return null;
+            case SUB:
+                if (inductionVariable1 != null && src2 instanceof Immediate)
+                    return inductionVariable1.plus(new Immediate(-((Immediate) src2).getImmediate()));
+                return null;
+            case MUL:
+                if (inductionVariable1 != null && src2 instanceof Immediate) return inductionVariable1.times(((Immediate) src2).getImmediate());
+                if (inductionVariable2 != null && src1 instanceof Immediate) return inductionVariable2.times(((Immediate) src1).getImmediate());
+                return null;
+            case SHL:
+                if (inductionVariable1 != null && src2 instanceof Immediate && ((Immediate) src2).getImmediate() >= 0 && ((Immediate) src2).getImmediate() < 31)
+                    return inductionVariable1.times(1 << ((Immediate) src2).getImmediate());
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    //a phi of the header for `inductionVariable`, stepped right after its basic one, null if the step overflows
+    private Phi newInductionVariable(BasicBlock header, InductionVariable inductionVariable, String name) {
+        Binary basicStep = steps.get(inductionVariable.basic);
+        long stepValue = (long) inductionVariable.scale * stepValue(basicStep);
+        if (stepValue != (int) stepValue) return null;
+        Operand init = linear(initOf(inductionVariable.basic), inductionVariable, name);
+        if (init == null) return null;
+        Phi phi = new Phi(header, new I64Value(name));
+        Binary step = new Binary(basicStep.getCurrentBB(), Binary.Op.ADD, phi.getDst(), new Immediate((int) stepValue), new I64Value(name));
+        for (BasicBlock predecessor : header.getPredecessors())
+            phi.getPaths().put(predecessor, predecessor == entering ? init : step.getDst());
+        phi.updateUseRegisters();
+        header.head.prependInstruction(phi);
+        basicStep.postpendInstruction(step);
+        defineAndUse(phi);
+        defineAndUse(step);
+        return phi;
+    }
+
+    //`scale * operand + the offsets + constant` of `inductionVariable`, computed at the end of the entering block, null
+    //if the constant part overflows
+    private Operand linear(Operand operand, InductionVariable inductionVariable, String name) {
+        long constant = inductionVariable.constant;
+        if (operand instanceof Immediate) constant += (long) ((Immediate) operand).getImmediate() * inductionVariable.scale;
+        if (constant != (int) constant) return null;
+        Operand value = null;
+        if (!(operand instanceof Immediate))
+            value = inductionVariable.scale == 1 ? operand : compute(Binary.Op.MUL, operand, new Immediate(inductionVariable.scale), name);
+        for (Register offset : inductionVariable.offsets) value = value == null ? offset : compute(Binary.Op.ADD, value, offset, name);
+        if (value == null) return new Immediate((int) constant);
+        return constant == 0 ? value : compute(Binary.Op.ADD, value, new Immediate((int) constant), name);
+    }
+
+    private Operand compute(Binary.Op op, Operand src1, Operand src2, String name) {
+        Binary binary = new Binary(entering, op, src1, src2, new I64Value(name));
+        entering.tail.prependInstruction(binary);
+        defineAndUse(binary);
+        return binary.getDst();
+    }
+
+    //the compare of the exit test if it is all `basic` and its step are used for, besides derived induction variables
+    //if `ignoreDerived`
+    private Cmp exitTest(Phi basic, boolean ignoreDerived) {
+        Binary step = steps.get(basic);
+        Cmp test = null;
+        for (Register register : Arrays.asList(basic.getDefRegister(), step.getDefRegister()))
+            for (IRInstruction user : use.getOrDefault(register, Collections.emptySet())) {
+                if (user == step || user == basic || ignoreDerived && derived(user)) continue;
+                if (!(user instanceof Cmp) || test != null && test != user) return null;
+                test = (Cmp) user;
+            }
+        if (test == null || use.getOrDefault(test.getDefRegister(), Collections.emptySet()).isEmpty()) return null;
+        for (IRInstruction user : use.get(test.getDefRegister())) if (!(user instanceof Branch)) return null;
+        Operand bound = test.getSrc1() == basic.getDefRegister() || test.getSrc1() == step.getDefRegister() ? test.getSrc2() : test.getSrc1();
+        return invariant(bound) ? test : null;
+    }
+
+    //Linear function test replacement
+    private void replaceTest(Phi basic, InductionVariable inductionVariable, Phi reduced) {
+        Cmp test = exitTest(basic, false);
+        if (test == null) return;
+        Register basicRegister = basic.getDefRegister(), stepRegister = steps.get(basic).getDefRegister();
+        boolean onFirst = test.getSrc1() == basicRegister || test.getSrc1() == stepRegister;
+        Operand tested = onFirst ? test.getSrc1() : test.getSrc2(), bound = onFirst ? test.getSrc2() : test.getSrc1();
+        Operand newTested = tested == basicRegister ? reduced.getDst() : reduced.getPaths().get(reducedInside(reduced));
+        Operand newBound = linear(bound, inductionVariable, ((VirtualRegister) reduced.getDst()).getName());
+        if (newBound == null) return;
+        Cmp newTest = onFirst ? new Cmp(test.getCurrentBB(), test.getOp(), newTested, newBound, test.getDst())
+                : new Cmp(test.getCurrentBB(), test.getOp(), newBound, newTested, test.getDst());
+        test.replaceInstruction(newTest);
+        defineAndUse(newTest);
+        removeUses(test);
+        //the step goes with the phi, it has no other use
+        basic.removeSelf();
+        removeUses(basic);
+    }
+
+    private BasicBlock reducedInside(Phi reduced) {
+        for (BasicBlock predecessor : reduced.getPaths().keySet())
+            if (predecessor != entering) return predecessor;
+        return null;
+    }
+
+    private void defineAndUse(IRInstruction irInstruction) {
+        Register defRegister = irInstruction.getDefRegister();
+        if (defRegister != null) {
+            def.put(defRegister, irInstruction);
+            use.computeIfAbsent(defRegister, k -> new HashSet<>());
+        }
+        for (Register useRegister : irInstruction.getUseRegisters())
+            use.computeIfAbsent(useRegister, k -> new HashSet<>()).add(irInstruction);
+    }
+
+    //`irInstruction` is gone, the instructions of the loop that computed its operands may be dead now
+    private void removeUses(IRInstruction irInstruction) {
+        for (Register useRegister : irInstruction.getUseRegisters()) {
+            Set<IRInstruction> users = use.get(useRegister);
+            if (users != null) users.remove(irInstruction);
+            removeIfDead(useRegister);
+        }
+    }
+
+    private void removeIfDead(Register register) {
+        IRInstruction definition = def.get(register);
+        if (definition == null || use.containsKey(register) && !use.get(register).isEmpty() || !loop.contains(definition.getCurrentBB())
+                || !(definition instanceof Binary || definition instanceof Move))
+            return;
+        definition.removeSelf();
+        def.remove(register);
+        inductionVariables.remove(register);
+        removeUses(definition);
+    }
+}
@@ -5,6 +5,8 @@ import Compiler.IR.IRRoot;
 import Compiler.IR.Instruction.*;
 import Compiler.IR.Operand.*;
 
+import java.util.Set;
+
 //Combine expression patterns
 //        Combine expression patterns to form expressions with fewer, simple instructions. This pass does not modify the CFG.
 //        For example, this pass reduce width of expressions post-dominated by TruncInst into smaller width when applicable.
@@ -20,20 +22,25 @@ class InstructionCombiner extends Pass {
 
     @Override
     boolean run() {
-        irRoot.getFunctionMap().values().forEach(this::adjustCmpOperands);
-        irRoot.getFunctionMap().values().forEach(function -> {
-            calcDefUseChain(function);
-            calcLoopInformation(function);
+        runOnFunctions(() -> new InstructionCombiner(irRoot), (pass, function) -> {
+            pass.adjustCmpOperands(function);
+            pass.calcDefUseChain(function);
+            pass.calcLoopInformation(function);
             //generate Lea for single-used temporary if possible
-            generateLea(function);
+            pass.generateLea(function);
             //merge address calculation for single-used temporary into Load/Store
-            mergeAddrCalcWithLoadAndStore(function);
+            pass.mergeAddrCalcWithLoadAndStore(function);
             //merge cmp with single-used compare
-            mergeCmpWithBranch(function);
+            pass.mergeCmpWithBranch(function);
         });
         return true;
     }
 
+    @Override
+    Set<AnalysisManager.Analysis> preservedAnalyses() {
+        return AnalysisManager.CFG;
+    }
+
     private boolean checkOperandToCombine(Operand operand) {
         if (operand instanceof Register) {
             if (use.get(operand).size() > 1) return false;
@@ -0,0 +1,296 @@
+package Compiler.Optim;
+
+import Compiler.IR.BasicBlock;
+import Compiler.IR.Function;
+import Compiler.IR.IRRoot;
+import Compiler.IR.Instruction.*;
+import Compiler.IR.Operand.*;
+
+import java.util.*;
+
+//Loop Invariant Code Motion
+//        Loops are visited inner first. Each gets a preheader, one block that every edge into the header from outside
+//        the loop comes through, and the instructions of the loop whose operands are all defined outside of it are moved
+//        to its end, those moved counting as outside for the rest. Binary, Cmp, Unary and Lea cannot fault (a division
+//        only by a constant other than 0), so they are moved from anywhere in the loop even if they would not have run.
+//        Loads and calls of the string builtins fault on a null pointer and are only moved when they surely run: from a
+//        block that runs before any exit of the loop, or from one that runs on every iteration (it dominates all the
+//        latches) when the header is the only exit. In the second case the loop may not run at all, so they go behind
+//        a guard, a copy of the test of the header on the values coming into the loop that goes to the exit directly.
+//        A load also needs the memory it reads not to change in the loop: no store or call in the loop may write a
+//        location that may alias the one it reads (AliasAnalysis).
+//LICM
+
+class LoopInvariantHoister extends Pass {
+    //the place of each block in reverse post order, with room for a preheader and a guarded one before each header
+    private Map<BasicBlock, Integer> order = new HashMap<>();
+
+    LoopInvariantHoister(IRRoot irRoot) {
+        super(irRoot);
+    }
+
+    @Override
+    boolean run() {
+        changed = !run(irRoot.getFunctionMap().values()).isEmpty();
+        return changed;
+    }
+
+    Set<Function> run(Collection<Function> functions) {
+        return changedFunctions(runOnFunctions(functions, () -> new LoopInvariantHoister(irRoot), LoopInvariantHoister::loopInvariantCodeMotion));
+    }
+
+    //preheaders and guards are new blocks
+    @Override
+    Set<AnalysisManager.Analysis> preservedAnalyses() {
+        return changed ? AnalysisManager.NONE : AnalysisManager.ALL;
+    }
+
+    private void loopInvariantCodeMotion(Function function) {
+        calcDefUseChain(function);
+        calcLoopInformation(function);
+        //the blocks of a loop are visited in reverse post order, new blocks go right before their header so that the
+        //outer loops see them in order
+        List<BasicBlock> RPO = function.getReversePostOrderDFSBBList();
+        for (int i = 0; i < RPO.size(); ++i) order.put(RPO.get(i), i * 3);
+        //inner loops first, a loop holds fewer blocks than the ones around it
+        List<BasicBlock> headers = new ArrayList<>(loopHeaders);
+        headers.sort(Comparator.comparingInt((BasicBlock header) -> loopGroups.get(header).size()).thenComparingInt(header -> header.postOrderNumber));
+        for (BasicBlock header : headers) hoist(function, header);
+        if (changed) function.recalcReversePostOrderDFSBBList();
+    }
+
+    private void hoist(Function function, BasicBlock header) {
+        Set<BasicBlock> loop = loopGroups.get(header);
+        //what the loop may write
+        Set<Object> written = new HashSet<>();
+        for (BasicBlock basicBlock : loop)
+            for (IRInstruction irInstruction = basicBlock.head; irInstruction != null; irInstruction = irInstruction.getNextInstruction()) {
+                Object location = AliasAnalysis.writtenLocation(irRoot, irInstruction);
+                if (location != null) written.add(location);
+            }
+
+        boolean guardable = guardable(header, loop);
+        Set<IRInstruction> hoisted = new HashSet<>();
+        List<IRInstruction> toPreheader = new ArrayList<>();
+        List<IRInstruction> toGuarded = new ArrayList<>();
+        Set<IRInstruction> guarded = new HashSet<>();
+        List<BasicBlock> blocks = new ArrayList<>(loop);
+        blocks.sort(Comparator.comparingInt(order::get));
+        for (BasicBlock basicBlock : blocks) {
+            //only asked for the few loads and calls
+            Boolean beforeExits = null;
+            for (IRInstruction irInstruction = basicBlock.head; irInstruction != null; irInstruction = irInstruction.getNextInstruction()) {
+                boolean speculative = canSpeculate(irInstruction);
+                if (!speculative && !(irInstruction instanceof Load || isPureCall(irInstruction))) continue;
+                if (!speculative && beforeExits == null)
+                    beforeExits = !loopExits.get(header).isEmpty() && dominatesAll(basicBlock, loopExits.get(header));
+                if (!speculative && !beforeExits && !(guardable && dominatesAll(basicBlock, loopBackers.get(header)))) continue;
+                if (irInstruction instanceof Load && AliasAnalysis.mayAliasAny(AliasAnalysis.locationOf(irInstruction), written))
+                    continue;
+                //defined outside of the loop, or by an instruction moved out of it
+                boolean invariant = true, afterGuard = false;
+                for (Register register : irInstruction.getUseRegisters()) {
+                    if (register instanceof GlobalVariable) {
+                        invariant = irInstruction instanceof Load || ((GlobalI64Value) register).isString();
+                    } else {
+                        IRInstruction definition = def.get(register);
+                        if (definition == null || !loop.contains(definition.getCurrentBB())) continue;
+                        invariant = hoisted.contains(definition);
+                        afterGuard |= guarded.contains(definition);
+                    }
+                    if (!invariant) break;
+                }
+                if (!invariant) continue;
+                hoisted.add(irInstruction);
+                if (afterGuard || !speculative && !beforeExits) {
+                    guarded.add(irInstruction);
+                    toGuarded.add(irInstruction);
+                } else toPreheader.add(irInstruction);
+            }
+        }
+        if (hoisted.isEmpty()) return;
+
+        BasicBlock preheader = makePreheader(function, header, loop);
+        if (preheader == null) return;
+        changed = true;
+        for (IRInstruction irInstruction : toPreheader) moveTo(irInstruction, preheader);
+        if (!toGuarded.isEmpty()) {
+            BasicBlock guardedPreheader = makeGuard(function, header, loop, preheader);
+            for (IRInstruction irInstruction : toGuarded) moveTo(irInstruction, guardedPreheader);
+        }
+    }
+
+    //whether `basicBlock` dominates every block of `basicBlocks`
+    private boolean dominatesAll(BasicBlock basicBlock, Set<BasicBlock> basicBlocks) {
+        if (basicBlock.DTAllSuccessors == null) return false;
+        for (BasicBlock other : basicBlocks)
+            if (!basicBlock.DTAllSuccessors.contains(other)) return false;
+        return true;
+    }
+
+    private static boolean canSpeculate(IRInstruction irInstruction) {
+        if (irInstruction instanceof Binary) {
+            Binary binary = (Binary) irInstruction;
+            if (binary.getOp() == Binary.Op.DIV || binary.getOp() == Binary.Op.MOD)
+                return binary.getSrc2() instanceof Immediate && ((Immediate) binary.getSrc2()).getImmediate() != 0;
+            return true;
+        }
+        return irInstruction instanceof Cmp || irInstruction instanceof Unary || irInstruction instanceof Lea;
+    }
+
+    private boolean isPureCall(IRInstruction irInstruction) {
+        return irInstruction instanceof Call && ((Call) irInstruction).getResult() != null
+                && irRoot.stringConstantFunctions.contains(((Call) irInstruction).getCallee());
+    }
+
+    private void moveTo(IRInstruction irInstruction, BasicBlock basicBlock) {
+        irInstruction.removeSelf();
+        irInstruction.setCurrentBB(basicBlock);
+        basicBlock.tail.prependInstruction(irInstruction);
+    }
+
+    private void defineAndUse(IRInstruction irInstruction) {
+        Register defRegister = irInstruction.getDefRegister();
+        if (defRegister != null) {
+            def.put(defRegister, irInstruction);
+            use.computeIfAbsent(defRegister, k -> new HashSet<>());
+        }
+        for (Register useRegister : irInstruction.getUseRegisters())
+            use.computeIfAbsent(useRegister, k -> new HashSet<>()).add(irInstruction);
+    }
+
+    //new blocks belong to the loops around the one they are made for
+    private void addToOuterLoops(BasicBlock header, BasicBlock basicBlock) {
+        for (BasicBlock other : loopHeaders)
+            if (other != header && loopGroups.get(other).contains(header)) loopGroups.get(other).add(basicBlock);
+    }
+
+    //the only predecessor from outside the loop if it has no other successor, a new block otherwise, null if the edges
+    //into the header cannot be told apart
+    private BasicBlock makePreheader(Function function, BasicBlock header, Set<BasicBlock> loop) {
+        List<BasicBlock> outside = new ArrayList<>();
+        for (BasicBlock predecessor : header.getPredecessors())
+            if (!loop.contains(predecessor)) outside.add(predecessor);
+        if (outside.size() == 1 && outside.get(0).getSuccessors().size() == 1 && outside.get(0).tail instanceof Jump)
+            return outside.get(0);
+        for (BasicBlock predecessor : outside)
+            if (predecessor.tail instanceof Branch && ((Branch) predecessor.tail).getThenBB() == ((Branch) predecessor.tail).getElseBB())
+                return null;
+
+        BasicBlock preheader = new BasicBlock(function, "preheader");
+        for (IRInstruction irInstruction = header.head; irInstruction instanceof Phi; irInstruction = irInstruction.getNextInstruction()) {
+            Phi phi = (Phi) irInstruction;
+            Operand operand;
+            if (outside.size() == 1) operand = phi.getPaths().get(outside.get(0));
+            else {
+                Phi merge = new Phi(preheader, new I64Value(((VirtualRegister) phi.getDst()).getName()));
+                for (BasicBlock predecessor : outside) merge.getPaths().put(predecessor, phi.getPaths().get(predecessor));
+                merge.updateUseRegisters();
+                preheader.appendInst(merge);
+                defineAndUse(merge);
+                operand = merge.getDst();
+            }
+            for (BasicBlock predecessor : outside) phi.getPaths().remove(predecessor);
+            phi.getPaths().put(preheader, operand);
+            phi.updateUseRegisters();
+            if (operand instanceof Register) use.computeIfAbsent((Register) operand, k -> new HashSet<>()).add(phi);
+        }
+        for (BasicBlock predecessor : outside) {
+            if (predecessor.tail instanceof Jump) ((Jump) predecessor.tail).setTargetBB(preheader);
+            else ((Branch) predecessor.tail).replaceTarget(header, preheader);
+            predecessor.getSuccessors().remove(header);
+            predecessor.getSuccessors().add(preheader);
+            preheader.getPredecessors().add(predecessor);
+            header.getPredecessors().remove(predecessor);
+        }
+        preheader.terminate(new Jump(preheader, header));
+        addToOuterLoops(header, preheader);
+        order.put(preheader, order.get(header) - 2);
+        return preheader;
+    }
+
+    //the header is the only way out, to a block that has no other way in, and the test can be computed before the loop
+    private boolean guardable(BasicBlock header, Set<BasicBlock> loop) {
+        if (loopExits.get(header).size() != 1 || !loopExits.get(header).contains(header)) return false;
+        if (!(header.tail instanceof Branch)) return false;
+        Branch branch = (Branch) header.tail;
+        BasicBlock exit = loop.contains(branch.getThenBB()) ? branch.getElseBB() : branch.getThenBB();
+        if (loop.contains(exit) || exit.getPredecessors().size() != 1) return false;
+        for (IRInstruction irInstruction = header.head; irInstruction != branch; irInstruction = irInstruction.getNextInstruction())
+            if (!(irInstruction instanceof Phi || irInstruction instanceof Move || irInstruction instanceof Cmp
+                    || irInstruction instanceof Unary || irInstruction instanceof Binary && canSpeculate(irInstruction)))
+                return false;
+        return true;
+    }
+
+    //Loop guard
+    //The preheader gets a copy of the test of the header on the values that come into the loop, and goes to the exit
+    //if it fails, or on to a new block before the header, which is returned. The exit is no longer reached from the
+    //header only, so the values of the header used after the loop merge there with their copies.
+    private BasicBlock makeGuard(Function function, BasicBlock header, Set<BasicBlock> loop, BasicBlock preheader) {
+        Branch branch = (Branch) header.tail;
+        BasicBlock exit = loop.contains(branch.getThenBB()) ? branch.getElseBB() : branch.getThenBB();
+        Map<BasicBlock, BasicBlock> blockMap = new HashMap<>();
+        blockMap.put(header, preheader);
+        //the values in the header the first time through
+        Map<Operand, Operand> valueMap = new HashMap<>();
+        List<Register> headerDefs = new ArrayList<>();
+        for (IRInstruction irInstruction = header.head; irInstruction != branch; irInstruction = irInstruction.getNextInstruction()) {
+            Register defRegister = irInstruction.getDefRegister();
+            if (irInstruction instanceof Phi) {
+                Operand operand = ((Phi) irInstruction).getPaths().get(preheader);
+                valueMap.put(defRegister, operand == null ? new Immediate(0) : operand);
+            } else {
+                Map<Operand, Operand> renameMap = new HashMap<>(valueMap);
+                renameMap.put(defRegister, new I64Value(((VirtualRegister) defRegister).getName()));
+                IRInstruction copy = irInstruction.getFakeInstruction(blockMap, renameMap);
+                preheader.tail.prependInstruction(copy);
+                defineAndUse(copy);
+                valueMap.put(defRegister, copy.getDefRegister());
+            }
+            headerDefs.add(defRegister);
+        }
+
+        BasicBlock guardedPreheader = new BasicBlock(function, "guarded_preheader");
+        Operand cond = valueMap.getOrDefault(branch.getCond(), branch.getCond());
+        Branch guard = branch.getThenBB() == exit ? new Branch(preheader, cond, exit, guardedPreheader) : new Branch(preheader, cond, guardedPreheader, exit);
+        preheader.removeInst();
+        preheader.terminate(guard);
+        defineAndUse(guard);
+        guardedPreheader.terminate(new Jump(guardedPreheader, header));
+        header.getPredecessors().remove(preheader);
+        for (IRInstruction irInstruction = header.head; irInstruction instanceof Phi; irInstruction = irInstruction.getNextInstruction())
+            ((Phi) irInstruction).replacePath(preheader, guardedPreheader);
+        addToOuterLoops(header, guardedPreheader);
+        order.put(guardedPreheader, order.get(header) - 1);
+
+        //phis of the exit take the same values from the guard
+        IRInstruction first = exit.head;
+        for (; first instanceof Phi; first = first.getNextInstruction()) {
+            Phi phi = (Phi) first;
+            Operand operand = phi.getPaths().get(header);
+            phi.getPaths().put(preheader, valueMap.getOrDefault(operand, operand));
+            phi.updateUseRegisters();
+            defineAndUse(phi);
+        }
+        for (Register headerDef : headerDefs) {
+            List<IRInstruction> outsideUsers = new ArrayList<>();
+            for (IRInstruction user : use.get(headerDef))
+                if (!loop.contains(user.getCurrentBB()) && !(user instanceof Phi && user.getCurrentBB() == exit) && user.getCurrentBB() != preheader)
+                    outsideUsers.add(user);
+            if (outsideUsers.isEmpty()) continue;
+            Phi merge = new Phi(exit, new I64Value(((VirtualRegister) headerDef).getName()));
+            merge.getPaths().put(header, headerDef);
+            merge.getPaths().put(preheader, valueMap.get(headerDef));
+            merge.updateUseRegisters();
+            first.prependInstruction(merge);
+            defineAndUse(merge);
+            for (IRInstruction user : outsideUsers) {
+                user.replaceUseRegister(headerDef, merge.getDst());
+                use.get(headerDef).remove(user);
+                use.get((Register) merge.getDst()).add(user);
+            }
+        }
+        return guardedPreheader;
+    }
+}
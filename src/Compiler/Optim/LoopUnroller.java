@@ -0,0 +1,372 @@
+package Compiler.Optim;
+
+import Compiler.Configuration;
+import Compiler.IR.BasicBlock;
+import Compiler.IR.Function;
+import Compiler.IR.IRRoot;
+import Compiler.IR.Instruction.*;
+import Compiler.IR.Operand.*;
+
+import java.util.*;
+
+//Loop Unrolling
+//        Innermost counted loops are unrolled: the header is the only way out and tests a basic induction variable, a
+//        phi stepped by a constant on the one latch, against a value defined outside of the loop. An iteration is a copy
+//        of every block of the loop made with getFakeInstruction, whose header takes the values of the latch of the one
+//        before through moves instead of phis and goes on to the body without testing.
+//        A loop that runs a constant number of times, small enough, becomes that many iterations in a row and a last
+//        copy of the header that goes to the exit. Any other runs `factor` iterations per trip around the loop, as long
+//        as `iv + (factor - 1) * step` still passes the test, and leaves for a copy of the original loop that runs the
+//        iterations left over. Like in FunctionInliner, the copies are bounded by a number of instructions.
+//        The values of the header used after the loop are the ones of the last header that runs, the copy of the
+//        header for a complete unrolling or the header of the remainder loop.
+//LLVM Pass
+
+class LoopUnroller extends Pass {
+    //the copies of a loop together have at most this many instructions
+    private int unrollInstructionLimit = 150;
+    private int fullUnrollTripCountLimit = 16;
+
+    //the blocks and registers of a loop to the ones of a copy
+    private static class Iteration {
+        Map<BasicBlock, BasicBlock> blocks = new HashMap<>();
+        Map<Operand, Operand> registers = new HashMap<>();
+    }
+
+    private Set<BasicBlock> loop;
+    private BasicBlock header, latch, body, exit;
+    private Phi inductionVariable;
+    private int step;
+    private Cmp test;
+    private Operand bound;
+
+    LoopUnroller(IRRoot irRoot) {
+        super(irRoot);
+    }
+
+    @Override
+    boolean run() {
+        changed = !run(irRoot.getFunctionMap().values()).isEmpty();
+        return changed;
+    }
+
+    Set<Function> run(Collection<Function> functions) {
+        return changedFunctions(runOnFunctions(functions, () -> new LoopUnroller(irRoot), LoopUnroller::loopUnrolling));
+    }
+
+    //the copies are new blocks and loops
+    @Override
+    Set<AnalysisManager.Analysis> preservedAnalyses() {
+        return changed ? AnalysisManager.NONE : AnalysisManager.ALL;
+    }
+
+    private void loopUnrolling(Function function) {
+        calcDefUseChain(function);
+        calcLoopInformation(function);
+        List<BasicBlock> headers = new ArrayList<>(loopHeaders);
+        headers.sort(Comparator.comparingInt(loopHeader -> loopHeader.postOrderNumber));
+        //innermost loops do not share blocks, unrolling one leaves the others as they were
+        for (BasicBlock loopHeader : headers)
+            if (innermost(loopHeader) && countedLoop(loopHeader)) unroll(function);
+        if (changed) function.recalcReversePostOrderDFSBBList();
+    }
+
+    private boolean innermost(BasicBlock loopHeader) {
+        for (BasicBlock other : loopHeaders)
+            if (other != loopHeader && loopGroups.get(loopHeader).contains(other)) return false;
+        return true;
+    }
+
+    //Trip count analysis
+    //sets the fields for the loop of `loopHeader` if it is a counted loop that can be copied
+    private boolean countedLoop(BasicBlock loopHeader) {
+        header = loopHeader;
+        loop = loopGroups.get(header);
+        if (loopBackers.get(header).size() != 1 || !loopExits.get(header).equals(Collections.singleton(header))) return false;
+        latch = loopBackers.get(header).iterator().next();
+        if (latch == header || !(latch.tail instanceof Jump) || !(header.tail instanceof Branch)) return false;
+        Branch branch = (Branch) header.tail;
+        body = loop.contains(branch.getThenBB()) ? branch.getThenBB() : branch.getElseBB();
+        exit = body == branch.getThenBB() ? branch.getElseBB() : branch.getThenBB();
+        if (loop.contains(exit) || !(def.get(branch.getCond()) instanceof Cmp)) return false;
+        test = (Cmp) def.get(branch.getCond());
+        if (test.getCurrentBB() != header) return false;
+        for (BasicBlock basicBlock : loop)
+            for (IRInstruction irInstruction = basicBlock.head; irInstruction != null; irInstruction = irInstruction.getNextInstruction())
+                if (irInstruction instanceof Lea) return false;
+
+        boolean onFirst = def.get(test.getSrc1()) instanceof Phi && def.get(test.getSrc1()).getCurrentBB() == header;
+        Operand tested = onFirst ? test.getSrc1() : test.getSrc2();
+        bound = onFirst ? test.getSrc2() : test.getSrc1();
+        if (!(def.get(tested) instanceof Phi) || def.get(tested).getCurrentBB() != header || !invariant(bound)) return false;
+        inductionVariable = (Phi) def.get(tested);
+        Operand next = inductionVariable.getPaths().get(latch);
+        IRInstruction definition = next instanceof Register ? def.get(next) : null;
+        if (!(definition instanceof Binary) || !loop.contains(definition.getCurrentBB())) return false;
+        Binary binary = (Binary) definition;
+        if (binary.getOp() == Binary.Op.ADD && binary.getSrc1() == tested && binary.getSrc2() instanceof Immediate)
+            step = ((Immediate) binary.getSrc2()).getImmediate();
+        else if (binary.getOp() == Binary.Op.ADD && binary.getSrc2() == tested && binary.getSrc1() instanceof Immediate)
+            step = ((Immediate) binary.getSrc1()).getImmediate();
+        else if (binary.getOp() == Binary.Op.SUB && binary.getSrc1() == tested && binary.getSrc2() instanceof Immediate)
+            step = -((Immediate) binary.getSrc2()).getImmediate();
+        else return false;
+        //the loop goes on while `iv op bound`, which gets false as iv moves by the step
+        Cmp.Op op = continueOp();
+        return step > 0 && (op == Cmp.Op.LT || op == Cmp.Op.LEQ) || step < 0 && (op == Cmp.Op.GT || op == Cmp.Op.GEQ);
+    }
+
+    private Cmp.Op continueOp() {
+        Cmp.Op op = test.getOp();
+        if (test.getSrc1() != inductionVariable.getDst()) op = swap(op);
+        return ((Branch) header.tail).getThenBB() == body ? op : negate(op);
+    }
+
+    private static Cmp.Op swap(Cmp.Op op) {
+        switch (op) {
+            case LT:
+                return Cmp.Op.GT;
+            case LEQ:
+                return Cmp.Op.GEQ;
+            case GT:
+                return Cmp.Op.LT;
+            case GEQ:
+                return Cmp.Op.LEQ;
+            default:
+                return op;
+        }
+    }
+
+    private static Cmp.Op negate(Cmp.Op op) {
+        switch (op) {
+            case LT:
+                return Cmp.Op.GEQ;
+            case LEQ:
+                return Cmp.Op.GT;
+            case GT:
+                return Cmp.Op.LEQ;
+            case GEQ:
+                return Cmp.Op.LT;
+            case EQ:
+                return Cmp.Op.NEQ;
+            default:
+                return Cmp.Op.EQ;
+        }
+    }
+
+    private boolean invariant(Operand operand) {
+        if (operand instanceof Immediate) return true;
+        if (!(operand instanceof VirtualRegister) || operand instanceof GlobalVariable) return false;
+        IRInstruction definition = def.get(operand);
+        return definition == null || !loop.contains(definition.getCurrentBB());
+    }
+
+    //the value of `operand` if it is a constant, a move of one included
+    private Integer constantOf(Operand operand) {
+        if (operand instanceof Immediate) return ((Immediate) operand).getImmediate();
+        IRInstruction definition = operand instanceof Register ? def.get(operand) : null;
+        if (definition instanceof Move && ((Move) definition).getSrc() instanceof Immediate)
+            return ((Immediate) ((Move) definition).getSrc()).getImmediate();
+        return null;
+    }
+
+    //the number of iterations if the start and the bound are constants and it is at most the limit, -1 otherwise
+    private int tripCount() {
+        Integer bound = constantOf(this.bound), start = null;
+        if (bound == null) return -1;
+        for (BasicBlock predecessor : header.getPredecessors()) {
+            if (predecessor == latch) continue;
+            Operand operand = inductionVariable.getPaths().get(predecessor);
+            //a missing operand is 0, as SSADestructor copies it
+            Integer value = operand == null ? Integer.valueOf(0) : constantOf(operand);
+            if (value == null || start != null && !start.equals(value)) return -1;
+            start = value;
+        }
+        if (start == null) return -1;
+        Cmp.Op op = continueOp();
+        long value = start;
+        for (int tripCount = 0; tripCount <= fullUnrollTripCountLimit; ++tripCount, value += step) {
+            boolean goesOn = op == Cmp.Op.LT ? value < bound : op == Cmp.Op.LEQ ? value <= bound : op == Cmp.Op.GT ? value > bound : value >= bound;
+            if (!goesOn) return tripCount;
+        }
+        return -1;
+    }
+
+    private void unroll(Function function) {
+        int size = 0;
+        for (BasicBlock basicBlock : loop)
+            for (IRInstruction irInstruction = basicBlock.head; irInstruction != null; irInstruction = irInstruction.getNextInstruction())
+                ++size;
+        int tripCount = tripCount();
+        if (tripCount > 0 && tripCount * size <= unrollInstructionLimit) {
+            fullUnroll(function, tripCount);
+            changed = true;
+            return;
+        }
+        int factor = Math.min(Configuration.UNROLL_FACTOR, unrollInstructionLimit / size);
+        if (factor >= 2) {
+            partialUnroll(function, factor);
+            changed = true;
+        }
+    }
+
+    private List<BasicBlock> loopBlocks() {
+        List<BasicBlock> blocks = new ArrayList<>(loop);
+        blocks.sort(Comparator.comparingInt(basicBlock -> -basicBlock.postOrderNumber));
+        return blocks;
+    }
+
+    //the copies are made from the loop as it was, before its own header changes
+    private void fullUnroll(Function function, int tripCount) {
+        Iteration iteration = new Iteration();
+        BasicBlock lastLatch = latch;
+        for (int i = 1; i < tripCount; ++i) {
+            iteration = copy(function, loopBlocks(), iteration, body);
+            retarget(lastLatch, new Jump(lastLatch, iteration.blocks.get(header)));
+            lastLatch = iteration.blocks.get(latch);
+        }
+        iteration = copy(function, Collections.singletonList(header), iteration, exit);
+        BasicBlock lastHeader = iteration.blocks.get(header);
+        retarget(lastLatch, new Jump(lastLatch, lastHeader));
+        leaveFrom(lastHeader, iteration);
+
+        //the first iteration is the loop itself, entered from outside only
+        for (IRInstruction irInstruction = header.head; irInstruction instanceof Phi; ) {
+            Phi phi = (Phi) irInstruction;
+            irInstruction = irInstruction.getNextInstruction();
+            removeUses(phi);
+            phi.getPaths().remove(latch);
+            phi.updateUseRegisters();
+            IRInstruction replacement = phi;
+            if (phi.getPaths().size() == 1) {
+                replacement = new Move(header, phi.getPaths().values().iterator().next(), phi.getDst());
+                phi.replaceInstruction(replacement);
+            }
+            defineAndUse(replacement);
+        }
+        retarget(header, new Jump(header, body));
+    }
+
+    private void partialUnroll(Function function, int factor) {
+        List<BasicBlock> blocks = loopBlocks();
+        Iteration remainder = copy(function, blocks, null, null);
+        BasicBlock remainderHeader = remainder.blocks.get(header);
+        Iteration iteration = new Iteration();
+        BasicBlock lastLatch = latch;
+        for (int i = 1; i < factor; ++i) {
+            iteration = copy(function, blocks, iteration, body);
+            retarget(lastLatch, new Jump(lastLatch, iteration.blocks.get(header)));
+            lastLatch = iteration.blocks.get(latch);
+        }
+        retarget(lastLatch, new Jump(lastLatch, header));
+        for (IRInstruction irInstruction = header.head; irInstruction instanceof Phi; irInstruction = irInstruction.getNextInstruction()) {
+            Phi phi = (Phi) irInstruction;
+            Operand operand = phi.getPaths().get(latch);
+            removeUses(phi);
+            phi.getPaths().remove(latch);
+            phi.getPaths().put(lastLatch, iteration.registers.getOrDefault(operand, operand));
+            phi.updateUseRegisters();
+            defineAndUse(phi);
+        }
+        leaveFrom(remainderHeader, remainder);
+
+        //the header tests whether `factor` more iterations run, and leaves for the remainder loop if not
+        Operand iv = inductionVariable.getDst();
+        Binary last = new Binary(header, Binary.Op.ADD, iv, new Immediate((factor - 1) * step), new I64Value(((VirtualRegister) iv).getName()));
+        Cmp newTest = test.getSrc1() == iv ? new Cmp(header, test.getOp(), last.getDst(), bound, new I64Value("cmp"))
+                : new Cmp(header, test.getOp(), bound, last.getDst(), new I64Value("cmp"));
+        header.tail.prependInstruction(last);
+        header.tail.prependInstruction(newTest);
+        defineAndUse(last);
+        defineAndUse(newTest);
+        Branch branch = (Branch) header.tail;
+        use.get(branch.getCond()).remove(branch);
+        retarget(header, branch.getThenBB() == body ? new Branch(header, newTest.getDst(), body, remainderHeader)
+                : new Branch(header, newTest.getDst(), remainderHeader, body));
+        defineAndUse(header.tail);
+    }
+
+    //A copy of `blocks` for the iteration after `previous`. Its header takes the values of the latch of `previous`
+    //through moves and jumps to the copy of `target`, a remainder loop (`previous` null) keeps the phis and the test of
+    //the header, entered from it.
+    private Iteration copy(Function function, List<BasicBlock> blocks, Iteration previous, BasicBlock target) {
+        Iteration iteration = new Iteration();
+        for (BasicBlock basicBlock : blocks) {
+            iteration.blocks.put(basicBlock, new BasicBlock(function, basicBlock.getName()));
+            for (IRInstruction irInstruction = basicBlock.head; irInstruction != null; irInstruction = irInstruction.getNextInstruction()) {
+                Register defRegister = irInstruction.getDefRegister();
+                if (defRegister != null) iteration.registers.put(defRegister, new I64Value(((VirtualRegister) defRegister).getName()));
+            }
+        }
+        for (BasicBlock basicBlock : blocks) {
+            BasicBlock copy = iteration.blocks.get(basicBlock);
+            for (IRInstruction irInstruction = basicBlock.head; irInstruction != null; irInstruction = irInstruction.getNextInstruction()) {
+                IRInstruction fake;
+                if (basicBlock == header && irInstruction instanceof Phi) {
+                    Phi phi = (Phi) irInstruction;
+                    Operand operand = phi.getPaths().get(latch);
+                    if (operand == null) operand = new Immediate(0);
+                    Operand dst = iteration.registers.get(phi.getDst());
+                    if (previous != null) fake = new Move(copy, previous.registers.getOrDefault(operand, operand), dst);
+                    else {
+                        Phi fakePhi = new Phi(copy, dst);
+                        fakePhi.getPaths().put(header, phi.getDst());
+                        fakePhi.getPaths().put(iteration.blocks.get(latch), iteration.registers.getOrDefault(operand, operand));
+                        fakePhi.updateUseRegisters();
+                        fake = fakePhi;
+                    }
+                } else if (basicBlock == header && irInstruction == basicBlock.tail && previous != null)
+                    fake = new Jump(copy, iteration.blocks.getOrDefault(target, target));
+                else fake = irInstruction.getFakeInstruction(iteration.blocks, iteration.registers);
+                if (irInstruction == basicBlock.tail) copy.terminate(fake);
+                else copy.appendInst(fake);
+                defineAndUse(fake);
+            }
+        }
+        return iteration;
+    }
+
+    //`from`, the copy of the header in `iteration`, is the way to the exit now, the values of the header used after the
+    //loop are its own
+    private void leaveFrom(BasicBlock from, Iteration iteration) {
+        for (IRInstruction irInstruction = exit.head; irInstruction instanceof Phi; irInstruction = irInstruction.getNextInstruction())
+            ((Phi) irInstruction).replacePath(header, from);
+        Set<BasicBlock> inside = new HashSet<>(loop);
+        inside.addAll(iteration.blocks.values());
+        for (IRInstruction irInstruction = header.head; irInstruction != null; irInstruction = irInstruction.getNextInstruction()) {
+            Register defRegister = irInstruction.getDefRegister();
+            if (defRegister == null) continue;
+            Operand replacement = iteration.registers.get(defRegister);
+            for (IRInstruction user : new ArrayList<>(use.getOrDefault(defRegister, Collections.emptySet()))) {
+                if (inside.contains(user.getCurrentBB())) continue;
+                user.replaceUseRegister(defRegister, replacement);
+                use.get(defRegister).remove(user);
+                use.computeIfAbsent((Register) replacement, k -> new HashSet<>()).add(user);
+            }
+        }
+    }
+
+    //replaces the terminator of `basicBlock` and the edges that go with it
+    private void retarget(BasicBlock basicBlock, IRInstruction terminator) {
+        for (BasicBlock successor : basicBlock.getSuccessors()) successor.getPredecessors().remove(basicBlock);
+        basicBlock.removeInst();
+        basicBlock.terminate(terminator);
+    }
+
+    private void defineAndUse(IRInstruction irInstruction) {
+        Register defRegister = irInstruction.getDefRegister();
+        if (defRegister != null) {
+            def.put(defRegister, irInstruction);
+            use.computeIfAbsent(defRegister, k -> new HashSet<>());
+        }
+        for (Register useRegister : irInstruction.getUseRegisters())
+            use.computeIfAbsent(useRegister, k -> new HashSet<>()).add(irInstruction);
+    }
+
+    private void removeUses(IRInstruction irInstruction) {
+        for (Register useRegister : irInstruction.getUseRegisters()) {
+            Set<IRInstruction> users = use.get(useRegister);
+            if (users != null) users.remove(irInstruction);
+        }
+    }
+}
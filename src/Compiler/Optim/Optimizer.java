@@ -1,67 +1,148 @@
 package Compiler.Optim;
 
+import Compiler.IR.Function;
 import Compiler.IR.IRRoot;
+import Compiler.Utils.TimeReport;
+
+import java.util.*;
 
 public class Optimizer {
+    private IRRoot irRoot;
     private SSAConstructor ssaConstructor;
     private SSADestructor ssaDestructor;
     private CFGSimplifier cfgSimplifier;
     private DeadCodeEliminator deadCodeEliminator;
     private ConstantAndCopyPropagator constantAndCopyPropagator;
     private InstructionCombiner instructionCombiner;
-    private CommonSubexpressionEliminator commonSubexpressionEliminator;
+    private GlobalValueNumberer globalValueNumberer;
+    private LoopInvariantHoister loopInvariantHoister;
+    private InductionVariableReducer inductionVariableReducer;
+    private LoopUnroller loopUnroller;
+    private EscapeAnalyzer escapeAnalyzer;
     private SpillInstructor spillInstructor;
     private ArithmeticTransformer arithmeticTransformer;
+    private SideEffectAnalyzer sideEffectAnalyzer;
+    //analyses shared by the passes, they are only trusted within one call of the optimizer, since the IR is changed by
+    //passes outside of it in between
+    private AnalysisManager analysisManager = new AnalysisManager();
 
     public Optimizer(IRRoot irRoot) {
+        this.irRoot = irRoot;
         ssaConstructor = new SSAConstructor(irRoot);
         ssaDestructor = new SSADestructor(irRoot);
         cfgSimplifier = new CFGSimplifier(irRoot);
         deadCodeEliminator = new DeadCodeEliminator(irRoot);
         constantAndCopyPropagator = new ConstantAndCopyPropagator(irRoot);
         instructionCombiner = new InstructionCombiner(irRoot);
-        commonSubexpressionEliminator = new CommonSubexpressionEliminator(irRoot);
+        globalValueNumberer = new GlobalValueNumberer(irRoot);
+        loopInvariantHoister = new LoopInvariantHoister(irRoot);
+        inductionVariableReducer = new InductionVariableReducer(irRoot);
+        loopUnroller = new LoopUnroller(irRoot);
+        escapeAnalyzer = new EscapeAnalyzer(irRoot);
         spillInstructor = new SpillInstructor(irRoot);
         arithmeticTransformer = new ArithmeticTransformer(irRoot);
+        sideEffectAnalyzer = new SideEffectAnalyzer(irRoot);
+        for (Pass pass : Arrays.asList(ssaConstructor, ssaDestructor, cfgSimplifier, deadCodeEliminator, constantAndCopyPropagator,
+                instructionCombiner, globalValueNumberer, loopInvariantHoister, inductionVariableReducer,
+                loopUnroller, escapeAnalyzer, spillInstructor, arithmeticTransformer))
+            pass.setAnalysisManager(analysisManager);
+    }
+
+    //GVN, constant and copy propagation, CFG simplification and DCE until nothing changes, then escape analysis, LICM,
+    //strength reduction and unrolling once on the clean code and the same again on the functions they changed, where the
+    //fields of replaced objects fold like other registers, the hoisted code may be redundant with code before loops, the
+    //reduced induction variables leave dead ones behind and the copies of a loop body fold with each other
+    public void SSAOptimization() {
+        analysisManager.clear();
+        sideEffectAnalyzer.update();
+        optimize(irRoot.getFunctionMap().values());
+        Set<Function> changed = new HashSet<>(runOn("EscapeAnalysis", irRoot.getFunctionMap().values(), escapeAnalyzer::run));
+        changed.addAll(runOn("LoopInvariantCodeMotion", irRoot.getFunctionMap().values(), loopInvariantHoister::run));
+        changed.addAll(runOn("InductionVariableStrengthReduction", irRoot.getFunctionMap().values(), inductionVariableReducer::run));
+        changed.addAll(runOn("LoopUnrolling", irRoot.getFunctionMap().values(), loopUnroller::run));
+        optimize(changed);
+    }
+
+    //A round only runs on the functions that changed in the last one, and on the callers of functions whose side effect
+    //summary changed, since that is all they know about other functions.
+    private void optimize(Collection<Function> dirty) {
+        while (!dirty.isEmpty()) {
+            TimeReport.count("rounds", 1);
+            Set<Function> changed = new HashSet<>();
+            changed.addAll(runOn("GlobalValueNumbering", dirty, globalValueNumberer::run));
+            changed.addAll(runOn("ConstantAndCopyPropagation", dirty, constantAndCopyPropagator::run));
+            changed.addAll(runOn("CFGSimplification", dirty, cfgSimplifier::run));
+            changed.addAll(runOn("DeadCodeElimination", dirty, deadCodeEliminator::run));
+            changed.addAll(runOn("CFGSimplification", dirty, cfgSimplifier::run));
+
+            TimeReport.begin("SideEffectAnalysis");
+            Set<Function> summaryChanged = sideEffectAnalyzer.update();
+            TimeReport.count("changed summaries", summaryChanged.size());
+            TimeReport.end();
+            List<Function> next = new ArrayList<>();
+            for (Function function : irRoot.getFunctionMap().values()) {
+                if (changed.contains(function)) next.add(function);
+                else if (!summaryChanged.isEmpty()) {
+                    function.updateCalleeSet();
+                    if (!Collections.disjoint(function.calleeSet, summaryChanged)) next.add(function);
+                }
+            }
+            dirty = next;
+        }
+    }
+
+    //run a pass of SSAOptimization on `functions`, measured for -ftime-report
+    private Set<Function> runOn(String name, Collection<Function> functions, java.util.function.Function<Collection<Function>, Set<Function>> pass) {
+        TimeReport.begin(name, irRoot);
+        Set<Function> res = pass.apply(functions);
+        TimeReport.count("functions", functions.size());
+        TimeReport.count("changed functions", res.size());
+        TimeReport.end(irRoot);
+        return res;
     }
 
     public boolean CFGSimplification() {
+        analysisManager.clear();
         return cfgSimplifier.run();
     }
 
     public void CFGSimplification(boolean eliminateOK) {
+        analysisManager.clear();
         cfgSimplifier.runMore();
     }
 
     public void SSAConstruction() {
+        analysisManager.clear();
         ssaConstructor.run();
     }
 
     public void SSADestruction() {
+        analysisManager.clear();
         ssaDestructor.run();
     }
 
     public boolean DeadCodeElimination() {
+        analysisManager.clear();
         return deadCodeEliminator.run();
     }
 
     public boolean ConstantAndCopyPropagation() {
+        analysisManager.clear();
         return constantAndCopyPropagator.run();
     }
 
     public void InstructionCombination() {
+        analysisManager.clear();
         instructionCombiner.run();
     }
 
-    public boolean CommonSubexpressionElimination() {
-        return commonSubexpressionEliminator.run();
-    }
-
     public void SpillPriorityCalculation() {
+        analysisManager.clear();
         spillInstructor.run();
     }
 
     public void ArithmeticTransformation() {
+        analysisManager.clear();
         arithmeticTransformer.run();
     }
 }
@@ -1,16 +1,30 @@
 package Compiler.Optim;
 
+import Compiler.Configuration;
 import Compiler.IR.BasicBlock;
 import Compiler.IR.Function;
+import Compiler.IR.IRHash;
 import Compiler.IR.IRRoot;
 import Compiler.IR.Instruction.IRInstruction;
 import Compiler.IR.Operand.Register;
 
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
 
 public abstract class Pass {
+    private static ForkJoinPool pool = null;
+    private static long rounds = 0;
+
     protected IRRoot irRoot;
+    protected AnalysisManager analysisManager = new AnalysisManager();
     protected boolean changed;
+    //the function a pass from `runOnFunctions` ran on
+    protected Function currentFunction;
     //def-use chain information
     protected Map<Register, IRInstruction> def;
     protected Map<Register, Set<IRInstruction>> use;
@@ -29,7 +43,84 @@ public abstract class Pass {
 
     abstract boolean run();
 
+    void setAnalysisManager(AnalysisManager analysisManager) {
+        this.analysisManager = analysisManager;
+    }
+
+    //analyses of `currentFunction` that are still up to date after this pass ran on it
+    Set<AnalysisManager.Analysis> preservedAnalyses() {
+        return AnalysisManager.NONE;
+    }
+
+    //Function-local passes
+    //Run `body` on every function, each on a fresh pass from `newPass` so that the analysis fields are not shared, and
+    //on a ForkJoin pool when there is more than one thread (-foptim-threads=<n>). `body` may only change its function,
+    //effects on the whole program are left in its pass and applied by the caller, in function order.
+    //IR objects created by `body` get hash codes seeded by the function, so the output does not depend on the threads.
+    //The passes share the analyses of this one, and drop what they did not preserve when they are done.
+    <P extends Pass> List<P> runOnFunctions(Supplier<P> newPass, BiConsumer<P, Function> body) {
+        return runOnFunctions(irRoot.getFunctionMap().values(), newPass, body);
+    }
+
+    <P extends Pass> List<P> runOnFunctions(Collection<Function> functions, Supplier<P> newPass, BiConsumer<P, Function> body) {
+        long round = ++rounds;
+        List<Callable<P>> tasks = new ArrayList<>();
+        for (Function function : functions) {
+            long seed = round << 32 ^ function.getName().hashCode();
+            tasks.add(() -> {
+                long old = IRHash.reseed(seed);
+                try {
+                    P pass = newPass.get();
+                    pass.currentFunction = function;
+                    pass.analysisManager = analysisManager;
+                    body.accept(pass, function);
+                    analysisManager.invalidate(function, pass.preservedAnalyses());
+                    return pass;
+                } finally {
+                    IRHash.restore(old);
+                }
+            });
+        }
+        List<P> passes = new ArrayList<>();
+        try {
+            if (Configuration.OPTIM_THREADS > 1 && functions.size() > 1) {
+                if (pool == null) pool = new ForkJoinPool(Configuration.OPTIM_THREADS);
+                for (Future<P> future : pool.invokeAll(tasks)) passes.add(future.get());
+            } else {
+                for (Callable<P> task : tasks) passes.add(task.call());
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error) throw (Error) e.getCause();
+            throw new RuntimeException(e.getCause());
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        return passes;
+    }
+
+    static boolean anyChanged(List<? extends Pass> passes) {
+        return passes.stream().anyMatch(pass -> pass.changed);
+    }
+
+    static Set<Function> changedFunctions(List<? extends Pass> passes) {
+        Set<Function> res = new LinkedHashSet<>();
+        passes.forEach(pass -> {
+            if (pass.changed) res.add(pass.currentFunction);
+        });
+        return res;
+    }
+
+    //the def-use chain of `function`, from the analysis manager if it is up to date
     void calcDefUseChain(Function function) {
+        if (analysisManager.isValid(function, AnalysisManager.Analysis.DEF_USE)) {
+            AnalysisManager.DefUseChain defUseChain = analysisManager.getDefUseChain(function);
+            def = defUseChain.def;
+            use = defUseChain.use;
+            return;
+        }
         def = new HashMap<>();
         use = new HashMap<>();
         function.getReversePostOrderDFSBBList().forEach(basicBlock -> {
@@ -45,6 +136,10 @@ public abstract class Pass {
                 }
             }
         });
+        AnalysisManager.DefUseChain defUseChain = new AnalysisManager.DefUseChain();
+        defUseChain.def = def;
+        defUseChain.use = use;
+        analysisManager.setDefUseChain(function, defUseChain);
     }
 
     LinkedList<IRInstruction> getAllStatements(Function function) {
@@ -67,6 +162,7 @@ public abstract class Pass {
     }
 
     void computeDominateTree(Function function) {
+        if (analysisManager.isValid(function, AnalysisManager.Analysis.DOMINATOR_TREE)) return;
         List<BasicBlock> RPO = function.getReversePostOrderDFSBBList();
         List<BasicBlock> basicBlockList = RPO.subList(1, RPO.size());
         basicBlockList.forEach(basicBlock -> basicBlock.IDOM = null);
@@ -92,6 +188,7 @@ public abstract class Pass {
         RPO.forEach(basicBlock -> basicBlock.DTSuccessors = new HashSet<>());
         basicBlockList.forEach(basicBlock -> basicBlock.IDOM.DTSuccessors.add(basicBlock));
         computeDominateTreeAllSuccessors(function.getEntryBlock());
+        analysisManager.markValid(function, AnalysisManager.Analysis.DOMINATOR_TREE);
     }
 
     private BasicBlock intersect(BasicBlock basicBlock1, BasicBlock basicBlock2) {
@@ -108,6 +205,7 @@ public abstract class Pass {
     //This pass is a simple dominator construction algorithm for finding forward dominator frontiers.
     //LLVM Pass
     void computeDominanceFrontier(Function function) {
+        if (analysisManager.isValid(function, AnalysisManager.Analysis.DOMINANCE_FRONTIER)) return;
         List<BasicBlock> basicBlockList = function.getReversePostOrderDFSBBList();
         basicBlockList.forEach(basicBlock -> basicBlock.DF = new HashSet<>());
         for (BasicBlock basicBlock : basicBlockList) {
@@ -121,12 +219,14 @@ public abstract class Pass {
                 }
             }
         }
+        analysisManager.markValid(function, AnalysisManager.Analysis.DOMINANCE_FRONTIER);
     }
 
     //Post-Dominator Tree Construction
     //This pass is a simple post-dominator construction algorithm for finding post-dominators.
     //LLVM Pass
     void computePostDominateTree(Function function) {
+        if (analysisManager.isValid(function, AnalysisManager.Analysis.POST_DOMINATOR_TREE)) return;
         function.calcReverseCFGPostOrderNumber();
         List<BasicBlock> basicBlockList = new LinkedList<>(function.getReversePostOrderDFSBBList());
         Collections.reverse(basicBlockList);
@@ -152,6 +252,7 @@ public abstract class Pass {
         }
         function.getReversePostOrderDFSBBList().forEach(basicBlock -> basicBlock.RDFSuccessors = new HashSet<>());
         basicBlockList.forEach(basicBlock -> basicBlock.postIDOM.RDFSuccessors.add(basicBlock));
+        analysisManager.markValid(function, AnalysisManager.Analysis.POST_DOMINATOR_TREE);
     }
 
     private BasicBlock intersectPost(BasicBlock basicBlock1, BasicBlock basicBlock2) {
@@ -168,6 +269,7 @@ public abstract class Pass {
     //This pass is a simple post-dominator construction algorithm for finding post-dominator frontiers.
     //LLVM Pass
     void computeReverseDominantFrontier(Function function) {
+        if (analysisManager.isValid(function, AnalysisManager.Analysis.POST_DOMINANCE_FRONTIER)) return;
         List<BasicBlock> basicBlockList = function.getReversePostOrderDFSBBList();
         basicBlockList.forEach(basicBlock -> basicBlock.RDF = new HashSet<>());
         for (BasicBlock basicBlock : basicBlockList) {
@@ -181,6 +283,7 @@ public abstract class Pass {
                 }
             }
         }
+        analysisManager.markValid(function, AnalysisManager.Analysis.POST_DOMINANCE_FRONTIER);
     }
 
     //Natural Loop Information
@@ -189,6 +292,15 @@ public abstract class Pass {
     //LLVM Pass
     void calcLoopInformation(Function function) {
         computeDominateTree(function);
+        if (analysisManager.isValid(function, AnalysisManager.Analysis.LOOPS)) {
+            AnalysisManager.LoopInformation information = analysisManager.getLoopInformation(function);
+            loopHeaders = information.loopHeaders;
+            loopBackers = information.loopBackers;
+            belongingLoopHeaders = information.belongingLoopHeaders;
+            loopGroups = information.loopGroups;
+            loopExits = information.loopExits;
+            return;
+        }
         //mark loop headers and record loop backers
         loopHeaders = new HashSet<>();
         loopBackers = new HashMap<>();
@@ -234,5 +346,12 @@ public abstract class Pass {
                         loopExits.get(loopHeader).add(loopMember);
                     }
         }
+        AnalysisManager.LoopInformation information = new AnalysisManager.LoopInformation();
+        information.loopHeaders = loopHeaders;
+        information.loopBackers = loopBackers;
+        information.belongingLoopHeaders = belongingLoopHeaders;
+        information.loopGroups = loopGroups;
+        information.loopExits = loopExits;
+        analysisManager.setLoopInformation(function, information);
     }
 }
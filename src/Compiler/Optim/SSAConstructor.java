@@ -6,6 +6,7 @@ import Compiler.IR.IRRoot;
 import Compiler.IR.Instruction.Call;
 import Compiler.IR.Instruction.IRInstruction;
 import Compiler.IR.Instruction.Phi;
+import Compiler.IR.Operand.GlobalVariable;
 import Compiler.IR.Operand.Register;
 import Compiler.IR.Operand.VirtualRegister;
 
@@ -20,16 +21,24 @@ class SSAConstructor extends Pass {
 
     @Override
     boolean run() {
-        irRoot.getFunctionMap().forEach((name, function) -> {
-            computeDominateTree(function);
-            computeDominanceFrontier(function);
-            findGlobalNames(function);
-            insertPhiFunction(function);
-            renameVariables(function);
+        runOnFunctions(() -> new SSAConstructor(irRoot), (pass, function) -> {
+            pass.computeDominateTree(function);
+            pass.computeDominanceFrontier(function);
+            pass.findGlobalNames(function);
+            pass.insertPhiFunction(function);
         });
+        //dropping unused parameters changes the calls in other functions, so it runs on one thread
+        irRoot.getFunctionMap().values().forEach(this::eliminateUnusedParameters);
+        runOnFunctions(() -> new SSAConstructor(irRoot), SSAConstructor::renameVariables);
         return true;
     }
 
+    //phi functions are inserted and registers renamed, the CFG stays as it is
+    @Override
+    Set<AnalysisManager.Analysis> preservedAnalyses() {
+        return AnalysisManager.CFG;
+    }
+
     private void findGlobalNames(Function function) {
         List<BasicBlock> basicBlockList = function.getReversePostOrderDFSBBList();
         Set<VirtualRegister> varKill = new HashSet<>();
@@ -39,6 +48,8 @@ class SSAConstructor extends Pass {
                 List<Register> useRegisters = irInstruction.getUseRegisters();
                 Register defRegister = irInstruction.getDefRegister();
                 useRegisters.forEach(useRegister -> {
+                    //global variables are shared by all functions and never renamed
+                    if (useRegister instanceof GlobalVariable) return;
                     if (useRegister instanceof VirtualRegister && !varKill.contains(useRegister))
                         function.appendGlobals((VirtualRegister) useRegister);
                     if (useRegister instanceof VirtualRegister && ((VirtualRegister) useRegister).info == null)
@@ -107,16 +118,12 @@ class SSAConstructor extends Pass {
         }
     }
 
-    private void renameVariables(Function function) {
+    private void eliminateUnusedParameters(Function function) {
         VirtualRegister _this = (VirtualRegister) function.getReferenceForClassMethod();
-        boolean eliminateThis = false;
-        if (_this != null) {
-            if (_this.info == null) {
-                //if _this is not used, eliminate its argument passing
-                for (Call call : function.callerInstructionList) call.setObjectPointer(null);
-                function.setReferenceForClassMethod(null);
-                eliminateThis = true;
-            } else function.setReferenceForClassMethod(_this.getSSARenameRegister(_this.getNewId()));
+        if (_this != null && _this.info == null) {
+            //if _this is not used, eliminate its argument passing
+            for (Call call : function.callerInstructionList) call.setObjectPointer(null);
+            function.setReferenceForClassMethod(null);
         }
 
         for (int i = 0; i < function.getParameterList().size(); i++) {
@@ -125,14 +132,23 @@ class SSAConstructor extends Pass {
                 //if parameter is not used/def, eliminate its argument passing
                 for (Call call : function.callerInstructionList) call.getParameterList().set(i, null);
                 function.getParameterList().set(i, null);
-            } else function.getParameterList().set(i, parameter.getSSARenameRegister(parameter.getNewId()));
+            }
         }
         function.getParameterList().removeAll(Collections.singleton(null));
         for (Call call : function.callerInstructionList) call.getParameterList().removeAll(Collections.singleton(null));
+    }
+
+    private void renameVariables(Function function) {
+        VirtualRegister _this = (VirtualRegister) function.getReferenceForClassMethod();
+        if (_this != null) function.setReferenceForClassMethod(_this.getSSARenameRegister(_this.getNewId()));
+        for (int i = 0; i < function.getParameterList().size(); i++) {
+            VirtualRegister parameter = (VirtualRegister) function.getParameterList().get(i);
+            function.getParameterList().set(i, parameter.getSSARenameRegister(parameter.getNewId()));
+        }
 
         rename(function.getEntryBlock());
 
-        if (_this != null && !eliminateThis) _this.getOrigin().info.stack.pop();
+        if (_this != null) _this.getOrigin().info.stack.pop();
         function.getParameterList().forEach(parameter -> ((VirtualRegister) parameter).getOrigin().info.stack.pop());
     }
 }
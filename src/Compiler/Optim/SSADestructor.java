@@ -20,10 +20,10 @@ class SSADestructor extends Pass {
 
     @Override
     boolean run() {
-        irRoot.getFunctionMap().values().forEach(function -> {
-            removePhiFunction(function);
+        runOnFunctions(() -> new SSADestructor(irRoot), (pass, function) -> {
+            pass.removePhiFunction(function);
             function.recalcReversePostOrderDFSBBList();
-            sequentializationParallelCopy(function);
+            pass.sequentializationParallelCopy(function);
         });
         return true;
     }
@@ -39,6 +39,8 @@ class SSADestructor extends Pass {
             predecessors.forEach(predecessor -> {
                 if (predecessor.getSuccessors().size() > 1) {
                     BasicBlock pcBB = new BasicBlock(function, "parallel_copy");
+                    if (predecessor.executionCount >= 0 && basicBlock.executionCount >= 0)
+                        pcBB.executionCount = Math.min(predecessor.executionCount, basicBlock.executionCount);
                     pcBB.terminate(new Jump(pcBB, basicBlock));
                     ((Branch) predecessor.tail).replaceTarget(basicBlock, pcBB);
                     predecessor.getSuccessors().remove(basicBlock);
@@ -0,0 +1,83 @@
+package Compiler.Optim;
+
+import Compiler.IR.BasicBlock;
+import Compiler.IR.Function;
+import Compiler.IR.IRRoot;
+import Compiler.IR.Instruction.Call;
+import Compiler.IR.Instruction.IRInstruction;
+import Compiler.IR.Instruction.Store;
+
+import java.util.*;
+
+//Side Effect Summary
+//          A function is side-effect free if it stores nothing (global variables are stored too once resolved), has no
+//          loop and only calls side-effect free functions or the string builtins. Such a function always returns and
+//          its result is all a caller can observe, so DeadCodeEliminator drops calls whose result is unused.
+//          Functions start out with effects and are proven free bottom-up, so recursion never is.
+
+class SideEffectAnalyzer extends Pass {
+    SideEffectAnalyzer(IRRoot irRoot) {
+        super(irRoot);
+    }
+
+    @Override
+    boolean run() {
+        return !update().isEmpty();
+    }
+
+    //recompute the summaries, returns the functions whose summary changed
+    Set<Function> update() {
+        Set<Function> res = new LinkedHashSet<>();
+        for (boolean changed = true; changed; ) {
+            changed = false;
+            for (Function function : irRoot.getFunctionMap().values()) {
+                boolean sideEffectFree = isSideEffectFree(function);
+                if (sideEffectFree != function.sideEffectFree) {
+                    function.sideEffectFree = sideEffectFree;
+                    res.add(function);
+                    changed = true;
+                }
+            }
+        }
+        return res;
+    }
+
+    private boolean isSideEffectFree(Function function) {
+        for (BasicBlock basicBlock : function.getReversePostOrderDFSBBList())
+            for (IRInstruction irInstruction = basicBlock.head; irInstruction != null; irInstruction = irInstruction.getNextInstruction()) {
+                if (irInstruction instanceof Store) return false;
+                if (irInstruction instanceof Call) {
+                    Function callee = ((Call) irInstruction).getCallee();
+                    if (!callee.sideEffectFree && !irRoot.stringConstantFunctions.contains(callee)) return false;
+                }
+            }
+        return !hasLoop(function);
+    }
+
+    //a depth-first search from the entry that meets a block still on its path
+    private boolean hasLoop(Function function) {
+        Set<BasicBlock> visited = new HashSet<>();
+        Set<BasicBlock> onPath = new HashSet<>();
+        Deque<Iterator<BasicBlock>> stack = new ArrayDeque<>();
+        Deque<BasicBlock> path = new ArrayDeque<>();
+        visited.add(function.getEntryBlock());
+        onPath.add(function.getEntryBlock());
+        path.push(function.getEntryBlock());
+        stack.push(function.getEntryBlock().getSuccessors().iterator());
+        while (!stack.isEmpty()) {
+            if (!stack.peek().hasNext()) {
+                stack.pop();
+                onPath.remove(path.pop());
+                continue;
+            }
+            BasicBlock successor = stack.peek().next();
+            if (onPath.contains(successor)) return true;
+            if (visited.add(successor)) {
+                onPath.add(successor);
+                path.push(successor);
+                stack.push(successor.getSuccessors().iterator());
+            }
+        }
+        return false;
+    }
+}
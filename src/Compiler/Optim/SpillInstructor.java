@@ -5,30 +5,44 @@ import Compiler.IR.IRRoot;
 import Compiler.IR.Instruction.IRInstruction;
 import Compiler.IR.Operand.VirtualRegister;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
 class SpillInstructor extends Pass {
+    //precolored registers appear in every function, so the weights are summed up on one thread afterwards
+    private Map<VirtualRegister, Long> spillPriority = new HashMap<>();
+
     SpillInstructor(IRRoot irRoot) {
         super(irRoot);
     }
 
     @Override
     boolean run() {
-        irRoot.getFunctionMap().values().forEach(function -> {
-            calcLoopInformation(function);
-            markSpillPriority(function);
-        });
+        runOnFunctions(() -> new SpillInstructor(irRoot), (pass, function) -> {
+            pass.calcLoopInformation(function);
+            pass.markSpillPriority(function);
+        }).forEach(pass -> pass.spillPriority.forEach((register, priority) -> register.spillPriority += priority));
         return false;
     }
 
+    @Override
+    Set<AnalysisManager.Analysis> preservedAnalyses() {
+        return AnalysisManager.ALL;
+    }
+
+    //with a profile (-fprofile-use) a block weighs as often as it ran, otherwise 10 times per enclosing loop
     private void markSpillPriority(Function function) {
+        boolean profiled = function.getEntryBlock().executionCount >= 0;
         function.getReversePostOrderDFSBBList().forEach(basicBlock -> {
             int loopLevel = belongingLoopHeaders.get(basicBlock) == null ? 0 : belongingLoopHeaders.get(basicBlock).size();
-            int loopContribution = (int) Math.pow(10, loopLevel);
+            long loopContribution = profiled ? Math.max(basicBlock.executionCount, 0) + 1 : (long) Math.pow(10, loopLevel);
             for (IRInstruction irInstruction = basicBlock.head; irInstruction != null; irInstruction = irInstruction.getNextInstruction()) {
                 irInstruction.calcUseAndDef();
                 for (VirtualRegister def : irInstruction.getDef())
-                    def.spillPriority += loopContribution;
+                    spillPriority.merge(def, loopContribution, Long::sum);
                 for (VirtualRegister use : irInstruction.getUse())
-                    use.spillPriority += loopContribution;
+                    spillPriority.merge(use, loopContribution, Long::sum);
             }
         });
     }
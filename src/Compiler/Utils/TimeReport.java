@@ -0,0 +1,252 @@
+package Compiler.Utils;
+
+import Compiler.Configuration;
+import Compiler.IR.BasicBlock;
+import Compiler.IR.Function;
+import Compiler.IR.IRRoot;
+import Compiler.IR.Instruction.IRInstruction;
+import Compiler.IR.Instruction.Phi;
+import Compiler.IR.Operand.Register;
+import Compiler.IR.Operand.VirtualRegister;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.*;
+
+//-ftime-report: where the compiler spends its time and what each phase does to the IR
+//A phase is what runs between `begin` and `end`, phases nest, and phases of the same name under the same parent share
+//a row, so a pass that runs every round of a loop is reported once with the number of times it ran. Each row has the
+//wall time, the CPU time of the whole process (the optimizer runs on a thread pool, and GC and JIT threads count too),
+//the bytes allocated by all threads, the IR counts after the phase and how much the phase changed them, and the
+//counters the phase reported with `count`. Counting the IR is not part of the time of a phase.
+//Nothing is measured unless the option is given.
+
+public class TimeReport {
+    private static Row root = new Row("total", null);
+    private static Row current = root;
+
+    public static boolean enabled() {
+        return Configuration.TIME_REPORT != null;
+    }
+
+    //start a phase before there is IR
+    public static void begin(String name) {
+        if (enabled()) open(name, null);
+    }
+
+    //start a phase on the whole program
+    public static void begin(String name, IRRoot irRoot) {
+        if (enabled()) open(name, irRoot == null ? null : IRCount.of(irRoot));
+    }
+
+    //start a phase on one function, only the changes of such phases are reported
+    public static void begin(String name, Function function) {
+        if (enabled()) open(name, IRCount.of(function));
+    }
+
+    public static void end() {
+        if (enabled()) close(null, false);
+    }
+
+    public static void end(IRRoot irRoot) {
+        if (enabled()) close(irRoot == null ? null : IRCount.of(irRoot), false);
+    }
+
+    public static void end(Function function) {
+        if (enabled()) close(IRCount.of(function), true);
+    }
+
+    //add to a counter of the innermost phase
+    public static void count(String counter, long n) {
+        if (!enabled()) return;
+        synchronized (TimeReport.class) {
+            current.counters.merge(counter, n, Long::sum);
+        }
+    }
+
+    private static synchronized void open(String name, IRCount before) {
+        Row row = current.children.computeIfAbsent(name, x -> new Row(x, current));
+        row.calls++;
+        row.before = before;
+        row.wallTime -= System.nanoTime();
+        row.cpuTime -= processCpuTime();
+        row.allocatedBytes -= allocatedBytes();
+        current = row;
+    }
+
+    private static synchronized void close(IRCount after, boolean functionOnly) {
+        Row row = current;
+        row.allocatedBytes += allocatedBytes();
+        row.cpuTime += processCpuTime();
+        row.wallTime += System.nanoTime();
+        if (after != null) {
+            if (row.before != null) row.change.add(after, row.before);
+            if (!functionOnly) row.after = after;
+        }
+        row.before = null;
+        current = row.parent;
+    }
+
+    private static long processCpuTime() {
+        java.lang.management.OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+        if (bean instanceof com.sun.management.OperatingSystemMXBean)
+            return ((com.sun.management.OperatingSystemMXBean) bean).getProcessCpuTime();
+        return 0;
+    }
+
+    //threads that ended during a phase take their allocation with them, the optimizer pool keeps its threads
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) return 0;
+        long res = 0;
+        for (long bytes : ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(bean.getAllThreadIds()))
+            if (bytes > 0) res += bytes;
+        return res;
+    }
+
+    public static void report(PrintStream out) {
+        if (!enabled()) return;
+        if ("json".equals(Configuration.TIME_REPORT)) {
+            StringBuilder builder = new StringBuilder();
+            json(builder, root, "");
+            out.println(builder);
+            return;
+        }
+        String format = "%-40s %6s %10s %10s %10s  %-22s %-22s %-24s %-22s %-22s  %s%n";
+        out.printf(format, "phase", "calls", "wall (ms)", "cpu (ms)", "alloc (MB)",
+                "functions", "blocks", "instructions", "phis", "vregs", "counters");
+        for (Row row : root.children.values()) table(out, format, row, "");
+        out.printf("%-40s %6s %10.1f %10.1f %10.1f%n", "total", "",
+                sum(row -> row.wallTime) / 1e6, sum(row -> row.cpuTime) / 1e6, sum(row -> row.allocatedBytes) / 1048576.0);
+    }
+
+    private static long sum(java.util.function.ToLongFunction<Row> field) {
+        return root.children.values().stream().mapToLong(field).sum();
+    }
+
+    private static void table(PrintStream out, String format, Row row, String indent) {
+        StringJoiner counters = new StringJoiner(", ");
+        row.counters.forEach((name, n) -> counters.add(name + " " + n));
+        out.printf(format, indent + row.name, row.calls, String.format("%.1f", row.wallTime / 1e6),
+                String.format("%.1f", row.cpuTime / 1e6), String.format("%.1f", row.allocatedBytes / 1048576.0),
+                cell(row, 0), cell(row, 1), cell(row, 2), cell(row, 3), cell(row, 4), counters);
+        for (Row child : row.children.values()) table(out, format, child, indent + "  ");
+    }
+
+    //the count after the phase and how the phase changed it, only the change for phases on single functions
+    private static String cell(Row row, int index) {
+        String change = row.change.counts[index] == 0 ? "" : String.format("%+d", row.change.counts[index]);
+        if (row.after != null)
+            return change.isEmpty() ? String.valueOf(row.after.counts[index]) : row.after.counts[index] + " (" + change + ")";
+        return change.isEmpty() ? "" : "(" + change + ")";
+    }
+
+    private static void json(StringBuilder builder, Row row, String indent) {
+        builder.append(indent).append("{\"phase\": \"").append(row.name).append('"');
+        if (row != root) {
+            builder.append(", \"calls\": ").append(row.calls);
+            builder.append(", \"wallNanos\": ").append(row.wallTime);
+            builder.append(", \"cpuNanos\": ").append(row.cpuTime);
+            builder.append(", \"allocatedBytes\": ").append(row.allocatedBytes);
+        }
+        if (row.after != null) {
+            builder.append(", \"after\": ");
+            row.after.json(builder);
+        }
+        if (row.change.changed()) {
+            builder.append(", \"change\": ");
+            row.change.json(builder);
+        }
+        if (!row.counters.isEmpty()) {
+            builder.append(", \"counters\": {");
+            StringJoiner counters = new StringJoiner(", ");
+            row.counters.forEach((name, n) -> counters.add("\"" + name + "\": " + n));
+            builder.append(counters).append('}');
+        }
+        if (!row.children.isEmpty()) {
+            builder.append(", \"phases\": [\n");
+            int i = 0;
+            for (Row child : row.children.values()) {
+                json(builder, child, indent + "  ");
+                builder.append(++i < row.children.size() ? ",\n" : "\n");
+            }
+            builder.append(indent).append(']');
+        }
+        builder.append('}');
+    }
+
+    private static class Row {
+        String name;
+        Row parent;
+        Map<String, Row> children = new LinkedHashMap<>();
+        long calls = 0;
+        long wallTime = 0, cpuTime = 0, allocatedBytes = 0;
+        IRCount before = null, after = null;
+        IRCount change = new IRCount();
+        Map<String, Long> counters = new LinkedHashMap<>();
+
+        Row(String name, Row parent) {
+            this.name = name;
+            this.parent = parent;
+        }
+    }
+
+    //functions, blocks, instructions, phis and virtual registers of the blocks reachable from the entry
+    //The walk does not go through the cached block lists of a function, so that reporting does not change them.
+    private static class IRCount {
+        static final String[] names = {"functions", "blocks", "instructions", "phis", "vregs"};
+        long[] counts = new long[5];
+
+        static IRCount of(IRRoot irRoot) {
+            IRCount res = new IRCount();
+            irRoot.getFunctionMap().values().forEach(function -> res.count(function));
+            return res;
+        }
+
+        static IRCount of(Function function) {
+            IRCount res = new IRCount();
+            res.count(function);
+            return res;
+        }
+
+        private void count(Function function) {
+            counts[0]++;
+            if (function.getEntryBlock() == null) return;
+            Set<BasicBlock> visited = new HashSet<>();
+            Set<VirtualRegister> virtualRegisters = new HashSet<>();
+            Deque<BasicBlock> stack = new ArrayDeque<>();
+            visited.add(function.getEntryBlock());
+            stack.push(function.getEntryBlock());
+            while (!stack.isEmpty()) {
+                BasicBlock basicBlock = stack.pop();
+                counts[1]++;
+                for (IRInstruction irInstruction = basicBlock.head; irInstruction != null; irInstruction = irInstruction.getNextInstruction()) {
+                    counts[2]++;
+                    if (irInstruction instanceof Phi) counts[3]++;
+                    if (irInstruction.getDefRegister() instanceof VirtualRegister)
+                        virtualRegisters.add((VirtualRegister) irInstruction.getDefRegister());
+                    for (Register register : irInstruction.getUseRegisters())
+                        if (register instanceof VirtualRegister) virtualRegisters.add((VirtualRegister) register);
+                }
+                for (BasicBlock successor : basicBlock.getSuccessors())
+                    if (visited.add(successor)) stack.push(successor);
+            }
+            counts[4] += virtualRegisters.size();
+        }
+
+        void add(IRCount after, IRCount before) {
+            for (int i = 0; i < counts.length; ++i) counts[i] += after.counts[i] - before.counts[i];
+        }
+
+        boolean changed() {
+            return Arrays.stream(counts).anyMatch(x -> x != 0);
+        }
+
+        void json(StringBuilder builder) {
+            StringJoiner res = new StringJoiner(", ", "{", "}");
+            for (int i = 0; i < counts.length; ++i) res.add("\"" + names[i] + "\": " + counts[i]);
+            builder.append(res);
+        }
+    }
+}